@@ -1,47 +1,64 @@
 package com.cgutman.androidremotedebugger;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.PatternSyntaxException;
 
 import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.androidremotedebugger.adblib.AndroidBase64;
 import com.cgutman.androidremotedebugger.console.CommandHistory;
 import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.console.ConsoleSearch;
+import com.cgutman.androidremotedebugger.console.LineFilter;
+import com.cgutman.androidremotedebugger.console.LogcatFilter;
+import com.cgutman.androidremotedebugger.console.LogcatQuery;
+import com.cgutman.androidremotedebugger.console.LogcatStore;
+import com.cgutman.androidremotedebugger.console.OutputFilter;
+import com.cgutman.androidremotedebugger.console.PreferencesHistoryStore;
+import com.cgutman.androidremotedebugger.devconn.ConnectionMetrics;
 import com.cgutman.androidremotedebugger.devconn.DeviceConnection;
 import com.cgutman.androidremotedebugger.devconn.DeviceConnectionListener;
 import com.cgutman.androidremotedebugger.service.ShellService;
 import com.cgutman.androidremotedebugger.ui.Dialog;
+import com.cgutman.androidremotedebugger.ui.FrameScheduler;
 import com.cgutman.androidremotedebugger.ui.SpinnerDialog;
+import com.cgutman.androidremotedebugger.ui.TerminalView;
 
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.Service;
 import android.view.ContextMenu;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.view.MotionEvent;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.View.OnKeyListener;
 import android.view.View.OnLongClickListener;
-import android.view.View.OnTouchListener;
-import android.view.ViewTreeObserver;
 import android.view.inputmethod.EditorInfo;
 import android.widget.EditText;
-import android.widget.ScrollView;
+import android.widget.Toast;
 import android.widget.TextView;
 import android.widget.TextView.OnEditorActionListener;
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.ComponentName;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 
 public class AdbShell extends Activity implements DeviceConnectionListener, OnKeyListener, OnEditorActionListener {
 
-	private TextView shellView;
+	private TerminalView shellView;
 	private EditText commandBox;
-	private ScrollView shellScroller;
 	
 	private String hostName;
 	private int port;
@@ -58,20 +75,48 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 	private CommandHistory commandHistory;
 	
 	private boolean updateGui;
-	private AtomicBoolean updateQueued = new AtomicBoolean();
 	private AtomicBoolean updateRequired = new AtomicBoolean();
+	private FrameScheduler guiScheduler;
+	
+	/* When the oldest update not yet drawn was requested, or 0 if there isn't one */
+	private volatile long updateRequestTime;
 	
 	private boolean autoScrollEnabled = true;
-	private boolean userScrolling = false;
 	private boolean scrollViewAtBottom = true;
 
 	private ConsoleBuffer lastConsoleBuffer;
 	
+	/* Searches scan the scrollback on their own thread */
+	private ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+	private volatile ConsoleSearch search;
+	private String lastSearchQuery = "";
+	
+	/* The absolute offset of the selected match, or -1 until the first results arrive */
+	private long searchOffset = -1;
+	
+	private String lastFilterRules = "";
+	private String lastLogcatQuery = "";
+	
 	private StringBuilder commandBuffer = new StringBuilder();
 	
 	private static final int MENU_ID_CTRL_C = 1;
 	private static final int MENU_ID_AUTOSCROLL = 2;
 	private static final int MENU_ID_EXIT = 3;
+	private static final int MENU_ID_COPY = 4;
+	private static final int MENU_ID_STATS = 5;
+	private static final int MENU_ID_EXPORT_STATS = 6;
+	private static final int MENU_ID_RECORD = 7;
+	private static final int MENU_ID_FIND = 8;
+	private static final int MENU_ID_FIND_PREVIOUS = 9;
+	private static final int MENU_ID_FIND_NEXT = 10;
+	private static final int MENU_ID_CLEAR_SEARCH = 11;
+	private static final int MENU_ID_FILTER = 12;
+	private static final int MENU_ID_CLEAR_FILTER = 13;
+	private static final int MENU_ID_LOGCAT = 14;
+	private static final int MENU_ID_LOGCAT_QUERY = 15;
+	
+	/* About 100 bytes each for typical logcat output */
+	private static final int LOGCAT_LINES = 200000;
 	
 	private ServiceConnection serviceConn = new ServiceConnection() {
 		@Override
@@ -164,9 +209,29 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 		setContentView(R.layout.activity_adb_shell);
 		
 		/* Setup our controls */
-		shellView = (TextView) findViewById(R.id.shellView);
+		shellView = (TerminalView) findViewById(R.id.shellView);
 		commandBox = (EditText) findViewById(R.id.command);
-		shellScroller = (ScrollView) findViewById(R.id.shellScroller);
+		
+		guiScheduler = new FrameScheduler(new Runnable() {
+			@Override
+			public void run() {
+				/* We won't need an update again after this */
+				updateRequired.set(false);
+				long requestTime = updateRequestTime;
+				updateRequestTime = 0;
+				
+				/* Redraw the terminal */
+				updateTerminalView();
+				
+				/* Let the scheduler know how expensive the last draw was */
+				guiScheduler.reportDrawTime(shellView.getLastDrawTime());
+				
+				/* Track how long output waited to be shown */
+				if (requestTime != 0 && connection != null) {
+					connection.getMetrics().recordUiRefresh(System.nanoTime() - requestTime);
+				}
+			}
+		});
 		
 		OnLongClickListener showMenu = new OnLongClickListener() {
 			@Override
@@ -176,45 +241,14 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 			}
 		};
 		
-		final ViewTreeObserver.OnScrollChangedListener onScrollChangedListener = new
-				ViewTreeObserver.OnScrollChangedListener() {
-
-			@Override
-			public void onScrollChanged() {
-				View view = (View) shellScroller.getChildAt(0);
-		        int diff = view.getBottom() - (shellScroller.getHeight() + shellScroller.getScrollY());
-		        if (diff <= 0) {
-		        	doAsyncGuiUpdate();
-		        	scrollViewAtBottom = true;
-		        }
-		        else {
-		        	scrollViewAtBottom = false;
-		        }
-			}
-		};
-
-		shellScroller.setOnTouchListener(new OnTouchListener() {
+		shellView.setOnScrollStateListener(new TerminalView.OnScrollStateListener() {
 			@Override
-			public boolean onTouch(View view, MotionEvent event) {
-				ViewTreeObserver observer = AdbShell.this.shellScroller.getViewTreeObserver();
-				switch (event.getActionMasked())
-				{
-				case MotionEvent.ACTION_MOVE:
-				case MotionEvent.ACTION_DOWN:
-					observer.addOnScrollChangedListener(onScrollChangedListener);
-					userScrolling = true;
-					break;
-				case MotionEvent.ACTION_UP:
-				case MotionEvent.ACTION_CANCEL:
-					if (scrollViewAtBottom) {
-						doAsyncGuiUpdate();
-					}
-					userScrolling = false;
-					break;
+			public void onScrollStateChanged(TerminalView view, boolean atBottom) {
+				/* Catch up on anything we skipped while scrolled back */
+				if (atBottom) {
+					doAsyncGuiUpdate();
 				}
-				
-				/* Don't consume the event */
-				return false;
+				scrollViewAtBottom = atBottom;
 			}
 		});
 		
@@ -227,7 +261,7 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 		registerForContextMenu(shellView);
 		
 		/* Pull previous command history (if any) */
-		commandHistory = CommandHistory.loadCommandHistoryFromPrefs(MAX_COMMAND_HISTORY, this, PREFS_FILE);
+		commandHistory = CommandHistory.load(MAX_COMMAND_HISTORY, new PreferencesHistoryStore(this, PREFS_FILE));
 		
 		service = new Intent(this, ShellService.class);
 
@@ -243,7 +277,8 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 			/* Tell the service about our impending doom */
 			binder.notifyDestroyingActivity(connection);
 			
-			/* Dissociate our activity's listener */
+			/* Dissociate our activity's listener. If the session is over, this
+			 * also drops its console's scrollback. */
 			binder.removeListener(connection, this);
 		}
 		
@@ -252,12 +287,15 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 		if (connectWaiting != null) {
 			AdbUtils.safeAsyncClose(connection);
 		}
-		
+
 		/* Unbind from the service since we're going away */
 		if (binder != null) {
 			getApplicationContext().unbindService(serviceConn);
 		}
 		
+		stopSearch();
+		searchExecutor.shutdownNow();
+		
 		Dialog.closeDialogs();
 		SpinnerDialog.closeDialogs();
 		super.onDestroy();
@@ -270,11 +308,16 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 			binder.notifyResumingActivity(connection);
 		}
 		
-		/* There might be changes we need to display */
+		/* There might be changes we need to display. Output that arrived while
+		 * we were hidden would only skew the command latency numbers. */
+		if (connection != null) {
+			connection.getTracer().skipRendering();
+		}
 		updateTerminalView();
 		
 		/* Start updating the GUI again */
 		updateGui = true;
+		guiScheduler.start();
 		super.onResume();
 	}
 	
@@ -287,6 +330,7 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 		
 		/* Stop updating the GUI for now */
 		updateGui = false;
+		guiScheduler.stop();
 		super.onPause();
 	}
 
@@ -295,7 +339,9 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
         super.onCreateContextMenu(menu, v, menuInfo);
         
         if (v == commandBox) {
-        	commandHistory.populateMenu(menu);
+        	/* Most recent commands first */
+        	for (String command : commandHistory.getCommands())
+        		menu.add(Menu.NONE, 0, Menu.NONE, command);
         }
         else {
         	menu.add(Menu.NONE, MENU_ID_CTRL_C, Menu.NONE, "Send Ctrl+C");
@@ -304,6 +350,36 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
         	autoscroll.setCheckable(true);
         	autoscroll.setChecked(autoScrollEnabled);
         	
+        	menu.add(Menu.NONE, MENU_ID_COPY, Menu.NONE, "Copy Terminal Output");
+        	
+        	menu.add(Menu.NONE, MENU_ID_FIND, Menu.NONE, "Find in Output");
+        	if (search != null) {
+        		menu.add(Menu.NONE, MENU_ID_FIND_PREVIOUS, Menu.NONE, "Find Previous");
+        		menu.add(Menu.NONE, MENU_ID_FIND_NEXT, Menu.NONE, "Find Next");
+        		menu.add(Menu.NONE, MENU_ID_CLEAR_SEARCH, Menu.NONE, "Clear Search");
+        	}
+        	
+        	OutputFilter filter = (binder != null && connection != null) ? binder.getOutputFilter(connection) : null;
+        	menu.add(Menu.NONE, MENU_ID_FILTER, Menu.NONE, "Filter Output");
+        	if (filter != null) {
+        		menu.add(Menu.NONE, MENU_ID_CLEAR_FILTER, Menu.NONE, "Clear Filter");
+        	}
+        	
+        	MenuItem logcat = menu.add(Menu.NONE, MENU_ID_LOGCAT, Menu.NONE, "Structured Logcat");
+        	logcat.setCheckable(true);
+        	logcat.setChecked(filter instanceof LogcatFilter);
+        	if (filter instanceof LogcatFilter) {
+        		menu.add(Menu.NONE, MENU_ID_LOGCAT_QUERY, Menu.NONE, "Filter Logcat");
+        	}
+        	
+        	menu.add(Menu.NONE, MENU_ID_STATS, Menu.NONE, "Connection Statistics");
+        	
+        	menu.add(Menu.NONE, MENU_ID_EXPORT_STATS, Menu.NONE, "Export Statistics");
+        	
+        	MenuItem record = menu.add(Menu.NONE, MENU_ID_RECORD, Menu.NONE, "Record Session");
+        	record.setCheckable(true);
+        	record.setChecked(connection != null && connection.getRecorder() != null);
+        	
         	menu.add(Menu.NONE, MENU_ID_EXIT, Menu.NONE, "Exit Terminal");
         }
     }
@@ -322,6 +398,7 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
     				
     				/* Force scroll to the bottom */
     				scrollViewAtBottom = true;
+    				guiScheduler.notifyInput();
     				doAsyncGuiUpdate();
     			}
     			break;
@@ -329,6 +406,95 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
     		case MENU_ID_AUTOSCROLL:
     			item.setChecked(!item.isChecked());
     			autoScrollEnabled = item.isChecked();
+    			shellView.setAutoScroll(autoScrollEnabled);
+    			break;
+    			
+    		case MENU_ID_COPY:
+    			if (lastConsoleBuffer != null) {
+    				char[] text = new char[lastConsoleBuffer.getCapacity()];
+    				int length = lastConsoleBuffer.snapshot(text);
+    				
+    				ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
+    				clipboard.setPrimaryClip(ClipData.newPlainText("ADB Shell", new String(text, 0, length)));
+    			}
+    			break;
+    			
+    		case MENU_ID_FIND:
+    			showFindDialog();
+    			break;
+    			
+    		case MENU_ID_FIND_PREVIOUS:
+    			if (search != null) {
+    				selectMatch(-1);
+    			}
+    			break;
+    			
+    		case MENU_ID_FIND_NEXT:
+    			if (search != null) {
+    				selectMatch(1);
+    			}
+    			break;
+    			
+    		case MENU_ID_CLEAR_SEARCH:
+    			stopSearch();
+    			break;
+    			
+    		case MENU_ID_FILTER:
+    			showFilterDialog();
+    			break;
+    			
+    		case MENU_ID_CLEAR_FILTER:
+    			setFilter(null);
+    			break;
+    			
+    		case MENU_ID_LOGCAT:
+    			if (binder != null && connection != null) {
+    				if (binder.getOutputFilter(connection) instanceof LogcatFilter) {
+    					setFilter(null);
+    				}
+    				else {
+    					setFilter(new LogcatFilter(new LogcatStore(LOGCAT_LINES)));
+    				}
+    			}
+    			break;
+    			
+    		case MENU_ID_LOGCAT_QUERY:
+    			showLogcatQueryDialog();
+    			break;
+    			
+    		case MENU_ID_STATS:
+    			if (connection != null) {
+    				Dialog.displayDialog(this, "Connection Statistics",
+    						connection.getMetrics().snapshot().toString(), false);
+    			}
+    			break;
+    			
+    		case MENU_ID_EXPORT_STATS:
+    			if (binder != null) {
+    				/* One row per session, so slow devices stand out in a spreadsheet */
+    				Intent send = new Intent(Intent.ACTION_SEND);
+    				send.setType("text/plain");
+    				send.putExtra(Intent.EXTRA_SUBJECT, "Remote ADB Shell statistics");
+    				send.putExtra(Intent.EXTRA_TEXT, ConnectionMetrics.toCsv(binder.getMetricsSnapshots()));
+    				startActivity(Intent.createChooser(send, "Export Statistics"));
+    			}
+    			break;
+    			
+    		case MENU_ID_RECORD:
+    			if (binder != null && connection != null) {
+    				if (connection.getRecorder() == null) {
+    					try {
+    						File file = binder.startRecording(connection);
+    						Dialog.displayDialog(this, "Recording Session", "Recording to " + file, false);
+    					} catch (IOException e) {
+    						Dialog.displayDialog(this, "Recording Failed", e.getMessage(), false);
+    					}
+    				}
+    				else {
+    					File file = binder.stopRecording(connection);
+    					Dialog.displayDialog(this, "Recording Saved", "Recording saved to " + file, false);
+    				}
+    			}
     			break;
     			
     		case MENU_ID_EXIT:
@@ -354,21 +520,26 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 			/* Append the command to our command buffer (which is empty) */
 			commandBuffer.append(text);
 			
-			/* Add the command to the previous command list */
-			commandHistory.add(text);
-			
 			/* Append a newline since it's not included in the command itself */
 			commandBuffer.append('\n');
 			
 			/* Send it to the device */
-			connection.queueCommand(commandBuffer.toString());
+			if (!connection.queueCommand(commandBuffer.toString())) {
+				/* The device is too far behind. Leave the command in the box to try again. */
+				commandBuffer.setLength(0);
+				return true;
+			}
+			
+			/* Add the command to the previous command list */
+			commandHistory.add(text);
 			
 			/* Clear the textbox and command buffer */
 			commandBuffer.setLength(0);
 			commandBox.setText("");
 			
-			/* Force scroll to the bottom */
+			/* Force scroll to the bottom and draw the echo as soon as it arrives */
 			scrollViewAtBottom = true;
+			guiScheduler.notifyInput();
 			doAsyncGuiUpdate();
 			return true;
 		}
@@ -389,17 +560,18 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 	
 	private void updateTerminalView() {
 		if (lastConsoleBuffer != null) {
-			lastConsoleBuffer.updateTextView(shellView);
+			/* The view only draws what's on screen, so this is cheap
+			 * regardless of how much scrollback there is */
+			shellView.setConsoleBuffer(lastConsoleBuffer);
 		}
 
-		if (autoScrollEnabled) {
-			shellView.post(new Runnable() { 
-				public void run() {
-					if (scrollViewAtBottom) {
-						shellScroller.smoothScrollTo(0, shellView.getBottom());
-					}
-				} 
-			});
+		if (autoScrollEnabled && scrollViewAtBottom && !shellView.isAtBottom()) {
+			shellView.scrollToBottom();
+		}
+		
+		/* Anything that was in the console is now on screen */
+		if (connection != null) {
+			connection.getTracer().recordRendered();
 		}
 	}
 
@@ -429,13 +601,13 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 
 	@Override
 	public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
-		return AdbUtils.readCryptoConfig(getFilesDir());
+		return AdbUtils.readCryptoConfig(getFilesDir(), new AndroidBase64());
 	}
 
 	@Override
-	public boolean canReceiveData() {
-		/* We just handle console updates */
-		return false;
+	public boolean canReceiveData(DeviceConnection devConn) {
+		/* Console updates are coalesced into frames, so we never fall behind */
+		return true;
 	}
 
 	@Override
@@ -459,50 +631,248 @@ public class AdbShell extends Activity implements DeviceConnectionListener, OnKe
 			return;
 		}
 		
-		/* If an update isn't already queued, fire one off */
-		if (updateQueued.compareAndSet(false, true)) {
-			new Thread(new Runnable() {
+		if (updateRequestTime == 0) {
+			updateRequestTime = System.nanoTime();
+		}
+		
+		/* This coalesces with any update already pending for the next frame */
+		guiScheduler.requestUpdate();
+	}
+
+	private void showFindDialog() {
+		final EditText queryBox = new EditText(this);
+		queryBox.setText(lastSearchQuery);
+		queryBox.setHint("Text, or /regex/");
+		
+		new AlertDialog.Builder(this)
+			.setTitle("Find in Output")
+			.setView(queryBox)
+			.setPositiveButton("Find", new DialogInterface.OnClickListener() {
 				@Override
-				public void run() {
-					/* Wait for a few milliseconds to avoid spamming GUI updates */
-					
-					try {
-						Thread.sleep(250);
-					} catch (InterruptedException e) {
+				public void onClick(DialogInterface dialog, int which) {
+					startSearch(queryBox.getText().toString());
+				}
+			})
+			.setNegativeButton("Cancel", null)
+			.show();
+	}
+	
+	private void showFilterDialog() {
+		final EditText rulesBox = new EditText(this);
+		rulesBox.setText(lastFilterRules);
+		rulesBox.setHint("Keywords or /regex/, -exclude");
+		
+		new AlertDialog.Builder(this)
+			.setTitle("Filter Output")
+			.setView(rulesBox)
+			.setPositiveButton("Filter", new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					String rules = rulesBox.getText().toString();
+					if (rules.trim().isEmpty()) {
+						setFilter(null);
 						return;
 					}
 					
+					try {
+						setFilter(LineFilter.parse(rules));
+						lastFilterRules = rules;
+					} catch (PatternSyntaxException e) {
+						Dialog.displayDialog(AdbShell.this, "Invalid Filter", e.getDescription(), false);
+					}
+				}
+			})
+			.setNegativeButton("Cancel", null)
+			.show();
+	}
+	
+	private void showLogcatQueryDialog() {
+		final EditText queryBox = new EditText(this);
+		queryBox.setText(lastLogcatQuery);
+		queryBox.setHint("Priority, tags or pid, like W ActivityManager");
+		
+		new AlertDialog.Builder(this)
+			.setTitle("Filter Logcat")
+			.setView(queryBox)
+			.setPositiveButton("Filter", new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					String terms = queryBox.getText().toString();
+					try {
+						setLogcatQuery(LogcatQuery.parse(terms));
+						lastLogcatQuery = terms;
+					} catch (IllegalArgumentException e) {
+						Dialog.displayDialog(AdbShell.this, "Invalid Filter", e.getMessage(), false);
+					}
+				}
+			})
+			.setNegativeButton("Cancel", null)
+			.show();
+	}
+	
+	/* Redraws the console from the parsed lines, off the UI thread since there may be millions */
+	private void setLogcatQuery(final LogcatQuery query) {
+		if (binder == null || connection == null || lastConsoleBuffer == null ||
+				!(binder.getOutputFilter(connection) instanceof LogcatFilter)) {
+			return;
+		}
+		
+		final LogcatFilter filter = (LogcatFilter) binder.getOutputFilter(connection);
+		final DeviceConnection conn = connection;
+		final ConsoleBuffer console = lastConsoleBuffer;
+		searchExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				filter.setQuery(query, console.getCapacity(), console);
+				final int matched = filter.getStore().count(query);
+				final int total = filter.getStore().getLineCount();
+				consoleUpdated(conn, console);
+				
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Toast.makeText(AdbShell.this, matched + " of " + total + " lines match",
+								Toast.LENGTH_SHORT).show();
+					}
+				});
+			}
+		});
+	}
+	
+	/* Only output that arrives from now on is filtered. What's already in the console stays.
+	 * A session has one filter at a time, so say so when this one replaces the other kind. */
+	private void setFilter(OutputFilter filter) {
+		if (binder == null || connection == null) {
+			return;
+		}
+		
+		OutputFilter previous = binder.getOutputFilter(connection);
+		binder.setOutputFilter(connection, filter);
+		
+		String message = null;
+		if (previous instanceof LineFilter) {
+			LineFilter old = (LineFilter) previous;
+			message = "Filtered out " + old.getLinesDropped() + " of " +
+					(old.getLinesKept() + old.getLinesDropped()) + " lines";
+			if (filter instanceof LogcatFilter) {
+				message = "Output filter cleared. " + message;
+			}
+		}
+		else if (previous instanceof LogcatFilter && filter != null) {
+			message = "Structured logcat turned off";
+		}
+		
+		if (filter instanceof LogcatFilter) {
+			message = (message != null ? message + "\n" : "") + "Parsing output of logcat -v threadtime";
+		}
+		if (message != null) {
+			Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+		}
+	}
+	
+	private void startSearch(String query) {
+		stopSearch();
+		if (query.isEmpty() || lastConsoleBuffer == null) {
+			return;
+		}
+		lastSearchQuery = query;
+		
+		/* Plain text ignores case. Slashes make it a regex, which doesn't unless it asks with (?i). */
+		boolean regex = query.length() > 2 && query.startsWith("/") && query.endsWith("/");
+		try {
+			search = new ConsoleSearch(lastConsoleBuffer, regex ? query.substring(1, query.length() - 1) : query,
+					regex, !regex, searchExecutor, new ConsoleSearch.Listener() {
+				@Override
+				public void onMatchesUpdated(final ConsoleSearch updated) {
 					runOnUiThread(new Runnable() {
 						@Override
 						public void run() {
-							/* We won't need an update again after this */
-							updateRequired.set(false);
-							
-							/* Redraw the terminal */
-							updateTerminalView();
-							
-							/* This update is finished */
-							updateQueued.set(false);
-							
-							/* If someone updated the console between the time that we
-							 * started redrawing and when we finished, we need to update
-							 * the GUI again, otherwise the GUI update could be missed. */
-							if (updateRequired.get()) {
-								doAsyncGuiUpdate();
-							}
+							searchUpdated(updated);
 						}
 					});
 				}
-			}).start();
+			});
+		} catch (PatternSyntaxException e) {
+			Dialog.displayDialog(this, "Invalid Search", e.getDescription(), false);
+		}
+	}
+	
+	private void stopSearch() {
+		if (search != null) {
+			search.cancel();
+			search = null;
+		}
+		searchOffset = -1;
+		shellView.clearHighlight();
+	}
+	
+	/* Runs on the UI thread */
+	private void searchUpdated(ConsoleSearch updated) {
+		if (updated != search) {
+			return;
+		}
+		
+		if (searchOffset < 0) {
+			if (updated.getMatchCount() == 0) {
+				Toast.makeText(this, "No matches for " + updated.getQuery(), Toast.LENGTH_SHORT).show();
+				searchOffset = 0;
+			}
+			else {
+				/* Start at the newest match, like scrolling back through the output would */
+				selectMatch(0);
+			}
+		}
+		else if (searchOffset < updated.getConsole().getStartOffset()) {
+			/* The selected match was evicted */
+			shellView.clearHighlight();
 		}
 	}
+	
+	/* Runs on the UI thread. Selects the match before (-1) or after (1) the
+	 * selected one, or the newest match (0). */
+	private void selectMatch(int direction) {
+		long offset;
+		int length, index, count;
+		
+		/* Hold the matches still, since the search thread may be dropping old ones */
+		synchronized (search) {
+			count = search.getMatchCount();
+			if (direction < 0) {
+				index = search.findBefore(searchOffset);
+			}
+			else if (direction > 0) {
+				index = search.findAfter(searchOffset);
+			}
+			else {
+				index = count - 1;
+			}
+			
+			if (index < 0) {
+				Toast.makeText(this, "No more matches", Toast.LENGTH_SHORT).show();
+				return;
+			}
+			offset = search.getMatchOffset(index);
+			length = search.getMatchLength(index);
+		}
+		
+		searchOffset = offset;
+		shellView.setHighlight(offset, length);
+		shellView.scrollToOffset(offset);
+		Toast.makeText(this, "Match " + (index + 1) + " of " + count, Toast.LENGTH_SHORT).show();
+	}
 
 	@Override
 	public void consoleUpdated(DeviceConnection devConn, ConsoleBuffer console) {
 		lastConsoleBuffer = console;
+		
+		/* Fold the new output into the search on its own thread */
+		ConsoleSearch search = this.search;
+		if (search != null && search.getConsole() == console) {
+			search.update();
+		}
 
 		setGuiDirty();
-		if (updateGui && !userScrolling && scrollViewAtBottom) {
+		if (updateGui && scrollViewAtBottom) {
 			doAsyncGuiUpdate();
 		}
 	}
@@ -1,7 +1,12 @@
 package com.cgutman.androidremotedebugger;
 
+import java.net.UnknownHostException;
+
 import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.androidremotedebugger.adblib.AndroidBase64;
+import com.cgutman.androidremotedebugger.devconn.DeviceScanner;
 import com.cgutman.androidremotedebugger.ui.Dialog;
+import com.cgutman.androidremotedebugger.ui.ScanDialog;
 import com.cgutman.androidremotedebugger.ui.SpinnerDialog;
 
 import android.os.Bundle;
@@ -10,12 +15,14 @@ import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.EditText;
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 
 public class ConnectActivity extends Activity implements OnClickListener {
 
-	private Button connectButton;
+	private Button connectButton, scanButton;
 	private EditText ipField, portField;
 	
 	private SpinnerDialog keygenSpinner;
@@ -29,15 +36,17 @@ public class ConnectActivity extends Activity implements OnClickListener {
 		
 		/* Grab our controls and setup our listeners */
 		connectButton = (Button)findViewById(R.id.connect);
+		scanButton = (Button)findViewById(R.id.scan);
 		ipField = (EditText)findViewById(R.id.ipAddressField);
 		portField = (EditText)findViewById(R.id.portField);
 		connectButton.setOnClickListener(this);
+		scanButton.setOnClickListener(this);
 		
 		/* Load last entered values */
 		loadPreferences();
 		
 		/* If we have old RSA keys, just use them */
-		AdbCrypto crypto = AdbUtils.readCryptoConfig(getFilesDir());
+		AdbCrypto crypto = AdbUtils.readCryptoConfig(getFilesDir(), new AndroidBase64());
 		if (crypto == null)
 		{
 			/* We need to make a new pair */
@@ -51,7 +60,7 @@ public class ConnectActivity extends Activity implements OnClickListener {
 				public void run() {
 					AdbCrypto crypto;
 					
-					crypto = AdbUtils.writeNewCryptoConfig(getFilesDir());
+					crypto = AdbUtils.writeNewCryptoConfig(getFilesDir(), new AndroidBase64());
 					keygenSpinner.dismiss();
 
 					if (crypto == null)
@@ -90,8 +99,71 @@ public class ConnectActivity extends Activity implements OnClickListener {
 		prefs.apply();
 	}
 
+	private void startScan() {
+		String rangeText = ipField.getText().toString().trim();
+		
+		/* Only literal addresses, so we never do a DNS lookup on the UI thread */
+		if (!rangeText.matches("\\d+\\.\\d+\\.\\d+\\.\\d+(/\\d+)?")) {
+			Dialog.displayDialog(this, "Invalid Range",
+					"Enter an IP address to scan its /24 network, or a range like 192.168.1.0/22", false);
+			return;
+		}
+		else if (rangeText.indexOf('/') < 0) {
+			rangeText += "/24";
+		}
+		
+		final DeviceScanner.AddressRange range;
+		try {
+			range = DeviceScanner.AddressRange.parse(rangeText);
+		} catch (UnknownHostException e) {
+			Dialog.displayDialog(this, "Invalid Range", e.getMessage(), false);
+			return;
+		}
+		
+		int port;
+		try {
+			port = Integer.parseInt(portField.getText().toString());
+			if (port <= 0 || port > 65535) {
+				port = 5555;
+			}
+		} catch (NumberFormatException e) {
+			port = 5555;
+		}
+		
+		/* Devices aren't always on the port that was typed in, but every extra port
+		 * multiplies how long the scan takes, so let the user pick */
+		final int[] typedPort = new int[] {port};
+		final int[] commonPorts = DeviceScanner.getCommonPorts(port);
+		new AlertDialog.Builder(this)
+			.setTitle("Scan Ports")
+			.setItems(new String[] {"Port "+port+" only", "Port "+port+" and common ADB ports (5555-5585)"},
+					new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					scanPorts(range, (which == 0) ? typedPort : commonPorts);
+				}
+			})
+			.setNegativeButton("Cancel", null)
+			.show();
+	}
+	
+	private void scanPorts(DeviceScanner.AddressRange range, int[] ports) {
+		ScanDialog.displayDialog(this, range, ports, new ScanDialog.OnEndpointSelectedListener() {
+			@Override
+			public void onEndpointSelected(String host, int port) {
+				ipField.setText(host);
+				portField.setText(Integer.toString(port));
+			}
+		});
+	}
+
 	@Override
 	public void onClick(View view) {
+		if (view.getId() == R.id.scan) {
+			startScan();
+			return;
+		}
+		
 		Intent shellIntent = new Intent(this, AdbShell.class);
 		int port;
 
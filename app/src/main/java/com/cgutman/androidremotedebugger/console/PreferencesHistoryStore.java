@@ -0,0 +1,41 @@
+package com.cgutman.androidremotedebugger.console;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Keeps the command history in a SharedPreferences file
+ */
+public class PreferencesHistoryStore implements CommandHistory.Store {
+	private SharedPreferences prefs;
+	
+	public PreferencesHistoryStore(Context context, String pref) {
+		this.prefs = context.getSharedPreferences(pref, 0);
+	}
+	
+	@Override
+	public List<String> load() {
+		int size = prefs.getInt("Size", 0);
+		ArrayList<String> commands = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			String cmd = prefs.getString(""+i, null);
+			if (cmd != null)
+				commands.add(cmd);
+		}
+		return commands;
+	}
+	
+	@Override
+	public void save(List<String> commands) {
+		SharedPreferences.Editor edit = prefs.edit();
+		for (int i = 0; i < commands.size(); i++)
+		{
+			edit.putString(""+i, commands.get(i));
+		}
+		edit.putInt("Size", commands.size());
+		edit.apply();
+	}
+}
@@ -1,13 +1,22 @@
 package com.cgutman.androidremotedebugger.service;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import com.cgutman.adblib.AdbCrypto;
 import com.cgutman.androidremotedebugger.AdbShell;
+import com.cgutman.androidremotedebugger.AdbUtils;
+import com.cgutman.androidremotedebugger.adblib.AndroidBase64;
 import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.console.OutputFilter;
+import com.cgutman.androidremotedebugger.console.Scrollback;
+import com.cgutman.androidremotedebugger.devconn.ConnectionMetrics;
 import com.cgutman.androidremotedebugger.devconn.DeviceConnection;
 import com.cgutman.androidremotedebugger.devconn.DeviceConnectionListener;
+import com.cgutman.androidremotedebugger.devconn.SessionRecorder;
 import com.cgutman.androidremotedebugger.R;
 
 import android.app.Notification;
@@ -21,7 +30,9 @@ import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import androidx.core.app.NotificationCompat;
@@ -29,33 +40,145 @@ import androidx.core.app.NotificationCompat;
 public class ShellService extends Service implements DeviceConnectionListener {
 	
 	private ShellServiceBinder binder = new ShellServiceBinder();
-	private ShellListener listener = new ShellListener(this);
+	private ShellListener listener = new ShellListener() {
+		@Override
+		public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+			return AdbUtils.readCryptoConfig(getFilesDir(), new AndroidBase64());
+		}
+
+		@Override
+		protected ConsoleBuffer createConsole(DeviceConnection devConn) {
+			/* Output that scrolls out of memory goes to disk instead of being lost. This
+			 * runs when the session is created, not on the event loop, since dividing up
+			 * the disk means asking how much space is free. */
+			synchronized (ShellService.this) {
+				Scrollback scrollback = new Scrollback(getScrollbackDir(),
+						"session-" + devConn.getSessionId(), getScrollbackLimit(scrollbackConsoles.size() + 1));
+				ConsoleBuffer console = new ConsoleBuffer(TERM_LENGTH, scrollback);
+				scrollbackConsoles.put(devConn, console);
+				balanceScrollback();
+				return console;
+			}
+		}
+	};
 	
 	private HashMap<String, DeviceConnection> currentConnectionMap =
 			new HashMap<String, DeviceConnection>();
 	
 	private WifiLock wlanLock;
 	private WakeLock wakeLock;
+	
+	/* Connection callbacks arrive on the shared event loop, but notifications and
+	 * foreground state are binder calls that shouldn't hold up every other device */
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
 	private final static int FOREGROUND_PLACEHOLDER_ID = 1;
 	private final static int CONN_BASE = 12131;
 	private final static int FAILED_BASE = 12111;
 	private final static String CHANNEL_ID = "connectionInfo";
+
+	/* The most characters of output kept on disk per session. At 6 bytes per
+	 * character, that's around 200 MB. */
+	private final static long SCROLLBACK_CHARS = 32 * 1024 * 1024;
+
+	/* Disk that every session's scrollback shares, which is also never more
+	 * than a quarter of the free space */
+	private final static long SCROLLBACK_BUDGET_BYTES = 256 * 1024 * 1024;
+	private final static int SCROLLBACK_FREE_SPACE_SHARE = 4;
+	private final static int SCROLLBACK_BYTES_PER_CHAR = 6;
+
+	/* Consoles of open sessions, which split the scrollback budget evenly */
+	private final HashMap<DeviceConnection, ConsoleBuffer> scrollbackConsoles =
+			new HashMap<DeviceConnection, ConsoleBuffer>();
 	
 	private int foregroundId;
 	
 	public class ShellServiceBinder extends Binder {
 		public DeviceConnection createConnection(String host, int port) {
-			DeviceConnection conn = new DeviceConnection(listener, host, port);
+			return createConnection(host, port, DeviceConnection.SHELL_DESTINATION);
+		}
+		
+		/**
+		 * Creates a session to a destination like "shell:" or "exec:logcat". Sessions
+		 * to a device that's already connected share its connection.
+		 */
+		public DeviceConnection createConnection(String host, int port, String destination) {
+			DeviceConnection conn = new DeviceConnection(listener, host, port, destination);
 			listener.addListener(conn, ShellService.this);
+			listener.prepareConsole(conn);
 			return conn;
 		}
 		
+		/**
+		 * @return The first shell session to the device, or null if there isn't one
+		 */
 		public DeviceConnection findConnection(String host, int port) {
-			String connStr = host+":"+port;
-			return currentConnectionMap.get(connStr);
+			synchronized (ShellService.this) {
+				for (DeviceConnection conn : currentConnectionMap.values()) {
+					if (conn.getHost().equals(host) && conn.getPort() == port &&
+							DeviceConnection.SHELL_DESTINATION.equals(conn.getDestination())) {
+						return conn;
+					}
+				}
+			}
+			return null;
+		}
+		
+		/**
+		 * @return Metrics for every open session
+		 */
+		public ArrayList<ConnectionMetrics.Snapshot> getMetricsSnapshots() {
+			ArrayList<ConnectionMetrics.Snapshot> snapshots = new ArrayList<ConnectionMetrics.Snapshot>();
+			synchronized (ShellService.this) {
+				for (DeviceConnection conn : currentConnectionMap.values()) {
+					snapshots.add(conn.getMetrics().snapshot());
+				}
+			}
+			return snapshots;
 		}
 		
+		/**
+		 * Starts recording a session to a new file in the app's external files,
+		 * where it can be pulled off the device for a post-mortem. Recording
+		 * stops by itself when the session ends.
+		 * @return The recording file
+		 */
+		public File startRecording(DeviceConnection devConn) throws IOException {
+			File dir = getExternalFilesDir("recordings");
+			if (dir == null) {
+				dir = new File(getFilesDir(), "recordings");
+			}
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Unable to create " + dir);
+			}
+
+			File file = new File(dir, devConn.getHost() + "-" + devConn.getPort() + "-" +
+					System.currentTimeMillis() + ".rslg");
+			SessionRecorder recorder = new SessionRecorder(file, devConn);
+			devConn.setRecorder(recorder);
+			return file;
+		}
+
+		/**
+		 * Stops recording a session. The rest of the recording is written out in the background.
+		 * @return The recording file, or null if the session wasn't being recorded
+		 */
+		public File stopRecording(DeviceConnection devConn) {
+			return ShellService.this.stopRecording(devConn);
+		}
+
+		/**
+		 * Filters the output of a session before it reaches its console
+		 * @param filter The filter, or null to show all output again
+		 */
+		public void setOutputFilter(DeviceConnection devConn, OutputFilter filter) {
+			listener.setOutputFilter(devConn, filter);
+		}
+
+		public OutputFilter getOutputFilter(DeviceConnection devConn) {
+			return listener.getOutputFilter(devConn);
+		}
+
 		public void notifyPausingActivity(DeviceConnection devConn) {
 			devConn.setForeground(false);
 		}
@@ -126,6 +249,9 @@ public class ShellService extends Service implements DeviceConnectionListener {
 
 		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
 		wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "RemoteADBShell:ShellService");
+
+		/* Scrollback left behind if we were killed */
+		Scrollback.deleteAll(getScrollbackDir());
 	}
 
 	@Override
@@ -137,15 +263,49 @@ public class ShellService extends Service implements DeviceConnectionListener {
 			wakeLock.release();
 		}
 
+		Scrollback.deleteAll(getScrollbackDir());
 		super.onDestroy();
 	}
+
+	private File getScrollbackDir() {
+		return new File(getCacheDir(), "scrollback");
+	}
+
+	/* The characters of scrollback each of a number of sessions may keep */
+	private synchronized long getScrollbackLimit(int sessions) {
+		/* Our own files count as free, since they're what's being divided up */
+		long used = 0;
+		for (ConsoleBuffer console : scrollbackConsoles.values()) {
+			used += console.getScrollbackDiskUsage();
+		}
+		long free = getCacheDir().getUsableSpace() + used;
+
+		long budget = Math.min(SCROLLBACK_BUDGET_BYTES, free / SCROLLBACK_FREE_SPACE_SHARE);
+		return Math.min(SCROLLBACK_CHARS, budget / SCROLLBACK_BYTES_PER_CHAR / Math.max(1, sessions));
+	}
+
+	/* Gives every open session the same share of the budget */
+	private synchronized void balanceScrollback() {
+		long limit = getScrollbackLimit(scrollbackConsoles.size());
+		for (ConsoleBuffer console : scrollbackConsoles.values()) {
+			console.setScrollbackLimit(limit);
+		}
+	}
+	
+	/* A closed session keeps the scrollback it has until its console is closed,
+	 * but the open ones can have more */
+	private synchronized void removeScrollback(DeviceConnection devConn) {
+		if (scrollbackConsoles.remove(devConn) != null) {
+			balanceScrollback();
+		}
+	}
 	
 	private int getFailedNotificationId(DeviceConnection devConn) {
-		return FAILED_BASE + getConnectionString(devConn).hashCode();
+		return FAILED_BASE + getSessionKey(devConn).hashCode();
 	}
 	
 	private int getConnectedNotificationId(DeviceConnection devConn) {
-		return CONN_BASE + getConnectionString(devConn).hashCode();
+		return CONN_BASE + getSessionKey(devConn).hashCode();
 	}
 	
 	private PendingIntent createPendingIntentForConnection(DeviceConnection devConn) {
@@ -285,17 +445,36 @@ public class ShellService extends Service implements DeviceConnectionListener {
 		return devConn.getHost()+":"+devConn.getPort();
 	}
 	
+	/* There can be several sessions per device, so they're keyed by session too */
+	private String getSessionKey(DeviceConnection devConn) {
+		return getConnectionString(devConn)+"/"+devConn.getSessionId();
+	}
+	
 	private synchronized void addNewConnection(DeviceConnection devConn) {
 		if (currentConnectionMap.isEmpty()) {
 			wakeLock.acquire();
 			wlanLock.acquire();
 		}
 
-		currentConnectionMap.put(getConnectionString(devConn), devConn);
+		currentConnectionMap.put(getSessionKey(devConn), devConn);
 	}
 	
+	private File stopRecording(DeviceConnection devConn) {
+		SessionRecorder recorder = devConn.getRecorder();
+		if (recorder == null) {
+			return null;
+		}
+
+		/* Closing waits for the writer thread, so keep it off the caller's thread */
+		devConn.setRecorder(null);
+		AdbUtils.safeAsyncClose(recorder);
+		return recorder.getFile();
+	}
+
 	private synchronized void removeConnection(DeviceConnection devConn) {
-		currentConnectionMap.remove(getConnectionString(devConn));
+		currentConnectionMap.remove(getSessionKey(devConn));
+		stopRecording(devConn);
+		removeScrollback(devConn);
 
 		/* Stop the the service if no connections remain */
 		if (currentConnectionMap.isEmpty()) {
@@ -304,26 +483,45 @@ public class ShellService extends Service implements DeviceConnectionListener {
 	}
 
 	@Override
-	public void notifyConnectionEstablished(DeviceConnection devConn) {
-		addNewConnection(devConn);
-		updateNotification(devConn, true);
+	public void notifyConnectionEstablished(final DeviceConnection devConn) {
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				addNewConnection(devConn);
+				updateNotification(devConn, true);
+			}
+		});
 	}
 
 	@Override
-	public void notifyConnectionFailed(DeviceConnection devConn, Exception e) {
-		/* No notification is displaying here */
+	public void notifyConnectionFailed(final DeviceConnection devConn, Exception e) {
+		/* No notification is displaying here, but the console made for it is gone */
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				removeScrollback(devConn);
+			}
+		});
 	}
 	
 	@Override
 	public void notifyStreamFailed(DeviceConnection devConn, Exception e) {
-		updateNotification(devConn, false);
-		removeConnection(devConn);
+		postConnectionEnded(devConn);
 	}
 
 	@Override
 	public void notifyStreamClosed(DeviceConnection devConn) {
-		updateNotification(devConn, false);
-		removeConnection(devConn);
+		postConnectionEnded(devConn);
+	}
+	
+	private void postConnectionEnded(final DeviceConnection devConn) {
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				updateNotification(devConn, false);
+				removeConnection(devConn);
+			}
+		});
 	}
 
 	@Override
@@ -337,8 +535,9 @@ public class ShellService extends Service implements DeviceConnectionListener {
 	}
 
 	@Override
-	public boolean canReceiveData() {
-		return false;
+	public boolean canReceiveData(DeviceConnection devConn) {
+		/* We never hold the device back */
+		return true;
 	}
 
 	@Override
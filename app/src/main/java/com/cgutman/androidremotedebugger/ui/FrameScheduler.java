@@ -0,0 +1,165 @@
+package com.cgutman.androidremotedebugger.ui;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Runs a render callback on the UI thread in step with the display's frame clock.
+ * Any number of update requests between two frames are coalesced into one render.
+ * When output is flooding in, renders are spaced out in proportion to how long
+ * the last one took so drawing can't monopolize the UI thread. Right after user
+ * input, updates are drawn on the next frame so echo appears immediately.
+ * This must be created on the UI thread.
+ */
+public class FrameScheduler {
+	/* Keep rendering to at most 1/LOAD_FACTOR of the UI thread's time under load */
+	private static final int LOAD_FACTOR = 4;
+
+	/* Never hold an update back longer than this */
+	private static final long MAX_DELAY_NS = 250 * 1000000L;
+
+	/* How long after input we keep drawing every frame */
+	private static final long INTERACTIVE_WINDOW_NS = 1000 * 1000000L;
+
+	/* Frame interval used where Choreographer isn't available */
+	private static final long FALLBACK_FRAME_MS = 16;
+
+	private final Runnable renderer;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Choreographer choreographer;
+
+	/* Set while a frame callback is pending */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile long interactiveDeadline;
+
+	/* Only touched on the UI thread */
+	private long nextRenderTime;
+	private long lastDrawTime;
+	private boolean stopped;
+
+	private final Runnable scheduleFrame = new Runnable() {
+		@Override
+		public void run() {
+			postFrame();
+		}
+	};
+
+	private final Runnable fallbackFrame = new Runnable() {
+		@Override
+		public void run() {
+			onFrame(System.nanoTime());
+		}
+	};
+
+	private final Choreographer.FrameCallback frameCallback;
+
+	public FrameScheduler(Runnable renderer) {
+		this.renderer = renderer;
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			choreographer = Choreographer.getInstance();
+			frameCallback = new Choreographer.FrameCallback() {
+				@Override
+				public void doFrame(long frameTimeNanos) {
+					onFrame(frameTimeNanos);
+				}
+			};
+		}
+		else {
+			choreographer = null;
+			frameCallback = null;
+		}
+	}
+
+	/**
+	 * Requests a render on an upcoming frame. This may be called from any thread.
+	 */
+	public void requestUpdate() {
+		if (scheduled.compareAndSet(false, true)) {
+			/* Choreographer callbacks have to be posted from the UI thread */
+			if (Looper.myLooper() == Looper.getMainLooper()) {
+				postFrame();
+			}
+			else {
+				handler.post(scheduleFrame);
+			}
+		}
+	}
+
+	/**
+	 * Tells the scheduler the user just typed something. Updates arriving shortly
+	 * after this are drawn on the next frame instead of being coalesced.
+	 */
+	public void notifyInput() {
+		interactiveDeadline = System.nanoTime() + INTERACTIVE_WINDOW_NS;
+	}
+
+	/**
+	 * Reports how long the view took to draw the last frame, since the render
+	 * callback usually just invalidates and the real drawing happens later.
+	 */
+	public void reportDrawTime(long nanos) {
+		lastDrawTime = nanos;
+	}
+
+	/**
+	 * Stops rendering until the next call to {@link #start()}. Must be called on the UI thread.
+	 */
+	public void stop() {
+		stopped = true;
+		handler.removeCallbacks(scheduleFrame);
+		handler.removeCallbacks(fallbackFrame);
+		if (choreographer != null) {
+			choreographer.removeFrameCallback(frameCallback);
+		}
+		scheduled.set(false);
+	}
+
+	/**
+	 * Allows rendering after {@link #stop()}. Must be called on the UI thread.
+	 */
+	public void start() {
+		stopped = false;
+	}
+
+	private void postFrame() {
+		if (stopped) {
+			scheduled.set(false);
+			return;
+		}
+
+		if (choreographer != null) {
+			choreographer.postFrameCallback(frameCallback);
+		}
+		else {
+			handler.postDelayed(fallbackFrame, FALLBACK_FRAME_MS);
+		}
+	}
+
+	private void onFrame(long frameTimeNanos) {
+		if (stopped) {
+			scheduled.set(false);
+			return;
+		}
+
+		/* If we're flooding and the last render was expensive, sit this frame out */
+		if (frameTimeNanos < nextRenderTime && frameTimeNanos > interactiveDeadline) {
+			postFrame();
+			return;
+		}
+
+		/* Requests made while rendering need a new frame */
+		scheduled.set(false);
+
+		long start = System.nanoTime();
+		renderer.run();
+		long end = System.nanoTime();
+
+		long cost = (end - start) + lastDrawTime;
+		nextRenderTime = end + Math.min(MAX_DELAY_NS, cost * LOAD_FACTOR);
+	}
+}
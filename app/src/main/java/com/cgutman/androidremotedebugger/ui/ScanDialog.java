@@ -0,0 +1,112 @@
+package com.cgutman.androidremotedebugger.ui;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.widget.ArrayAdapter;
+
+import com.cgutman.androidremotedebugger.devconn.DeviceScanner;
+
+/**
+ * Scans for devices and lists them as they're found. Picking one reports it
+ * to the listener; dismissing the dialog stops the scan.
+ */
+public class ScanDialog implements DeviceScanner.Listener {
+	public interface OnEndpointSelectedListener {
+		void onEndpointSelected(String host, int port);
+	}
+
+	private Activity activity;
+	private OnEndpointSelectedListener listener;
+	private DeviceScanner scanner;
+
+	/* Only touched on the UI thread */
+	private AlertDialog alert;
+	private ArrayAdapter<String> adapter;
+	private ArrayList<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+
+	private ScanDialog(Activity activity, OnEndpointSelectedListener listener) {
+		this.activity = activity;
+		this.listener = listener;
+	}
+
+	public static ScanDialog displayDialog(Activity activity, DeviceScanner.AddressRange range, int[] ports,
+			OnEndpointSelectedListener listener) {
+		ScanDialog dialog = new ScanDialog(activity, listener);
+
+		/* Only count endpoints that answer like adbd */
+		dialog.scanner = new DeviceScanner(dialog, range, ports, true);
+		dialog.show();
+		dialog.scanner.start();
+
+		return dialog;
+	}
+
+	private void show() {
+		adapter = new ArrayAdapter<String>(activity, android.R.layout.simple_list_item_1);
+
+		alert = new AlertDialog.Builder(activity)
+				.setTitle("Scanning "+scanner.getTotalCount()+" endpoints...")
+				.setAdapter(adapter, new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						InetSocketAddress endpoint = endpoints.get(which);
+						dismiss();
+						listener.onEndpointSelected(endpoint.getAddress().getHostAddress(), endpoint.getPort());
+					}
+				})
+				.setNegativeButton("Stop", new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						dismiss();
+					}
+				})
+				.create();
+		alert.setOnCancelListener(new DialogInterface.OnCancelListener() {
+			@Override
+			public void onCancel(DialogInterface dialog) {
+				scanner.cancel();
+			}
+		});
+		alert.show();
+	}
+
+	public void dismiss() {
+		scanner.cancel();
+		alert.dismiss();
+	}
+
+	@Override
+	public void onEndpointFound(DeviceScanner scanner, final InetSocketAddress address) {
+		activity.runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				endpoints.add(address);
+				adapter.add(address.getAddress().getHostAddress()+":"+address.getPort());
+			}
+		});
+	}
+
+	@Override
+	public void onScanComplete(final DeviceScanner scanner) {
+		activity.runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				if (scanner.isCancelled()) {
+					return;
+				}
+
+				int found = scanner.getFoundCount();
+				if (found == 0) {
+					alert.setTitle("No devices found");
+				}
+				else {
+					alert.setTitle("Found "+found+(found == 1 ? " device" : " devices"));
+				}
+			}
+		});
+	}
+}
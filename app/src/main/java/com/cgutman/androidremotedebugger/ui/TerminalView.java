@@ -0,0 +1,361 @@
+package com.cgutman.androidremotedebugger.ui;
+
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.console.TextAttributes;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Draws the tail of a ConsoleBuffer without laying out the whole scrollback.
+ * Only the rows that are on screen (plus a small margin) are copied out of the
+ * buffer and drawn, so redraw cost depends on the view size rather than on
+ * how much output the buffer holds.
+ */
+public class TerminalView extends View {
+	private static final float TEXT_SIZE_SP = 14;
+	private static final int TEXT_COLOR = 0xFFE0E0E0;
+	private static final int BACKGROUND_COLOR = 0xFF000000;
+	private static final int HIGHLIGHT_COLOR = 0xFF806000;
+
+	/* Extra lines fetched beyond what fits on screen */
+	private static final int MARGIN_LINES = 2;
+
+	private final Paint textPaint;
+	private final Paint backgroundPaint;
+	private final Paint highlightPaint;
+	private final float charWidth;
+	private final float lineHeight;
+	private final float baselineOffset;
+
+	private final ConsoleBuffer.LineWindow window = new ConsoleBuffer.LineWindow();
+	private final GestureDetector gestureDetector;
+
+	private ConsoleBuffer console;
+
+	/* The absolute line drawn at the bottom when we're not following output */
+	private int bottomLine;
+	private boolean following = true;
+	private boolean autoScroll = true;
+	private float pendingScroll;
+
+	private long lastDrawTime;
+
+	/* The absolute console offsets of the highlighted text, such as a search match */
+	private long highlightStart;
+	private long highlightEnd;
+
+	private OnScrollStateListener scrollListener;
+
+	public interface OnScrollStateListener {
+		void onScrollStateChanged(TerminalView view, boolean atBottom);
+	}
+
+	public TerminalView(Context context) {
+		this(context, null);
+	}
+
+	public TerminalView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+
+		textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		textPaint.setTypeface(Typeface.MONOSPACE);
+		textPaint.setTextSize(TEXT_SIZE_SP * context.getResources().getDisplayMetrics().scaledDensity);
+		textPaint.setColor(TEXT_COLOR);
+		backgroundPaint = new Paint();
+		highlightPaint = new Paint();
+		highlightPaint.setColor(HIGHLIGHT_COLOR);
+
+		/* Monospace lets us wrap and position text without measuring each line */
+		charWidth = textPaint.measureText("M");
+		lineHeight = textPaint.getFontSpacing();
+		baselineOffset = -textPaint.getFontMetrics().ascent;
+
+		gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+			@Override
+			public boolean onDown(MotionEvent e) {
+				pendingScroll = 0;
+				return true;
+			}
+
+			@Override
+			public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+				scrollByPixels(distanceY);
+				return true;
+			}
+
+			@Override
+			public void onLongPress(MotionEvent e) {
+				performLongClick();
+			}
+		});
+
+		setLongClickable(true);
+		setVerticalScrollBarEnabled(true);
+	}
+
+	public void setConsoleBuffer(ConsoleBuffer console) {
+		if (this.console != console) {
+			this.console = console;
+			following = true;
+		}
+		invalidate();
+	}
+
+	public void setOnScrollStateListener(OnScrollStateListener listener) {
+		scrollListener = listener;
+	}
+
+	/**
+	 * @param autoScroll If false, new output won't move the view even when
+	 * it's scrolled to the bottom
+	 */
+	public void setAutoScroll(boolean autoScroll) {
+		if (this.autoScroll != autoScroll) {
+			/* Pin whatever is showing right now */
+			bottomLine = getBottomLine();
+			this.autoScroll = autoScroll;
+		}
+	}
+
+	/**
+	 * @return How long the last call to onDraw() took, in nanoseconds
+	 */
+	public long getLastDrawTime() {
+		return lastDrawTime;
+	}
+
+	public boolean isAtBottom() {
+		return following || console == null || bottomLine >= console.getLastLine();
+	}
+
+	public void scrollToBottom() {
+		if (console != null) {
+			bottomLine = console.getLastLine();
+		}
+		setFollowing(true);
+		invalidate();
+	}
+
+	/**
+	 * Highlights text by absolute console offset, replacing any other highlight
+	 */
+	public void setHighlight(long offset, int length) {
+		highlightStart = offset;
+		highlightEnd = offset + length;
+		invalidate();
+	}
+
+	public void clearHighlight() {
+		highlightStart = highlightEnd = 0;
+		invalidate();
+	}
+
+	/**
+	 * Scrolls so the line containing an absolute console offset is in the
+	 * middle of the view, or as close as the output allows
+	 */
+	public void scrollToOffset(long offset) {
+		if (console == null) {
+			return;
+		}
+
+		int lastLine = console.getLastLine();
+		int line = console.getLineForOffset(offset);
+		int minBottom = Math.min(lastLine, console.getFirstLine() + getVisibleRows() - 1);
+		bottomLine = Math.max(minBottom, Math.min(line + getVisibleRows() / 2, lastLine));
+		setFollowing(bottomLine >= lastLine);
+
+		awakenScrollBars();
+		invalidate();
+	}
+
+	private int getBottomLine() {
+		if (console == null) {
+			return 0;
+		}
+		else if (following && autoScroll) {
+			return console.getLastLine();
+		}
+		else {
+			/* Our line may have been evicted since we last looked */
+			return Math.max(bottomLine, console.getFirstLine());
+		}
+	}
+
+	private void setFollowing(boolean following) {
+		if (this.following != following) {
+			this.following = following;
+			if (scrollListener != null) {
+				scrollListener.onScrollStateChanged(this, following);
+			}
+		}
+	}
+
+	private void scrollByPixels(float distanceY) {
+		if (console == null) {
+			return;
+		}
+
+		/* Scrolling moves whole lines, so carry over any remainder */
+		pendingScroll += distanceY;
+		int lines = (int)(pendingScroll / lineHeight);
+		if (lines == 0) {
+			return;
+		}
+		pendingScroll -= lines * lineHeight;
+
+		int lastLine = console.getLastLine();
+		int newBottom = getBottomLine() + lines;
+		int minBottom = Math.min(lastLine, console.getFirstLine() + getVisibleRows() - 1);
+
+		bottomLine = Math.max(minBottom, Math.min(newBottom, lastLine));
+		setFollowing(bottomLine >= lastLine);
+
+		awakenScrollBars();
+		invalidate();
+	}
+
+	private int getVisibleRows() {
+		return Math.max(1, (int)((getHeight() - getPaddingTop() - getPaddingBottom()) / lineHeight) + 1);
+	}
+
+	private int getColumns() {
+		return Math.max(1, (int)((getWidth() - getPaddingLeft() - getPaddingRight()) / charWidth));
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		return gestureDetector.onTouchEvent(event) || super.onTouchEvent(event);
+	}
+
+	@Override
+	protected int computeVerticalScrollRange() {
+		if (console == null) {
+			return 0;
+		}
+		return (console.getLastLine() - console.getFirstLine() + 1) * (int)lineHeight;
+	}
+
+	@Override
+	protected int computeVerticalScrollExtent() {
+		return getHeight();
+	}
+
+	@Override
+	protected int computeVerticalScrollOffset() {
+		if (console == null) {
+			return 0;
+		}
+		int linesAbove = getBottomLine() - console.getFirstLine() + 1;
+		return Math.max(0, linesAbove * (int)lineHeight - getHeight());
+	}
+
+	/* Draws part of a line as runs of characters that share attributes */
+	private void drawRow(Canvas canvas, int lineStart, int from, int to, float x, float y) {
+		char[] text = window.text;
+		int[] attributes = window.attributes;
+
+		int runStart = lineStart + from;
+		int end = lineStart + to;
+		while (runStart < end) {
+			int attr = attributes[runStart];
+			int runEnd = runStart + 1;
+			while (runEnd < end && attributes[runEnd] == attr) {
+				runEnd++;
+			}
+
+			int foreground = TextAttributes.getForeground(attr);
+			int background = TextAttributes.getBackground(attr);
+			int foregroundColor = (foreground == TextAttributes.COLOR_DEFAULT) ?
+					TEXT_COLOR : TextAttributes.getPaletteColor(foreground);
+			int backgroundColor = (background == TextAttributes.COLOR_DEFAULT) ?
+					BACKGROUND_COLOR : TextAttributes.getPaletteColor(background);
+			if ((attr & TextAttributes.INVERSE) != 0) {
+				int temp = foregroundColor;
+				foregroundColor = backgroundColor;
+				backgroundColor = temp;
+			}
+
+			float runWidth = (runEnd - runStart) * charWidth;
+			if (background != TextAttributes.COLOR_DEFAULT || (attr & TextAttributes.INVERSE) != 0) {
+				backgroundPaint.setColor(backgroundColor);
+				canvas.drawRect(x, y, x + runWidth, y + lineHeight, backgroundPaint);
+			}
+
+			textPaint.setColor(foregroundColor);
+			textPaint.setFakeBoldText((attr & TextAttributes.BOLD) != 0);
+			textPaint.setUnderlineText((attr & TextAttributes.UNDERLINE) != 0);
+			canvas.drawText(text, runStart, runEnd - runStart, x, y + baselineOffset, textPaint);
+
+			x += runWidth;
+			runStart = runEnd;
+		}
+	}
+
+	/* Draws whatever part of the highlight falls in part of a line */
+	private void drawHighlight(Canvas canvas, long lineOffset, int from, int to, float x, float y) {
+		long start = Math.max(highlightStart, lineOffset + from);
+		long end = Math.min(highlightEnd, lineOffset + to);
+		if (start < end) {
+			float highlightX = x + (start - lineOffset - from) * charWidth;
+			canvas.drawRect(highlightX, y, highlightX + (end - start) * charWidth, y + lineHeight, highlightPaint);
+		}
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+
+		if (console == null) {
+			return;
+		}
+
+		long drawStart = System.nanoTime();
+		int rows = getVisibleRows() + MARGIN_LINES;
+		int columns = getColumns();
+
+		/* Each line takes at least one row, so this many lines always fills the view */
+		int lastLine = getBottomLine();
+		int lines = console.fillWindow(window, lastLine, rows, rows * columns);
+		if (!following || !autoScroll) {
+			bottomLine = lastLine;
+		}
+
+		/* Lay out rows from the bottom up, wrapping long lines at the column limit */
+		float left = getPaddingLeft();
+		float top = getPaddingTop();
+		float y = getHeight() - getPaddingBottom() - lineHeight;
+		for (int i = lines - 1; i >= 0 && y + lineHeight > top; i--) {
+			int start = window.lineStarts[i];
+			int length = window.getLineLength(i);
+
+			/* Wrap points are counted from the real start of the line, even
+			 * if we only have its end */
+			int clipped = (i == 0) ? window.clippedChars : 0;
+			int totalLength = clipped + length;
+			int lineRows = Math.max(1, (totalLength + columns - 1) / columns);
+
+			for (int row = lineRows - 1; row >= 0 && y + lineHeight > top; row--) {
+				/* The line offset that lands in the first column of this row */
+				int rowOrigin = row * columns - clipped;
+				int rowStart = Math.max(0, rowOrigin);
+				int rowEnd = Math.min(length, rowOrigin + columns);
+				if (rowEnd > rowStart && y < getHeight()) {
+					drawHighlight(canvas, window.startOffset + start, rowStart, rowEnd,
+							left + (rowStart - rowOrigin) * charWidth, y);
+					drawRow(canvas, start, rowStart, rowEnd, left + (rowStart - rowOrigin) * charWidth, y);
+				}
+				y -= lineHeight;
+			}
+		}
+
+		lastDrawTime = System.nanoTime() - drawStart;
+	}
+}
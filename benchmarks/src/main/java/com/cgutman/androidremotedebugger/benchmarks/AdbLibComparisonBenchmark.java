@@ -0,0 +1,391 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgutman.adblib.AdbBase64;
+import com.cgutman.adblib.AdbChannel;
+import com.cgutman.adblib.AdbChannelStream;
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.adblib.AdbEventLoop;
+
+/**
+ * The in-tree AdbChannel against the blocking AdbLib.jar it replaced, both
+ * talking to the same loopback adbd. The jar's classes have the same names as
+ * ours, so it's loaded in a class loader of its own and driven through
+ * reflection, which costs nanoseconds against the microseconds of a round
+ * trip. Run with -prof gc to compare allocation per operation as well.
+ *
+ * The jar acknowledges data as soon as its reader thread has queued it, so a
+ * device sending flat out would fill the heap. The receive benchmark asks for
+ * each megabyte instead, which costs both stacks one extra round trip.
+ *
+ * The jar is found at libs/AdbLib.jar under the working directory, or
+ * wherever the adblib.jar system property says.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdbLibComparisonBenchmark {
+	private static final int MEGABYTE = 1024 * 1024;
+	private static final int COMMAND_SIZE = 64;
+
+	/** One stream to the loopback server, by either implementation */
+	public static abstract class Client {
+		protected LoopbackAdbServer server;
+		protected Stack client;
+
+		protected void open(String stack, String destination) throws Exception {
+			server = new LoopbackAdbServer();
+			client = stack.equals("jar") ? new JarStack() : new ChannelStack();
+			client.open(server, destination);
+		}
+
+		protected void close() throws IOException {
+			client.close();
+			server.close();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class EchoClient extends Client {
+		@Param({"channel", "jar"})
+		public String stack;
+
+		byte[] command;
+
+		@Setup
+		public void setup() throws Exception {
+			command = new byte[COMMAND_SIZE];
+			Arrays.fill(command, (byte)'x');
+			open(stack, "echo:");
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			close();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class SourceClient extends Client {
+		@Param({"channel", "jar"})
+		public String stack;
+
+		final byte[] request = Integer.toString(MEGABYTE).getBytes();
+
+		@Setup
+		public void setup() throws Exception {
+			open(stack, "request:");
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			close();
+		}
+	}
+
+	/**
+	 * Sends a 64 byte command and waits for the device to echo it back
+	 */
+	@Benchmark
+	public void commandRoundTrip(EchoClient client) throws Exception {
+		client.client.write(client.command);
+		client.client.read(client.command.length);
+	}
+
+	/**
+	 * Asks for 1 MiB and waits for it to arrive from a device sending as fast as it can
+	 */
+	@Benchmark
+	public void receiveMegabyte(SourceClient client) throws Exception {
+		client.client.write(client.request);
+		client.client.read(MEGABYTE);
+	}
+
+	/* What both implementations have to do for the benchmarks */
+	private interface Stack {
+		void open(LoopbackAdbServer server, String destination) throws Exception;
+
+		void write(byte[] data) throws Exception;
+
+		/* Waits until at least this many more bytes have been received */
+		void read(long length) throws Exception;
+
+		void close() throws IOException;
+	}
+
+	/* Nothing asks for authentication, but both need a key pair to start */
+	private static final AdbBase64 BASE64 = new AdbBase64() {
+		@Override
+		public String encodeToString(byte[] data) {
+			return java.util.Base64.getEncoder().encodeToString(data);
+		}
+	};
+
+	/* A channel on its own event loop, with the benchmark thread parked until enough data shows up */
+	private static class ChannelStack implements Stack, AdbChannel.Listener, AdbChannelStream.Listener {
+		private final CountDownLatch opened = new CountDownLatch(1);
+		private AdbEventLoop loop;
+		private AdbChannel channel;
+		private AdbChannelStream stream;
+		private String destination;
+
+		/* Data waiting for the previous write to be acknowledged. Only touched on the loop. */
+		private byte[] pendingWrite;
+
+		/* How much the benchmark thread has read so far */
+		private long consumed;
+
+		private volatile long bytesReceived;
+		private volatile long waitingFor = Long.MAX_VALUE;
+		private volatile Thread waiter;
+		private volatile Exception failure;
+
+		@Override
+		public void open(final LoopbackAdbServer server, String destination) throws Exception {
+			this.destination = destination;
+			final AdbCrypto crypto = AdbCrypto.generateAdbKeyPair(BASE64);
+			loop = new AdbEventLoop("Benchmark loop");
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					channel = new AdbChannel(loop, crypto, ChannelStack.this);
+					channel.connect(new InetSocketAddress(server.getHost(), server.getPort()), 10000);
+				}
+			});
+			if (!opened.await(10, TimeUnit.SECONDS) || failure != null) {
+				throw new IOException("Unable to open "+destination, failure);
+			}
+		}
+
+		@Override
+		public void write(final byte[] data) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (stream.isWriteReady()) {
+						send(data);
+					}
+					else {
+						pendingWrite = data;
+					}
+				}
+			});
+		}
+
+		@Override
+		public void read(long length) throws IOException {
+			/* Data may have arrived before we were asked for it */
+			consumed += length;
+			long target = consumed;
+			waiter = Thread.currentThread();
+			waitingFor = target;
+			while (bytesReceived < target) {
+				if (failure != null) {
+					throw new IOException(failure);
+				}
+				LockSupport.park(this);
+			}
+			waitingFor = Long.MAX_VALUE;
+		}
+
+		@Override
+		public void close() {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					channel.close();
+				}
+			});
+		}
+
+		private void send(byte[] data) {
+			try {
+				stream.write(data);
+			} catch (IOException e) {
+				onChannelFailed(channel, e);
+			}
+		}
+
+		@Override
+		public void onChannelConnected(AdbChannel channel) {
+			try {
+				stream = channel.open(destination, this);
+			} catch (IOException e) {
+				onChannelFailed(channel, e);
+			}
+		}
+
+		@Override
+		public void onChannelFailed(AdbChannel channel, Exception e) {
+			failure = e;
+			opened.countDown();
+			LockSupport.unpark(waiter);
+		}
+
+		@Override
+		public void onStreamOpened(AdbChannelStream stream) {
+			opened.countDown();
+		}
+
+		@Override
+		public void onStreamData(AdbChannelStream stream, byte[] data, int offset, int length) {
+			/* Only the loop thread writes this */
+			long received = bytesReceived + length;
+			bytesReceived = received;
+			if (received >= waitingFor) {
+				LockSupport.unpark(waiter);
+			}
+		}
+
+		@Override
+		public void onStreamWritable(AdbChannelStream stream) {
+			if (pendingWrite != null) {
+				byte[] data = pendingWrite;
+				pendingWrite = null;
+				send(data);
+			}
+		}
+
+		@Override
+		public void onStreamClosed(AdbChannelStream stream) {
+			onChannelFailed(channel, new IOException("Stream closed"));
+		}
+	}
+
+	/* The old AdbConnection with its reader thread, and an AdbStream read on the benchmark thread */
+	private static class JarStack implements Stack {
+		private static final int OPEN_ATTEMPTS = 5;
+		private static final int OPEN_TIMEOUT_MS = 2000;
+
+		private Object connection;
+		private Object stream;
+		private Method write;
+		private Method read;
+		private Method close;
+
+		/* Bytes left over from a read that went past what was asked for */
+		private long surplus;
+
+		@Override
+		public void open(LoopbackAdbServer server, String destination) throws Exception {
+			File jar = new File(System.getProperty("adblib.jar", "libs/AdbLib.jar"));
+			if (!jar.isFile()) {
+				throw new IOException(jar.getAbsolutePath()+" not found. Set adblib.jar to its path.");
+			}
+
+			/* No parent but the bootstrap loader, so none of our own adblib classes can leak in */
+			ClassLoader loader = new URLClassLoader(new URL[] {jar.toURI().toURL()}, null);
+			Class<?> base64Class = loader.loadClass("com.cgutman.adblib.AdbBase64");
+			Class<?> cryptoClass = loader.loadClass("com.cgutman.adblib.AdbCrypto");
+			Class<?> connectionClass = loader.loadClass("com.cgutman.adblib.AdbConnection");
+			Class<?> streamClass = loader.loadClass("com.cgutman.adblib.AdbStream");
+
+			Object base64 = Proxy.newProxyInstance(loader, new Class<?>[] {base64Class}, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					return BASE64.encodeToString((byte[])args[0]);
+				}
+			});
+			Object crypto = invoke(cryptoClass.getMethod("generateAdbKeyPair", base64Class), null, base64);
+
+			Socket socket = new Socket(server.getHost(), server.getPort());
+			socket.setTcpNoDelay(true);
+			connection = invoke(connectionClass.getMethod("create", Socket.class, cryptoClass), null, socket, crypto);
+			invoke(connectionClass.getMethod("connect"), connection);
+			stream = openStream(connectionClass.getMethod("open", String.class), destination);
+
+			write = streamClass.getMethod("write", byte[].class);
+			read = streamClass.getMethod("read");
+			close = connectionClass.getMethod("close");
+		}
+
+		@Override
+		public void write(byte[] data) throws Exception {
+			invoke(write, stream, (Object)data);
+		}
+
+		@Override
+		public void read(long length) throws Exception {
+			while (surplus < length) {
+				surplus += ((byte[])invoke(read, stream)).length;
+			}
+			surplus -= length;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				invoke(close, connection);
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+
+		/* The jar's open() waits for adbd's OKAY without checking whether it has
+		 * already arrived, so it hangs if the answer beats it. Give up on those
+		 * and open another stream. */
+		private Object openStream(final Method open, final String destination) throws Exception {
+			for (int attempt = 0; attempt < OPEN_ATTEMPTS; attempt++) {
+				FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						return invoke(open, connection, destination);
+					}
+				});
+				Thread thread = new Thread(task, "AdbLib open");
+				thread.setDaemon(true);
+				thread.start();
+
+				try {
+					return task.get(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					thread.interrupt();
+				} catch (ExecutionException e) {
+					throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+				}
+			}
+			throw new IOException("Unable to open "+destination);
+		}
+
+		private static Object invoke(Method method, Object target, Object... args) throws Exception {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgutman.adblib.AdbProtocol;
+
+/**
+ * Encoding and decoding of ADB message headers. The event loop encodes into
+ * pooled direct buffers and decodes in place; generateWrite is the older path
+ * that builds a complete message in a new array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdbProtocolBenchmark {
+	@Param({"0", "64", "4096"})
+	public int payloadSize;
+
+	private byte[] payloadArray;
+	private ByteBuffer payload;
+	private ByteBuffer header;
+	private ByteBuffer encoded;
+	private AdbProtocol.AdbMessage message;
+
+	@Setup
+	public void setup() {
+		payloadArray = new byte[payloadSize];
+		new Random(0).nextBytes(payloadArray);
+
+		payload = ByteBuffer.allocateDirect(payloadSize);
+		payload.put(payloadArray);
+		payload.flip();
+
+		header = ByteBuffer.allocateDirect(AdbProtocol.ADB_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		encoded = ByteBuffer.wrap(AdbProtocol.generateWrite(1, 2, payloadArray)).order(ByteOrder.LITTLE_ENDIAN);
+		message = new AdbProtocol.AdbMessage();
+	}
+
+	@Benchmark
+	public ByteBuffer encodeHeader() {
+		header.clear();
+		AdbProtocol.writeHeader(header, AdbProtocol.CMD_WRTE, 1, 2, payload);
+		return header;
+	}
+
+	@Benchmark
+	public byte[] generateWrite() {
+		return AdbProtocol.generateWrite(1, 2, payloadArray);
+	}
+
+	@Benchmark
+	public boolean decodeHeader() {
+		return message.parse(encoded, 0);
+	}
+}
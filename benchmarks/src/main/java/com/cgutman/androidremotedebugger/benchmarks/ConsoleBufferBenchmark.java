@@ -0,0 +1,84 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+
+/**
+ * Appending shell output to a console. Each invocation appends 64 KiB of
+ * output, colored like ls and logcat output, split into packets of the given
+ * size. The buffer starts each invocation filled to the given percentage, so
+ * at 100 every append also evicts old output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsoleBufferBenchmark {
+	/* The same size ShellListener uses */
+	private static final int BUFFER_SIZE = 25000;
+
+	private static final int APPEND_SIZE = 64 * 1024;
+
+	private static final String[] SAMPLE_LINES = {
+		"drwxr-xr-x  2 root   root      4096 2024-01-01 12:00 \u001b[1;34mcache\u001b[0m\r\n",
+		"-rw-r--r--  1 system system   10242 2024-01-01 12:00 build.prop\r\n",
+		"01-01 12:00:00.000  1234  1250 I ActivityManager: Start proc 4321:com.example/u0a123 for activity\r\n",
+		"01-01 12:00:00.001  1234  1250 \u001b[31mE AndroidRuntime: FATAL EXCEPTION: main\u001b[0m\r\n",
+		"\tat com.example.app.MainActivity.onCreate(MainActivity.java:42) \u00e9\u00e8\u4e2d\u6587\r\n",
+	};
+
+	@Param({"0", "50", "100"})
+	public int fillPercent;
+
+	@Param({"16", "512", "4096"})
+	public int packetSize;
+
+	private byte[] output;
+	private ConsoleBuffer console;
+
+	@Setup(Level.Trial)
+	public void generateOutput() throws UnsupportedEncodingException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (int i = 0; data.size() < APPEND_SIZE; i++) {
+			byte[] line = SAMPLE_LINES[i % SAMPLE_LINES.length].getBytes("UTF-8");
+			data.write(line, 0, line.length);
+		}
+		output = data.toByteArray();
+	}
+
+	@Setup(Level.Invocation)
+	public void fillConsole() {
+		console = new ConsoleBuffer(BUFFER_SIZE);
+
+		int fill = (int)((long)BUFFER_SIZE * fillPercent / 100);
+		while (console.length() < fill) {
+			console.append(output, 0, Math.min(output.length, fill - console.length()));
+		}
+	}
+
+	@Benchmark
+	public ConsoleBuffer append() {
+		for (int offset = 0; offset < APPEND_SIZE; offset += packetSize) {
+			console.append(output, offset, Math.min(packetSize, APPEND_SIZE - offset));
+		}
+		return console;
+	}
+}
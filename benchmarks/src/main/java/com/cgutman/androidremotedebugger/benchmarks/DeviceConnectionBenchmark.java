@@ -0,0 +1,237 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgutman.adblib.AdbBase64;
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnection;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnectionListener;
+
+/**
+ * DeviceConnection against an in-process adbd on the loopback interface. This
+ * covers the whole host side: queueing and coalescing commands, the event
+ * loop, framing, and flow control.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceConnectionBenchmark {
+	private static final int MEGABYTE = 1024 * 1024;
+	private static final int CHUNK_SIZE = 4096;
+
+	/* Nothing asks for authentication, but a session needs a key pair */
+	private static AdbCrypto crypto;
+
+	private static synchronized AdbCrypto getCrypto() throws NoSuchAlgorithmException {
+		if (crypto == null) {
+			crypto = AdbCrypto.generateAdbKeyPair(new AdbBase64() {
+				@Override
+				public String encodeToString(byte[] data) {
+					return java.util.Base64.getEncoder().encodeToString(data);
+				}
+			});
+		}
+		return crypto;
+	}
+
+	/**
+	 * One session to the loopback server, with the benchmark thread waiting
+	 * for the received byte count to reach a target
+	 */
+	public static abstract class Session implements DeviceConnectionListener {
+		protected LoopbackAdbServer server;
+		protected DeviceConnection devConn;
+
+		private final CountDownLatch established = new CountDownLatch(1);
+		private volatile long bytesReceived;
+		private volatile long waitingFor = Long.MAX_VALUE;
+		private volatile Thread waiter;
+
+		protected void open(String destination) throws Exception {
+			server = new LoopbackAdbServer();
+			devConn = new DeviceConnection(this, server.getHost(), server.getPort(), destination);
+			devConn.startConnect();
+			if (!established.await(10, TimeUnit.SECONDS)) {
+				throw new IOException("Unable to open "+destination);
+			}
+		}
+
+		protected void close() throws IOException {
+			devConn.close();
+			server.close();
+		}
+
+		protected long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		protected void awaitBytesReceived(long target) {
+			waiter = Thread.currentThread();
+			waitingFor = target;
+			while (bytesReceived < target) {
+				LockSupport.park(this);
+			}
+			waitingFor = Long.MAX_VALUE;
+		}
+
+		/* Waits for data to show up at the server */
+		protected void awaitServerReceived(long target) {
+			while (server.getBytesReceived() < target) {
+				LockSupport.parkNanos(this, 10000);
+			}
+		}
+
+		/* Queues data, waiting for room in the send queue as needed */
+		protected void send(byte[] data) {
+			while (!devConn.queueBytes(data)) {
+				LockSupport.parkNanos(this, 10000);
+			}
+		}
+
+		@Override
+		public void notifyConnectionEstablished(DeviceConnection devConn) {
+			established.countDown();
+		}
+
+		@Override
+		public void notifyConnectionFailed(DeviceConnection devConn, Exception e) {}
+
+		@Override
+		public void notifyStreamFailed(DeviceConnection devConn, Exception e) {}
+
+		@Override
+		public void notifyStreamClosed(DeviceConnection devConn) {}
+
+		@Override
+		public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+			try {
+				return getCrypto();
+			} catch (NoSuchAlgorithmException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public boolean canReceiveData(DeviceConnection devConn) {
+			return true;
+		}
+
+		@Override
+		public void receivedData(DeviceConnection devConn, byte[] data, int offset, int length) {
+			/* Only the event loop thread writes this */
+			long received = bytesReceived + length;
+			bytesReceived = received;
+			if (received >= waitingFor) {
+				LockSupport.unpark(waiter);
+			}
+		}
+
+		@Override
+		public boolean isConsole() {
+			return false;
+		}
+
+		@Override
+		public void consoleUpdated(DeviceConnection devConn, ConsoleBuffer console) {}
+	}
+
+	@State(Scope.Benchmark)
+	public static class EchoSession extends Session {
+		@Param({"1", "64", "4096"})
+		public int commandSize;
+
+		byte[] command;
+
+		@Setup
+		public void setup() throws Exception {
+			command = new byte[commandSize];
+			Arrays.fill(command, (byte)'x');
+			open("echo:");
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			close();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class SinkSession extends Session {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		long sent;
+
+		@Setup
+		public void setup() throws Exception {
+			open("sink:");
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			close();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class SourceSession extends Session {
+		@Setup
+		public void setup() throws Exception {
+			open("source:");
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			close();
+		}
+	}
+
+	/**
+	 * Sends a command and waits for the device to echo it back
+	 */
+	@Benchmark
+	public void commandRoundTrip(EchoSession session) {
+		long target = session.getBytesReceived() + session.command.length;
+		session.send(session.command);
+		session.awaitBytesReceived(target);
+	}
+
+	/**
+	 * Sends 1 MiB and waits for the device to receive all of it
+	 */
+	@Benchmark
+	public void sendMegabyte(SinkSession session) {
+		for (int i = 0; i < MEGABYTE / CHUNK_SIZE; i++) {
+			session.send(session.chunk);
+		}
+		session.sent += MEGABYTE;
+		session.awaitServerReceived(session.sent);
+	}
+
+	/**
+	 * Waits for the next 1 MiB to arrive from a device sending as fast as it can
+	 */
+	@Benchmark
+	public void receiveMegabyte(SourceSession session) {
+		session.awaitBytesReceived(session.getBytesReceived() + MEGABYTE);
+	}
+}
@@ -0,0 +1,237 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.console.LineIndex;
+import com.cgutman.androidremotedebugger.console.TextAttributes;
+
+/**
+ * What keeping a LineIndex costs on append. The first two benchmarks copy how
+ * ConsoleBuffer.append() stores output, a run of printable characters at a
+ * time with each newline on its own, and feed it 64 KiB of lines with the
+ * buffer already full so every character evicts one. The indexed one also
+ * records each newline and, once per trip around the ring, drops the evicted
+ * ones, as the console does. The
+ * third appends the same lines to a full ConsoleBuffer, which is what the
+ * difference between the first two should be weighed against. Short lines
+ * mean more newlines, so the index costs the most there.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineIndexBenchmark {
+	/* The same size ShellListener uses */
+	private static final int BUFFER_SIZE = 25000;
+
+	private static final int APPEND_SIZE = 64 * 1024;
+
+	@Param({"8", "80", "400"})
+	public int lineLength;
+
+	private byte[] input;
+
+	private char[] buffer;
+	private int[] attributes;
+	private int head;
+	private int tail;
+	private int amountPopulated;
+	private long totalAppended;
+	private int firstLine;
+	private LineIndex lines;
+
+	private ConsoleBuffer console;
+
+	@Setup
+	public void setup() {
+		input = new byte[APPEND_SIZE];
+		for (int i = 0; i < input.length; i++) {
+			input[i] = (byte)((i % lineLength == lineLength - 1) ? '\n' : 'a' + i % 26);
+		}
+
+		/* Start full, with the index matching what's in the buffer */
+		buffer = new char[BUFFER_SIZE];
+		attributes = new int[BUFFER_SIZE];
+		lines = new LineIndex(BUFFER_SIZE);
+		for (int i = 0; i < BUFFER_SIZE; i++) {
+			buffer[i] = (char)input[i % input.length];
+			if (buffer[i] == '\n') {
+				lines.add(i);
+			}
+		}
+		amountPopulated = BUFFER_SIZE;
+		totalAppended = BUFFER_SIZE;
+
+		console = new ConsoleBuffer(BUFFER_SIZE);
+		console.append(input, 0, input.length);
+	}
+
+	@Benchmark
+	public int unindexedAppend() {
+		byte[] input = this.input;
+		for (int i = 0; i < input.length; i++) {
+			if (input[i] == '\n') {
+				putChar('\n', TextAttributes.DEFAULT);
+				continue;
+			}
+
+			int runEnd = runEnd(i);
+			putAscii(input, i, runEnd - i, TextAttributes.DEFAULT);
+			i = runEnd - 1;
+		}
+		return tail;
+	}
+
+	@Benchmark
+	public int indexedAppend() {
+		byte[] input = this.input;
+		for (int i = 0; i < input.length; i++) {
+			if (input[i] == '\n') {
+				putIndexedChar('\n', TextAttributes.DEFAULT);
+				continue;
+			}
+
+			int runEnd = runEnd(i);
+			putIndexedAscii(input, i, runEnd - i, TextAttributes.DEFAULT);
+			i = runEnd - 1;
+		}
+		return tail;
+	}
+
+	private int runEnd(int start) {
+		int end = start + 1;
+		while (end < input.length && input[end] != '\n') {
+			end++;
+		}
+		return end;
+	}
+
+	/* ConsoleBuffer.putAscii() without scrollback or the line index */
+	private void putAscii(byte[] src, int offset, int count, int attr) {
+		while (count > 0) {
+			int n = Math.min(count, buffer.length - tail);
+			int evicted = amountPopulated + n - buffer.length;
+			if (evicted > 0) {
+				amountPopulated = buffer.length;
+			}
+			else {
+				amountPopulated += n;
+			}
+
+			copy(src, offset, n, attr, evicted > 0);
+			offset += n;
+			count -= n;
+		}
+	}
+
+	/* ConsoleBuffer.putAscii() without scrollback */
+	private void putIndexedAscii(byte[] src, int offset, int count, int attr) {
+		while (count > 0) {
+			int n = Math.min(count, buffer.length - tail);
+			int evicted = amountPopulated + n - buffer.length;
+			if (evicted > 0) {
+				amountPopulated = buffer.length;
+			}
+			else {
+				amountPopulated += n;
+			}
+
+			copy(src, offset, n, attr, evicted > 0);
+			if (tail == 0) {
+				trimLines();
+			}
+			offset += n;
+			count -= n;
+		}
+	}
+
+	/* Stores n characters that fit before the end of the ring */
+	private void copy(byte[] src, int offset, int n, int attr, boolean evicted) {
+		for (int i = 0; i < n; i++) {
+			buffer[tail + i] = (char)src[offset + i];
+		}
+		Arrays.fill(attributes, tail, tail + n, attr);
+		tail += n;
+		if (tail == buffer.length) {
+			tail = 0;
+		}
+		if (evicted) {
+			head = tail;
+		}
+		totalAppended += n;
+	}
+
+	/* ConsoleBuffer.putChar() without scrollback or the line index */
+	private void putChar(char c, int attr) {
+		if (amountPopulated == buffer.length) {
+			head = tail + 1;
+			if (head == buffer.length) {
+				head = 0;
+			}
+		}
+		else {
+			amountPopulated++;
+		}
+
+		buffer[tail] = c;
+		attributes[tail] = attr;
+		if (++tail == buffer.length) {
+			tail = 0;
+		}
+		totalAppended++;
+	}
+
+	/* ConsoleBuffer.putChar() without scrollback */
+	private void putIndexedChar(char c, int attr) {
+		if (amountPopulated == buffer.length) {
+			head = tail + 1;
+			if (head == buffer.length) {
+				head = 0;
+			}
+		}
+		else {
+			amountPopulated++;
+		}
+
+		buffer[tail] = c;
+		attributes[tail] = attr;
+		totalAppended++;
+		if (c == '\n') {
+			if (lines.size() == buffer.length) {
+				trimLines();
+			}
+			lines.add((int)totalAppended - 1);
+		}
+		if (++tail == buffer.length) {
+			tail = 0;
+			trimLines();
+		}
+	}
+
+	private void trimLines() {
+		int start = (int)(totalAppended - amountPopulated);
+		firstLine += lines.removeBefore(start, start);
+	}
+
+	@Benchmark
+	public ConsoleBuffer consoleAppend() {
+		console.append(input, 0, input.length);
+		return console;
+	}
+}
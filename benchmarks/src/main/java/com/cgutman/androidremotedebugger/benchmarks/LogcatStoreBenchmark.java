@@ -0,0 +1,62 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgutman.androidremotedebugger.console.LogcatQuery;
+import com.cgutman.androidremotedebugger.console.LogcatStore;
+
+/**
+ * Re-filtering a million parsed logcat lines, which is what changing the
+ * query in structured logcat mode costs before anything is drawn. Queries
+ * are by priority, tag, pid or all three.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx1g")
+public class LogcatStoreBenchmark {
+	private static final int LINES = 1000000;
+	private static final String[] PRIORITIES = {"V", "D", "D", "I", "I", "I", "W", "E"};
+
+	@Param({"E", "Tag7 Tag12", "1037", "W 1037 Tag7"})
+	public String query;
+
+	private LogcatStore store;
+	private LogcatQuery logcatQuery;
+
+	@Setup(Level.Trial)
+	public void setup() throws UnsupportedEncodingException {
+		store = new LogcatStore(LINES);
+		Random random = new Random(0);
+		for (int i = 0; i < LINES; i++) {
+			int pid = 1000 + random.nextInt(40) * 37;
+			byte[] line = String.format("01-01 12:00:00.%03d %5d %5d %s %-8s: Start proc %d\r\n",
+					i % 1000, pid, pid + random.nextInt(20), PRIORITIES[random.nextInt(PRIORITIES.length)],
+					"Tag" + random.nextInt(300), i).getBytes("UTF-8");
+			store.add(line, 0, line.length);
+		}
+		logcatQuery = LogcatQuery.parse(query);
+	}
+
+	@Benchmark
+	public int count() {
+		return store.count(logcatQuery);
+	}
+}
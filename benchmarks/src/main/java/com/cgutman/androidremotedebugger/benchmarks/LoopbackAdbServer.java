@@ -0,0 +1,247 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cgutman.adblib.AdbProtocol;
+
+/**
+ * A minimal adbd that runs in-process on the loopback interface. It accepts
+ * any CNXN without asking for authentication and serves four destinations:
+ * "echo:" writes back everything it receives, "sink:" discards everything it
+ * receives, "source:" sends data as fast as the host acknowledges it, and
+ * "request:" sends as many bytes as each write from the host asks for, given
+ * as a decimal number. Use "request:" with hosts that acknowledge data before
+ * it's been read, or they'll buffer without limit.
+ */
+public class LoopbackAdbServer implements Closeable {
+	private static final byte[] DEVICE_BANNER = "device::\0".getBytes();
+
+	private final ServerSocket serverSocket;
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private volatile boolean closed;
+
+	public LoopbackAdbServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+		Thread acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						final Socket socket = serverSocket.accept();
+						socket.setTcpNoDelay(true);
+						Thread connectionThread = new Thread(new Connection(socket), "Loopback adbd connection");
+						connectionThread.setDaemon(true);
+						connectionThread.start();
+					} catch (IOException e) {
+						return;
+					}
+				}
+			}
+		}, "Loopback adbd");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	public String getHost() {
+		return serverSocket.getInetAddress().getHostAddress();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return The number of payload bytes received on all streams
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		serverSocket.close();
+	}
+
+	private static class Stream {
+		final String destination;
+		final int localId;
+		final int remoteId;
+
+		/* The host acknowledged our last WRTE */
+		boolean writable = true;
+
+		/* Data waiting to be echoed */
+		final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+
+		/* Bytes asked for on a request stream that haven't been sent yet */
+		long requested;
+
+		Stream(String destination, int localId, int remoteId) {
+			this.destination = destination;
+			this.localId = localId;
+			this.remoteId = remoteId;
+		}
+	}
+
+	/* Handles one host connection. All reads and writes happen on its thread. */
+	private class Connection implements Runnable {
+		private final Socket socket;
+		private final HashMap<Integer, Stream> streams = new HashMap<Integer, Stream>();
+		private final ByteBuffer header = ByteBuffer.allocate(AdbProtocol.ADB_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		private final AdbProtocol.AdbMessage message = new AdbProtocol.AdbMessage();
+		private OutputStream out;
+		private byte[] sourceData = new byte[AdbProtocol.CONNECT_MAXDATA];
+		private int nextId = 1;
+
+		Connection(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+				out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+
+				while (!closed) {
+					in.readFully(header.array());
+					if (!message.parse(header, 0)) {
+						throw new IOException("Malformed header");
+					}
+
+					byte[] payload = new byte[message.payloadLength];
+					in.readFully(payload);
+					handleMessage(payload);
+
+					/* Batch our replies until we've caught up with the host */
+					if (in.available() == 0) {
+						out.flush();
+					}
+				}
+			} catch (IOException ignored) {
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException ignored) {}
+			}
+		}
+
+		private void handleMessage(byte[] payload) throws IOException {
+			Stream stream;
+
+			switch (message.command) {
+			case AdbProtocol.CMD_CNXN:
+				/* Send data in chunks as large as the host allows */
+				sourceData = new byte[Math.min(message.arg1, 256 * 1024)];
+				send(AdbProtocol.CMD_CNXN, AdbProtocol.CONNECT_VERSION, sourceData.length, DEVICE_BANNER);
+				break;
+
+			case AdbProtocol.CMD_OPEN:
+				String destination = new String(payload, 0, Math.max(0, payload.length - 1), "UTF-8");
+				if (!destination.equals("echo:") && !destination.equals("sink:") &&
+						!destination.equals("source:") && !destination.equals("request:")) {
+					send(AdbProtocol.CMD_CLSE, 0, message.arg0, null);
+					break;
+				}
+
+				stream = new Stream(destination, nextId++, message.arg0);
+				streams.put(stream.localId, stream);
+				send(AdbProtocol.CMD_OKAY, stream.localId, stream.remoteId, null);
+				pump(stream);
+				break;
+
+			case AdbProtocol.CMD_WRTE:
+				stream = streams.get(message.arg1);
+				if (stream == null) {
+					break;
+				}
+
+				bytesReceived.addAndGet(payload.length);
+				send(AdbProtocol.CMD_OKAY, stream.localId, stream.remoteId, null);
+				if (stream.destination.equals("echo:")) {
+					stream.pending.add(payload);
+					pump(stream);
+				}
+				else if (stream.destination.equals("request:")) {
+					try {
+						stream.requested += Long.parseLong(new String(payload, "UTF-8").trim());
+					} catch (NumberFormatException e) {
+						throw new IOException("Bad request", e);
+					}
+					pump(stream);
+				}
+				break;
+
+			case AdbProtocol.CMD_OKAY:
+				stream = streams.get(message.arg1);
+				if (stream != null) {
+					stream.writable = true;
+					pump(stream);
+				}
+				break;
+
+			case AdbProtocol.CMD_CLSE:
+				stream = streams.remove(message.arg1);
+				if (stream != null) {
+					send(AdbProtocol.CMD_CLSE, stream.localId, stream.remoteId, null);
+				}
+				break;
+			}
+		}
+
+		/* Sends the stream's next WRTE if the host is ready for it */
+		private void pump(Stream stream) throws IOException {
+			if (!stream.writable) {
+				return;
+			}
+
+			byte[] data;
+			if (stream.destination.equals("source:")) {
+				data = sourceData;
+			}
+			else if (stream.destination.equals("request:")) {
+				int length = (int)Math.min(stream.requested, sourceData.length);
+				stream.requested -= length;
+				if (length == sourceData.length) {
+					data = sourceData;
+				}
+				else {
+					data = (length != 0) ? Arrays.copyOf(sourceData, length) : null;
+				}
+			}
+			else {
+				data = stream.pending.poll();
+			}
+
+			if (data != null) {
+				stream.writable = false;
+				send(AdbProtocol.CMD_WRTE, stream.localId, stream.remoteId, data);
+			}
+		}
+
+		private void send(int command, int arg0, int arg1, byte[] payload) throws IOException {
+			header.clear();
+			AdbProtocol.writeHeader(header, command, arg0, arg1, (payload != null) ? ByteBuffer.wrap(payload) : null);
+			out.write(header.array(), 0, AdbProtocol.ADB_HEADER_LENGTH);
+			if (payload != null) {
+				out.write(payload);
+			}
+		}
+	}
+}
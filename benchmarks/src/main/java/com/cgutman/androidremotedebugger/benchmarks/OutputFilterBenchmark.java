@@ -0,0 +1,90 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.androidremotedebugger.console.LineFilter;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnection;
+import com.cgutman.androidremotedebugger.service.ShellListener;
+
+/**
+ * Delivering a packet of busy logcat output through ShellListener with a tag
+ * filter in front of the console. Each line has one of 256 tags, and the
+ * filter keeps those matching any of its keywords, so the cost should depend
+ * on how much gets through rather than on how many keywords there are.
+ * A keyword count of 0 is the same output with no filter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputFilterBenchmark {
+	private static final int TAG_COUNT = 256;
+	private static final int PACKET_SIZE = 4096;
+
+	@Param({"0", "4", "64"})
+	public int keywordCount;
+
+	private ShellListener shellListener;
+	private DeviceConnection devConn;
+	private byte[] packet;
+
+	@Setup
+	public void setup() throws UnsupportedEncodingException {
+		shellListener = new ShellListener() {
+			@Override
+			public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+				return null;
+			}
+		};
+
+		/* Never connected; it only identifies the session */
+		devConn = new DeviceConnection(shellListener, "127.0.0.1", 5555);
+		shellListener.notifyConnectionEstablished(devConn);
+
+		if (keywordCount != 0) {
+			ArrayList<String> keywords = new ArrayList<String>();
+			for (int i = 0; i < keywordCount; i++) {
+				keywords.add(tag(i * (TAG_COUNT / keywordCount)));
+			}
+			shellListener.setOutputFilter(devConn, new LineFilter(keywords, null, null, null, true));
+		}
+
+		/* Whole lines, so each packet leaves nothing held over to the next */
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; ; i++) {
+			String line = "01-01 12:00:00.000  1234  1250 I " + tag(i % TAG_COUNT) +
+					": Start proc 4321:com.example/u0a123 for activity\r\n";
+			if (text.length() + line.length() > PACKET_SIZE) {
+				break;
+			}
+			text.append(line);
+		}
+		packet = text.toString().getBytes("UTF-8");
+	}
+
+	private static String tag(int index) {
+		return "Service" + index + "Manager";
+	}
+
+	@Benchmark
+	public void receivedData() {
+		shellListener.receivedData(devConn, packet, 0, packet.length);
+	}
+}
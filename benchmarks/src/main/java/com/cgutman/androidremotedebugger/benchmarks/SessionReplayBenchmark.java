@@ -0,0 +1,102 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnection;
+import com.cgutman.androidremotedebugger.devconn.SessionRecorder;
+import com.cgutman.androidremotedebugger.devconn.SessionReplayer;
+import com.cgutman.androidremotedebugger.service.ShellListener;
+
+/**
+ * Replaying a session recording as fast as possible through a fresh
+ * ShellListener, which covers reading the log and the whole console pipeline.
+ * Without a recording, one with 2 MiB of logcat-like output in 4 KiB packets
+ * is made up. A real session, recorded with the app or LoadGenerator
+ * --record, can be replayed instead by passing -p recording=FILE to JMH.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionReplayBenchmark {
+	private static final int GENERATED_PACKETS = 512;
+	private static final int PACKET_SIZE = 4096;
+
+	private static final String SAMPLE_LINE =
+			"01-01 12:00:00.000  1234  1250 I ActivityManager: Start proc 4321:com.example/u0a123 for activity\r\n";
+
+	@Param({""})
+	public String recording;
+
+	private File file;
+	private boolean generated;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		if (!recording.isEmpty()) {
+			file = new File(recording);
+			return;
+		}
+
+		file = File.createTempFile("replay", ".rslg");
+		generated = true;
+
+		byte[] line = SAMPLE_LINE.getBytes("UTF-8");
+		byte[] packet = new byte[PACKET_SIZE];
+		for (int i = 0; i < packet.length; i++) {
+			packet[i] = line[i % line.length];
+		}
+
+		SessionRecorder recorder = new SessionRecorder(file, new DeviceConnection(null, "127.0.0.1", 5555));
+		for (int i = 0; i < GENERATED_PACKETS; i++) {
+			recorder.recordReceived(packet, 0, packet.length);
+		}
+		recorder.close();
+		if (recorder.getRecordsDropped() != 0) {
+			throw new IOException("Dropped records while generating the recording");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (generated) {
+			file.delete();
+		}
+	}
+
+	@Benchmark
+	public long replay() throws IOException, InterruptedException {
+		ShellListener listener = new ShellListener() {
+			@Override
+			public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+				return null;
+			}
+		};
+
+		SessionReplayer replayer = new SessionReplayer(file);
+		try {
+			return replayer.replay(listener, replayer.createConnection(listener), false);
+		} finally {
+			replayer.close();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnection;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnectionListener;
+import com.cgutman.androidremotedebugger.service.ShellListener;
+
+/**
+ * Delivering a packet of shell output through ShellListener: appending it to
+ * the connection's console, then notifying every console listener.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShellListenerBenchmark {
+	@Param({"1", "4", "16"})
+	public int listenerCount;
+
+	@Param({"64", "1024"})
+	public int packetSize;
+
+	private ShellListener shellListener;
+	private DeviceConnection devConn;
+	private byte[] packet;
+
+	@Setup
+	public void setup(final Blackhole blackhole) {
+		shellListener = new ShellListener() {
+			@Override
+			public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+				return null;
+			}
+		};
+
+		/* Never connected; it only identifies the session */
+		devConn = new DeviceConnection(shellListener, "127.0.0.1", 5555);
+		shellListener.notifyConnectionEstablished(devConn);
+
+		for (int i = 0; i < listenerCount; i++) {
+			shellListener.addListener(devConn, new ConsoleListener(blackhole));
+		}
+
+		packet = new byte[packetSize];
+		Arrays.fill(packet, (byte)'x');
+		packet[packetSize - 1] = '\n';
+	}
+
+	@Benchmark
+	public void receivedData() {
+		shellListener.receivedData(devConn, packet, 0, packet.length);
+	}
+
+	private static class ConsoleListener implements DeviceConnectionListener {
+		private final Blackhole blackhole;
+
+		ConsoleListener(Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void notifyConnectionEstablished(DeviceConnection devConn) {}
+
+		@Override
+		public void notifyConnectionFailed(DeviceConnection devConn, Exception e) {}
+
+		@Override
+		public void notifyStreamFailed(DeviceConnection devConn, Exception e) {}
+
+		@Override
+		public void notifyStreamClosed(DeviceConnection devConn) {}
+
+		@Override
+		public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+			return null;
+		}
+
+		@Override
+		public boolean canReceiveData(DeviceConnection devConn) {
+			return true;
+		}
+
+		@Override
+		public void receivedData(DeviceConnection devConn, byte[] data, int offset, int length) {}
+
+		@Override
+		public boolean isConsole() {
+			return true;
+		}
+
+		@Override
+		public void consoleUpdated(DeviceConnection devConn, ConsoleBuffer console) {
+			blackhole.consume(console);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnection;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnectionListener;
+import com.cgutman.androidremotedebugger.service.ShellListener;
+
+/**
+ * Many connections delivering output through one ShellListener at once, each
+ * thread standing in for the receive side of its own device. Delivery on one
+ * connection shouldn't slow down because another connection's listeners are
+ * being added and removed, or because one of them is slow. Compare the
+ * delivering threads in each group against the delivery group.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShellListenerContentionBenchmark {
+	private static final int PACKET_SIZE = 256;
+	private static final int LISTENERS_PER_CONNECTION = 2;
+
+	/* Roughly what redrawing a console view costs */
+	private static final long SLOW_LISTENER_TOKENS = 20000;
+
+	/** The listener every connection in a group shares */
+	@State(Scope.Group)
+	public static class Shared {
+		ShellListener shellListener;
+		final AtomicInteger nextPort = new AtomicInteger(5555);
+
+		@Setup
+		public void setup() {
+			shellListener = new ShellListener() {
+				@Override
+				public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+					return null;
+				}
+			};
+		}
+
+		DeviceConnection connect(DeviceConnectionListener listener, int listenerCount) {
+			/* Never connected; it only identifies the session */
+			DeviceConnection devConn = new DeviceConnection(shellListener, "127.0.0.1", nextPort.getAndIncrement());
+			shellListener.notifyConnectionEstablished(devConn);
+			for (int i = 0; i < listenerCount; i++) {
+				shellListener.addListener(devConn, listener);
+			}
+			return devConn;
+		}
+	}
+
+	/** A connection of its own for each thread */
+	@State(Scope.Thread)
+	public static class Session {
+		ShellListener shellListener;
+		DeviceConnection devConn;
+		DeviceConnectionListener extraListener;
+		byte[] packet;
+
+		@Setup
+		public void setup(Shared shared, Blackhole blackhole) {
+			shellListener = shared.shellListener;
+			devConn = shared.connect(createListener(blackhole), LISTENERS_PER_CONNECTION);
+			extraListener = new ConsoleListener(blackhole, 0);
+
+			packet = new byte[PACKET_SIZE];
+			Arrays.fill(packet, (byte)'x');
+			packet[PACKET_SIZE - 1] = '\n';
+		}
+
+		DeviceConnectionListener createListener(Blackhole blackhole) {
+			return new ConsoleListener(blackhole, 0);
+		}
+	}
+
+	/** A connection whose console listener takes a while over every update */
+	@State(Scope.Thread)
+	public static class SlowSession extends Session {
+		@Override
+		DeviceConnectionListener createListener(Blackhole blackhole) {
+			return new ConsoleListener(blackhole, SLOW_LISTENER_TOKENS);
+		}
+	}
+
+	/**
+	 * Four connections receiving at once, with nothing else going on
+	 */
+	@Benchmark
+	@Group("delivery")
+	@GroupThreads(4)
+	public void deliver(Session session) {
+		session.shellListener.receivedData(session.devConn, session.packet, 0, session.packet.length);
+	}
+
+	/**
+	 * Three connections receiving while a fourth keeps adding and removing a
+	 * listener, as consoles opening and closing do
+	 */
+	@Benchmark
+	@Group("listenerChurn")
+	@GroupThreads(3)
+	public void deliverDuringChurn(Session session) {
+		session.shellListener.receivedData(session.devConn, session.packet, 0, session.packet.length);
+	}
+
+	@Benchmark
+	@Group("listenerChurn")
+	@GroupThreads(1)
+	public void addRemoveListener(Session session) {
+		session.shellListener.addListener(session.devConn, session.extraListener);
+		session.shellListener.removeListener(session.devConn, session.extraListener);
+	}
+
+	/**
+	 * Three connections receiving while a fourth is held up by its slow listener
+	 */
+	@Benchmark
+	@Group("slowListener")
+	@GroupThreads(3)
+	public void deliverBesideSlowListener(Session session) {
+		session.shellListener.receivedData(session.devConn, session.packet, 0, session.packet.length);
+	}
+
+	@Benchmark
+	@Group("slowListener")
+	@GroupThreads(1)
+	public void deliverToSlowListener(SlowSession session) {
+		session.shellListener.receivedData(session.devConn, session.packet, 0, session.packet.length);
+	}
+
+	private static class ConsoleListener implements DeviceConnectionListener {
+		private final Blackhole blackhole;
+		private final long workTokens;
+
+		ConsoleListener(Blackhole blackhole, long workTokens) {
+			this.blackhole = blackhole;
+			this.workTokens = workTokens;
+		}
+
+		@Override
+		public void notifyConnectionEstablished(DeviceConnection devConn) {}
+
+		@Override
+		public void notifyConnectionFailed(DeviceConnection devConn, Exception e) {}
+
+		@Override
+		public void notifyStreamFailed(DeviceConnection devConn, Exception e) {}
+
+		@Override
+		public void notifyStreamClosed(DeviceConnection devConn) {}
+
+		@Override
+		public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+			return null;
+		}
+
+		@Override
+		public boolean canReceiveData(DeviceConnection devConn) {
+			return true;
+		}
+
+		@Override
+		public void receivedData(DeviceConnection devConn, byte[] data, int offset, int length) {}
+
+		@Override
+		public boolean isConsole() {
+			return true;
+		}
+
+		@Override
+		public void consoleUpdated(DeviceConnection devConn, ConsoleBuffer console) {
+			if (workTokens != 0) {
+				Blackhole.consumeCPU(workTokens);
+			}
+			blackhole.consume(console);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.cgutman.androidremotedebugger.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgutman.androidremotedebugger.console.Utf8Decoder;
+
+/**
+ * Turning 64 KiB of output into chars, with Utf8Decoder the way ConsoleBuffer
+ * uses it, against casting each byte to a char as the console did before it
+ * decoded UTF-8. The cast mangles anything that isn't ASCII, so it's the
+ * lower bound on what decoding can cost. The text is all ASCII, mostly ASCII
+ * with a few accented and CJK characters, or all CJK.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Utf8DecoderBenchmark {
+	private static final int INPUT_SIZE = 64 * 1024;
+
+	private static final String ASCII_LINE =
+			"01-01 12:00:00.000  1234  1250 I ActivityManager: Start proc 4321:com.example/u0a123\r\n";
+	private static final String MIXED_LINE =
+			"\tat com.example.app.MainActivity.onCreate(MainActivity.java:42) éè中文\r\n";
+	private static final String CJK_LINE =
+			"日志输出中文字符测试数据行\r\n";
+
+	@Param({"ascii", "mixed", "cjk"})
+	public String text;
+
+	private byte[] input;
+	private char[] output;
+	private final Utf8Decoder decoder = new Utf8Decoder();
+
+	@Setup
+	public void setup() throws UnsupportedEncodingException {
+		String line = text.equals("ascii") ? ASCII_LINE : (text.equals("mixed") ? MIXED_LINE : CJK_LINE);
+		byte[] lineBytes = line.getBytes("UTF-8");
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		while (data.size() < INPUT_SIZE) {
+			data.write(lineBytes, 0, lineBytes.length);
+		}
+		input = data.toByteArray();
+		output = new char[input.length];
+	}
+
+	/**
+	 * The old console: one char per byte, whatever the byte was
+	 */
+	@Benchmark
+	public char[] byteCast() {
+		byte[] input = this.input;
+		char[] output = this.output;
+		for (int i = 0; i < input.length; i++) {
+			output[i] = (char)input[i];
+		}
+		return output;
+	}
+
+	/**
+	 * ConsoleBuffer.append()'s loop without the terminal parsing: ASCII goes
+	 * straight through when no sequence is pending, and everything else is
+	 * decoded
+	 */
+	@Benchmark
+	public char[] utf8Decoder() {
+		byte[] input = this.input;
+		char[] output = this.output;
+		Utf8Decoder decoder = this.decoder;
+		int count = 0;
+
+		for (int i = 0; i < input.length; i++) {
+			byte b = input[i];
+			if (b >= 0 && decoder.isIdle()) {
+				output[count++] = (char)b;
+				continue;
+			}
+
+			int codePoint = decoder.decode(b);
+			if (codePoint == Utf8Decoder.MALFORMED_RETRY) {
+				output[count++] = Utf8Decoder.REPLACEMENT_CHAR;
+				codePoint = decoder.decode(b);
+			}
+			if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+				output[count++] = (char)(0xD800 + ((codePoint - 0x10000) >>> 10));
+				output[count++] = (char)(0xDC00 + (codePoint & 0x3FF));
+			}
+			else if (codePoint >= 0) {
+				output[count++] = (char)codePoint;
+			}
+		}
+		return output;
+	}
+}
@@ -0,0 +1,12 @@
+package com.cgutman.adblib;
+
+/**
+ * Base64 encoding is platform specific (android.util.Base64 on Android,
+ * java.util.Base64 elsewhere), so callers supply an implementation.
+ */
+public interface AdbBase64 {
+	/**
+	 * Encodes the data without any line wrapping
+	 */
+	public String encodeToString(byte[] data);
+}
@@ -0,0 +1,69 @@
+package com.cgutman.adblib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * A free list of equally sized direct buffers. Each event loop keeps its own
+ * pools, so they're only touched from one thread and need no locking.
+ */
+public class AdbBufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+	private long allocations;
+	private long reuses;
+
+	public AdbBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return A cleared little endian buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.pollLast();
+		if (buffer != null) {
+			reuses++;
+			buffer.clear();
+		}
+		else {
+			allocations++;
+			buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers that didn't come from a pool of this
+	 * size are ignored, so callers can release anything they were handed. A buffer
+	 * must not be used or released again after this.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (!buffer.isDirect() || buffer.capacity() != bufferSize || free.size() >= maxPooled) {
+			return;
+		}
+		free.addLast(buffer);
+	}
+
+	/**
+	 * @return The number of buffers this pool has had to allocate
+	 */
+	public long getAllocationCount() {
+		return allocations;
+	}
+
+	/**
+	 * @return The number of times a pooled buffer was handed out again
+	 */
+	public long getReuseCount() {
+		return reuses;
+	}
+}
@@ -0,0 +1,462 @@
+package com.cgutman.adblib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A non-blocking ADB connection driven by an AdbEventLoop. Instead of
+ * dedicating a reader thread to each device, many channels share a loop.
+ * Incoming headers are parsed in place and payloads are handed to streams
+ * straight out of the receive buffer. Outgoing headers and payloads come
+ * from the loop's buffer pools and are sent with gathering writes.
+ * All methods must be called on the loop thread, and all listener callbacks
+ * are made there.
+ */
+public class AdbChannel implements AdbEventLoop.IoHandler, AdbEventLoop.TaskOwner {
+	public interface Listener {
+		/* The CNXN handshake (and any AUTH exchange) completed */
+		void onChannelConnected(AdbChannel channel);
+
+		/* The socket failed or the remote side closed it. The channel is now closed. */
+		void onChannelFailed(AdbChannel channel, Exception e);
+	}
+
+	private static final int INITIAL_READ_BUFFER = AdbProtocol.ADB_HEADER_LENGTH + AdbProtocol.CONNECT_MAXDATA;
+
+	/* The most buffers handed to a single gathering write */
+	private static final int MAX_GATHER = 32;
+
+	private final AdbEventLoop loop;
+	private final AdbCrypto crypto;
+	private final Listener listener;
+
+	private SocketChannel socket;
+	private SelectionKey key;
+	private AdbEventLoop.Timer connectTimer;
+
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+	private final AdbProtocol.AdbMessage header = new AdbProtocol.AdbMessage();
+
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+
+	private final HashMap<Integer, AdbChannelStream> openStreams = new HashMap<Integer, AdbChannelStream>();
+	private int lastLocalId;
+
+	private boolean writable;
+	private boolean connected;
+	private boolean sentSignature;
+	private boolean closed;
+	private int maxData;
+
+	/* When each stage of the handshake was reached, by System.nanoTime() */
+	private long startTime;
+	private long tcpConnectedTime;
+	private long authStartTime;
+	private long connectedTime;
+
+	public AdbChannel(AdbEventLoop loop, AdbCrypto crypto, Listener listener) {
+		this.loop = loop;
+		this.crypto = crypto;
+		this.listener = listener;
+	}
+
+	public AdbEventLoop getLoop() {
+		return loop;
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return The maximum payload size the remote side accepts. Only valid once connected.
+	 */
+	public int getMaxData() {
+		return maxData;
+	}
+
+	/**
+	 * @return The largest payload we'll put in one WRTE, which is the smaller of
+	 * the remote side's limit and our pooled buffer size.
+	 */
+	public int getMaxPayload() {
+		int poolSize = loop.getPayloadPool().getBufferSize();
+		return (maxData > 0 && maxData < poolSize) ? maxData : poolSize;
+	}
+
+	/**
+	 * @return When the channel started connecting, by System.nanoTime()
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return When the TCP connection was up and CNXN was sent, or 0 if it hasn't been yet
+	 */
+	public long getTcpConnectedTime() {
+		return tcpConnectedTime;
+	}
+
+	/**
+	 * @return When the device first asked us to authenticate, or 0 if it hasn't
+	 */
+	public long getAuthStartTime() {
+		return authStartTime;
+	}
+
+	/**
+	 * @return When the device's CNXN arrived, or 0 if it hasn't yet
+	 */
+	public long getConnectedTime() {
+		return connectedTime;
+	}
+
+	/**
+	 * Begins connecting to the device. The listener is told how it went.
+	 */
+	public void connect(InetSocketAddress address, int timeoutMs) {
+		startTime = System.nanoTime();
+		try {
+			socket = SocketChannel.open();
+			socket.configureBlocking(false);
+			socket.socket().setTcpNoDelay(true);
+
+			if (socket.connect(address)) {
+				onTcpConnected();
+			}
+			else {
+				key = loop.register(socket, SelectionKey.OP_CONNECT, this);
+				connectTimer = loop.schedule(new Runnable() {
+					@Override
+					public void run() {
+						fail(new SocketTimeoutException("connect timed out"));
+					}
+				}, timeoutMs, this);
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Begins the ADB handshake over a socket that's already connected
+	 */
+	public void start(SocketChannel connectedSocket) {
+		startTime = System.nanoTime();
+		try {
+			socket = connectedSocket;
+			socket.configureBlocking(false);
+			socket.socket().setTcpNoDelay(true);
+			onTcpConnected();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Opens a stream to a destination like "shell:". The stream's listener is
+	 * told when the remote side accepts or refuses it.
+	 */
+	public AdbChannelStream open(String destination, AdbChannelStream.Listener streamListener) throws UnsupportedEncodingException {
+		AdbChannelStream stream = new AdbChannelStream(this, ++lastLocalId, streamListener);
+		openStreams.put(stream.getLocalId(), stream);
+		sendMessage(AdbProtocol.CMD_OPEN, stream.getLocalId(), 0,
+				ByteBuffer.wrap(AdbProtocol.getOpenPayload(destination)));
+		return stream;
+	}
+
+	/**
+	 * Closes the socket without calling the listener
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		if (connectTimer != null) {
+			connectTimer.cancel();
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException ignored) {}
+
+		openStreams.clear();
+
+		ByteBuffer buffer;
+		while ((buffer = writeQueue.poll()) != null) {
+			recycle(buffer);
+		}
+	}
+
+	/**
+	 * @return A copy of the currently open streams
+	 */
+	public ArrayList<AdbChannelStream> getStreams() {
+		return new ArrayList<AdbChannelStream>(openStreams.values());
+	}
+
+	void removeStream(AdbChannelStream stream) {
+		openStreams.remove(stream.getLocalId());
+	}
+
+	/**
+	 * Queues a message for sending. Ownership of the payload (which may be null)
+	 * passes to the channel, and pooled payloads are recycled once written.
+	 */
+	void sendMessage(int command, int arg0, int arg1, ByteBuffer payload) {
+		if (closed) {
+			if (payload != null) {
+				recycle(payload);
+			}
+			return;
+		}
+
+		ByteBuffer headerBuffer = loop.getHeaderPool().acquire();
+		AdbProtocol.writeHeader(headerBuffer, command, arg0, arg1, payload);
+		headerBuffer.flip();
+
+		boolean idle = writeQueue.isEmpty();
+		writeQueue.add(headerBuffer);
+		if (payload != null) {
+			if (payload.hasRemaining()) {
+				writeQueue.add(payload);
+			}
+			else {
+				recycle(payload);
+			}
+		}
+
+		/* Try to write it right away. If the socket is busy, we'll
+		 * finish once it tells us it's writable. */
+		if (idle && writable) {
+			flushWrites();
+		}
+	}
+
+	ByteBuffer allocatePayload() {
+		ByteBuffer payload = loop.getPayloadPool().acquire();
+		payload.limit(getMaxPayload());
+		return payload;
+	}
+
+	private void recycle(ByteBuffer buffer) {
+		if (buffer.capacity() == AdbProtocol.ADB_HEADER_LENGTH) {
+			loop.getHeaderPool().release(buffer);
+		}
+		else {
+			loop.getPayloadPool().release(buffer);
+		}
+	}
+
+	private void fail(Exception e) {
+		if (closed) {
+			return;
+		}
+
+		close();
+		listener.onChannelFailed(this, e);
+	}
+
+	private void onTcpConnected() throws IOException {
+		if (connectTimer != null) {
+			connectTimer.cancel();
+			connectTimer = null;
+		}
+
+		if (key == null) {
+			key = loop.register(socket, SelectionKey.OP_READ, this);
+		}
+		else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		writable = true;
+		tcpConnectedTime = System.nanoTime();
+
+		/* Start the handshake */
+		sendMessage(AdbProtocol.CMD_CNXN, AdbProtocol.CONNECT_VERSION, AdbProtocol.CONNECT_MAXDATA,
+				ByteBuffer.wrap(AdbProtocol.CONNECT_PAYLOAD));
+	}
+
+	@Override
+	public void onError(Exception e) {
+		fail(e);
+	}
+
+	@Override
+	public void onTaskFailed(RuntimeException e) {
+		fail(e);
+	}
+
+	@Override
+	public void onReady(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				socket.finishConnect();
+				onTcpConnected();
+			}
+			if (key.isValid() && key.isReadable()) {
+				readMessages();
+			}
+			if (key.isValid() && key.isWritable()) {
+				flushWrites();
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (GeneralSecurityException e) {
+			fail(e);
+		}
+	}
+
+	private void flushWrites() {
+		try {
+			while (!writeQueue.isEmpty()) {
+				/* Gather as many queued headers and payloads as we can into one write */
+				int count = 0;
+				for (ByteBuffer buffer : writeQueue) {
+					gatherBuffers[count++] = buffer;
+					if (count == MAX_GATHER) {
+						break;
+					}
+				}
+
+				socket.write(gatherBuffers, 0, count);
+				boolean socketFull = gatherBuffers[count - 1].hasRemaining();
+				for (int i = 0; i < count; i++) {
+					gatherBuffers[i] = null;
+				}
+
+				/* Recycle everything that made it out */
+				while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+					recycle(writeQueue.poll());
+				}
+
+				if (socketFull) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+			return;
+		}
+
+		/* Only ask for writability while we have something to write */
+		if (writeQueue.isEmpty()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+		else {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void readMessages() throws IOException, GeneralSecurityException {
+		if (socket.read(readBuffer) < 0) {
+			throw new EOFException("Connection closed by remote host");
+		}
+
+		readBuffer.flip();
+		while (!closed && readBuffer.remaining() >= AdbProtocol.ADB_HEADER_LENGTH) {
+			int start = readBuffer.position();
+			if (!header.parse(readBuffer, start)) {
+				throw new IOException("Invalid ADB message header");
+			}
+
+			/* The payload length was checked, so the message always fits in the buffer */
+			int messageLength = AdbProtocol.ADB_HEADER_LENGTH + header.payloadLength;
+			if (readBuffer.remaining() < messageLength) {
+				break;
+			}
+
+			handleMessage(readBuffer.array(),
+					readBuffer.arrayOffset() + start + AdbProtocol.ADB_HEADER_LENGTH, header.payloadLength);
+			readBuffer.position(start + messageLength);
+		}
+		readBuffer.compact();
+	}
+
+	private void handleMessage(byte[] payload, int offset, int length)
+			throws IOException, GeneralSecurityException {
+		AdbChannelStream stream;
+
+		switch (header.command)
+		{
+		case AdbProtocol.CMD_CNXN:
+			if (!connected) {
+				connected = true;
+				connectedTime = System.nanoTime();
+				maxData = header.arg1;
+				listener.onChannelConnected(this);
+			}
+			break;
+
+		case AdbProtocol.CMD_AUTH:
+			if (header.arg0 != AdbProtocol.AUTH_TYPE_TOKEN) {
+				break;
+			}
+			if (authStartTime == 0) {
+				authStartTime = System.nanoTime();
+			}
+
+			if (!sentSignature) {
+				/* Try signing the token with our key first */
+				byte[] token = new byte[length];
+				System.arraycopy(payload, offset, token, 0, length);
+				sendMessage(AdbProtocol.CMD_AUTH, AdbProtocol.AUTH_TYPE_SIGNATURE, 0,
+						ByteBuffer.wrap(crypto.signAdbTokenPayload(token)));
+				sentSignature = true;
+			}
+			else {
+				/* They didn't know our key, so offer it to the user */
+				sendMessage(AdbProtocol.CMD_AUTH, AdbProtocol.AUTH_TYPE_RSA_PUBLIC, 0,
+						ByteBuffer.wrap(crypto.getAdbPublicKeyPayload()));
+			}
+			break;
+
+		case AdbProtocol.CMD_OKAY:
+			stream = openStreams.get(header.arg1);
+			if (stream != null) {
+				stream.handleOkay(header.arg0);
+			}
+			break;
+
+		case AdbProtocol.CMD_WRTE:
+			stream = openStreams.get(header.arg1);
+			if (stream != null) {
+				stream.handleWrite(payload, offset, length);
+			}
+			break;
+
+		case AdbProtocol.CMD_CLSE:
+			stream = openStreams.remove(header.arg1);
+			if (stream != null) {
+				stream.handleClose();
+			}
+			break;
+
+		default:
+			break;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.cgutman.adblib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * One ADB stream (like a shell) on an AdbChannel. Like the channel itself,
+ * this must only be used on the channel's event loop thread.
+ */
+public class AdbChannelStream {
+	public interface Listener {
+		/* The remote side accepted our OPEN */
+		void onStreamOpened(AdbChannelStream stream);
+
+		/* A WRTE arrived. The data is only valid for the duration of the call. */
+		void onStreamData(AdbChannelStream stream, byte[] data, int offset, int length);
+
+		/* The remote side acknowledged our last write, so we may write again */
+		void onStreamWritable(AdbChannelStream stream);
+
+		/* The remote side closed the stream or refused to open it */
+		void onStreamClosed(AdbChannelStream stream);
+	}
+
+	private final AdbChannel channel;
+	private final Listener listener;
+	private final int localId;
+	private int remoteId;
+
+	private boolean opened;
+	private boolean writeReady;
+	private boolean closed;
+	private boolean readPaused;
+	private boolean ackPending;
+
+	AdbChannelStream(AdbChannel channel, int localId, Listener listener) {
+		this.channel = channel;
+		this.localId = localId;
+		this.listener = listener;
+	}
+
+	public AdbChannel getChannel() {
+		return channel;
+	}
+
+	int getLocalId() {
+		return localId;
+	}
+
+	public boolean isOpened() {
+		return opened;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return True if a write may be issued now. ADB only allows one
+	 * unacknowledged write per stream.
+	 */
+	public boolean isWriteReady() {
+		return writeReady && !closed;
+	}
+
+	/**
+	 * @return A pooled buffer to fill and pass to {@link #write(ByteBuffer)}. Its
+	 * limit is the most data one write may carry.
+	 */
+	public ByteBuffer allocatePayload() {
+		return channel.allocatePayload();
+	}
+
+	/**
+	 * Sends the remaining bytes of a payload to the remote side. The stream takes
+	 * ownership of the buffer, and recycles it if it came from
+	 * {@link #allocatePayload()}. Only call this when {@link #isWriteReady()}
+	 * is true; {@link Listener#onStreamWritable(AdbChannelStream)} fires when
+	 * it becomes true again.
+	 * @throws IllegalArgumentException If the payload is larger than the remote
+	 * side accepts. ADB doesn't allow another write until this one is
+	 * acknowledged, so it can't be split here.
+	 */
+	public void write(ByteBuffer payload) throws IOException {
+		if (!isWriteReady()) {
+			throw new IOException("Stream is not ready for writing");
+		}
+		if (payload.remaining() > channel.getMaxPayload()) {
+			throw new IllegalArgumentException("Payload of "+payload.remaining()+
+					" bytes is larger than the maximum of "+channel.getMaxPayload());
+		}
+
+		writeReady = false;
+		channel.sendMessage(AdbProtocol.CMD_WRTE, localId, remoteId, payload);
+	}
+
+	/**
+	 * Sends data to the remote side, copying it into a pooled buffer
+	 * @throws IllegalArgumentException If the data is larger than the remote side accepts
+	 */
+	public void write(byte[] data) throws IOException {
+		if (data.length > channel.getMaxPayload()) {
+			throw new IllegalArgumentException("Payload of "+data.length+
+					" bytes is larger than the maximum of "+channel.getMaxPayload());
+		}
+
+		ByteBuffer payload = allocatePayload();
+		payload.put(data);
+		payload.flip();
+		write(payload);
+	}
+
+	/**
+	 * Stops acknowledging data from the remote side. ADB won't send another WRTE
+	 * on this stream until the last one is acknowledged, so this throttles the
+	 * device without buffering anything on our side.
+	 */
+	public void pauseReading() {
+		readPaused = true;
+	}
+
+	/**
+	 * Acknowledges any data held back by {@link #pauseReading()} and resumes normal flow
+	 */
+	public void resumeReading() {
+		readPaused = false;
+		if (ackPending && !closed) {
+			ackPending = false;
+			channel.sendMessage(AdbProtocol.CMD_OKAY, localId, remoteId, null);
+		}
+	}
+
+	public boolean isReadPaused() {
+		return readPaused;
+	}
+
+	/**
+	 * Closes the stream. The listener isn't told about closes we initiate.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		channel.removeStream(this);
+		if (opened) {
+			channel.sendMessage(AdbProtocol.CMD_CLSE, localId, remoteId, null);
+		}
+	}
+
+	void handleOkay(int remoteId) {
+		if (closed) {
+			return;
+		}
+
+		if (!opened) {
+			this.remoteId = remoteId;
+			opened = true;
+			writeReady = true;
+			listener.onStreamOpened(this);
+		}
+		else {
+			writeReady = true;
+			listener.onStreamWritable(this);
+		}
+	}
+
+	void handleWrite(byte[] data, int offset, int length) {
+		if (closed) {
+			return;
+		}
+
+		listener.onStreamData(this, data, offset, length);
+
+		/* Acknowledge it so the remote side can send more, unless the listener
+		 * paused us, in which case the acknowledgement waits for resumeReading() */
+		if (closed) {
+			return;
+		}
+		else if (readPaused) {
+			ackPending = true;
+		}
+		else {
+			channel.sendMessage(AdbProtocol.CMD_OKAY, localId, remoteId, null);
+		}
+	}
+
+	void handleClose() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		listener.onStreamClosed(this);
+	}
+}
@@ -0,0 +1,233 @@
+package com.cgutman.adblib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.EncodedKeySpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.Cipher;
+
+/**
+ * The RSA key pair used to authenticate with adbd
+ */
+public class AdbCrypto {
+	public static final int KEY_LENGTH_BITS = 2048;
+	public static final int KEY_LENGTH_BYTES = KEY_LENGTH_BITS / 8;
+	public static final int KEY_LENGTH_WORDS = KEY_LENGTH_BYTES / 4;
+
+	/* PKCS#1 v1.5 padding followed by the DER prefix of a SHA-1 DigestInfo. adbd sends
+	 * a 20 byte token that we sign as if it were the digest. */
+	public static final int[] SIGNATURE_PADDING_AS_INT = new int[]
+	{
+		0x00, 0x01, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
+		0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0x00, 0x30, 0x21, 0x30,
+		0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00, 0x04, 0x14
+	};
+
+	public static byte[] SIGNATURE_PADDING;
+
+	static {
+		SIGNATURE_PADDING = new byte[SIGNATURE_PADDING_AS_INT.length];
+
+		for (int i = 0; i < SIGNATURE_PADDING.length; i++)
+			SIGNATURE_PADDING[i] = (byte)SIGNATURE_PADDING_AS_INT[i];
+	}
+
+	private KeyPair keyPair;
+	private AdbBase64 base64;
+
+	/* The public key payload never changes, so it's only computed once */
+	private volatile byte[] publicKeyPayload;
+
+	/* An initialized cipher reused for every signature. Guarded by itself. */
+	private Cipher signer;
+
+	/**
+	 * Converts an RSA public key into the struct adbd expects (see
+	 * RSAPublicKey in system/core/libmincrypt): the key size in words,
+	 * -1/n[0] mod 2^32, the modulus, R^2 mod n (both little endian word
+	 * arrays) and the exponent.
+	 */
+	private static byte[] convertRsaPublicKeyToAdbFormat(RSAPublicKey pubkey) {
+		BigInteger r32, r, rr, rem, n, n0inv;
+
+		r32 = BigInteger.ZERO.setBit(32);
+		n = pubkey.getModulus();
+		r = BigInteger.ZERO.setBit(KEY_LENGTH_WORDS * 32);
+		rr = r.modPow(BigInteger.valueOf(2), n);
+		rem = n.remainder(r32);
+		n0inv = rem.modInverse(r32);
+
+		int myN[] = new int[KEY_LENGTH_WORDS];
+		int myRr[] = new int[KEY_LENGTH_WORDS];
+		BigInteger res[];
+		for (int i = 0; i < KEY_LENGTH_WORDS; i++) {
+			res = rr.divideAndRemainder(r32);
+			rr = res[0];
+			rem = res[1];
+			myRr[i] = rem.intValue();
+
+			res = n.divideAndRemainder(r32);
+			n = res[0];
+			rem = res[1];
+			myN[i] = rem.intValue();
+		}
+
+		ByteBuffer bbuf = ByteBuffer.allocate(524).order(ByteOrder.LITTLE_ENDIAN);
+		bbuf.putInt(KEY_LENGTH_WORDS);
+		bbuf.putInt(n0inv.negate().intValue());
+		for (int i : myN)
+			bbuf.putInt(i);
+		for (int i : myRr)
+			bbuf.putInt(i);
+
+		bbuf.putInt(pubkey.getPublicExponent().intValue());
+		return bbuf.array();
+	}
+
+	/**
+	 * Loads a key pair written by {@link #saveAdbKeyPair(File, File)}
+	 */
+	public static AdbCrypto loadAdbKeyPair(AdbBase64 base64, File privateKey, File publicKey) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+		AdbCrypto crypto = new AdbCrypto();
+
+		byte[] privKeyBytes = readFile(privateKey);
+		byte[] pubKeyBytes = readFile(publicKey);
+
+		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+		EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(privKeyBytes);
+		EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(pubKeyBytes);
+
+		PublicKey pubKey = keyFactory.generatePublic(publicKeySpec);
+		PrivateKey privKey = keyFactory.generatePrivate(privateKeySpec);
+		crypto.keyPair = new KeyPair(pubKey, privKey);
+		crypto.base64 = base64;
+
+		return crypto;
+	}
+
+	/**
+	 * Generates a new 2048-bit RSA key pair
+	 */
+	public static AdbCrypto generateAdbKeyPair(AdbBase64 base64) throws NoSuchAlgorithmException {
+		AdbCrypto crypto = new AdbCrypto();
+
+		KeyPairGenerator rsaKeyPg = KeyPairGenerator.getInstance("RSA");
+		rsaKeyPg.initialize(KEY_LENGTH_BITS);
+
+		crypto.keyPair = rsaKeyPg.genKeyPair();
+		crypto.base64 = base64;
+
+		return crypto;
+	}
+
+	/**
+	 * Signs the token from an AUTH message so adbd can check it against keys it already trusts
+	 */
+	public byte[] signAdbTokenPayload(byte[] payload) throws GeneralSecurityException {
+		Cipher c;
+		synchronized (this) {
+			if (signer == null) {
+				signer = Cipher.getInstance("RSA/ECB/NoPadding");
+				signer.init(Cipher.ENCRYPT_MODE, keyPair.getPrivate());
+			}
+			c = signer;
+		}
+
+		/* doFinal() leaves the cipher ready for the next signature, but it
+		 * can't be used by two connections at once */
+		synchronized (c) {
+			c.update(SIGNATURE_PADDING);
+			return c.doFinal(payload);
+		}
+	}
+
+	/**
+	 * @return The payload of an AUTH message offering our public key to adbd
+	 */
+	public byte[] getAdbPublicKeyPayload() throws IOException {
+		byte[] payload = publicKeyPayload;
+		if (payload == null) {
+			payload = publicKeyPayload = generatePublicKeyPayload();
+		}
+
+		/* Callers get their own copy so they can't change ours */
+		return payload.clone();
+	}
+
+	private byte[] generatePublicKeyPayload() throws IOException {
+		byte[] convertedKey = convertRsaPublicKeyToAdbFormat((RSAPublicKey)keyPair.getPublic());
+		StringBuilder keyString = new StringBuilder(720);
+
+		/* The key is base64 encoded with a user@host name appended and a null terminator */
+		keyString.append(base64.encodeToString(convertedKey));
+		keyString.append(" unknown@unknown");
+		keyString.append('\0');
+
+		return keyString.toString().getBytes("UTF-8");
+	}
+
+	/**
+	 * Saves the key pair as a PKCS#8 private key and an X.509 public key
+	 */
+	public void saveAdbKeyPair(File privateKey, File publicKey) throws IOException {
+		writeFile(privateKey, keyPair.getPrivate().getEncoded());
+		writeFile(publicKey, keyPair.getPublic().getEncoded());
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int)file.length()];
+			int offset = 0;
+			while (offset < data.length) {
+				int ret = in.read(data, offset, data.length - offset);
+				if (ret < 0) {
+					throw new IOException("Unexpected end of "+file.getName());
+				}
+				offset += ret;
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeFile(File file, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package com.cgutman.adblib;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single thread that multiplexes I/O for many channels with a Selector.
+ * Everything registered with a loop, and every task posted to it, runs on
+ * the loop's thread, so per-connection state needs no locking as long as
+ * it's only touched from there.
+ */
+public class AdbEventLoop implements Runnable {
+	public interface IoHandler {
+		/* Called on the loop thread when the key has ready operations */
+		void onReady(SelectionKey key);
+
+		/* Called on the loop thread if onReady threw or the selector failed. The key
+		 * has been cancelled, and the handler should close its channel and tell its
+		 * listeners. */
+		void onError(Exception e);
+	}
+
+	public interface TaskOwner {
+		/* Called on the loop thread if one of the owner's tasks threw. The owner
+		 * should close whatever it was running and tell its listeners. */
+		void onTaskFailed(RuntimeException e);
+	}
+
+	public class Timer implements Comparable<Timer> {
+		private final long deadline;
+		private final Runnable task;
+		private boolean cancelled;
+
+		private Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			return (deadline < other.deadline) ? -1 : ((deadline == other.deadline) ? 0 : 1);
+		}
+	}
+
+	/* A task posted on behalf of a connection, so a bug in it only takes that connection down */
+	private static class OwnedTask implements Runnable {
+		private final Runnable task;
+		private final TaskOwner owner;
+
+		OwnedTask(Runnable task, TaskOwner owner) {
+			this.task = task;
+			this.owner = owner;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+	}
+
+	private static final Logger logger = Logger.getLogger(AdbEventLoop.class.getName());
+
+	private final Selector selector;
+	private final Thread thread;
+
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+	/* Only touched on the loop thread */
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+	private final AdbBufferPool headerPool = new AdbBufferPool(AdbProtocol.ADB_HEADER_LENGTH, 256);
+	private final AdbBufferPool payloadPool = new AdbBufferPool(AdbProtocol.CONNECT_MAXDATA, 64);
+
+	public AdbEventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs a task on the loop thread. This may be called from any thread.
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Runs a task on the loop thread. If it throws, the owner is failed instead
+	 * of the exception only being logged. This may be called from any thread.
+	 */
+	public void execute(Runnable task, TaskOwner owner) {
+		execute(new OwnedTask(task, owner));
+	}
+
+	/**
+	 * Runs a task on the loop thread after a delay. Must be called on the loop thread.
+	 */
+	public Timer schedule(Runnable task, long delayMs) {
+		Timer timer = new Timer(System.nanoTime() + delayMs * 1000000L, task);
+		timers.add(timer);
+		return timer;
+	}
+
+	/**
+	 * Runs a task on the loop thread after a delay, failing the owner if it
+	 * throws. Must be called on the loop thread.
+	 */
+	public Timer schedule(Runnable task, long delayMs, TaskOwner owner) {
+		return schedule(new OwnedTask(task, owner), delayMs);
+	}
+
+	/**
+	 * Registers a channel with this loop's selector. Must be called on the loop thread.
+	 */
+	public SelectionKey register(SelectableChannel channel, int ops, IoHandler handler) throws ClosedChannelException {
+		return channel.register(selector, ops, handler);
+	}
+
+	/**
+	 * @return The pool of message header buffers. Must only be used on the loop thread.
+	 */
+	public AdbBufferPool getHeaderPool() {
+		return headerPool;
+	}
+
+	/**
+	 * @return The pool of outgoing payload buffers. Must only be used on the loop thread.
+	 */
+	public AdbBufferPool getPayloadPool() {
+		return payloadPool;
+	}
+
+	@Override
+	public void run() {
+		for (;;) {
+			try {
+				long timeout = runTimers();
+				if (!tasks.isEmpty()) {
+					selector.selectNow();
+				}
+				else if (timeout > 0) {
+					selector.select(timeout);
+				}
+				else {
+					selector.select();
+				}
+				wakeupPending.set(false);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (key.isValid()) {
+						IoHandler handler = (IoHandler)key.attachment();
+						try {
+							handler.onReady(key);
+						} catch (RuntimeException e) {
+							/* Only the channel that threw is failed, not every other one */
+							fail(key, handler, e);
+						}
+					}
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					runTask(task);
+				}
+			} catch (IOException e) {
+				/* The selector itself failing isn't something we can recover from */
+				for (SelectionKey key : selector.keys()) {
+					fail(key, (IoHandler)key.attachment(), e);
+				}
+				try {
+					selector.close();
+				} catch (IOException ignored) {}
+				return;
+			}
+		}
+	}
+
+	private void fail(SelectionKey key, IoHandler handler, Exception e) {
+		/* A broken handler must not have its key fire again */
+		key.cancel();
+		try {
+			handler.onError(e);
+		} catch (RuntimeException failure) {
+			try {
+				key.channel().close();
+			} catch (IOException ignored) {}
+			report(failure);
+		}
+	}
+
+	/* Tasks that throw have a bug, so they're logged and whatever connection owns
+	 * them is failed. The loop and every other connection on it carry on; handing
+	 * the exception to the uncaught handler would take the whole app down. */
+	private void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			report(e);
+			if (task instanceof OwnedTask) {
+				try {
+					((OwnedTask)task).owner.onTaskFailed(e);
+				} catch (RuntimeException failure) {
+					report(failure);
+				}
+			}
+		}
+	}
+
+	private void report(RuntimeException e) {
+		logger.log(Level.SEVERE, "Unhandled exception on "+thread.getName(), e);
+	}
+
+	/* Runs expired timers and returns the milliseconds until the next one, or 0 if none */
+	private long runTimers() {
+		long now = System.nanoTime();
+		Timer timer;
+		while ((timer = timers.peek()) != null) {
+			if (timer.cancelled) {
+				timers.poll();
+			}
+			else if (timer.deadline - now <= 0) {
+				timers.poll();
+				runTask(timer.task);
+			}
+			else {
+				/* Round up so we don't wake up just before the deadline */
+				return (timer.deadline - now + 999999) / 1000000;
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,72 @@
+package com.cgutman.adblib;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small fixed pool of event loops shared by every device connection.
+ * Connections are spread over the loops round-robin. Work that has to block,
+ * like DNS lookups and loading keys from disk, goes to a separate executor
+ * so it never stalls a loop.
+ */
+public class AdbEventLoopGroup {
+	private static final int MAX_LOOPS = 2;
+	private static final long BLOCKING_IDLE_SECONDS = 30;
+
+	private static AdbEventLoopGroup defaultGroup;
+
+	private final AdbEventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final ThreadPoolExecutor blockingExecutor;
+
+	public static synchronized AdbEventLoopGroup getDefault() {
+		if (defaultGroup == null) {
+			try {
+				defaultGroup = new AdbEventLoopGroup(
+						Math.min(MAX_LOOPS, Runtime.getRuntime().availableProcessors()));
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to create event loops", e);
+			}
+		}
+		return defaultGroup;
+	}
+
+	public AdbEventLoopGroup(int loopCount) throws IOException {
+		loops = new AdbEventLoop[Math.max(1, loopCount)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new AdbEventLoop("ADB I/O #"+i);
+		}
+
+		/* One thread that goes away when idle is plenty for the occasional blocking call */
+		blockingExecutor = new ThreadPoolExecutor(1, 1, BLOCKING_IDLE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ADB blocking");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		blockingExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	public AdbEventLoop next() {
+		int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+		return loops[index];
+	}
+
+	public int getLoopCount() {
+		return loops.length;
+	}
+
+	/**
+	 * Runs a task that may block off of the event loops
+	 */
+	public void executeBlocking(Runnable task) {
+		blockingExecutor.execute(task);
+	}
+}
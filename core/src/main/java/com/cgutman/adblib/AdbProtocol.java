@@ -0,0 +1,164 @@
+package com.cgutman.adblib;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Constants and message encoding for the ADB wire protocol. A message is a
+ * 24 byte little endian header (command, arg0, arg1, payload length, payload
+ * checksum, ~command) followed by the payload. The encoders write into
+ * caller supplied buffers so headers and payloads can be pooled and sent
+ * with a single gathering write.
+ */
+public class AdbProtocol {
+	public static final int ADB_HEADER_LENGTH = 24;
+
+	public static final int CMD_SYNC = 0x434e5953;
+
+	public static final int CMD_CNXN = 0x4e584e43;
+
+	/* We advertise the original protocol version, so devices checksum their payloads
+	 * and won't send or accept payloads larger than CONNECT_MAXDATA */
+	public static final int CONNECT_VERSION = 0x01000000;
+
+	public static final int CONNECT_MAXDATA = 4096;
+
+	public static byte[] CONNECT_PAYLOAD;
+	static {
+		try {
+			CONNECT_PAYLOAD = "host::\0".getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {}
+	}
+
+	public static final int CMD_AUTH = 0x48545541;
+
+	public static final int AUTH_TYPE_TOKEN = 1;
+
+	public static final int AUTH_TYPE_SIGNATURE = 2;
+
+	public static final int AUTH_TYPE_RSA_PUBLIC = 3;
+
+	public static final int CMD_OPEN = 0x4e45504f;
+
+	public static final int CMD_OKAY = 0x59414b4f;
+
+	public static final int CMD_CLSE = 0x45534c43;
+
+	public static final int CMD_WRTE = 0x45545257;
+
+	/**
+	 * A message header. One instance is reused to parse every header in place
+	 * out of a receive buffer, so nothing is allocated per message.
+	 */
+	public static final class AdbMessage {
+		public int command;
+		public int arg0;
+		public int arg1;
+		public int payloadLength;
+		public int checksum;
+		public int magic;
+
+		/**
+		 * Reads the header starting at an absolute position of a little endian
+		 * buffer without changing the buffer's position.
+		 * @return True if the header is well formed
+		 */
+		public boolean parse(ByteBuffer buffer, int position) {
+			command = buffer.getInt(position);
+			arg0 = buffer.getInt(position + 4);
+			arg1 = buffer.getInt(position + 8);
+			payloadLength = buffer.getInt(position + 12);
+			checksum = buffer.getInt(position + 16);
+			magic = buffer.getInt(position + 20);
+			return validateMessage(this);
+		}
+	}
+
+	/**
+	 * Checks that the magic matches the command and the length is no more than
+	 * the CONNECT_MAXDATA we advertised. Payload checksums aren't verified since
+	 * TCP already protects the data.
+	 */
+	public static boolean validateMessage(AdbMessage msg) {
+		return msg.magic == ~msg.command && msg.payloadLength >= 0 && msg.payloadLength <= CONNECT_MAXDATA;
+	}
+
+	/**
+	 * Sums the bytes between the payload's position and limit
+	 */
+	public static int getPayloadChecksum(ByteBuffer payload) {
+		int checksum = 0;
+		for (int i = payload.position(); i < payload.limit(); i++) {
+			checksum += payload.get(i) & 0xFF;
+		}
+		return checksum;
+	}
+
+	/**
+	 * Writes a message header describing the remaining bytes of the payload
+	 * (which may be null) at the header buffer's position.
+	 */
+	public static void writeHeader(ByteBuffer header, int command, int arg0, int arg1, ByteBuffer payload) {
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(command);
+		header.putInt(arg0);
+		header.putInt(arg1);
+		if (payload != null) {
+			header.putInt(payload.remaining());
+			header.putInt(getPayloadChecksum(payload));
+		}
+		else {
+			header.putInt(0);
+			header.putInt(0);
+		}
+		header.putInt(~command);
+	}
+
+	/**
+	 * Encodes a complete message into a new array. The event loop avoids this and
+	 * writes headers and payloads from pooled buffers instead.
+	 */
+	public static byte[] generateMessage(int command, int arg0, int arg1, byte[] payload) {
+		int payloadLength = (payload != null) ? payload.length : 0;
+		ByteBuffer message = ByteBuffer.allocate(ADB_HEADER_LENGTH + payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+
+		writeHeader(message, command, arg0, arg1, (payload != null) ? ByteBuffer.wrap(payload) : null);
+		if (payload != null) {
+			message.put(payload);
+		}
+
+		return message.array();
+	}
+
+	public static byte[] generateConnect() {
+		return generateMessage(CMD_CNXN, CONNECT_VERSION, CONNECT_MAXDATA, CONNECT_PAYLOAD);
+	}
+
+	public static byte[] generateAuth(int type, byte[] data) {
+		return generateMessage(CMD_AUTH, type, 0, data);
+	}
+
+	public static byte[] generateOpen(int localId, String dest) throws UnsupportedEncodingException {
+		return generateMessage(CMD_OPEN, localId, 0, getOpenPayload(dest));
+	}
+
+	public static byte[] generateWrite(int localId, int remoteId, byte[] data) {
+		return generateMessage(CMD_WRTE, localId, remoteId, data);
+	}
+
+	public static byte[] generateClose(int localId, int remoteId) {
+		return generateMessage(CMD_CLSE, localId, remoteId, null);
+	}
+
+	public static byte[] generateReady(int localId, int remoteId) {
+		return generateMessage(CMD_OKAY, localId, remoteId, null);
+	}
+
+	/**
+	 * @return The payload of an OPEN message: the null terminated destination
+	 */
+	public static byte[] getOpenPayload(String dest) throws UnsupportedEncodingException {
+		return (dest+'\0').getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,109 @@
+package com.cgutman.androidremotedebugger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import com.cgutman.adblib.AdbBase64;
+import com.cgutman.adblib.AdbCrypto;
+
+public class AdbUtils {
+	
+	public static final String PUBLIC_KEY_NAME = "public.key";
+	public static final String PRIVATE_KEY_NAME = "private.key";
+	
+	/* The key pair is loaded once per process and shared by every connection.
+	 * It's reloaded if the key files are replaced. Guarded by AdbUtils.class. */
+	private static AdbCrypto cachedCrypto;
+	private static String cachedCryptoId;
+	
+	public static AdbCrypto readCryptoConfig(File dataDir, AdbBase64 base64) {
+		File pubKey = new File(dataDir, PUBLIC_KEY_NAME);
+		File privKey = new File(dataDir, PRIVATE_KEY_NAME);
+		
+		AdbCrypto crypto = null;
+		if (pubKey.exists() && privKey.exists())
+		{
+			String id = getCryptoId(pubKey, privKey);
+			synchronized (AdbUtils.class) {
+				if (id.equals(cachedCryptoId)) {
+					return cachedCrypto;
+				}
+			}
+			
+			try {
+				crypto = AdbCrypto.loadAdbKeyPair(base64, privKey, pubKey);
+				
+				/* Do the expensive part of authenticating once, up front */
+				crypto.getAdbPublicKeyPayload();
+			} catch (Exception e) {
+				crypto = null;
+			}
+			
+			if (crypto != null) {
+				synchronized (AdbUtils.class) {
+					cachedCrypto = crypto;
+					cachedCryptoId = id;
+				}
+			}
+		}
+		
+		return crypto;
+	}
+	
+	private static String getCryptoId(File pubKey, File privKey) {
+		return pubKey.getAbsolutePath()+":"+pubKey.lastModified()+":"+pubKey.length()+":"+
+				privKey.lastModified()+":"+privKey.length();
+	}
+	
+	public static AdbCrypto writeNewCryptoConfig(File dataDir, AdbBase64 base64) {
+		File pubKey = new File(dataDir, PUBLIC_KEY_NAME);
+		File privKey = new File(dataDir, PRIVATE_KEY_NAME);
+		
+		AdbCrypto crypto = null;
+		
+		try {
+			crypto = AdbCrypto.generateAdbKeyPair(base64);
+			crypto.saveAdbKeyPair(privKey, pubKey);
+			crypto.getAdbPublicKeyPayload();
+		} catch (Exception e) {
+			crypto = null;
+		}
+		
+		if (crypto != null) {
+			synchronized (AdbUtils.class) {
+				cachedCrypto = crypto;
+				cachedCryptoId = getCryptoId(pubKey, privKey);
+			}
+		}
+		
+		return crypto;
+	}
+	
+	public static boolean safeClose(Closeable c) {
+		if (c == null)
+			return false;
+		
+		try {
+			c.close();
+		} catch (IOException e) {
+			return false;
+		}
+		
+		return true;
+	}
+
+	public static void safeAsyncClose(final Closeable c) {
+		if (c == null)
+			return;
+
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					c.close();
+				} catch (IOException ignored) {}
+			}
+		}).start();
+	}
+}
@@ -0,0 +1,187 @@
+package com.cgutman.androidremotedebugger.console;
+
+/**
+ * Table-driven parser for ANSI/VT100 escape sequences, modeled on the DEC
+ * VT500 state machine. It is fed decoded characters one at a time and keeps
+ * all of its state between calls, so a sequence split across packets resumes
+ * where it left off. Parameters are collected into a fixed array, so parsing
+ * never allocates.
+ */
+public class AnsiParser {
+	public interface Handler {
+		/* A printable character in the ground state */
+		void print(char c);
+
+		/* A C0 control character like CR, LF or BS */
+		void execute(char c);
+
+		/* A complete CSI sequence. The private marker or intermediate (like '?') is 0 if absent. */
+		void csiDispatch(char finalChar, int intermediate, int[] params, int paramCount);
+
+		/* A complete escape sequence that isn't CSI, OSC or a string */
+		void escDispatch(char finalChar, int intermediate);
+	}
+
+	public static final int MAX_PARAMS = 16;
+	private static final int MAX_PARAM_VALUE = 65535;
+
+	/* Parser states */
+	private static final int GROUND = 0;
+	private static final int ESCAPE = 1;
+	private static final int ESCAPE_INTERMEDIATE = 2;
+	private static final int CSI_ENTRY = 3;
+	private static final int CSI_PARAM = 4;
+	private static final int CSI_INTERMEDIATE = 5;
+	private static final int CSI_IGNORE = 6;
+	private static final int OSC_STRING = 7;
+	private static final int STRING_IGNORE = 8;
+	private static final int STATE_COUNT = 9;
+
+	/* Actions taken on a transition */
+	private static final int NONE = 0;
+	private static final int PRINT = 1;
+	private static final int EXECUTE = 2;
+	private static final int CLEAR = 3;
+	private static final int COLLECT = 4;
+	private static final int PARAM = 5;
+	private static final int ESC_DISPATCH = 6;
+	private static final int CSI_DISPATCH = 7;
+
+	/* Characters at or above 0x80 all share the last column */
+	private static final int CHAR_CLASSES = 0x81;
+
+	/* Each entry holds the action in the high nibble and the next state in the low nibble */
+	private static final byte[] TRANSITIONS = new byte[STATE_COUNT * CHAR_CLASSES];
+
+	static {
+		for (int state = 0; state < STATE_COUNT; state++) {
+			/* Stay put and do nothing unless told otherwise */
+			range(state, 0x00, 0x80, NONE, state);
+
+			/* Most states run C0 controls immediately */
+			if (state != OSC_STRING && state != STRING_IGNORE) {
+				range(state, 0x00, 0x17, EXECUTE, state);
+				range(state, 0x19, 0x19, EXECUTE, state);
+				range(state, 0x1C, 0x1F, EXECUTE, state);
+			}
+
+			/* These can interrupt anything */
+			range(state, 0x18, 0x18, EXECUTE, GROUND);
+			range(state, 0x1A, 0x1A, EXECUTE, GROUND);
+			range(state, 0x1B, 0x1B, CLEAR, ESCAPE);
+		}
+
+		range(GROUND, 0x20, 0x7E, PRINT, GROUND);
+		range(GROUND, 0x80, 0x80, PRINT, GROUND);
+
+		range(ESCAPE, 0x20, 0x2F, COLLECT, ESCAPE_INTERMEDIATE);
+		range(ESCAPE, 0x30, 0x7E, ESC_DISPATCH, GROUND);
+		range(ESCAPE, '[', '[', CLEAR, CSI_ENTRY);
+		range(ESCAPE, ']', ']', NONE, OSC_STRING);
+		range(ESCAPE, 'P', 'P', NONE, STRING_IGNORE);
+		range(ESCAPE, 'X', 'X', NONE, STRING_IGNORE);
+		range(ESCAPE, '^', '_', NONE, STRING_IGNORE);
+
+		range(ESCAPE_INTERMEDIATE, 0x20, 0x2F, COLLECT, ESCAPE_INTERMEDIATE);
+		range(ESCAPE_INTERMEDIATE, 0x30, 0x7E, ESC_DISPATCH, GROUND);
+
+		range(CSI_ENTRY, 0x20, 0x2F, COLLECT, CSI_INTERMEDIATE);
+		range(CSI_ENTRY, 0x30, 0x3B, PARAM, CSI_PARAM);
+		range(CSI_ENTRY, 0x3C, 0x3F, COLLECT, CSI_PARAM);
+		range(CSI_ENTRY, 0x40, 0x7E, CSI_DISPATCH, GROUND);
+
+		range(CSI_PARAM, 0x20, 0x2F, COLLECT, CSI_INTERMEDIATE);
+		range(CSI_PARAM, 0x30, 0x3B, PARAM, CSI_PARAM);
+		range(CSI_PARAM, 0x3C, 0x3F, NONE, CSI_IGNORE);
+		range(CSI_PARAM, 0x40, 0x7E, CSI_DISPATCH, GROUND);
+
+		range(CSI_INTERMEDIATE, 0x20, 0x2F, COLLECT, CSI_INTERMEDIATE);
+		range(CSI_INTERMEDIATE, 0x30, 0x3F, NONE, CSI_IGNORE);
+		range(CSI_INTERMEDIATE, 0x40, 0x7E, CSI_DISPATCH, GROUND);
+
+		range(CSI_IGNORE, 0x40, 0x7E, NONE, GROUND);
+
+		/* xterm lets BEL terminate an OSC string as well as ST */
+		range(OSC_STRING, 0x07, 0x07, NONE, GROUND);
+	}
+
+	private static void range(int state, int first, int last, int action, int nextState) {
+		for (int c = first; c <= last; c++) {
+			TRANSITIONS[state * CHAR_CLASSES + c] = (byte)((action << 4) | nextState);
+		}
+	}
+
+	private final Handler handler;
+	private int state = GROUND;
+
+	private final int[] params = new int[MAX_PARAMS];
+	private int paramCount;
+	private int intermediate;
+
+	public AnsiParser(Handler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * @return True if a printable character would be printed right away, so the
+	 * caller can store it without calling {@link #feed(char)}
+	 */
+	public boolean isGround() {
+		return state == GROUND;
+	}
+
+	public void reset() {
+		state = GROUND;
+		clear();
+	}
+
+	public void feed(char c) {
+		int transition = TRANSITIONS[state * CHAR_CLASSES + (c < 0x80 ? c : 0x80)];
+		state = transition & 0xF;
+
+		switch (transition >> 4)
+		{
+		case PRINT:
+			handler.print(c);
+			break;
+		case EXECUTE:
+			handler.execute(c);
+			break;
+		case CLEAR:
+			clear();
+			break;
+		case COLLECT:
+			/* We only keep the first intermediate or private marker */
+			if (intermediate == 0) {
+				intermediate = c;
+			}
+			break;
+		case PARAM:
+			if (paramCount == 0) {
+				paramCount = 1;
+			}
+			if (c == ';' || c == ':') {
+				if (paramCount < MAX_PARAMS) {
+					params[paramCount++] = 0;
+				}
+			}
+			else {
+				int value = params[paramCount - 1] * 10 + (c - '0');
+				params[paramCount - 1] = Math.min(value, MAX_PARAM_VALUE);
+			}
+			break;
+		case ESC_DISPATCH:
+			handler.escDispatch(c, intermediate);
+			break;
+		case CSI_DISPATCH:
+			handler.csiDispatch(c, intermediate, params, paramCount);
+			break;
+		}
+	}
+
+	private void clear() {
+		intermediate = 0;
+		paramCount = 0;
+		params[0] = 0;
+	}
+}
@@ -0,0 +1,59 @@
+package com.cgutman.androidremotedebugger.console;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+public class CommandHistory {
+	/**
+	 * Where the history is kept between sessions
+	 */
+	public interface Store {
+		/* Returns the saved commands, oldest first */
+		List<String> load();
+		
+		void save(List<String> commands);
+	}
+	
+	private Store store;
+	private LinkedList<String> previousCommands;
+	private int historyLimit;
+	
+	public static CommandHistory load(int limit, Store store) {
+		CommandHistory ch = new CommandHistory(limit);
+		
+		ch.store = store;
+		for (String cmd : store.load()) {
+			if (cmd != null)
+				ch.add(cmd);
+		}
+		
+		return ch;
+	}
+	
+	private CommandHistory(int historyLimit) {
+		this.previousCommands = new LinkedList<String>();
+		this.historyLimit = historyLimit;
+	}
+	
+	public void add(String command) {
+		if (previousCommands.size() > historyLimit)
+			previousCommands.removeFirst();
+		
+		previousCommands.add(command);
+	}
+	
+	/**
+	 * @return The commands in the history, most recent first
+	 */
+	public List<String> getCommands() {
+		ArrayList<String> commands = new ArrayList<String>(previousCommands.size());
+		for (int i = previousCommands.size()-1; i >= 0; i--)
+			commands.add(previousCommands.get(i));
+		return commands;
+	}
+	
+	public void save() {
+		store.save(new ArrayList<String>(previousCommands));
+	}
+}
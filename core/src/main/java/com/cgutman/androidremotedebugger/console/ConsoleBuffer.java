@@ -0,0 +1,877 @@
+package com.cgutman.androidremotedebugger.console;
+
+import java.io.Closeable;
+import java.util.Arrays;
+
+/**
+ * The output of a terminal session. The newest output is kept in a ring in
+ * memory. Output that leaves the ring is lost, unless the console was given
+ * a {@link Scrollback}, in which case it's spilled to disk and the older
+ * lines stay readable through the same methods.
+ */
+public class ConsoleBuffer implements Closeable, OutputFilter.Sink {
+	private static final int TAB_WIDTH = 8;
+
+	private char[] buffer;
+	private int[] attributes;
+	private int head;
+	private int tail;
+	private int amountPopulated;
+
+	/* Offsets and line numbers are absolute, so they stay valid as old data is evicted */
+	private long totalAppended;
+	private int firstLine;
+	private final LineIndex lines;
+
+	/* Holds any multibyte sequence split across appends */
+	private final Utf8Decoder decoder = new Utf8Decoder();
+
+	/* Holds any escape sequence split across appends */
+	private final AnsiParser parser = new AnsiParser(new TerminalHandler());
+	private int currentAttributes = TextAttributes.DEFAULT;
+
+	/* The cursor can only move within the last line. This is how far it is from
+	 * the end of that line, or if negative, how far past the end it is. */
+	private int cursorBack;
+
+	/* Lines output since the last time the screen was cleared or homed */
+	private int screenRow;
+
+	/* Where evicted output goes, or null to drop it */
+	private Scrollback scrollback;
+
+	/* The same scrollback, kept after close() so asking whether it's behind
+	 * doesn't need the monitor */
+	private final Scrollback spill;
+
+	public ConsoleBuffer(int bufferSize)
+	{
+		this(bufferSize, null);
+	}
+
+	/**
+	 * @param bufferSize Characters of output to keep in memory
+	 * @param scrollback Takes output as it leaves memory, or null to drop it.
+	 * The console owns it from now on.
+	 */
+	public ConsoleBuffer(int bufferSize, Scrollback scrollback)
+	{
+		buffer = new char[bufferSize];
+		attributes = new int[bufferSize];
+		head = 0;
+		tail = 0;
+		amountPopulated = 0;
+		lines = new LineIndex(bufferSize);
+
+		this.scrollback = scrollback;
+		this.spill = scrollback;
+		if (scrollback != null) {
+			scrollback.reset(0, 0);
+		}
+	}
+
+	public synchronized void append(byte[] utf8Data, int offset, int length)
+	{
+		int end = offset + length;
+
+		for (int i = offset; i < end; i++)
+		{
+			byte b = utf8Data[i];
+
+			if (b >= 0 && decoder.isIdle()) {
+				/* Printable ASCII written at the end of the line goes straight in, as
+				 * much of it at once as there is */
+				if (isPrintableAscii(b) && cursorBack == 0 && parser.isGround()) {
+					int runEnd = i + 1;
+					while (runEnd < end && isPrintableAscii(utf8Data[runEnd])) {
+						runEnd++;
+					}
+					putAscii(utf8Data, i, runEnd - i, currentAttributes);
+					i = runEnd - 1;
+				}
+				else if (b == '\n' && parser.isGround()) {
+					/* What the parser would do with it, without the trip through it */
+					newLine();
+				}
+				else {
+					parser.feed((char)b);
+				}
+				continue;
+			}
+
+			int codePoint = decoder.decode(b);
+			if (codePoint == Utf8Decoder.MALFORMED_RETRY) {
+				/* The pending sequence was cut short, so replace it
+				 * and start over with this byte */
+				parser.feed(Utf8Decoder.REPLACEMENT_CHAR);
+				codePoint = decoder.decode(b);
+			}
+			if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+				/* Character.highSurrogate() isn't available before API 19 */
+				parser.feed((char)(0xD800 + ((codePoint - 0x10000) >>> 10)));
+				parser.feed((char)(0xDC00 + (codePoint & 0x3FF)));
+			}
+			else if (codePoint >= 0) {
+				parser.feed((char)codePoint);
+			}
+		}
+	}
+
+	private static boolean isPrintableAscii(byte b)
+	{
+		return b >= 0x20 && b < 0x7F;
+	}
+
+	/*
+	 * Appends a run of printable ASCII at the end of the line. None of it is a
+	 * newline, so the index is left alone, and any newlines it evicts are
+	 * dropped by trimLines() later.
+	 */
+	private void putAscii(byte[] src, int offset, int count, int attr)
+	{
+		while (count > 0) {
+			/* Up to the end of the ring at a time */
+			int n = Math.min(count, buffer.length - tail);
+			int evicted = amountPopulated + n - buffer.length;
+			if (evicted > 0) {
+				/* The ring fills up partway through, after which we overwrite the oldest */
+				if (scrollback != null) {
+					for (int i = head; i < head + evicted; i++) {
+						scrollback.append(buffer[i], attributes[i]);
+					}
+				}
+				amountPopulated = buffer.length;
+			}
+			else {
+				amountPopulated += n;
+			}
+
+			for (int i = 0; i < n; i++) {
+				buffer[tail + i] = (char)src[offset + i];
+			}
+			Arrays.fill(attributes, tail, tail + n, attr);
+			tail += n;
+			if (tail == buffer.length) {
+				tail = 0;
+			}
+			if (evicted > 0) {
+				head = tail;
+			}
+			totalAppended += n;
+			if (tail == 0) {
+				trimLines();
+			}
+
+			offset += n;
+			count -= n;
+		}
+	}
+
+	private void putChar(char c, int attr)
+	{
+		if (amountPopulated == buffer.length) {
+			/* We're about to overwrite the oldest character */
+			if (scrollback != null) {
+				scrollback.append(buffer[tail], attributes[tail]);
+			}
+			head = tail + 1;
+			if (head == buffer.length) {
+				head = 0;
+			}
+		}
+		else {
+			amountPopulated++;
+		}
+
+		buffer[tail] = c;
+		attributes[tail] = attr;
+		totalAppended++;
+		if (c == '\n') {
+			if (lines.size() == buffer.length) {
+				/* More newlines than characters, so some have been evicted */
+				trimLines();
+			}
+			lines.add((int)totalAppended - 1);
+		}
+		if (++tail == buffer.length) {
+			tail = 0;
+			trimLines();
+		}
+	}
+
+	/*
+	 * Drops the newlines that have been evicted from the index. Appending
+	 * doesn't do this for each one it overwrites, only once per trip around
+	 * the ring, which keeps the index's positions within 2GB of each other.
+	 * Anything that needs firstLine to be the oldest line in memory calls
+	 * this first.
+	 */
+	private void trimLines()
+	{
+		int start = (int)getMemoryStartOffset();
+		firstLine += lines.removeBefore(start, start);
+	}
+
+	private int getCurrentLineLength()
+	{
+		/* Only the part of the line still in memory can be edited */
+		if (lines.size() == 0) {
+			return amountPopulated;
+		}
+
+		/* The last newline may have been evicted without being trimmed yet */
+		return (int)Math.min(amountPopulated, totalAppended - getNewlineOffset(firstLine + lines.size() - 1) - 1);
+	}
+
+	/* Converts a logical offset into an index in the ring */
+	private int toIndex(int logicalOffset)
+	{
+		int index = head + logicalOffset;
+		if (index >= buffer.length) {
+			index -= buffer.length;
+		}
+		return index;
+	}
+
+	/* Stores a character at the cursor, overwriting what's there */
+	private void writeAtCursor(char c)
+	{
+		/* Fill any gap between the end of the line and the cursor */
+		while (cursorBack < 0) {
+			putChar(' ', currentAttributes);
+			cursorBack++;
+		}
+
+		if (cursorBack == 0) {
+			putChar(c, currentAttributes);
+		}
+		else {
+			int index = toIndex(amountPopulated - cursorBack);
+			buffer[index] = c;
+			attributes[index] = currentAttributes;
+			cursorBack--;
+		}
+	}
+
+	/* Removes characters from the end of the last line */
+	private void truncate(int count)
+	{
+		amountPopulated -= count;
+		totalAppended -= count;
+		tail -= count;
+		if (tail < 0) {
+			tail += buffer.length;
+		}
+	}
+
+	private void newLine()
+	{
+		cursorBack = 0;
+		putChar('\n', currentAttributes);
+		screenRow++;
+	}
+
+	/* Moves the cursor down to a row, starting a new page if it's above us */
+	private void moveToRow(int row)
+	{
+		if (row < screenRow) {
+			/* We can't rewrite lines that were already output, so the
+			 * closest we can get is a fresh screen below them */
+			if (getCurrentLineLength() != 0) {
+				newLine();
+			}
+			screenRow = 0;
+		}
+
+		while (screenRow < row) {
+			newLine();
+		}
+	}
+
+	private void moveToColumn(int column)
+	{
+		cursorBack = getCurrentLineLength() - Math.max(0, column);
+	}
+
+	private int getCursorColumn()
+	{
+		return getCurrentLineLength() - cursorBack;
+	}
+
+	private void selectGraphicRendition(int[] params, int paramCount)
+	{
+		if (paramCount == 0) {
+			currentAttributes = TextAttributes.DEFAULT;
+			return;
+		}
+
+		int attr = currentAttributes;
+		for (int i = 0; i < paramCount; i++) {
+			int p = params[i];
+			if (p == 0) {
+				attr = TextAttributes.DEFAULT;
+			}
+			else if (p == 1) {
+				attr |= TextAttributes.BOLD;
+			}
+			else if (p == 4) {
+				attr |= TextAttributes.UNDERLINE;
+			}
+			else if (p == 7) {
+				attr |= TextAttributes.INVERSE;
+			}
+			else if (p == 22) {
+				attr &= ~TextAttributes.BOLD;
+			}
+			else if (p == 24) {
+				attr &= ~TextAttributes.UNDERLINE;
+			}
+			else if (p == 27) {
+				attr &= ~TextAttributes.INVERSE;
+			}
+			else if (p >= 30 && p <= 37) {
+				attr = TextAttributes.setForeground(attr, p - 30);
+			}
+			else if (p == 39) {
+				attr = TextAttributes.setForeground(attr, TextAttributes.COLOR_DEFAULT);
+			}
+			else if (p >= 40 && p <= 47) {
+				attr = TextAttributes.setBackground(attr, p - 40);
+			}
+			else if (p == 49) {
+				attr = TextAttributes.setBackground(attr, TextAttributes.COLOR_DEFAULT);
+			}
+			else if (p >= 90 && p <= 97) {
+				attr = TextAttributes.setForeground(attr, p - 90 + 8);
+			}
+			else if (p >= 100 && p <= 107) {
+				attr = TextAttributes.setBackground(attr, p - 100 + 8);
+			}
+			else if ((p == 38 || p == 48) && i + 1 < paramCount) {
+				/* Extended colors are either 5;index or 2;r;g;b */
+				int color = -1;
+				if (params[i + 1] == 5 && i + 2 < paramCount) {
+					color = Math.min(255, params[i + 2]);
+					i += 2;
+				}
+				else if (params[i + 1] == 2 && i + 4 < paramCount) {
+					color = TextAttributes.rgbToIndex(Math.min(255, params[i + 2]),
+							Math.min(255, params[i + 3]), Math.min(255, params[i + 4]));
+					i += 4;
+				}
+
+				if (color >= 0) {
+					if (p == 38) {
+						attr = TextAttributes.setForeground(attr, color);
+					}
+					else {
+						attr = TextAttributes.setBackground(attr, color);
+					}
+				}
+			}
+		}
+		currentAttributes = attr;
+	}
+
+	private void reset()
+	{
+		head = 0;
+		tail = 0;
+		amountPopulated = 0;
+		firstLine += lines.size() + 1;
+		lines.clear();
+		cursorBack = 0;
+		screenRow = 0;
+
+		if (scrollback != null) {
+			scrollback.reset(totalAppended, firstLine);
+		}
+	}
+
+	private class TerminalHandler implements AnsiParser.Handler {
+		@Override
+		public void print(char c) {
+			writeAtCursor(c);
+		}
+
+		@Override
+		public void execute(char c) {
+			switch (c)
+			{
+			case '\n':
+			case 0x0B:
+			case 0x0C:
+				/* Shells without a PTY only send LF, so it implies CR */
+				newLine();
+				break;
+			case '\r':
+				cursorBack = getCurrentLineLength();
+				break;
+			case '\b':
+				if (cursorBack < getCurrentLineLength()) {
+					cursorBack++;
+				}
+				break;
+			case '\t':
+				int column = getCursorColumn();
+				cursorBack -= (column / TAB_WIDTH + 1) * TAB_WIDTH - column;
+				break;
+			default:
+				/* BEL and everything else is ignored */
+				break;
+			}
+		}
+
+		@Override
+		public void csiDispatch(char finalChar, int intermediate, int[] params, int paramCount) {
+			/* Private modes like cursor visibility don't affect us */
+			if (intermediate != 0) {
+				return;
+			}
+
+			int p0 = (paramCount > 0) ? params[0] : 0;
+			int count = Math.max(1, p0);
+			int lineLength = getCurrentLineLength();
+
+			switch (finalChar)
+			{
+			case 'm':
+				selectGraphicRendition(params, paramCount);
+				break;
+			case 'K':
+				if (p0 == 0) {
+					/* Erase to the end of the line */
+					if (cursorBack > 0) {
+						truncate(cursorBack);
+						cursorBack = 0;
+					}
+				}
+				else if (p0 == 1) {
+					/* Erase from the start of the line through the cursor */
+					int erased = Math.min(lineLength, getCursorColumn() + 1);
+					for (int i = 0; i < erased; i++) {
+						int index = toIndex(amountPopulated - lineLength + i);
+						buffer[index] = ' ';
+						attributes[index] = currentAttributes;
+					}
+				}
+				else if (p0 == 2) {
+					/* Erase the whole line but stay in the same column */
+					int column = getCursorColumn();
+					truncate(lineLength);
+					cursorBack = -column;
+				}
+				break;
+			case 'J':
+				if (p0 == 0) {
+					/* Nothing is below us, so this just erases the rest of the line */
+					if (cursorBack > 0) {
+						truncate(cursorBack);
+						cursorBack = 0;
+					}
+				}
+				else if (p0 == 2) {
+					moveToRow(-1);
+				}
+				else if (p0 == 3) {
+					/* Clear scrollback */
+					reset();
+				}
+				break;
+			case 'C':
+				cursorBack -= count;
+				break;
+			case 'D':
+				cursorBack = Math.min(lineLength, cursorBack + count);
+				break;
+			case 'G':
+			case '`':
+				moveToColumn(count - 1);
+				break;
+			case 'H':
+			case 'f':
+				moveToRow(count - 1);
+				moveToColumn((paramCount > 1 ? Math.max(1, params[1]) : 1) - 1);
+				break;
+			case 'd':
+				int column = getCursorColumn();
+				moveToRow(count - 1);
+				moveToColumn(column);
+				break;
+			case 'B':
+			case 'E':
+				int oldColumn = getCursorColumn();
+				for (int i = 0; i < count; i++) {
+					newLine();
+				}
+				if (finalChar == 'B') {
+					moveToColumn(oldColumn);
+				}
+				break;
+			case 'F':
+				/* We can't move up, but we can honor the carriage return */
+				cursorBack = lineLength;
+				break;
+			case 'P':
+				/* Delete characters at the cursor, pulling the rest of the line left */
+				if (cursorBack > 0) {
+					int deleted = Math.min(count, cursorBack);
+					for (int i = amountPopulated - cursorBack; i + deleted < amountPopulated; i++) {
+						int dst = toIndex(i);
+						int src = toIndex(i + deleted);
+						buffer[dst] = buffer[src];
+						attributes[dst] = attributes[src];
+					}
+					truncate(deleted);
+					cursorBack -= deleted;
+				}
+				break;
+			case 'X':
+				/* Blank characters at the cursor without moving it */
+				for (int i = 0; i < Math.min(count, cursorBack); i++) {
+					int index = toIndex(amountPopulated - cursorBack + i);
+					buffer[index] = ' ';
+					attributes[index] = currentAttributes;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		@Override
+		public void escDispatch(char finalChar, int intermediate) {
+			if (finalChar == 'c' && intermediate == 0) {
+				/* Full reset */
+				currentAttributes = TextAttributes.DEFAULT;
+				cursorBack = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of characters kept in memory
+	 */
+	public int getCapacity()
+	{
+		return buffer.length;
+	}
+
+	/**
+	 * @return The number of characters in memory
+	 */
+	public synchronized int length()
+	{
+		return amountPopulated;
+	}
+
+	/**
+	 * @return The absolute number of the oldest line still available, on disk or in memory
+	 */
+	public synchronized int getFirstLine()
+	{
+		trimLines();
+		return hasScrollback() ? scrollback.getFirstNewline() : firstLine;
+	}
+
+	/**
+	 * @return The absolute number of the line currently being appended to
+	 */
+	public synchronized int getLastLine()
+	{
+		return firstLine + lines.size();
+	}
+
+	/**
+	 * @return The absolute offset of the oldest character still available, on disk or in memory
+	 */
+	public synchronized long getStartOffset()
+	{
+		return hasScrollback() ? scrollback.getStartOffset() : getMemoryStartOffset();
+	}
+
+	/**
+	 * @return The absolute offset that the next character appended will have
+	 */
+	public synchronized long getEndOffset()
+	{
+		return totalAppended;
+	}
+
+	/**
+	 * @return True if output is leaving memory faster than the scrollback can
+	 * write it, so the connection should hold back until it catches up. This
+	 * doesn't wait for the console's monitor, so it's safe on an event loop.
+	 */
+	public boolean isScrollbackBehind()
+	{
+		return spill != null && spill.isBehind();
+	}
+
+	/**
+	 * Changes the most characters the scrollback keeps on disk, deleting the
+	 * oldest of them if there are more than that already
+	 */
+	public synchronized void setScrollbackLimit(long maxChars)
+	{
+		if (scrollback != null) {
+			scrollback.setMaxChars(maxChars);
+		}
+	}
+
+	/**
+	 * @return The bytes of disk used by scrollback
+	 */
+	public synchronized long getScrollbackDiskUsage()
+	{
+		return scrollback != null ? scrollback.getDiskUsage() : 0;
+	}
+
+	/**
+	 * Finds the line containing an absolute offset in O(log n).
+	 * Offsets outside the buffer are clamped to the first or last line.
+	 */
+	public synchronized int getLineForOffset(long offset)
+	{
+		trimLines();
+		long start = getMemoryStartOffset();
+		if (offset < start && hasScrollback()) {
+			return scrollback.countNewlinesBefore(Math.max(offset, scrollback.getStartOffset()));
+		}
+		else if (offset <= start) {
+			return firstLine;
+		}
+		else if (offset >= totalAppended) {
+			return firstLine + lines.size();
+		}
+
+		/* A line contains the newline that ends it */
+		return firstLine + lines.countBefore((int)start, (int)offset);
+	}
+
+	/**
+	 * Finds the absolute offset where a line starts. This is O(1) for lines in
+	 * memory and O(log n) for lines on disk. The first line may have been
+	 * partially evicted, in which case this is the oldest offset available.
+	 * @return The offset, or -1 if the line isn't in the buffer
+	 */
+	public synchronized long getLineOffset(int line)
+	{
+		if (line < getFirstLine() || line > getLastLine()) {
+			return -1;
+		}
+		return getLineStart(line);
+	}
+
+	/**
+	 * @return The number of bytes used by the line index, which is at most
+	 * 4 bytes per character of capacity
+	 */
+	public synchronized int getLineIndexMemoryUsage()
+	{
+		return lines.getMemoryUsage();
+	}
+
+	/**
+	 * Copies the current in-memory console contents, oldest first, into dst.
+	 * The monitor is only held for the copy itself, so the caller can do
+	 * expensive work (like layout) on its copy without stalling append().
+	 * @param dst Destination array that should be at least {@link #getCapacity()} long
+	 * @return The number of characters copied into dst
+	 */
+	public synchronized int snapshot(char[] dst)
+	{
+		int count = Math.min(amountPopulated, dst.length);
+
+		/* Keep the newest data if the destination is too small */
+		copyOut(totalAppended - count, count, dst, null);
+		return count;
+	}
+
+	/**
+	 * Copies text by absolute offset, paging it in from disk if needed
+	 * @return The number of characters copied, which is less than count at the
+	 * end of the output, or -1 if offset is no longer available
+	 */
+	public synchronized int getText(long offset, char[] dst, int count)
+	{
+		if (offset < getStartOffset()) {
+			return -1;
+		}
+
+		count = (int)Math.max(0, Math.min(count, totalAppended - offset));
+		copyOut(offset, count, dst, null);
+		return count;
+	}
+
+	/**
+	 * Copies the lines ending with lastLine into the window, newest last. At most
+	 * maxLines lines and maxChars characters are copied. If the character limit
+	 * is hit, the oldest line copied is cut short at its start. Lines that have
+	 * been spilled to disk are paged back in as needed.
+	 * @return The number of lines copied
+	 */
+	public synchronized int fillWindow(LineWindow window, int lastLine, int maxLines, int maxChars)
+	{
+		window.ensureCapacity(maxLines, maxChars);
+		window.lineCount = 0;
+		window.clippedChars = 0;
+
+		int first = getFirstLine();
+		lastLine = Math.min(lastLine, getLastLine());
+		if (lastLine < first || maxLines <= 0) {
+			return 0;
+		}
+
+		/* The indexes tell us where each line starts, so no scanning is needed */
+		long lineEnd = getLineEnd(lastLine);
+		long limit = Math.max(getStartOffset(), lineEnd - maxChars);
+		int count = Math.min(maxLines, lastLine - first + 1);
+		long start = lineEnd;
+		for (int i = 0; i < count; i++) {
+			int line = lastLine - i;
+			long lineStart = getLineStart(line);
+			if (lineStart < limit) {
+				if (getLineEnd(line) < limit) {
+					/* None of this line fits */
+					count = i;
+					break;
+				}
+
+				/* Only the end of this line fits */
+				window.clippedChars = (int)(limit - lineStart);
+				lineStart = limit;
+				count = i + 1;
+			}
+			start = lineStart;
+		}
+
+		/* Copy the whole range out in one go and record where each line starts */
+		int[] starts = window.lineStarts;
+		copyOut(start, (int)(lineEnd - start), window.text, window.attributes);
+		for (int i = 0; i < count; i++) {
+			int line = lastLine - count + 1 + i;
+			starts[i] = (i == 0) ? 0 : (int)(getLineStart(line) - start);
+		}
+		starts[count] = (int)(lineEnd - start) + 1;
+
+		window.firstLine = lastLine - count + 1;
+		window.lineCount = count;
+		window.startOffset = start;
+		return count;
+	}
+
+	/**
+	 * Deletes any scrollback files. The output in memory stays readable.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if (scrollback != null) {
+			scrollback.close();
+			scrollback = null;
+		}
+	}
+
+	private boolean hasScrollback()
+	{
+		return scrollback != null && !scrollback.isEmpty();
+	}
+
+	private long getMemoryStartOffset()
+	{
+		return totalAppended - amountPopulated;
+	}
+
+	/* Absolute offset of a newline, which must be on disk or in memory */
+	private long getNewlineOffset(int newline)
+	{
+		if (newline < firstLine) {
+			return scrollback.getNewlineOffset(newline);
+		}
+
+		/* The index holds the low bits of each offset, so work relative to the ring */
+		long start = getMemoryStartOffset();
+		return start + (lines.get(newline - firstLine) - (int)start);
+	}
+
+	/* Absolute offset of the first character of a line */
+	private long getLineStart(int line)
+	{
+		if (line <= getFirstLine()) {
+			return getStartOffset();
+		}
+		return getNewlineOffset(line - 1) + 1;
+	}
+
+	/* Absolute offset just past the last character of a line, excluding its newline */
+	private long getLineEnd(int line)
+	{
+		if (line == firstLine + lines.size()) {
+			return totalAppended;
+		}
+		return getNewlineOffset(line);
+	}
+
+	/* Copies characters by absolute offset, from disk and then memory */
+	private void copyOut(long offset, int count, char[] dst, int[] attrDst)
+	{
+		long memoryStart = getMemoryStartOffset();
+		int fromDisk = 0;
+		if (offset < memoryStart) {
+			fromDisk = (int)Math.min(count, memoryStart - offset);
+			scrollback.read(offset, fromDisk, dst, attrDst, 0);
+		}
+
+		int remaining = count - fromDisk;
+		if (remaining == 0) {
+			return;
+		}
+
+		int start = toIndex((int)(offset + fromDisk - memoryStart));
+		int firstRun = Math.min(remaining, buffer.length - start);
+		System.arraycopy(buffer, start, dst, fromDisk, firstRun);
+		System.arraycopy(buffer, 0, dst, fromDisk + firstRun, remaining - firstRun);
+
+		if (attrDst != null) {
+			System.arraycopy(attributes, start, attrDst, fromDisk, firstRun);
+			System.arraycopy(attributes, 0, attrDst, fromDisk + firstRun, remaining - firstRun);
+		}
+	}
+
+	/**
+	 * A reusable copy of a range of console lines for rendering
+	 */
+	public static class LineWindow {
+		public char[] text = new char[0];
+
+		/* The TextAttributes of each character in text */
+		public int[] attributes = new int[0];
+
+		/* Line i spans text[lineStarts[i]] up to lineStarts[i+1]-1, which excludes the newline */
+		public int[] lineStarts = new int[1];
+
+		public int firstLine;
+		public int lineCount;
+
+		/* The absolute offset of text[0] */
+		public long startOffset;
+
+		/* Characters missing from the start of the first line */
+		public int clippedChars;
+
+		public int getLineLength(int i) {
+			return lineStarts[i+1] - 1 - lineStarts[i];
+		}
+
+		void ensureCapacity(int lines, int chars) {
+			if (lineStarts.length < lines + 1) {
+				lineStarts = new int[lines + 1];
+			}
+			if (text.length < chars) {
+				text = new char[chars];
+				attributes = new int[chars];
+			}
+		}
+	}
+}
@@ -0,0 +1,404 @@
+package com.cgutman.androidremotedebugger.console;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds every match of a query in a console, including its scrollback, and
+ * keeps the matches current as output arrives and is evicted.
+ *
+ * Scanning runs on an executor, never on the caller's thread. Only the output
+ * that arrived since the last scan is read, since complete lines never change.
+ * The line still being written can be edited by the terminal, so it's scanned
+ * again each time. Matches never span lines.
+ *
+ * Plain queries use Boyer-Moore-Horspool. Regular expressions are matched one
+ * line at a time, so ^ and $ match at line boundaries.
+ */
+public class ConsoleSearch {
+	/* Characters read from the console at once */
+	private static final int CHUNK_CHARS = 64 * 1024;
+
+	public interface Listener {
+		/**
+		 * Called on the search's executor after the first scan, and after any
+		 * later scan that finds or drops matches
+		 */
+		void onMatchesUpdated(ConsoleSearch search);
+	}
+
+	private final ConsoleBuffer console;
+	private final String query;
+	private final Finder finder;
+	private final Executor executor;
+	private final Listener listener;
+
+	/* Matches, oldest first, from first to first + count */
+	private long[] offsets = new long[64];
+	private int[] lengths = new int[64];
+	private int first;
+	private int count;
+
+	/* Matches before this index are in complete lines, which won't change */
+	private int completeCount;
+
+	/* Only touched by scans */
+	private final char[] chunk = new char[CHUNK_CHARS];
+	private long scannedTo = -1;
+
+	private volatile boolean cancelled;
+	private final AtomicBoolean updatePending = new AtomicBoolean();
+
+	private final Runnable scanTask = new Runnable() {
+		@Override
+		public void run() {
+			updatePending.set(false);
+			if (!cancelled && scan()) {
+				listener.onMatchesUpdated(ConsoleSearch.this);
+			}
+		}
+	};
+
+	/**
+	 * Creates a search and starts the first scan
+	 * @param regex True if the query is a regular expression
+	 * @throws java.util.regex.PatternSyntaxException If regex is true and the query isn't valid
+	 */
+	public ConsoleSearch(ConsoleBuffer console, String query, boolean regex, boolean ignoreCase,
+			Executor executor, Listener listener) {
+		if (query.isEmpty()) {
+			throw new IllegalArgumentException("Empty query");
+		}
+
+		this.console = console;
+		this.query = query;
+		this.finder = regex ? new RegexFinder(query, ignoreCase) : new LiteralFinder(query, ignoreCase);
+		this.executor = executor;
+		this.listener = listener;
+
+		update();
+	}
+
+	public ConsoleBuffer getConsole() {
+		return console;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Scans any output that arrived since the last scan. May be called from any
+	 * thread, as often as output arrives, since requests that pile up while a
+	 * scan is running are merged.
+	 */
+	public void update() {
+		if (!cancelled && updatePending.compareAndSet(false, true)) {
+			executor.execute(scanTask);
+		}
+	}
+
+	/**
+	 * Stops scanning. No more updates are delivered.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public synchronized int getMatchCount() {
+		return count;
+	}
+
+	/**
+	 * @return The absolute console offset of a match
+	 */
+	public synchronized long getMatchOffset(int index) {
+		checkIndex(index);
+		return offsets[first + index];
+	}
+
+	public synchronized int getMatchLength(int index) {
+		checkIndex(index);
+		return lengths[first + index];
+	}
+
+	/**
+	 * @return The index of the last match that starts before offset, or -1 if there isn't one
+	 */
+	public synchronized int findBefore(long offset) {
+		return search(offset) - 1;
+	}
+
+	/**
+	 * @return The index of the first match that starts after offset, or -1 if there isn't one
+	 */
+	public synchronized int findAfter(long offset) {
+		int index = search(offset + 1);
+		return (index < count) ? index : -1;
+	}
+
+	/* The index of the first match at or after offset */
+	private int search(long offset) {
+		int index = Arrays.binarySearch(offsets, first, first + count, offset);
+		if (index < 0) {
+			return -index - 1 - first;
+		}
+
+		/* Offsets are unique, so this is the only match there */
+		return index - first;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Match "+index+" of "+count);
+		}
+	}
+
+	/* Runs on the executor. Returns true if the matches changed. */
+	private boolean scan() {
+		/* The first scan is reported even if it found nothing */
+		boolean changed = (scannedTo < 0);
+		long start = console.getStartOffset();
+		synchronized (this) {
+			changed |= dropMatches(start);
+		}
+
+		/* Everything from the start of the line being written on is scanned again */
+		long position = Math.max(scannedTo, start);
+		while (!cancelled) {
+			int read = console.getText(position, chunk, CHUNK_CHARS);
+			if (read < 0) {
+				/* What we were about to read was evicted, so skip past it */
+				position = console.getStartOffset();
+				synchronized (this) {
+					changed |= dropMatches(position);
+				}
+				continue;
+			}
+
+			boolean atEnd = read < CHUNK_CHARS;
+			int complete = lastNewline(chunk, read) + 1;
+			int end = atEnd ? read : complete;
+			if (complete == 0 && !atEnd) {
+				/* A line longer than a chunk. Take what we have, but leave matches that
+				 * start in the last few characters for the next chunk, which starts
+				 * there. Those that start earlier can run to the end of this one. */
+				complete = Math.max(1, read - finder.getOverlap());
+				end = read;
+			}
+
+			synchronized (this) {
+				/* Forget the matches from the last scan of the line being written */
+				if (count != completeCount) {
+					count = completeCount;
+					changed = true;
+				}
+
+				changed |= findMatches(position, end, complete, atEnd ? read : complete);
+			}
+
+			position += complete;
+			scannedTo = position;
+			if (atEnd) {
+				break;
+			}
+		}
+
+		return changed;
+	}
+
+	/* Drops matches before an offset, returning true if any were dropped */
+	private boolean dropMatches(long offset) {
+		int dropped = 0;
+		while (dropped < count && offsets[first + dropped] < offset) {
+			dropped++;
+		}
+
+		first += dropped;
+		count -= dropped;
+		completeCount = Math.max(0, completeCount - dropped);
+		return dropped != 0;
+	}
+
+	/* Finds matches in chunk[0..end) that start before startLimit, where those
+	 * before complete are in complete lines */
+	private boolean findMatches(long chunkOffset, int end, int complete, int startLimit) {
+		boolean found = false;
+		int from = 0;
+		int match;
+		while ((match = finder.find(chunk, from, end)) >= 0 && match < startLimit) {
+			addMatch(chunkOffset + match, finder.getMatchLength());
+			if (match < complete) {
+				completeCount = count;
+			}
+			from = match + Math.max(1, finder.getMatchLength());
+			found = true;
+		}
+		return found;
+	}
+
+	private void addMatch(long offset, int length) {
+		if (first + count == offsets.length) {
+			if (count < offsets.length / 2) {
+				/* Plenty of room once the dropped matches are cleared out */
+				System.arraycopy(offsets, first, offsets, 0, count);
+				System.arraycopy(lengths, first, lengths, 0, count);
+			}
+			else {
+				long[] newOffsets = new long[offsets.length * 2];
+				int[] newLengths = new int[offsets.length * 2];
+				System.arraycopy(offsets, first, newOffsets, 0, count);
+				System.arraycopy(lengths, first, newLengths, 0, count);
+				offsets = newOffsets;
+				lengths = newLengths;
+			}
+			first = 0;
+		}
+
+		offsets[first + count] = offset;
+		lengths[first + count] = length;
+		count++;
+	}
+
+	private static int lastNewline(char[] text, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			if (text[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static abstract class Finder {
+		/**
+		 * @return The start of the next match in text[from..to), or -1
+		 */
+		abstract int find(char[] text, int from, int to);
+
+		/**
+		 * @return The length of the last match found
+		 */
+		abstract int getMatchLength();
+
+		/**
+		 * @return How many characters at the end of a chunk a match could start in
+		 * without being found until the next chunk
+		 */
+		abstract int getOverlap();
+	}
+
+	/* Boyer-Moore-Horspool, with the skip table indexed by the low byte of each character */
+	private static class LiteralFinder extends Finder {
+		private final char[] pattern;
+		private final boolean ignoreCase;
+		private final int[] skip = new int[256];
+
+		LiteralFinder(String query, boolean ignoreCase) {
+			this.ignoreCase = ignoreCase;
+			/* Folded a character at a time like the text, since String.toLowerCase()
+			 * depends on the locale and can change the length */
+			this.pattern = query.toCharArray();
+			for (int i = 0; ignoreCase && i < pattern.length; i++) {
+				pattern[i] = Character.toLowerCase(pattern[i]);
+			}
+
+			/* Characters sharing a low byte share an entry, so keep the smallest skip */
+			int last = pattern.length - 1;
+			Arrays.fill(skip, pattern.length);
+			for (int i = 0; i < last; i++) {
+				skip[pattern[i] & 0xFF] = last - i;
+			}
+		}
+
+		private char fold(char c) {
+			return ignoreCase ? Character.toLowerCase(c) : c;
+		}
+
+		@Override
+		int find(char[] text, int from, int to) {
+			int last = pattern.length - 1;
+			for (int i = from; i + last < to; ) {
+				char c = fold(text[i + last]);
+				if (c == pattern[last]) {
+					int j = last - 1;
+					while (j >= 0 && fold(text[i + j]) == pattern[j]) {
+						j--;
+					}
+					if (j < 0) {
+						return i;
+					}
+				}
+				i += skip[c & 0xFF];
+			}
+			return -1;
+		}
+
+		@Override
+		int getMatchLength() {
+			return pattern.length;
+		}
+
+		@Override
+		int getOverlap() {
+			return pattern.length - 1;
+		}
+	}
+
+	private static class RegexFinder extends Finder {
+		private final Matcher matcher;
+		private char[] text;
+		private int textLength;
+		private int matchLength;
+
+		RegexFinder(String query, boolean ignoreCase) {
+			int flags = Pattern.MULTILINE | (ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+			matcher = Pattern.compile(query, flags).matcher("");
+
+			/* Each line is a region, but ^, $ and lookarounds should see the text around it */
+			matcher.useAnchoringBounds(false);
+			matcher.useTransparentBounds(true);
+		}
+
+		@Override
+		int find(char[] text, int from, int to) {
+			if (this.text != text || textLength != to) {
+				this.text = text;
+				textLength = to;
+				matcher.reset(CharBuffer.wrap(text, 0, to));
+			}
+
+			while (from < to) {
+				int lineEnd = from;
+				while (lineEnd < to && text[lineEnd] != '\n') {
+					lineEnd++;
+				}
+
+				matcher.region(from, lineEnd);
+				while (matcher.find()) {
+					/* Matching nothing isn't useful to highlight */
+					if (matcher.end() > matcher.start()) {
+						matchLength = matcher.end() - matcher.start();
+						return matcher.start();
+					}
+				}
+				from = lineEnd + 1;
+			}
+			return -1;
+		}
+
+		@Override
+		int getMatchLength() {
+			return matchLength;
+		}
+
+		@Override
+		int getOverlap() {
+			/* Regex matches in lines longer than a chunk may be missed at its end */
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.cgutman.androidremotedebugger.console;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Finds any of a set of keywords in a stream of UTF-8 bytes at once, using an
+ * Aho-Corasick automaton. The automaton is compiled into a table with one
+ * entry per state and byte class, so each byte costs one lookup no matter how
+ * many keywords there are. Bytes that appear in no keyword share a class,
+ * which keeps the table small. A state is the offset of its row in the
+ * table, so following a transition doesn't need a multiply.
+ */
+public class KeywordMatcher {
+	/** The state to start each search in */
+	public static final int START = 0;
+
+	private final int[] classes = new int[256];
+	private final int classCount;
+	private final int stateCount;
+	private final int[] transitions;
+	/* Indexed by state, so only the first entry in each row is used */
+	private final boolean[] matches;
+
+	/**
+	 * @param ignoreCase True to fold ASCII letters, which covers logcat tags and levels
+	 */
+	public KeywordMatcher(Collection<String> keywords, boolean ignoreCase) {
+		ArrayList<byte[]> encoded = new ArrayList<byte[]>();
+		for (String keyword : keywords) {
+			if (!keyword.isEmpty()) {
+				encoded.add(encode(ignoreCase ? lowerAscii(keyword) : keyword));
+			}
+		}
+
+		/* Class 0 is every byte that isn't in a keyword */
+		int nextClass = 1;
+		for (byte[] keyword : encoded) {
+			for (byte b : keyword) {
+				if (classes[b & 0xFF] == 0) {
+					classes[b & 0xFF] = nextClass++;
+				}
+			}
+		}
+		if (ignoreCase) {
+			for (int c = 'A'; c <= 'Z'; c++) {
+				classes[c] = classes[c - 'A' + 'a'];
+			}
+		}
+		classCount = nextClass;
+
+		/* Build the trie, with -1 for missing edges */
+		int maxStates = 1;
+		for (byte[] keyword : encoded) {
+			maxStates += keyword.length;
+		}
+		int[] trie = new int[maxStates * classCount];
+		Arrays.fill(trie, -1);
+		boolean[] terminal = new boolean[maxStates];
+		int states = 1;
+		for (byte[] keyword : encoded) {
+			int state = START;
+			for (byte b : keyword) {
+				int edge = state * classCount + classes[b & 0xFF];
+				if (trie[edge] < 0) {
+					trie[edge] = states++;
+				}
+				state = trie[edge];
+			}
+			terminal[state] = true;
+		}
+
+		/* Fill in the missing edges with where the failure links lead, breadth first
+		 * so each state's failure target is finished before the state itself */
+		transitions = new int[states * classCount];
+		boolean[] stateMatches = Arrays.copyOf(terminal, states);
+		int[] failure = new int[states];
+		int[] queue = new int[states];
+		int head = 0, tail = 0;
+
+		for (int c = 0; c < classCount; c++) {
+			int child = trie[c];
+			if (child < 0) {
+				transitions[c] = START;
+			}
+			else {
+				transitions[c] = child;
+				failure[child] = START;
+				queue[tail++] = child;
+			}
+		}
+
+		while (head < tail) {
+			int state = queue[head++];
+			stateMatches[state] |= stateMatches[failure[state]];
+			for (int c = 0; c < classCount; c++) {
+				int child = trie[state * classCount + c];
+				int fallback = transitions[failure[state] * classCount + c];
+				if (child < 0) {
+					transitions[state * classCount + c] = fallback;
+				}
+				else {
+					transitions[state * classCount + c] = child;
+					failure[child] = fallback;
+					queue[tail++] = child;
+				}
+			}
+		}
+
+		/* Turn state numbers into row offsets */
+		matches = new boolean[transitions.length];
+		for (int i = 0; i < transitions.length; i++) {
+			transitions[i] *= classCount;
+		}
+		for (int state = 0; state < states; state++) {
+			matches[state * classCount] = stateMatches[state];
+		}
+		stateCount = states;
+	}
+
+	/**
+	 * @return The state after reading a byte
+	 */
+	public int next(int state, byte b) {
+		return transitions[state + classes[b & 0xFF]];
+	}
+
+	/**
+	 * @return True if a keyword ends at the byte that led to this state
+	 */
+	public boolean isMatch(int state) {
+		return matches[state];
+	}
+
+	/**
+	 * @return The number of states, which is at most one more than the total length of the keywords
+	 */
+	public int getStateCount() {
+		return stateCount;
+	}
+
+	/**
+	 * @return True if any keyword appears in the bytes
+	 */
+	public boolean contains(byte[] data, int offset, int length) {
+		int state = START;
+		for (int i = offset; i < offset + length; i++) {
+			state = next(state, data[i]);
+			if (matches[state]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Only A-Z, like the matcher. String.toLowerCase() depends on the locale,
+	 * so "ID" would become "\u0131d" on a Turkish device and never match. */
+	private static String lowerAscii(String keyword) {
+		char[] chars = keyword.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			if (chars[i] >= 'A' && chars[i] <= 'Z') {
+				chars[i] += 'a' - 'A';
+			}
+		}
+		return new String(chars);
+	}
+
+	private static byte[] encode(String keyword) {
+		try {
+			return keyword.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
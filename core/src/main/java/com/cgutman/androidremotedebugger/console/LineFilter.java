@@ -0,0 +1,310 @@
+package com.cgutman.androidremotedebugger.console;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps or drops whole lines of output, like grep. A line is kept if it matches
+ * no exclude rule and, when there are include rules, at least one of them.
+ * Rules are literal keywords, all matched in a single pass by a
+ * {@link KeywordMatcher}, or regular expressions.
+ *
+ * Lines are decided as soon as possible. A line that hits an exclude keyword
+ * is dropped on the spot, and with no exclude rules a line that hits an
+ * include keyword is kept on the spot. Kept output goes to the sink straight
+ * out of the packet it arrived in. Only a line that's still undecided at the
+ * end of a packet is copied, and it's held until its newline arrives.
+ */
+public class LineFilter implements OutputFilter {
+	/* An undecided line longer than this is decided on what's arrived so far */
+	private static final int MAX_HELD_BYTES = 16 * 1024;
+
+	private static final int UNDECIDED = 0;
+	private static final int KEEP = 1;
+	private static final int DROP = 2;
+
+	private final KeywordMatcher includeKeywords;
+	private final KeywordMatcher excludeKeywords;
+	private final Pattern includePattern;
+	private final Pattern excludePattern;
+	private final boolean hasIncludes;
+
+	/* The current line */
+	private int decision;
+	private int includeState = KeywordMatcher.START;
+	private int excludeState = KeywordMatcher.START;
+	private boolean includeMatched;
+	private byte[] held = new byte[256];
+	private int heldLength;
+
+	private volatile long linesKept;
+	private volatile long linesDropped;
+	private volatile long bytesDropped;
+
+	/**
+	 * Any of the rules may be null or empty
+	 * @param ignoreCase Applies to the keywords. Patterns use their own flags.
+	 */
+	public LineFilter(List<String> includeKeywords, List<String> excludeKeywords,
+			Pattern includePattern, Pattern excludePattern, boolean ignoreCase) {
+		this.includeKeywords = (includeKeywords != null && !includeKeywords.isEmpty()) ?
+				new KeywordMatcher(includeKeywords, ignoreCase) : null;
+		this.excludeKeywords = (excludeKeywords != null && !excludeKeywords.isEmpty()) ?
+				new KeywordMatcher(excludeKeywords, ignoreCase) : null;
+		this.includePattern = includePattern;
+		this.excludePattern = excludePattern;
+		this.hasIncludes = this.includeKeywords != null || includePattern != null;
+	}
+
+	/**
+	 * Builds a filter from a space separated list of rules. A rule is a keyword
+	 * to include, or a /regex/ to include, and either kind is an exclude rule
+	 * if it starts with a -. Keywords ignore case. For example:
+	 * "ActivityManager WindowManager -/\sV\s/"
+	 * @throws java.util.regex.PatternSyntaxException If a regex isn't valid
+	 * @throws IllegalArgumentException If there are no rules
+	 */
+	public static LineFilter parse(String rules) {
+		ArrayList<String> includeKeywords = new ArrayList<String>();
+		ArrayList<String> excludeKeywords = new ArrayList<String>();
+		StringBuilder includeRegex = new StringBuilder();
+		StringBuilder excludeRegex = new StringBuilder();
+
+		for (String rule : rules.trim().split("\\s+")) {
+			boolean exclude = rule.startsWith("-") && rule.length() > 1;
+			if (exclude) {
+				rule = rule.substring(1);
+			}
+
+			if (rule.length() > 2 && rule.startsWith("/") && rule.endsWith("/")) {
+				/* Several patterns of one kind become a single alternation */
+				StringBuilder regex = exclude ? excludeRegex : includeRegex;
+				if (regex.length() != 0) {
+					regex.append('|');
+				}
+				regex.append("(?:").append(rule, 1, rule.length() - 1).append(')');
+			}
+			else if (!rule.isEmpty()) {
+				(exclude ? excludeKeywords : includeKeywords).add(rule);
+			}
+		}
+
+		if (includeKeywords.isEmpty() && excludeKeywords.isEmpty() &&
+				includeRegex.length() == 0 && excludeRegex.length() == 0) {
+			throw new IllegalArgumentException("No filter rules");
+		}
+
+		return new LineFilter(includeKeywords, excludeKeywords,
+				includeRegex.length() != 0 ? Pattern.compile(includeRegex.toString()) : null,
+				excludeRegex.length() != 0 ? Pattern.compile(excludeRegex.toString()) : null,
+				true);
+	}
+
+	public long getLinesKept() {
+		return linesKept;
+	}
+
+	public long getLinesDropped() {
+		return linesDropped;
+	}
+
+	public long getBytesDropped() {
+		return bytesDropped;
+	}
+
+	@Override
+	public void process(byte[] data, int offset, int length, Sink sink) {
+		int end = offset + length;
+
+		/* Where the current line starts in this packet, and where the kept
+		 * output that hasn't been passed on yet starts, or -1 if there isn't any */
+		int lineStart = offset;
+		int keptStart = (decision == KEEP) ? offset : -1;
+
+		/* The totals are volatile, so they're only written once per packet */
+		int kept = 0;
+		int dropped = 0;
+
+		int i = offset;
+		while (i < end) {
+			if (decision == UNDECIDED) {
+				i = scan(data, i, end);
+				if (decision == KEEP) {
+					keptStart = keep(data, keptStart, lineStart, sink);
+				}
+			}
+			else {
+				/* Decided lines just need their end found */
+				while (i < end && data[i] != '\n') {
+					i++;
+				}
+			}
+
+			if (i == end || data[i] != '\n') {
+				continue;
+			}
+
+			if (decision == UNDECIDED) {
+				decision = decideAtEnd(data, lineStart, i - lineStart);
+				if (decision == KEEP) {
+					keptStart = keep(data, keptStart, lineStart, sink);
+				}
+			}
+
+			if (decision == KEEP) {
+				kept++;
+			}
+			else {
+				keptStart = drop(data, keptStart, lineStart, i + 1 - lineStart, sink);
+				dropped++;
+			}
+
+			startLine();
+			lineStart = ++i;
+		}
+
+		/* Deal with the part of the line that's in this packet */
+		if (decision == UNDECIDED && heldLength + end - lineStart > MAX_HELD_BYTES) {
+			decision = decideAtEnd(data, lineStart, end - lineStart);
+			if (decision == KEEP) {
+				keptStart = keep(data, keptStart, lineStart, sink);
+			}
+		}
+		if (decision == UNDECIDED) {
+			hold(data, lineStart, end - lineStart);
+		}
+		else if (decision == DROP) {
+			keptStart = drop(data, keptStart, lineStart, end - lineStart, sink);
+		}
+
+		int keptEnd = (decision == KEEP) ? end : lineStart;
+		if (keptStart >= 0 && keptStart < keptEnd) {
+			sink.append(data, keptStart, keptEnd - keptStart);
+		}
+
+		if (kept != 0) {
+			linesKept += kept;
+		}
+		if (dropped != 0) {
+			linesDropped += dropped;
+		}
+	}
+
+	/* Feeds the keyword matchers until the line is decided, returning the index
+	 * after the byte that decided it, or of the newline or end if it's still undecided */
+	private int scan(byte[] data, int i, int end) {
+		KeywordMatcher include = includeKeywords;
+		KeywordMatcher exclude = excludeKeywords;
+		int includeState = this.includeState;
+		int excludeState = this.excludeState;
+		boolean includeMatched = this.includeMatched;
+
+		/* An exclude rule could still turn up later in the line */
+		boolean keepOnInclude = (exclude == null && excludePattern == null);
+
+		for (; i < end; i++) {
+			byte b = data[i];
+			if (b == '\n') {
+				break;
+			}
+
+			if (exclude != null) {
+				excludeState = exclude.next(excludeState, b);
+				if (exclude.isMatch(excludeState)) {
+					decision = DROP;
+					i++;
+					break;
+				}
+			}
+
+			if (include != null && !includeMatched) {
+				includeState = include.next(includeState, b);
+				if (include.isMatch(includeState)) {
+					includeMatched = true;
+					if (keepOnInclude) {
+						decision = KEEP;
+						i++;
+						break;
+					}
+				}
+			}
+		}
+
+		this.includeState = includeState;
+		this.excludeState = excludeState;
+		this.includeMatched = includeMatched;
+		return i;
+	}
+
+	/* Decides a line from everything held plus data[offset..offset+length) */
+	private int decideAtEnd(byte[] data, int offset, int length) {
+		if (includePattern == null && excludePattern == null) {
+			return (includeMatched || !hasIncludes) ? KEEP : DROP;
+		}
+
+		/* Only borrow the held buffer, since the caller still has this part of the line */
+		hold(data, offset, length);
+		String line = decode(held, heldLength);
+		heldLength -= length;
+
+		if (excludePattern != null && excludePattern.matcher(line).find()) {
+			return DROP;
+		}
+		if (!hasIncludes || includeMatched) {
+			return KEEP;
+		}
+		return (includePattern != null && includePattern.matcher(line).find()) ? KEEP : DROP;
+	}
+
+	/* A line was kept. Passes on anything held for it, returning where kept output now starts. */
+	private int keep(byte[] data, int keptStart, int lineStart, Sink sink) {
+		if (heldLength > 0) {
+			/* The held part goes out after any kept lines before it */
+			if (keptStart >= 0 && keptStart < lineStart) {
+				sink.append(data, keptStart, lineStart - keptStart);
+			}
+			sink.append(held, 0, heldLength);
+			heldLength = 0;
+			return lineStart;
+		}
+		return (keptStart >= 0) ? keptStart : lineStart;
+	}
+
+	/* A line was dropped. Passes on the kept output before it, returning -1 since none follows yet. */
+	private int drop(byte[] data, int keptStart, int lineStart, int length, Sink sink) {
+		if (keptStart >= 0 && keptStart < lineStart) {
+			sink.append(data, keptStart, lineStart - keptStart);
+		}
+		bytesDropped += heldLength + length;
+		heldLength = 0;
+		return -1;
+	}
+
+	private void startLine() {
+		decision = UNDECIDED;
+		includeState = KeywordMatcher.START;
+		excludeState = KeywordMatcher.START;
+		includeMatched = false;
+		heldLength = 0;
+	}
+
+	private void hold(byte[] data, int offset, int length) {
+		if (heldLength + length > held.length) {
+			byte[] larger = new byte[Math.max(held.length * 2, heldLength + length)];
+			System.arraycopy(held, 0, larger, 0, heldLength);
+			held = larger;
+		}
+		System.arraycopy(data, offset, held, heldLength, length);
+		heldLength += length;
+	}
+
+	private static String decode(byte[] data, int length) {
+		try {
+			return new String(data, 0, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
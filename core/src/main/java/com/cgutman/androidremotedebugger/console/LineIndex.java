@@ -0,0 +1,130 @@
+package com.cgutman.androidremotedebugger.console;
+
+/**
+ * Positions of the newlines held in a ConsoleBuffer, oldest first. The positions
+ * live in a circular int[] so appending a newline and dropping an evicted one are
+ * both O(1). Positions are the low 32 bits of the console's absolute character
+ * offset; they're always compared relative to the buffer's head so wrapping
+ * doesn't break ordering as long as the buffer is smaller than 2GB.
+ */
+public class LineIndex {
+	private static final int INITIAL_SIZE = 64;
+
+	private int[] newlines;
+	private int head;
+	private int count;
+	private final int maxSize;
+
+	/**
+	 * @param maxSize The most newlines that can ever be tracked at once. For a
+	 * console this is its capacity, which bounds the index at 4 bytes per char.
+	 */
+	public LineIndex(int maxSize) {
+		this.maxSize = maxSize;
+		this.newlines = new int[Math.max(1, Math.min(INITIAL_SIZE, maxSize))];
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return The number of bytes used by the index storage
+	 */
+	public int getMemoryUsage() {
+		return newlines.length * 4;
+	}
+
+	public void add(int position) {
+		if (count == newlines.length) {
+			grow();
+		}
+
+		int slot = head + count;
+		if (slot >= newlines.length) {
+			slot -= newlines.length;
+		}
+		newlines[slot] = position;
+		count++;
+	}
+
+	/**
+	 * Drops the oldest newline after it has been evicted from the buffer
+	 */
+	public void removeFirst() {
+		if (++head == newlines.length) {
+			head = 0;
+		}
+		count--;
+	}
+
+	/**
+	 * Drops the newlines before a position, as removeFirst() would one at a
+	 * time. This costs nothing for the characters evicted between them.
+	 * @param base The position of the oldest character in the buffer
+	 * @return The number of newlines dropped
+	 */
+	public int removeBefore(int base, int position) {
+		int target = position - base;
+		int removed = 0;
+		while (count > 0 && newlines[head] - base < target) {
+			removeFirst();
+			removed++;
+		}
+		return removed;
+	}
+
+	public void clear() {
+		head = 0;
+		count = 0;
+	}
+
+	/**
+	 * @return The position of the i-th oldest newline
+	 */
+	public int get(int i) {
+		int slot = head + i;
+		if (slot >= newlines.length) {
+			slot -= newlines.length;
+		}
+		return newlines[slot];
+	}
+
+	/**
+	 * Counts the newlines that come before position using a binary search.
+	 * @param base The position of the oldest character in the buffer
+	 */
+	public int countBefore(int base, int position) {
+		int target = position - base;
+		int low = 0;
+		int high = count;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (get(mid) - base < target) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	private void grow() {
+		int newSize = Math.min(maxSize, newlines.length * 2);
+		if (newSize <= newlines.length) {
+			/* Can't happen unless the owner tracks more newlines than it can hold */
+			throw new IllegalStateException("Line index is full");
+		}
+
+		int[] newArray = new int[newSize];
+		int firstRun = Math.min(count, newlines.length - head);
+		System.arraycopy(newlines, head, newArray, 0, firstRun);
+		System.arraycopy(newlines, 0, newArray, firstRun, count - firstRun);
+
+		newlines = newArray;
+		head = 0;
+	}
+}
@@ -0,0 +1,159 @@
+package com.cgutman.androidremotedebugger.console;
+
+/**
+ * Structured logcat mode. Each `logcat -v threadtime` line is parsed into a
+ * {@link LogcatStore}, and only the lines the current {@link LogcatQuery}
+ * shows are passed on to the console. Changing the query redraws the console
+ * from the store, so lines that were hidden before can be shown again
+ * without asking the device for them. Anything that isn't a logcat line,
+ * like a prompt, is passed on as it is.
+ */
+public class LogcatFilter implements OutputFilter {
+	/* A line that's still this long without a newline is passed on as it is */
+	private static final int MAX_LINE_BYTES = 64 * 1024;
+
+	/* What every threadtime line starts with, where 0 stands for a digit */
+	private static final byte[] PREFIX = {
+		'0', '0', '-', '0', '0', ' ', '0', '0', ':', '0', '0', ':', '0', '0', '.', '0', '0', '0', ' '
+	};
+
+	/* Clears the screen and scrollback, as the clear command does */
+	private static final byte[] CLEAR = {0x1B, '[', 'H', 0x1B, '[', '2', 'J', 0x1B, '[', '3', 'J'};
+
+	private final LogcatStore store;
+	private volatile LogcatQuery query = LogcatQuery.ALL;
+
+	/* The start of a line that might be from logcat, waiting for its newline */
+	private byte[] held = new byte[256];
+	private int heldLength;
+
+	/* True if the rest of the current line is passed on as it arrives */
+	private boolean passThrough;
+
+	/* Output to pass on that hasn't been yet, as a range of the current packet */
+	private byte[] runData;
+	private int runStart;
+	private int runEnd;
+
+	public LogcatFilter(LogcatStore store) {
+		this.store = store;
+	}
+
+	public LogcatStore getStore() {
+		return store;
+	}
+
+	public LogcatQuery getQuery() {
+		return query;
+	}
+
+	/**
+	 * Shows only the lines a query matches, replacing what's in the console
+	 * with the newest of them
+	 * @param maxBytes How much output the console can hold
+	 * @return The number of lines now in the console
+	 */
+	public synchronized int setQuery(LogcatQuery query, int maxBytes, Sink sink) {
+		this.query = query;
+		sink.append(CLEAR, 0, CLEAR.length);
+		return store.render(query, maxBytes, sink);
+	}
+
+	@Override
+	public synchronized void process(byte[] data, int offset, int length, Sink sink) {
+		int end = offset + length;
+		int pos = offset;
+		runData = data;
+		runStart = runEnd = offset;
+
+		while (pos < end) {
+			int newline = pos;
+			while (newline < end && data[newline] != '\n') {
+				newline++;
+			}
+			if (newline == end) {
+				break;
+			}
+
+			int next = newline + 1;
+			if (passThrough) {
+				passThrough = false;
+				pass(pos, next - pos, sink);
+			}
+			else if (heldLength != 0) {
+				/* The line started in an earlier packet */
+				hold(data, pos, next - pos);
+				if (showLine(held, 0, heldLength)) {
+					flush(sink);
+					sink.append(held, 0, heldLength);
+				}
+				heldLength = 0;
+			}
+			else if (showLine(data, pos, next - pos)) {
+				pass(pos, next - pos, sink);
+			}
+			pos = next;
+		}
+
+		/* The start of a line */
+		if (pos < end) {
+			if (passThrough) {
+				pass(pos, end - pos, sink);
+			}
+			else {
+				hold(data, pos, end - pos);
+				if (heldLength > MAX_LINE_BYTES || !couldBeLogcat(held, heldLength)) {
+					flush(sink);
+					sink.append(held, 0, heldLength);
+					heldLength = 0;
+					passThrough = true;
+				}
+			}
+		}
+
+		flush(sink);
+		runData = null;
+	}
+
+	/* Adds a line to the store, returning true if it should be shown */
+	private boolean showLine(byte[] data, int offset, int length) {
+		long index = store.add(data, offset, length);
+		return index < 0 || store.matches(query, index);
+	}
+
+	/* Passes on part of the current packet, joining it to the run before it if they touch */
+	private void pass(int offset, int length, Sink sink) {
+		if (runEnd != offset) {
+			flush(sink);
+			runStart = offset;
+		}
+		runEnd = offset + length;
+	}
+
+	private void flush(Sink sink) {
+		if (runEnd > runStart) {
+			sink.append(runData, runStart, runEnd - runStart);
+		}
+		runStart = runEnd;
+	}
+
+	private void hold(byte[] data, int offset, int length) {
+		if (heldLength + length > held.length) {
+			byte[] larger = new byte[Math.max(held.length * 2, heldLength + length)];
+			System.arraycopy(held, 0, larger, 0, heldLength);
+			held = larger;
+		}
+		System.arraycopy(data, offset, held, heldLength, length);
+		heldLength += length;
+	}
+
+	private static boolean couldBeLogcat(byte[] data, int length) {
+		for (int i = 0; i < Math.min(length, PREFIX.length); i++) {
+			boolean digit = data[i] >= '0' && data[i] <= '9';
+			if (PREFIX[i] == '0' ? !digit : data[i] != PREFIX[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,121 @@
+package com.cgutman.androidremotedebugger.console;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Which lines of a {@link LogcatStore} to show: those at or above a
+ * priority, from one process, with any of a set of tags. Each part is
+ * optional.
+ */
+public class LogcatQuery {
+	/** Matches every line */
+	public static final LogcatQuery ALL = new LogcatQuery(LogcatStore.PRIORITY_VERBOSE, -1, null);
+
+	private final int minPriority;
+	private final int pid;
+	private final Set<String> tags;
+
+	/**
+	 * @param minPriority One of the LogcatStore.PRIORITY_ constants
+	 * @param pid The process to show, or -1 for all of them
+	 * @param tags The tags to show, or null for all of them. Tags are case sensitive.
+	 */
+	public LogcatQuery(int minPriority, int pid, Set<String> tags) {
+		this.minPriority = minPriority;
+		this.pid = pid;
+		this.tags = (tags != null) ? new HashSet<String>(tags) : null;
+	}
+
+	/**
+	 * Builds a query from a space separated list of terms, where a priority
+	 * letter (V, D, I, W, E or F) sets the lowest priority, a number is a
+	 * pid, and anything else is a tag. For example: "W ActivityManager art"
+	 * @throws IllegalArgumentException If there's more than one priority or pid
+	 */
+	public static LogcatQuery parse(String terms) {
+		int minPriority = -1;
+		int pid = -1;
+		HashSet<String> tags = null;
+
+		for (String term : terms.trim().split("\\s+")) {
+			if (term.isEmpty()) {
+				continue;
+			}
+
+			int priority = (term.length() == 1) ? LogcatStore.getPriority((byte) term.charAt(0)) : -1;
+			if (priority >= 0) {
+				if (minPriority >= 0) {
+					throw new IllegalArgumentException("More than one priority");
+				}
+				minPriority = priority;
+			}
+			else if (isNumber(term)) {
+				if (pid >= 0) {
+					throw new IllegalArgumentException("More than one pid");
+				}
+				pid = Integer.parseInt(term);
+			}
+			else {
+				if (tags == null) {
+					tags = new HashSet<String>();
+				}
+				tags.add(term);
+			}
+		}
+
+		return new LogcatQuery(minPriority >= 0 ? minPriority : LogcatStore.PRIORITY_VERBOSE, pid, tags);
+	}
+
+	public int getMinPriority() {
+		return minPriority;
+	}
+
+	public int getPid() {
+		return pid;
+	}
+
+	/**
+	 * @return True if the query shows a tag
+	 */
+	public boolean hasTag(String tag) {
+		return tags == null || tags.contains(tag);
+	}
+
+	/**
+	 * @return True if the query doesn't look at tags
+	 */
+	public boolean isAnyTag() {
+		return tags == null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(LogcatStore.getPriorityChar(minPriority));
+		if (pid >= 0) {
+			builder.append(' ').append(pid);
+		}
+		if (tags != null) {
+			String[] sorted = tags.toArray(new String[tags.size()]);
+			Arrays.sort(sorted);
+			for (String tag : sorted) {
+				builder.append(' ').append(tag);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static boolean isNumber(String term) {
+		if (term.length() > 9) {
+			return false;
+		}
+		for (int i = 0; i < term.length(); i++) {
+			if (term.charAt(i) < '0' || term.charAt(i) > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,435 @@
+package com.cgutman.androidremotedebugger.console;
+
+import java.util.Arrays;
+
+/**
+ * Lines of `logcat -v threadtime` output, parsed into columns. Each column is
+ * a primitive array with one entry per line, tags are ids into a
+ * {@link TagTable}, and messages are kept as UTF-8 back to back in one array.
+ * Finding the lines that match a {@link LogcatQuery} is then a scan over a
+ * few arrays of ints, with no text to look at.
+ *
+ * Once the store is full, the oldest half of it is dropped to make room.
+ */
+public class LogcatStore {
+	public static final int PRIORITY_VERBOSE = 2;
+	public static final int PRIORITY_DEBUG = 3;
+	public static final int PRIORITY_INFO = 4;
+	public static final int PRIORITY_WARN = 5;
+	public static final int PRIORITY_ERROR = 6;
+	public static final int PRIORITY_FATAL = 7;
+
+	/* Indexed by priority */
+	private static final String PRIORITY_CHARS = "??VDIWEF";
+
+	private static final int INITIAL_LINES = 1024;
+	private static final int MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+	/* A rendered line besides its tag and message: "MM-DD HH:MM:SS.mmm PPPPP TTTTT L : \r\n" */
+	private static final int HEADER_BYTES = 37;
+	private static final int MIN_ID_WIDTH = 5;
+	private static final int MIN_TAG_WIDTH = 8;
+
+	/* Rendered output is passed on in pieces about this big */
+	private static final int RENDER_CHUNK_BYTES = 64 * 1024;
+
+	private final int maxLines;
+	private final TagTable tagTable = new TagTable();
+
+	/* The columns, oldest line first. Timestamps are the day of the year, as
+	 * month * 32 + day, times a day's millis, plus the millis into the day. */
+	private long[] timestamps;
+	private int[] pids;
+	private int[] tids;
+	private byte[] priorities;
+	private int[] tags;
+
+	/* Each message ends where the next one starts */
+	private int[] messageStarts;
+	private byte[] messages;
+	private int messageLength;
+
+	private int count;
+
+	/* The index of the oldest line still here, counting every line ever added */
+	private long firstIndex;
+
+	/* Which tags the last query shows, indexed by tag id */
+	private LogcatQuery maskQuery;
+	private boolean[] tagMask;
+
+	/**
+	 * @param maxLines Lines to keep before the oldest are dropped
+	 */
+	public LogcatStore(int maxLines) {
+		this.maxLines = Math.max(2, maxLines);
+
+		int lines = Math.min(INITIAL_LINES, this.maxLines);
+		timestamps = new long[lines];
+		pids = new int[lines];
+		tids = new int[lines];
+		priorities = new byte[lines];
+		tags = new int[lines];
+		messageStarts = new int[lines];
+		messages = new byte[lines * 64];
+	}
+
+	/**
+	 * @return The priority for a letter like 'W', or -1 if it isn't one
+	 */
+	public static int getPriority(byte letter) {
+		int priority = PRIORITY_CHARS.indexOf(letter);
+		return (priority >= PRIORITY_VERBOSE) ? priority : -1;
+	}
+
+	public static char getPriorityChar(int priority) {
+		return PRIORITY_CHARS.charAt(priority);
+	}
+
+	/**
+	 * Parses a line and adds it if it's from logcat
+	 * @param line The line, with or without its line ending
+	 * @return The new line's index, or -1 if it isn't a logcat line
+	 */
+	public synchronized long add(byte[] line, int offset, int length) {
+		int end = offset + length;
+		while (end > offset && (line[end - 1] == '\n' || line[end - 1] == '\r')) {
+			end--;
+		}
+
+		/* "MM-DD HH:MM:SS.mmm" */
+		if (end - offset < 18 || line[offset + 2] != '-' || line[offset + 5] != ' ' ||
+				line[offset + 8] != ':' || line[offset + 11] != ':' || line[offset + 14] != '.') {
+			return -1;
+		}
+		int month = digits(line, offset, 2);
+		int day = digits(line, offset + 3, 2);
+		int hours = digits(line, offset + 6, 2);
+		int minutes = digits(line, offset + 9, 2);
+		int seconds = digits(line, offset + 12, 2);
+		int millis = digits(line, offset + 15, 3);
+		if ((month | day | hours | minutes | seconds | millis) < 0) {
+			return -1;
+		}
+
+		/* The pid and tid are padded to 5 characters */
+		int pos = skipSpaces(line, offset + 18, end);
+		int pidStart = pos;
+		pos = skipDigits(line, pos, end);
+		int pid = digits(line, pidStart, pos - pidStart);
+
+		pos = skipSpaces(line, pos, end);
+		int tidStart = pos;
+		pos = skipDigits(line, pos, end);
+		int tid = digits(line, tidStart, pos - tidStart);
+
+		pos = skipSpaces(line, pos, end);
+		if (pid < 0 || tid < 0 || pos + 2 > end || line[pos + 1] != ' ') {
+			return -1;
+		}
+		int priority = getPriority(line[pos]);
+		if (priority < 0) {
+			return -1;
+		}
+
+		/* The tag is padded to 8 characters and followed by ": " */
+		int tagStart = pos + 2;
+		int colon = tagStart;
+		while (colon < end && !(line[colon] == ':' && (colon + 1 == end || line[colon + 1] == ' '))) {
+			colon++;
+		}
+		if (colon == end) {
+			return -1;
+		}
+		int tagEnd = colon;
+		while (tagEnd > tagStart && line[tagEnd - 1] == ' ') {
+			tagEnd--;
+		}
+		int messageStart = Math.min(colon + 2, end);
+
+		if (count == maxLines) {
+			dropOldest(count / 2);
+		}
+		if (count == timestamps.length) {
+			grow(Math.min(count * 2, maxLines));
+		}
+
+		int messageBytes = end - messageStart;
+		if (messageLength + messageBytes > messages.length) {
+			messages = Arrays.copyOf(messages, Math.max(messages.length * 2, messageLength + messageBytes));
+		}
+		System.arraycopy(line, messageStart, messages, messageLength, messageBytes);
+
+		timestamps[count] = (month * 32L + day) * MILLIS_PER_DAY +
+				((hours * 60 + minutes) * 60 + seconds) * 1000 + millis;
+		pids[count] = pid;
+		tids[count] = tid;
+		priorities[count] = (byte) priority;
+		tags[count] = tagTable.intern(line, tagStart, tagEnd - tagStart);
+		messageStarts[count] = messageLength;
+		messageLength += messageBytes;
+
+		return firstIndex + count++;
+	}
+
+	/**
+	 * @return True if the line is still here and the query shows it
+	 */
+	public synchronized boolean matches(LogcatQuery query, long index) {
+		if (index < firstIndex || index >= firstIndex + count) {
+			return false;
+		}
+		int line = (int) (index - firstIndex);
+		boolean[] mask = getTagMask(query);
+		return priorities[line] >= query.getMinPriority() &&
+				(query.getPid() < 0 || pids[line] == query.getPid()) &&
+				(mask == null || mask[tags[line]]);
+	}
+
+	/**
+	 * @return The number of lines the query shows
+	 */
+	public synchronized int count(LogcatQuery query) {
+		int minPriority = query.getMinPriority();
+		int pid = query.getPid();
+		boolean[] mask = getTagMask(query);
+
+		/* Whether a line matches is close to random, so only tests that go the same
+		 * way for every line are allowed to branch */
+		boolean anyPid = pid < 0;
+		int matched = 0;
+		if (mask == null) {
+			for (int i = 0; i < count; i++) {
+				if (priorities[i] >= minPriority & (anyPid || pids[i] == pid)) {
+					matched++;
+				}
+			}
+		}
+		else {
+			for (int i = 0; i < count; i++) {
+				if (priorities[i] >= minPriority & (anyPid || pids[i] == pid) & mask[tags[i]]) {
+					matched++;
+				}
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Writes out the newest lines the query shows, oldest first, in the same
+	 * format logcat uses
+	 * @param maxBytes The most output to write, so the lines fit in a console
+	 * @return The number of lines written
+	 */
+	public synchronized int render(LogcatQuery query, int maxBytes, OutputFilter.Sink sink) {
+		int minPriority = query.getMinPriority();
+		int pid = query.getPid();
+		boolean[] mask = getTagMask(query);
+
+		/* Work back from the newest line to find where the output starts */
+		int first = count;
+		int lines = 0;
+		long bytes = 0;
+		for (int i = count - 1; i >= 0; i--) {
+			if (priorities[i] >= minPriority && (pid < 0 || pids[i] == pid) &&
+					(mask == null || mask[tags[i]])) {
+				bytes += getRenderedLength(i);
+				if (bytes > maxBytes) {
+					break;
+				}
+				first = i;
+				lines++;
+			}
+		}
+
+		byte[] chunk = new byte[RENDER_CHUNK_BYTES];
+		int length = 0;
+		for (int i = first; i < count; i++) {
+			if (priorities[i] >= minPriority && (pid < 0 || pids[i] == pid) &&
+					(mask == null || mask[tags[i]])) {
+				int lineLength = getRenderedLength(i);
+				if (length + lineLength > chunk.length) {
+					sink.append(chunk, 0, length);
+					length = 0;
+					if (lineLength > chunk.length) {
+						chunk = new byte[lineLength];
+					}
+				}
+				length = renderLine(i, chunk, length);
+			}
+		}
+		if (length != 0) {
+			sink.append(chunk, 0, length);
+		}
+
+		return lines;
+	}
+
+	public synchronized int getLineCount() {
+		return count;
+	}
+
+	public synchronized int getTagCount() {
+		return tagTable.size();
+	}
+
+	/**
+	 * @return Bytes taken up by the columns, messages and tags
+	 */
+	public synchronized long getMemoryUsage() {
+		return 8L * timestamps.length + 4L * (pids.length + tids.length + tags.length + messageStarts.length) +
+				priorities.length + messages.length + tagTable.getMemoryUsage();
+	}
+
+	private boolean[] getTagMask(LogcatQuery query) {
+		if (query.isAnyTag()) {
+			return null;
+		}
+
+		/* Tags seen since the mask was made need a place in it too */
+		if (query != maskQuery || tagMask.length < tagTable.size()) {
+			tagMask = new boolean[tagTable.size()];
+			for (int id = 0; id < tagMask.length; id++) {
+				tagMask[id] = query.hasTag(tagTable.getTag(id));
+			}
+			maskQuery = query;
+		}
+		return tagMask;
+	}
+
+	private int getMessageEnd(int line) {
+		return (line + 1 < count) ? messageStarts[line + 1] : messageLength;
+	}
+
+	private int getRenderedLength(int line) {
+		return HEADER_BYTES + getOverflow(pids[line]) + getOverflow(tids[line]) +
+				Math.max(MIN_TAG_WIDTH, tagTable.getTagBytes(tags[line]).length) +
+				getMessageEnd(line) - messageStarts[line];
+	}
+
+	/* "%s %5d %5d %c %-8s: %s\r\n", with the date first. Returns the end of the line. */
+	private int renderLine(int line, byte[] out, int pos) {
+		long timestamp = timestamps[line];
+		int dayOfYear = (int) (timestamp / MILLIS_PER_DAY);
+		int millis = (int) (timestamp % MILLIS_PER_DAY);
+
+		pos = putNumber(out, pos, dayOfYear / 32, 2, '0');
+		out[pos++] = '-';
+		pos = putNumber(out, pos, dayOfYear % 32, 2, '0');
+		out[pos++] = ' ';
+		pos = putNumber(out, pos, millis / 3600000, 2, '0');
+		out[pos++] = ':';
+		pos = putNumber(out, pos, millis / 60000 % 60, 2, '0');
+		out[pos++] = ':';
+		pos = putNumber(out, pos, millis / 1000 % 60, 2, '0');
+		out[pos++] = '.';
+		pos = putNumber(out, pos, millis % 1000, 3, '0');
+		out[pos++] = ' ';
+		pos = putNumber(out, pos, pids[line], MIN_ID_WIDTH, ' ');
+		out[pos++] = ' ';
+		pos = putNumber(out, pos, tids[line], MIN_ID_WIDTH, ' ');
+		out[pos++] = ' ';
+		out[pos++] = (byte) getPriorityChar(priorities[line]);
+		out[pos++] = ' ';
+
+		byte[] tag = tagTable.getTagBytes(tags[line]);
+		System.arraycopy(tag, 0, out, pos, tag.length);
+		pos += tag.length;
+		for (int i = tag.length; i < MIN_TAG_WIDTH; i++) {
+			out[pos++] = ' ';
+		}
+		out[pos++] = ':';
+		out[pos++] = ' ';
+
+		int messageStart = messageStarts[line];
+		int messageBytes = getMessageEnd(line) - messageStart;
+		System.arraycopy(messages, messageStart, out, pos, messageBytes);
+		pos += messageBytes;
+		out[pos++] = '\r';
+		out[pos++] = '\n';
+		return pos;
+	}
+
+	private void dropOldest(int lines) {
+		int remaining = count - lines;
+		int messageShift = messageStarts[lines];
+
+		System.arraycopy(timestamps, lines, timestamps, 0, remaining);
+		System.arraycopy(pids, lines, pids, 0, remaining);
+		System.arraycopy(tids, lines, tids, 0, remaining);
+		System.arraycopy(priorities, lines, priorities, 0, remaining);
+		System.arraycopy(tags, lines, tags, 0, remaining);
+		for (int i = 0; i < remaining; i++) {
+			messageStarts[i] = messageStarts[lines + i] - messageShift;
+		}
+		System.arraycopy(messages, messageShift, messages, 0, messageLength - messageShift);
+
+		messageLength -= messageShift;
+		count = remaining;
+		firstIndex += lines;
+	}
+
+	private void grow(int lines) {
+		timestamps = Arrays.copyOf(timestamps, lines);
+		pids = Arrays.copyOf(pids, lines);
+		tids = Arrays.copyOf(tids, lines);
+		priorities = Arrays.copyOf(priorities, lines);
+		tags = Arrays.copyOf(tags, lines);
+		messageStarts = Arrays.copyOf(messageStarts, lines);
+	}
+
+	/* How many digits a pid or tid has past the width it's padded to */
+	private static int getOverflow(int id) {
+		return Math.max(0, getDigits(id) - MIN_ID_WIDTH);
+	}
+
+	private static int getDigits(int value) {
+		int digits = 1;
+		for (; value >= 10; value /= 10) {
+			digits++;
+		}
+		return digits;
+	}
+
+	private static int putNumber(byte[] out, int pos, int value, int width, char pad) {
+		int digits = getDigits(value);
+		for (int i = digits; i < width; i++) {
+			out[pos++] = (byte) pad;
+		}
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			out[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return pos + digits;
+	}
+
+	/* Parses a number, returning -1 if it's empty, too long or not all digits */
+	private static int digits(byte[] data, int offset, int length) {
+		if (length == 0 || length > 9) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int digit = data[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static int skipSpaces(byte[] data, int pos, int end) {
+		while (pos < end && data[pos] == ' ') {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static int skipDigits(byte[] data, int pos, int end) {
+		while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+			pos++;
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,21 @@
+package com.cgutman.androidremotedebugger.console;
+
+/**
+ * A stage on a session's receive path that decides which output reaches the
+ * console. Output a filter drops is never copied into the console, so it
+ * costs nothing to store or draw.
+ */
+public interface OutputFilter {
+	/**
+	 * Where a filter sends the output it keeps. {@link ConsoleBuffer} is one.
+	 */
+	interface Sink {
+		void append(byte[] data, int offset, int length);
+	}
+
+	/**
+	 * Filters the next piece of output. Output may be held back until the
+	 * filter can decide on it. Calls for one session are never concurrent.
+	 */
+	void process(byte[] data, int offset, int length, Sink sink);
+}
@@ -0,0 +1,814 @@
+package com.cgutman.androidremotedebugger.console;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Console output that has left a ConsoleBuffer's memory, kept on disk. Each
+ * character and its attributes are appended to segment files along with the
+ * position of every newline, and read back through memory mapped windows,
+ * so scrollback can run to hundreds of megabytes while the heap only holds
+ * a small write buffer. Once more than the configured number of characters
+ * is on disk, the oldest segment is deleted.
+ *
+ * Appending only copies into memory. One writer thread shared by every
+ * scrollback batches what's been appended out to the files, and creates and
+ * deletes them, so the thread appending (usually an event loop) never waits
+ * on the disk. Reading never waits on the writer either: anything it hasn't
+ * written yet is read from the chunks still waiting for it. When the disk
+ * falls behind, {@link #isBehind()} says so, so the connection can stop
+ * reading until it catches up. If output keeps coming anyway, the scrollback
+ * starts over from the output that's still arriving rather than buffering
+ * without bound.
+ *
+ * Offsets and newline numbers are the console's absolute ones. The owner
+ * must synchronize access, which for a console is its monitor. If the disk
+ * fails us, the scrollback empties and stops growing rather than failing
+ * the console.
+ */
+public class Scrollback implements Closeable {
+	/* The most characters in one segment */
+	private static final int SEGMENT_CHARS = 4 * 1024 * 1024;
+
+	/* Characters in each chunk handed to the writer */
+	private static final int WRITE_CHARS = 4096;
+
+	/* The writer gets to what's been appended within this long, and sooner once this much is pending */
+	private static final int FLUSH_MS = 200;
+	private static final int FLUSH_CHARS = 8 * WRITE_CHARS;
+
+	/* Past this much waiting to be written, we're behind. Past the most, the
+	 * scrollback starts over. The gap leaves room for the packet or two that
+	 * arrive before the connection stops reading. */
+	private static final int BEHIND_CHARS = 32 * WRITE_CHARS;
+	private static final int MAX_PENDING_CHARS = 128 * WRITE_CHARS;
+
+	/* The most chunks written with one gathering write */
+	private static final int MAX_GATHER = 16;
+
+	/* How much of a file is mapped at once */
+	private static final int WINDOW_BYTES = 1024 * 1024;
+
+	/* Each segment is three files: characters, attributes and newline positions */
+	private static final int TEXT = 0;
+	private static final int ATTRIBUTES = 1;
+	private static final int NEWLINES = 2;
+	private static final String[] EXTENSIONS = {".txt", ".attr", ".nl"};
+	private static final int[] ENTRY_BYTES = {2, 4, 4};
+
+	private static class Segment {
+		final long startOffset;
+		final int firstNewline;
+		final File[] files = new File[EXTENSIONS.length];
+
+		/* Entries appended so far, including any not written yet */
+		int length;
+		int newlineCount;
+
+		/* Entries actually in the files. Guarded by the lock. */
+		final int[] flushed = new int[EXTENSIONS.length];
+
+		Segment(long startOffset, int firstNewline) {
+			this.startOffset = startOffset;
+			this.firstNewline = firstNewline;
+		}
+	}
+
+	/* Part of a segment on its way to disk. Direct buffers keep it off the heap. */
+	private static class Chunk {
+		final ByteBuffer[] buffers = new ByteBuffer[EXTENSIONS.length];
+		Segment segment;
+		int length;
+
+		/* The index in the segment's files of each kind's first entry */
+		final int[] firstEntry = new int[EXTENSIONS.length];
+
+		Chunk() {
+			for (int i = 0; i < EXTENSIONS.length; i++) {
+				buffers[i] = ByteBuffer.allocateDirect(WRITE_CHARS * ENTRY_BYTES[i]).order(ByteOrder.nativeOrder());
+			}
+		}
+
+		void clear() {
+			for (ByteBuffer buffer : buffers) {
+				buffer.clear();
+			}
+			segment = null;
+			length = 0;
+		}
+	}
+
+	/* Writes for every scrollback, so many sessions don't mean many threads */
+	private static final ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Scrollback writer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private static class Window {
+		Segment segment;
+		long position;
+		MappedByteBuffer buffer;
+	}
+
+	private final File directory;
+	private final String name;
+	private long maxChars;
+	private int segmentChars;
+
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private int nextSegment;
+	private long endOffset;
+	private int nextNewline;
+	private boolean failed;
+
+	/* The chunk being appended to, if any */
+	private Chunk current;
+
+	private final Window[] windows = new Window[EXTENSIONS.length];
+
+	/* Chunks to write and segments to delete, in order. The writer swaps the
+	 * queue with its own to work through it. Chunks handed off stay in
+	 * unwritten until they're in the files, so reads can be served from them. */
+	private final Object lock = new Object();
+	private ArrayDeque<Object> queue = new ArrayDeque<Object>();
+	private final ArrayDeque<Chunk> unwritten = new ArrayDeque<Chunk>();
+	private final ArrayDeque<Chunk> freeChunks = new ArrayDeque<Chunk>();
+	private int pendingChars;
+	private boolean writeScheduled;
+	private boolean writeNowScheduled;
+	private boolean closing;
+	private boolean closed;
+	private volatile boolean writeFailed;
+
+	private final Runnable writeTask = new Runnable() {
+		@Override
+		public void run() {
+			writeQueued();
+		}
+	};
+
+	/* Only touched by the writer thread */
+	private ArrayDeque<Object> batch = new ArrayDeque<Object>();
+	private final FileChannel[] writers = new FileChannel[EXTENSIONS.length];
+	private final Chunk[] gatherChunks = new Chunk[MAX_GATHER];
+	private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+	private final int[] gatherEntries = new int[EXTENSIONS.length];
+	private Segment openSegment;
+
+	/**
+	 * @param directory Where the files go. It's created if needed.
+	 * @param name A prefix for the files that's unique within the directory
+	 * @param maxChars The most characters to keep on disk, which take 6 bytes each
+	 * plus 4 bytes per line
+	 */
+	public Scrollback(File directory, String name, long maxChars) {
+		this.directory = directory;
+		this.name = name;
+		this.maxChars = maxChars;
+		this.segmentChars = getSegmentChars(maxChars);
+
+		for (int i = 0; i < EXTENSIONS.length; i++) {
+			windows[i] = new Window();
+		}
+	}
+
+	/**
+	 * Deletes every scrollback file in a directory, like those left behind when
+	 * a process is killed
+	 */
+	public static void deleteAll(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			for (String extension : EXTENSIONS) {
+				if (file.getName().endsWith(extension)) {
+					file.delete();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Discards everything and starts over
+	 * @param offset The absolute offset of the next character appended
+	 * @param newline The number of the next newline appended
+	 */
+	public void reset(long offset, int newline) {
+		deleteSegments();
+		endOffset = offset;
+		nextNewline = newline;
+	}
+
+	/**
+	 * Adds the next character to leave the console's memory
+	 */
+	public void append(char c, int attributes) {
+		if (!isUsable()) {
+			return;
+		}
+
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (segment == null || segment.length >= segmentChars) {
+			segment = startSegment();
+		}
+
+		if (current == null) {
+			current = takeChunk(segment);
+			if (current == null) {
+				/* The disk is too far behind, so drop what it hasn't caught up with
+				 * and start over after this character */
+				deleteSegments();
+				endOffset++;
+				if (c == '\n') {
+					nextNewline++;
+				}
+				return;
+			}
+		}
+
+		ByteBuffer[] buffers = current.buffers;
+		buffers[TEXT].putChar(c);
+		buffers[ATTRIBUTES].putInt(attributes);
+		if (c == '\n') {
+			buffers[NEWLINES].putInt(segment.length);
+			segment.newlineCount++;
+			nextNewline++;
+		}
+		segment.length++;
+		endOffset++;
+
+		if (!buffers[TEXT].hasRemaining()) {
+			handOff();
+		}
+	}
+
+	/**
+	 * @return True if the writer has fallen behind, and output should be held
+	 * back until it catches up. This may be called from any thread.
+	 */
+	public boolean isBehind() {
+		synchronized (lock) {
+			return pendingChars >= BEHIND_CHARS;
+		}
+	}
+
+	/**
+	 * Changes the most characters to keep on disk. If there's more than that
+	 * already, the oldest segments are deleted.
+	 */
+	public void setMaxChars(long maxChars) {
+		this.maxChars = maxChars;
+		this.segmentChars = getSegmentChars(maxChars);
+		while (!segments.isEmpty() && endOffset - segments.get(0).startOffset > maxChars) {
+			deleteSegment(segments.remove(0));
+		}
+	}
+
+	public boolean isEmpty() {
+		return segments.isEmpty() || getStartOffset() == endOffset;
+	}
+
+	/**
+	 * @return The absolute offset of the oldest character on disk
+	 */
+	public long getStartOffset() {
+		return segments.isEmpty() ? endOffset : segments.get(0).startOffset;
+	}
+
+	/**
+	 * @return The absolute offset just past the newest character on disk
+	 */
+	public long getEndOffset() {
+		return endOffset;
+	}
+
+	/**
+	 * @return The number of the oldest newline on disk, which is also the
+	 * number of the line the oldest character is in
+	 */
+	public int getFirstNewline() {
+		return segments.isEmpty() ? nextNewline : segments.get(0).firstNewline;
+	}
+
+	/**
+	 * @return The number the next newline appended will have
+	 */
+	public int getNextNewline() {
+		return nextNewline;
+	}
+
+	/**
+	 * @return The absolute offset of a newline that's on disk
+	 */
+	public long getNewlineOffset(int newline) {
+		Segment segment = findSegmentForNewline(newline);
+		if (segment == null || !isUsable()) {
+			return getStartOffset();
+		}
+
+		try {
+			ByteBuffer buffer = map(NEWLINES, segment, newline - segment.firstNewline);
+			return segment.startOffset + buffer.getInt(buffer.position());
+		} catch (IOException e) {
+			fail();
+			return getStartOffset();
+		}
+	}
+
+	/**
+	 * Counts the newlines before an offset on disk, which is the number of the
+	 * line it's in
+	 */
+	public int countNewlinesBefore(long offset) {
+		if (offset >= endOffset) {
+			return nextNewline;
+		}
+
+		Segment segment = findSegmentForOffset(offset);
+		if (segment == null || !isUsable()) {
+			return getFirstNewline();
+		}
+
+		/* Binary search the segment's newline positions */
+		int target = (int)(offset - segment.startOffset);
+		int low = 0;
+		int high = segment.newlineCount;
+		try {
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				ByteBuffer buffer = map(NEWLINES, segment, mid);
+				if (buffer.getInt(buffer.position()) < target) {
+					low = mid + 1;
+				}
+				else {
+					high = mid;
+				}
+			}
+		} catch (IOException e) {
+			fail();
+			return getFirstNewline();
+		}
+		return segment.firstNewline + low;
+	}
+
+	/**
+	 * Copies characters and their attributes out of the scrollback. Anything
+	 * that can't be read comes back as blanks.
+	 * @param attributesDst May be null if only the text is wanted
+	 */
+	public void read(long offset, int count, char[] textDst, int[] attributesDst, int dstOffset) {
+		int done = 0;
+
+		if (isUsable()) {
+			try {
+				while (done < count) {
+					Segment segment = findSegmentForOffset(offset + done);
+					if (segment == null) {
+						break;
+					}
+
+					int index = (int)(offset + done - segment.startOffset);
+					int run = Math.min(count - done, segment.length - index);
+
+					/* Windows may end partway through the run */
+					for (int copied = 0; copied < run; ) {
+						ByteBuffer text = map(TEXT, segment, index + copied);
+						int n = Math.min(run - copied, text.remaining() / ENTRY_BYTES[TEXT]);
+						text.asCharBuffer().get(textDst, dstOffset + done + copied, n);
+						copied += n;
+					}
+					if (attributesDst != null) {
+						for (int copied = 0; copied < run; ) {
+							ByteBuffer attributes = map(ATTRIBUTES, segment, index + copied);
+							int n = Math.min(run - copied, attributes.remaining() / ENTRY_BYTES[ATTRIBUTES]);
+							attributes.asIntBuffer().get(attributesDst, dstOffset + done + copied, n);
+							copied += n;
+						}
+					}
+					done += run;
+				}
+			} catch (IOException e) {
+				fail();
+			}
+		}
+
+		for (int i = done; i < count; i++) {
+			textDst[dstOffset + i] = ' ';
+			if (attributesDst != null) {
+				attributesDst[dstOffset + i] = TextAttributes.DEFAULT;
+			}
+		}
+	}
+
+	/**
+	 * @return Bytes of disk used, including anything not yet written out
+	 */
+	public long getDiskUsage() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += (long)segment.length * (ENTRY_BYTES[TEXT] + ENTRY_BYTES[ATTRIBUTES]) +
+					(long)segment.newlineCount * ENTRY_BYTES[NEWLINES];
+		}
+		return bytes;
+	}
+
+	/**
+	 * Deletes the files. They may outlive this call briefly, until the writer
+	 * gets to them.
+	 */
+	@Override
+	public void close() {
+		fail();
+	}
+
+	/* Dropping a segment shouldn't lose too much of the limit at once */
+	private static int getSegmentChars(long maxChars) {
+		return (int)Math.max(WRITE_CHARS, Math.min(SEGMENT_CHARS, maxChars / 4));
+	}
+
+	private Segment startSegment() {
+		/* The rest of the current chunk belongs to the previous segment */
+		handOff();
+
+		/* Make room by dropping the oldest segments */
+		while (!segments.isEmpty() && endOffset + segmentChars - segments.get(0).startOffset > maxChars) {
+			deleteSegment(segments.remove(0));
+		}
+
+		/* The writer creates the files when it gets the segment's first chunk */
+		Segment segment = new Segment(endOffset, nextNewline);
+		int number = nextSegment++;
+		for (int i = 0; i < EXTENSIONS.length; i++) {
+			segment.files[i] = new File(directory, name+"-"+number+EXTENSIONS[i]);
+		}
+
+		segments.add(segment);
+		return segment;
+	}
+
+	/* Returns false if the scrollback has failed, emptying it if the writer just did */
+	private boolean isUsable() {
+		if (writeFailed && !failed) {
+			fail();
+		}
+		return !failed;
+	}
+
+	/* Returns an empty chunk for a segment, or null if too much is waiting to be written */
+	private Chunk takeChunk(Segment segment) {
+		Chunk chunk;
+		synchronized (lock) {
+			if (pendingChars + WRITE_CHARS > MAX_PENDING_CHARS) {
+				return null;
+			}
+			chunk = freeChunks.poll();
+		}
+
+		if (chunk == null) {
+			chunk = new Chunk();
+		}
+		chunk.segment = segment;
+		chunk.firstEntry[TEXT] = segment.length;
+		chunk.firstEntry[ATTRIBUTES] = segment.length;
+		chunk.firstEntry[NEWLINES] = segment.newlineCount;
+		return chunk;
+	}
+
+	/* Gives the current chunk to the writer */
+	private void handOff() {
+		Chunk chunk = current;
+		if (chunk == null) {
+			return;
+		}
+		current = null;
+
+		for (ByteBuffer buffer : chunk.buffers) {
+			buffer.flip();
+		}
+		chunk.length = chunk.buffers[TEXT].remaining() / ENTRY_BYTES[TEXT];
+
+		synchronized (lock) {
+			queue.add(chunk);
+			unwritten.add(chunk);
+			pendingChars += chunk.length;
+			scheduleWrite(pendingChars >= FLUSH_CHARS);
+		}
+	}
+
+	/* Has the writer get to the queue, right away or after giving small appends
+	 * a chance to add up. Called with the lock held. */
+	private void scheduleWrite(boolean now) {
+		if (now && !writeNowScheduled) {
+			writeNowScheduled = true;
+			writer.execute(writeTask);
+		}
+		else if (!writeScheduled) {
+			writeScheduled = true;
+			writer.schedule(writeTask, FLUSH_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/*
+	 * Returns a buffer positioned at an entry of one of a segment's files. It
+	 * has at least that entry remaining, and maybe more. Entries in the files
+	 * are mapped, and the rest are read from the chunks waiting to be written.
+	 */
+	private ByteBuffer map(int kind, Segment segment, long index) throws IOException {
+		Window window = windows[kind];
+		long bytePosition = index * ENTRY_BYTES[kind];
+
+		/* Remap if the entry isn't in the window, including if the file grew into it */
+		if (window.segment != segment || bytePosition < window.position ||
+				bytePosition + ENTRY_BYTES[kind] > window.position + window.buffer.capacity()) {
+			int flushed;
+			synchronized (lock) {
+				flushed = segment.flushed[kind];
+				if (flushed <= index) {
+					return readUnwritten(kind, segment, index);
+				}
+			}
+
+			long fileLength = (long)flushed * ENTRY_BYTES[kind];
+			long position = (bytePosition / WINDOW_BYTES) * WINDOW_BYTES;
+			int size = (int)Math.min(WINDOW_BYTES, fileLength - position);
+
+			RandomAccessFile file = new RandomAccessFile(segment.files[kind], "r");
+			try {
+				/* The mapping stays valid after the file is closed */
+				window.buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, position, size);
+				window.buffer.order(ByteOrder.nativeOrder());
+			} finally {
+				file.close();
+			}
+			window.segment = segment;
+			window.position = position;
+		}
+
+		ByteBuffer buffer = window.buffer.duplicate().order(ByteOrder.nativeOrder());
+		buffer.position((int)(bytePosition - window.position));
+		return buffer;
+	}
+
+	/*
+	 * Finds an entry that isn't in the files yet in the chunk holding it. The
+	 * writer only reads chunks, and only we reuse them once it's done, so the
+	 * buffer returned stays good until the next append. Called with the lock
+	 * held, so the writer can't finish with the chunk while we look for it.
+	 */
+	private ByteBuffer readUnwritten(int kind, Segment segment, long index) throws IOException {
+		if (current != null && current.segment == segment && index >= current.firstEntry[kind]) {
+			/* Still being appended to, so its entries end at the position */
+			return slice(kind, current, index, current.buffers[kind].position());
+		}
+
+		for (Chunk chunk : unwritten) {
+			if (chunk.segment == segment && index >= chunk.firstEntry[kind]) {
+				/* Handed off chunks were flipped, so their entries end at the limit */
+				int end = chunk.buffers[kind].limit();
+				if (index < chunk.firstEntry[kind] + end / ENTRY_BYTES[kind]) {
+					return slice(kind, chunk, index, end);
+				}
+			}
+		}
+
+		/* Neither written nor waiting, which only happens if the write failed */
+		throw new IOException("Scrollback write failed");
+	}
+
+	private static ByteBuffer slice(int kind, Chunk chunk, long index, int end) {
+		ByteBuffer buffer = chunk.buffers[kind].duplicate().order(ByteOrder.nativeOrder());
+		buffer.limit(end);
+		buffer.position((int)(index - chunk.firstEntry[kind]) * ENTRY_BYTES[kind]);
+		return buffer;
+	}
+
+	private Segment findSegmentForOffset(long offset) {
+		int low = 0;
+		int high = segments.size() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			Segment segment = segments.get(mid);
+			if (offset < segment.startOffset) {
+				high = mid - 1;
+			}
+			else if (offset >= segment.startOffset + segment.length) {
+				low = mid + 1;
+			}
+			else {
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	private Segment findSegmentForNewline(int newline) {
+		int low = 0;
+		int high = segments.size() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			Segment segment = segments.get(mid);
+			if (newline < segment.firstNewline) {
+				high = mid - 1;
+			}
+			else if (newline >= segment.firstNewline + segment.newlineCount) {
+				low = mid + 1;
+			}
+			else {
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	private void fail() {
+		failed = true;
+		deleteSegments();
+
+		/* The writer deletes the files and then closes its own */
+		synchronized (lock) {
+			closing = true;
+			scheduleWrite(true);
+		}
+	}
+
+	private void deleteSegments() {
+		for (Segment segment : segments) {
+			deleteSegment(segment);
+		}
+		segments.clear();
+	}
+
+	private void deleteSegment(Segment segment) {
+		for (Window window : windows) {
+			if (window.segment == segment) {
+				window.segment = null;
+				window.buffer = null;
+			}
+		}
+
+		if (current != null && current.segment == segment) {
+			current.clear();
+			synchronized (lock) {
+				freeChunks.add(current);
+			}
+			current = null;
+		}
+
+		/* Nothing of it that hasn't been written needs to be now */
+		synchronized (lock) {
+			for (Iterator<Object> i = queue.iterator(); i.hasNext(); ) {
+				Object op = i.next();
+				if (op instanceof Chunk && ((Chunk)op).segment == segment) {
+					Chunk chunk = (Chunk)op;
+					i.remove();
+					unwritten.remove(chunk);
+					pendingChars -= chunk.length;
+					chunk.clear();
+					freeChunks.add(chunk);
+				}
+			}
+			queue.add(segment);
+			scheduleWrite(false);
+		}
+	}
+
+	/* Runs on the writer thread */
+	private void writeQueued() {
+		boolean done;
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+
+			/* Take everything queued so far */
+			ArrayDeque<Object> swap = batch;
+			batch = queue;
+			queue = swap;
+			writeScheduled = false;
+			writeNowScheduled = false;
+			done = closing;
+			closed = closing;
+		}
+
+		writeBatch(batch);
+
+		if (done) {
+			closeWriters();
+		}
+	}
+
+	private void writeBatch(ArrayDeque<Object> batch) {
+		Object op;
+		while ((op = batch.peek()) != null) {
+			if (op instanceof Segment) {
+				batch.poll();
+				deleteFiles((Segment)op);
+				continue;
+			}
+
+			/* Consecutive chunks of one segment go out together */
+			Segment segment = ((Chunk)op).segment;
+			int count = 0;
+			while (count < MAX_GATHER && batch.peek() instanceof Chunk && ((Chunk)batch.peek()).segment == segment) {
+				gatherChunks[count++] = (Chunk)batch.poll();
+			}
+
+			if (!writeFailed) {
+				try {
+					for (int i = 0; i < EXTENSIONS.length; i++) {
+						gatherEntries[i] = writeGathered(segment, i, count);
+					}
+				} catch (IOException e) {
+					writeFailed = true;
+				}
+			}
+
+			synchronized (lock) {
+				for (int i = 0; i < count; i++) {
+					Chunk chunk = gatherChunks[i];
+					gatherChunks[i] = null;
+					unwritten.remove(chunk);
+					pendingChars -= chunk.length;
+					chunk.clear();
+					freeChunks.add(chunk);
+				}
+				if (!writeFailed) {
+					for (int i = 0; i < EXTENSIONS.length; i++) {
+						segment.flushed[i] += gatherEntries[i];
+					}
+				}
+			}
+		}
+	}
+
+	/* Writes one kind of entry from a run of chunks, returning how many entries that was */
+	private int writeGathered(Segment segment, int kind, int count) throws IOException {
+		if (openSegment != segment) {
+			closeWriters();
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create "+directory);
+			}
+			for (int i = 0; i < EXTENSIONS.length; i++) {
+				writers[i] = new RandomAccessFile(segment.files[i], "rw").getChannel();
+				writers[i].truncate(0);
+			}
+			openSegment = segment;
+		}
+
+		long bytes = 0;
+		for (int i = 0; i < count; i++) {
+			gatherBuffers[i] = gatherChunks[i].buffers[kind];
+			bytes += gatherBuffers[i].remaining();
+		}
+		for (long written = 0; written < bytes; ) {
+			written += writers[kind].write(gatherBuffers, 0, count);
+		}
+		for (int i = 0; i < count; i++) {
+			gatherBuffers[i] = null;
+		}
+		return (int)(bytes / ENTRY_BYTES[kind]);
+	}
+
+	private void deleteFiles(Segment segment) {
+		if (openSegment == segment) {
+			closeWriters();
+		}
+		for (File file : segment.files) {
+			if (file != null) {
+				file.delete();
+			}
+		}
+	}
+
+	private void closeWriters() {
+		openSegment = null;
+		for (int i = 0; i < writers.length; i++) {
+			if (writers[i] != null) {
+				try {
+					writers[i].close();
+				} catch (IOException ignored) {}
+				writers[i] = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.cgutman.androidremotedebugger.console;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Gives each distinct logcat tag a small id, starting at 0. Tags are looked
+ * up straight from the bytes of a line, so a tag that's been seen before
+ * costs no allocation. Not thread safe; {@link LogcatStore} guards it.
+ */
+public class TagTable {
+	/* Open addressing, with each slot holding an id plus one, or 0 if empty */
+	private int[] slots = new int[256];
+	private int[] hashes = new int[128];
+	private byte[][] tagBytes = new byte[128][];
+	private String[] tags = new String[128];
+	private int size;
+
+	/**
+	 * @return The tag's id, which is added if the tag is new
+	 */
+	public int intern(byte[] data, int offset, int length) {
+		int hash = hash(data, offset, length);
+		int mask = slots.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int id = slots[slot] - 1;
+			if (id < 0) {
+				return add(slot, hash, Arrays.copyOfRange(data, offset, offset + length));
+			}
+			if (hashes[id] == hash && equals(tagBytes[id], data, offset, length)) {
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * @return The tag's id, or -1 if it hasn't been seen
+	 */
+	public int find(String tag) {
+		byte[] bytes = encode(tag);
+		int hash = hash(bytes, 0, bytes.length);
+		int mask = slots.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int id = slots[slot] - 1;
+			if (id < 0 || (hashes[id] == hash && equals(tagBytes[id], bytes, 0, bytes.length))) {
+				return id;
+			}
+		}
+	}
+
+	public String getTag(int id) {
+		return tags[id];
+	}
+
+	/**
+	 * @return The tag as UTF-8. Callers must not modify it.
+	 */
+	public byte[] getTagBytes(int id) {
+		return tagBytes[id];
+	}
+
+	/**
+	 * @return The number of tags, which is one more than the highest id
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Roughly how many bytes the table takes up
+	 */
+	public long getMemoryUsage() {
+		long bytes = 4L * (slots.length + hashes.length) + 8L * (tagBytes.length + tags.length);
+		for (int i = 0; i < size; i++) {
+			/* The bytes, and about the same again for the string */
+			bytes += 3L * tagBytes[i].length + 64;
+		}
+		return bytes;
+	}
+
+	private int add(int slot, int hash, byte[] bytes) {
+		if (size == tags.length) {
+			hashes = Arrays.copyOf(hashes, size * 2);
+			tagBytes = Arrays.copyOf(tagBytes, size * 2);
+			tags = Arrays.copyOf(tags, size * 2);
+		}
+
+		int id = size++;
+		hashes[id] = hash;
+		tagBytes[id] = bytes;
+		tags[id] = decode(bytes);
+		slots[slot] = id + 1;
+
+		/* Keep the table at most half full */
+		if (size * 2 > slots.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		int mask = slots.length - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = hashes[id] & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = id + 1;
+		}
+	}
+
+	/* FNV-1a, with the bits mixed down so the low ones can index the table */
+	private static int hash(byte[] data, int offset, int length) {
+		int hash = 0x811C9DC5;
+		for (int i = offset; i < offset + length; i++) {
+			hash = (hash ^ (data[i] & 0xFF)) * 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean equals(byte[] tag, byte[] data, int offset, int length) {
+		if (tag.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (tag[i] != data[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] encode(String tag) {
+		try {
+			return tag.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.cgutman.androidremotedebugger.console;
+
+/**
+ * Packs the display attributes of a console character into an int so they
+ * can be stored in a primitive array alongside the text. Colors are indexes
+ * into the xterm 256 color palette, or COLOR_DEFAULT.
+ */
+public final class TextAttributes {
+	public static final int COLOR_DEFAULT = 256;
+
+	public static final int BOLD = 1 << 18;
+	public static final int UNDERLINE = 1 << 19;
+	public static final int INVERSE = 1 << 20;
+
+	private static final int COLOR_MASK = 0x1FF;
+	private static final int BACKGROUND_SHIFT = 9;
+
+	public static final int DEFAULT = COLOR_DEFAULT | (COLOR_DEFAULT << BACKGROUND_SHIFT);
+
+	private TextAttributes() {}
+
+	public static int getForeground(int attributes) {
+		return attributes & COLOR_MASK;
+	}
+
+	public static int getBackground(int attributes) {
+		return (attributes >> BACKGROUND_SHIFT) & COLOR_MASK;
+	}
+
+	public static int setForeground(int attributes, int color) {
+		return (attributes & ~COLOR_MASK) | color;
+	}
+
+	public static int setBackground(int attributes, int color) {
+		return (attributes & ~(COLOR_MASK << BACKGROUND_SHIFT)) | (color << BACKGROUND_SHIFT);
+	}
+
+	/**
+	 * @return The nearest entry in the 6x6x6 color cube for a 24-bit color
+	 */
+	public static int rgbToIndex(int r, int g, int b) {
+		return 16 + 36 * toCubeLevel(r) + 6 * toCubeLevel(g) + toCubeLevel(b);
+	}
+
+	private static int toCubeLevel(int value) {
+		/* The cube levels are 0, 95, 135, 175, 215 and 255 */
+		if (value < 48) {
+			return 0;
+		}
+		else if (value < 115) {
+			return 1;
+		}
+		else {
+			return Math.min(5, (value - 35) / 40);
+		}
+	}
+
+	/**
+	 * @return The ARGB value of a palette index
+	 */
+	public static int getPaletteColor(int index) {
+		return PALETTE[index];
+	}
+
+	private static final int[] PALETTE = new int[256];
+
+	static {
+		int[] base = {
+				0x000000, 0xCD0000, 0x00CD00, 0xCDCD00, 0x0000EE, 0xCD00CD, 0x00CDCD, 0xE5E5E5,
+				0x7F7F7F, 0xFF0000, 0x00FF00, 0xFFFF00, 0x5C5CFF, 0xFF00FF, 0x00FFFF, 0xFFFFFF
+		};
+		for (int i = 0; i < 16; i++) {
+			PALETTE[i] = 0xFF000000 | base[i];
+		}
+
+		int[] levels = { 0, 95, 135, 175, 215, 255 };
+		for (int i = 0; i < 216; i++) {
+			PALETTE[16 + i] = 0xFF000000 | (levels[i / 36] << 16) | (levels[(i / 6) % 6] << 8) | levels[i % 6];
+		}
+
+		for (int i = 0; i < 24; i++) {
+			int gray = 8 + i * 10;
+			PALETTE[232 + i] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.cgutman.androidremotedebugger.console;
+
+/**
+ * Incremental UTF-8 decoder that is fed one byte at a time. All decoding state
+ * lives in this object, so a multibyte sequence that is split across two packets
+ * decodes the same as if it had arrived in one. Malformed input is replaced with
+ * U+FFFD following the WHATWG decoding rules.
+ */
+public class Utf8Decoder {
+	/** The byte was consumed but didn't complete a code point */
+	public static final int INCOMPLETE = -1;
+
+	/** The byte can't continue the pending sequence. The caller should emit
+	 * {@link #REPLACEMENT_CHAR} and then pass the same byte in again. */
+	public static final int MALFORMED_RETRY = -2;
+
+	public static final char REPLACEMENT_CHAR = '\uFFFD';
+
+	private int codePoint;
+	private int bytesNeeded;
+	private int lowerBoundary = 0x80;
+	private int upperBoundary = 0xBF;
+
+	/**
+	 * @return True if no multibyte sequence is in progress, so an ASCII byte
+	 * can be stored directly without calling {@link #decode(byte)}
+	 */
+	public boolean isIdle() {
+		return bytesNeeded == 0;
+	}
+
+	/**
+	 * Drops any partial sequence. The next byte is decoded from a clean state.
+	 */
+	public void reset() {
+		codePoint = 0;
+		bytesNeeded = 0;
+		lowerBoundary = 0x80;
+		upperBoundary = 0xBF;
+	}
+
+	/**
+	 * Feeds the next byte to the decoder.
+	 * @return A complete code point, {@link #REPLACEMENT_CHAR} for an invalid lead byte,
+	 * {@link #INCOMPLETE} or {@link #MALFORMED_RETRY}
+	 */
+	public int decode(byte data) {
+		int b = data & 0xFF;
+
+		if (bytesNeeded == 0) {
+			if (b < 0x80) {
+				return b;
+			}
+			else if (b >= 0xC2 && b <= 0xDF) {
+				bytesNeeded = 1;
+				codePoint = b & 0x1F;
+			}
+			else if (b >= 0xE0 && b <= 0xEF) {
+				/* Reject overlong forms and UTF-16 surrogates */
+				if (b == 0xE0) {
+					lowerBoundary = 0xA0;
+				}
+				else if (b == 0xED) {
+					upperBoundary = 0x9F;
+				}
+				bytesNeeded = 2;
+				codePoint = b & 0x0F;
+			}
+			else if (b >= 0xF0 && b <= 0xF4) {
+				/* Reject overlong forms and anything past U+10FFFF */
+				if (b == 0xF0) {
+					lowerBoundary = 0x90;
+				}
+				else if (b == 0xF4) {
+					upperBoundary = 0x8F;
+				}
+				bytesNeeded = 3;
+				codePoint = b & 0x07;
+			}
+			else {
+				return REPLACEMENT_CHAR;
+			}
+
+			return INCOMPLETE;
+		}
+
+		if (b < lowerBoundary || b > upperBoundary) {
+			/* This byte doesn't belong to the sequence we were building */
+			reset();
+			return MALFORMED_RETRY;
+		}
+
+		lowerBoundary = 0x80;
+		upperBoundary = 0xBF;
+		codePoint = (codePoint << 6) | (b & 0x3F);
+
+		if (--bytesNeeded != 0) {
+			return INCOMPLETE;
+		}
+
+		int ret = codePoint;
+		codePoint = 0;
+		return ret;
+	}
+}
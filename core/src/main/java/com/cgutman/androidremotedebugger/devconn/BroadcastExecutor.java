@@ -0,0 +1,510 @@
+package com.cgutman.androidremotedebugger.devconn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.adblib.AdbEventLoop;
+import com.cgutman.adblib.AdbEventLoopGroup;
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+
+/**
+ * Runs one shell command on many devices at once. Each device gets its own
+ * session on that device's shared connection, at most maxConcurrent devices
+ * run at a time, and each device's result is reported as soon as it finishes.
+ * Listener callbacks come from the event loops, so they shouldn't block.
+ */
+public class BroadcastExecutor {
+	public static final int DEFAULT_MAX_CONCURRENT = 32;
+	public static final int DEFAULT_TIMEOUT_MS = 30000;
+
+	/* Output kept per device, beyond which it's truncated */
+	private static final int MAX_OUTPUT = 1024 * 1024;
+
+	/* Enough of the end of the output to always contain the exit status line */
+	private static final int TAIL_SIZE = 128;
+
+	public interface Listener {
+		/* One device finished, failed, or timed out */
+		void onDeviceComplete(BroadcastExecutor executor, Result result);
+
+		/* Every device has finished. The results are in target order. */
+		void onBroadcastComplete(BroadcastExecutor executor, List<Result> results);
+	}
+
+	/**
+	 * The outcome of running the command on one device
+	 */
+	public static class Result {
+		public static final int EXIT_STATUS_UNKNOWN = -1;
+
+		private final String host;
+		private final int port;
+		private String output = "";
+		private boolean truncated;
+		private int exitStatus = EXIT_STATUS_UNKNOWN;
+		private Exception error;
+		private long connectTime = -1;
+		private long elapsedTime;
+
+		private Result(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		/**
+		 * @return Everything the command wrote to stdout and stderr
+		 */
+		public String getOutput() {
+			return output;
+		}
+
+		/**
+		 * @return True if the output was longer than we keep
+		 */
+		public boolean isTruncated() {
+			return truncated;
+		}
+
+		/**
+		 * @return The command's exit status, or EXIT_STATUS_UNKNOWN if it didn't run to completion
+		 */
+		public int getExitStatus() {
+			return exitStatus;
+		}
+
+		/**
+		 * @return Why the command couldn't be run to completion, or null if it was
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		/**
+		 * @return Milliseconds until the session was open, or -1 if it never opened
+		 */
+		public long getConnectTime() {
+			return connectTime;
+		}
+
+		/**
+		 * @return Milliseconds from starting on this device until it finished
+		 */
+		public long getElapsedTime() {
+			return elapsedTime;
+		}
+
+		public boolean isSuccess() {
+			return error == null && exitStatus == 0;
+		}
+
+		@Override
+		public String toString() {
+			return host+":"+port;
+		}
+	}
+
+	private class Target implements DeviceConnectionListener, Runnable {
+		private final Result result;
+		private DeviceConnection devConn;
+
+		/* Only touched on the timer loop, since that's the only thread that may schedule on it */
+		private AdbEventLoop.Timer timer;
+
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		private final byte[] tail = new byte[TAIL_SIZE];
+		private int tailLength;
+
+		/* Guarded by the target */
+		private long startTime;
+		private boolean finished;
+
+		Target(String host, int port) {
+			result = new Result(host, port);
+		}
+
+		synchronized void start() {
+			startTime = System.nanoTime();
+			devConn = new DeviceConnection(this, result.host, result.port, destination, manager);
+			timerLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (!isFinished()) {
+						timer = timerLoop.schedule(Target.this, timeoutMs);
+					}
+				}
+			});
+			devConn.startConnect();
+		}
+
+		synchronized boolean isFinished() {
+			return finished;
+		}
+
+		/* The timeout */
+		@Override
+		public void run() {
+			finish(new IOException("Timed out after "+timeoutMs+" ms"));
+		}
+
+		void finish(Exception e) {
+			synchronized (this) {
+				if (finished) {
+					return;
+				}
+				finished = true;
+
+				/* Queued behind the task that schedules the timer, so it can't miss it */
+				timerLoop.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (timer != null) {
+							timer.cancel();
+						}
+					}
+				});
+				if (devConn != null) {
+					try {
+						devConn.close();
+					} catch (IOException ignored) {}
+					result.elapsedTime = (System.nanoTime() - startTime) / 1000000;
+				}
+
+				result.error = e;
+				parseOutput();
+
+				/* A command that ran but reported no status was cut short somehow */
+				if (result.error == null && result.exitStatus == Result.EXIT_STATUS_UNKNOWN) {
+					result.error = new IOException("Stream closed before the command finished");
+				}
+			}
+
+			targetFinished(this);
+		}
+
+		private void parseOutput() {
+			int markerIndex = indexOf(tail, tailLength, statusMarker);
+			int keep = output.size();
+			if (markerIndex >= 0) {
+				/* Everything from the marker to the end is our status line */
+				int statusStart = markerIndex + statusMarker.length;
+				int status = 0;
+				boolean haveDigits = false;
+				for (int i = statusStart; i < tailLength && tail[i] >= '0' && tail[i] <= '9'; i++) {
+					status = (status * 10) + (tail[i] - '0');
+					haveDigits = true;
+				}
+				if (haveDigits) {
+					result.exitStatus = status;
+				}
+
+				if (!result.truncated) {
+					keep -= tailLength - markerIndex;
+				}
+			}
+
+			try {
+				result.output = new String(output.toByteArray(), 0, Math.max(0, keep), "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				result.output = "";
+			}
+		}
+
+		@Override
+		public synchronized void notifyConnectionEstablished(DeviceConnection devConn) {
+			result.connectTime = (System.nanoTime() - startTime) / 1000000;
+		}
+
+		@Override
+		public void notifyConnectionFailed(DeviceConnection devConn, Exception e) {
+			finish(e);
+		}
+
+		@Override
+		public void notifyStreamFailed(DeviceConnection devConn, Exception e) {
+			finish(e);
+		}
+
+		@Override
+		public void notifyStreamClosed(DeviceConnection devConn) {
+			/* The command ran to completion */
+			finish(null);
+		}
+
+		@Override
+		public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+			return crypto;
+		}
+
+		@Override
+		public boolean canReceiveData(DeviceConnection devConn) {
+			return true;
+		}
+
+		@Override
+		public synchronized void receivedData(DeviceConnection devConn, byte[] data, int offset, int length) {
+			if (finished) {
+				return;
+			}
+
+			/* Keep the start of the output, up to our limit */
+			int room = MAX_OUTPUT - output.size();
+			if (room > 0) {
+				output.write(data, offset, Math.min(room, length));
+			}
+			if (length > room) {
+				result.truncated = true;
+			}
+
+			/* And always the very end, where the exit status is */
+			if (length >= TAIL_SIZE) {
+				System.arraycopy(data, offset + length - TAIL_SIZE, tail, 0, TAIL_SIZE);
+				tailLength = TAIL_SIZE;
+			}
+			else {
+				int shift = Math.max(0, tailLength + length - TAIL_SIZE);
+				System.arraycopy(tail, shift, tail, 0, tailLength - shift);
+				tailLength -= shift;
+				System.arraycopy(data, offset, tail, tailLength, length);
+				tailLength += length;
+			}
+		}
+
+		@Override
+		public boolean isConsole() {
+			return false;
+		}
+
+		@Override
+		public void consoleUpdated(DeviceConnection devConn, ConsoleBuffer console) {}
+	}
+
+	private final Listener listener;
+	private final AdbCrypto crypto;
+	private final DeviceChannelManager manager;
+	private final AdbEventLoop timerLoop;
+	private final int maxConcurrent;
+	private final int timeoutMs;
+
+	private final String command;
+	private final String destination;
+	private final byte[] statusMarker;
+
+	private final List<Target> targets = new ArrayList<Target>();
+
+	/* Guarded by this */
+	private int nextTarget;
+	private int running;
+	private int completed;
+	private boolean launching;
+	private boolean cancelled;
+	private boolean started;
+
+	public BroadcastExecutor(Listener listener, AdbCrypto crypto, String command, Collection<String> targets) {
+		this(listener, crypto, command, targets, DEFAULT_MAX_CONCURRENT, DEFAULT_TIMEOUT_MS);
+	}
+
+	/**
+	 * @param targets Devices to run the command on, as "host" or "host:port"
+	 * @param maxConcurrent The most devices to run the command on at once
+	 * @param timeoutMs How long a device gets to connect and finish the command
+	 */
+	public BroadcastExecutor(Listener listener, AdbCrypto crypto, String command, Collection<String> targets,
+			int maxConcurrent, int timeoutMs) {
+		this.listener = listener;
+		this.crypto = crypto;
+		this.manager = DeviceChannelManager.getDefault();
+		this.timerLoop = AdbEventLoopGroup.getDefault().next();
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+		this.timeoutMs = timeoutMs;
+		this.command = command;
+
+		/* The shell reports the exit status after a marker the command won't print.
+		 * It goes on its own line so a trailing & or comment in the command can't eat it. */
+		String marker = "__RADB_EXIT_"+Long.toHexString(new Random().nextLong())+"_";
+		this.destination = DeviceConnection.SHELL_DESTINATION+command+"\necho "+marker+"$?";
+		try {
+			this.statusMarker = marker.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+		for (String target : targets) {
+			this.targets.add(parseTarget(target.trim()));
+		}
+	}
+
+	private Target parseTarget(String target) {
+		int colon = target.lastIndexOf(':');
+		if (colon < 0) {
+			return new Target(target, 5555);
+		}
+
+		int port;
+		try {
+			port = Integer.parseInt(target.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid port in "+target);
+		}
+		if (port <= 0 || port > 65535) {
+			throw new IllegalArgumentException("Invalid port in "+target);
+		}
+		return new Target(target.substring(0, colon), port);
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	public int getTargetCount() {
+		return targets.size();
+	}
+
+	public synchronized int getCompletedCount() {
+		return completed;
+	}
+
+	public synchronized int getRunningCount() {
+		return running;
+	}
+
+	public void start() {
+		synchronized (this) {
+			if (started) {
+				return;
+			}
+			started = true;
+		}
+
+		/* With nobody to wait for, we're done as soon as we start */
+		if (targets.isEmpty()) {
+			listener.onBroadcastComplete(this, Collections.<Result>emptyList());
+			return;
+		}
+
+		launchTargets();
+	}
+
+	/**
+	 * Stops all running commands. Devices that hadn't started yet are
+	 * reported as cancelled without being contacted.
+	 */
+	public void cancel() {
+		ArrayList<Target> toFinish = new ArrayList<Target>();
+
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+
+			toFinish.addAll(targets.subList(0, nextTarget));
+		}
+
+		IOException e = new IOException("Cancelled");
+		for (Target target : toFinish) {
+			target.finish(e);
+		}
+
+		/* If nothing was running, nobody else will wrap up the stragglers */
+		launchTargets();
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	private void launchTargets() {
+		ArrayList<Target> skipped = new ArrayList<Target>();
+
+		for (;;) {
+			Target target;
+			synchronized (this) {
+				/* A connection can fail synchronously and call back into us */
+				if (launching) {
+					return;
+				}
+
+				if (cancelled) {
+					while (nextTarget < targets.size()) {
+						skipped.add(targets.get(nextTarget++));
+					}
+					break;
+				}
+				else if (nextTarget >= targets.size() || running >= maxConcurrent) {
+					break;
+				}
+
+				target = targets.get(nextTarget++);
+				running++;
+				launching = true;
+			}
+
+			try {
+				target.start();
+			} finally {
+				synchronized (this) {
+					launching = false;
+				}
+			}
+		}
+
+		IOException e = new IOException("Cancelled");
+		for (Target target : skipped) {
+			synchronized (this) {
+				running++;
+			}
+			target.finish(e);
+		}
+	}
+
+	private void targetFinished(Target target) {
+		boolean done;
+		synchronized (this) {
+			running--;
+			completed++;
+			done = (completed == targets.size());
+		}
+
+		listener.onDeviceComplete(this, target.result);
+
+		if (done) {
+			ArrayList<Result> results = new ArrayList<Result>(targets.size());
+			for (Target t : targets) {
+				results.add(t.result);
+			}
+			listener.onBroadcastComplete(this, Collections.unmodifiableList(results));
+		}
+		else {
+			/* Start the next device in the slot this one freed */
+			launchTargets();
+		}
+	}
+
+	private static int indexOf(byte[] haystack, int length, byte[] needle) {
+		for (int i = length - needle.length; i >= 0; i--) {
+			int j = 0;
+			while (j < needle.length && haystack[i + j] == needle[j]) {
+				j++;
+			}
+			if (j == needle.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,195 @@
+package com.cgutman.androidremotedebugger.devconn;
+
+/**
+ * Follows each command sent to a device through its round trip: queued by
+ * the UI, written to the device, first output back from the device, output
+ * appended to the console, and output drawn on screen. The time between
+ * each stage is kept per interval in a {@link LatencyHistogram}, so a laggy
+ * shell can be pinned on the network, the device, the console or the UI.
+ *
+ * Commands are written and answered in order, so traces move through each
+ * stage in sequence and a cursor per stage is all the bookkeeping needed.
+ * Output that was already on its way when a command was sent, like a prompt,
+ * counts as the command's first output.
+ * Timestamps live in fixed rings, so nothing is allocated after construction.
+ * If more than {@link #SLOTS} commands are in flight, the oldest are dropped
+ * from the trace.
+ */
+public class CommandTracer {
+	/**
+	 * The intervals a command's round trip is split into
+	 */
+	public enum Interval {
+		/* Queued until written to the device */
+		QUEUE("queue"),
+		/* Written until the device's first output after it arrives */
+		DEVICE("device"),
+		/* Output arrived until it was appended to the console */
+		CONSOLE("console"),
+		/* Appended until drawn on screen */
+		RENDER("render"),
+		/* Queued until drawn on screen */
+		TOTAL("total");
+
+		private final String label;
+
+		Interval(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	/* Must be a power of two */
+	public static final int SLOTS = 256;
+	private static final int MASK = SLOTS - 1;
+
+	private final LatencyHistogram[] histograms;
+
+	/* Queue times by trace ID. Written by whichever thread queues. */
+	private final long[] queueIds = new long[SLOTS];
+	private final long[] queueTimes = new long[SLOTS];
+	private final Object queueLock = new Object();
+	private long nextTraceId = 1;
+
+	/* Everything else is by the order commands were sent. Written on the event loop. */
+	private final long[] sentIds = new long[SLOTS];
+	private final long[] sentTimes = new long[SLOTS];
+	private final long[] outputTimes = new long[SLOTS];
+	private final long[] appendTimes = new long[SLOTS];
+
+	/* Commands before each cursor have passed that stage */
+	private volatile long sentCursor;
+	private long outputCursor;
+	private volatile long appendCursor;
+
+	/* Only touched by the UI */
+	private long renderCursor;
+
+	public CommandTracer() {
+		histograms = new LatencyHistogram[Interval.values().length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Starts a trace for a command being queued. May be called from any thread.
+	 * @return The command's trace ID
+	 */
+	public long recordQueued() {
+		long now = System.nanoTime();
+		synchronized (queueLock) {
+			long id = nextTraceId++;
+			int slot = (int)(id & MASK);
+			queueTimes[slot] = now;
+			queueIds[slot] = id;
+			return id;
+		}
+	}
+
+	/**
+	 * Records that the last of a command went out in a WRTE. Runs on the event loop.
+	 */
+	void recordSent(long traceId, long now) {
+		long sequence = sentCursor;
+		int slot = (int)(sequence & MASK);
+		sentIds[slot] = traceId;
+		sentTimes[slot] = now;
+
+		long queueTime = getQueueTime(traceId);
+		if (queueTime != 0) {
+			histograms[Interval.QUEUE.ordinal()].record(now - queueTime);
+		}
+
+		sentCursor = sequence + 1;
+	}
+
+	/**
+	 * Records that output arrived. Every command sent since the last output
+	 * has now been answered. Runs on the event loop.
+	 */
+	void recordOutput() {
+		long sent = sentCursor;
+		if (outputCursor == sent) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		for (long sequence = Math.max(outputCursor, sent - SLOTS); sequence < sent; sequence++) {
+			int slot = (int)(sequence & MASK);
+			outputTimes[slot] = now;
+			histograms[Interval.DEVICE.ordinal()].record(now - sentTimes[slot]);
+		}
+		outputCursor = sent;
+	}
+
+	/**
+	 * Records that the output just received is in the console. Called on the
+	 * event loop by whoever appends it.
+	 */
+	public void recordAppended() {
+		long output = outputCursor;
+		long append = appendCursor;
+		if (append == output) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		for (long sequence = Math.max(append, output - SLOTS); sequence < output; sequence++) {
+			int slot = (int)(sequence & MASK);
+			appendTimes[slot] = now;
+			histograms[Interval.CONSOLE.ordinal()].record(now - outputTimes[slot]);
+		}
+		appendCursor = output;
+	}
+
+	/**
+	 * Records that the console was drawn. Called on the UI thread.
+	 */
+	public void recordRendered() {
+		long append = appendCursor;
+		if (renderCursor == append) {
+			return;
+		}
+
+		/* Commands sent long enough ago have had their slots reused */
+		long now = System.nanoTime();
+		long oldest = sentCursor - SLOTS + 1;
+		for (long sequence = Math.max(renderCursor, oldest); sequence < append; sequence++) {
+			int slot = (int)(sequence & MASK);
+			histograms[Interval.RENDER.ordinal()].record(now - appendTimes[slot]);
+
+			long queueTime = getQueueTime(sentIds[slot]);
+			if (queueTime != 0) {
+				histograms[Interval.TOTAL.ordinal()].record(now - queueTime);
+			}
+		}
+		renderCursor = append;
+	}
+
+	/**
+	 * Forgets commands waiting to be drawn, for when the UI wasn't showing
+	 * and the wait isn't the UI's fault. Called on the UI thread.
+	 */
+	public void skipRendering() {
+		renderCursor = appendCursor;
+	}
+
+	/**
+	 * @return The latencies recorded for an interval
+	 */
+	public LatencyHistogram.Snapshot snapshot(Interval interval) {
+		return histograms[interval.ordinal()].snapshot();
+	}
+
+	/* Returns 0 if the trace's slot has been reused */
+	private long getQueueTime(long traceId) {
+		int slot = (int)(traceId & MASK);
+		synchronized (queueLock) {
+			return queueIds[slot] == traceId ? queueTimes[slot] : 0;
+		}
+	}
+}
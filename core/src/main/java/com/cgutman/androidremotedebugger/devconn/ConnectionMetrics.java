@@ -0,0 +1,452 @@
+package com.cgutman.androidremotedebugger.devconn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+
+import com.cgutman.adblib.AdbChannel;
+
+/**
+ * Counters and latency histograms for one {@link DeviceConnection}. Recording
+ * never locks or allocates, so it's safe on the event loop's hot path, and
+ * {@link #snapshot()} can be taken from any thread at any time.
+ */
+public class ConnectionMetrics {
+	/**
+	 * The stages of opening a session, in order
+	 */
+	public enum Phase {
+		/* Loading keys and resolving the host name before connecting */
+		SETUP("setup"),
+		/* Establishing the TCP connection */
+		TCP("tcp"),
+		/* Our CNXN until the device either answers or asks us to authenticate */
+		CNXN("cnxn"),
+		/* Signing tokens, sending our key and waiting for the user to accept it */
+		AUTH("auth"),
+		/* Our OPEN until the device accepts the stream */
+		OPEN("open");
+
+		private final String label;
+
+		Phase(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	private final DeviceConnection connection;
+
+	private final LatencyHistogram dispatchTimes = new LatencyHistogram();
+	private final LatencyHistogram appendTimes = new LatencyHistogram();
+	private final LatencyHistogram refreshTimes = new LatencyHistogram();
+
+	/* Written once when the stream opens */
+	private volatile long[] phaseTimes;
+	private volatile long connectTime = -1;
+	private volatile boolean sharedChannel;
+
+	/**
+	 * Everything known about a connection at one point in time. Each value is
+	 * consistent on its own, but values may be a few packets apart.
+	 */
+	public static class Snapshot {
+		private String host;
+		private int port;
+		private String destination;
+		private int sessionId;
+		private long elapsedTime;
+
+		private long connectTime;
+		private long[] phaseTimes;
+		private boolean sharedChannel;
+
+		private long bytesReceived;
+		private long packetsReceived;
+		private long bytesSent;
+		private long packetsSent;
+		private long packetsSaved;
+
+		private long queuedBytes;
+		private long peakQueuedBytes;
+		private int queuedCommands;
+		private int peakQueuedCommands;
+		private long receiveStalls;
+		private long receiveStallTime;
+
+		private LatencyHistogram.Snapshot dispatchTimes;
+		private LatencyHistogram.Snapshot appendTimes;
+		private LatencyHistogram.Snapshot refreshTimes;
+		private LatencyHistogram.Snapshot[] commandTimes;
+
+		private Snapshot() {}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public String getDestination() {
+			return destination;
+		}
+
+		public int getSessionId() {
+			return sessionId;
+		}
+
+		/**
+		 * @return Nanoseconds since the session started connecting
+		 */
+		public long getElapsedTime() {
+			return elapsedTime;
+		}
+
+		/**
+		 * @return Nanoseconds from starting to connect until the stream opened,
+		 * or -1 if it hasn't opened
+		 */
+		public long getConnectTime() {
+			return connectTime;
+		}
+
+		/**
+		 * @return Nanoseconds spent in the phase, or -1 if the stream hasn't
+		 * opened. Sessions that joined an existing connection spend no time
+		 * in any phase but OPEN.
+		 */
+		public long getPhaseTime(Phase phase) {
+			return phaseTimes != null ? phaseTimes[phase.ordinal()] : -1;
+		}
+
+		/**
+		 * @return True if the session joined a connection another session had already made
+		 */
+		public boolean isSharedChannel() {
+			return sharedChannel;
+		}
+
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		public long getPacketsReceived() {
+			return packetsReceived;
+		}
+
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		public long getPacketsSent() {
+			return packetsSent;
+		}
+
+		public long getPacketsSaved() {
+			return packetsSaved;
+		}
+
+		/**
+		 * @return Bytes waiting in the command queue
+		 */
+		public long getQueuedBytes() {
+			return queuedBytes;
+		}
+
+		public long getPeakQueuedBytes() {
+			return peakQueuedBytes;
+		}
+
+		/**
+		 * @return Commands waiting in the command queue
+		 */
+		public int getQueuedCommands() {
+			return queuedCommands;
+		}
+
+		public int getPeakQueuedCommands() {
+			return peakQueuedCommands;
+		}
+
+		public long getReceiveStalls() {
+			return receiveStalls;
+		}
+
+		/**
+		 * @return Total time reading was paused for slow listeners, in milliseconds
+		 */
+		public long getReceiveStallTime() {
+			return receiveStallTime;
+		}
+
+		/**
+		 * @return Time the connection's listener took to handle each packet of
+		 * data, including any console append
+		 */
+		public LatencyHistogram.Snapshot getDispatchTimes() {
+			return dispatchTimes;
+		}
+
+		/**
+		 * @return Time taken to append each packet of data to the console
+		 */
+		public LatencyHistogram.Snapshot getAppendTimes() {
+			return appendTimes;
+		}
+
+		/**
+		 * @return Time from new output asking for a redraw until the view was updated
+		 */
+		public LatencyHistogram.Snapshot getRefreshTimes() {
+			return refreshTimes;
+		}
+
+		/**
+		 * @return Round trip latencies of commands, see {@link CommandTracer}
+		 */
+		public LatencyHistogram.Snapshot getCommandTimes(CommandTracer.Interval interval) {
+			return commandTimes[interval.ordinal()];
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(host).append(':').append(port).append(' ').append(destination)
+				.append(" (session ").append(sessionId).append(")\n");
+
+			if (connectTime < 0) {
+				sb.append("Connecting for ").append(formatMillis(elapsedTime)).append('\n');
+			}
+			else {
+				sb.append("Connected in ").append(formatMillis(connectTime));
+				if (sharedChannel) {
+					sb.append(" on a shared connection");
+				}
+				sb.append('\n');
+				for (Phase phase : Phase.values()) {
+					sb.append("  ").append(phase.getLabel()).append(' ')
+						.append(formatMillis(getPhaseTime(phase))).append('\n');
+				}
+			}
+
+			sb.append("Received ").append(bytesReceived).append(" bytes in ")
+				.append(packetsReceived).append(" packets\n");
+			sb.append("Sent ").append(bytesSent).append(" bytes in ")
+				.append(packetsSent).append(" packets (")
+				.append(packetsSaved).append(" saved by merging)\n");
+			sb.append("Queued ").append(queuedBytes).append(" bytes, ")
+				.append(queuedCommands).append(" commands (peak ")
+				.append(peakQueuedBytes).append(" bytes, ")
+				.append(peakQueuedCommands).append(" commands)\n");
+			sb.append("Receive stalls ").append(receiveStalls).append(" (")
+				.append(receiveStallTime).append(" ms)\n");
+
+			appendHistogram(sb, "Listener dispatch", dispatchTimes);
+			appendHistogram(sb, "Console append", appendTimes);
+			appendHistogram(sb, "UI refresh", refreshTimes);
+			for (CommandTracer.Interval interval : CommandTracer.Interval.values()) {
+				appendHistogram(sb, "Command "+interval.getLabel(), getCommandTimes(interval));
+			}
+			return sb.toString();
+		}
+
+		private static void appendHistogram(StringBuilder sb, String name, LatencyHistogram.Snapshot histogram) {
+			sb.append(name).append(": ").append(histogram.getCount()).append(" samples");
+			if (histogram.getCount() != 0) {
+				sb.append(", p50 ").append(formatMillis(histogram.getPercentile(0.5)))
+					.append(", p99 ").append(formatMillis(histogram.getPercentile(0.99)))
+					.append(", max ").append(formatMillis(histogram.getMax()));
+			}
+			sb.append('\n');
+		}
+	}
+
+	ConnectionMetrics(DeviceConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Records how long the connection's listener took to handle a packet
+	 */
+	void recordDispatch(long nanos) {
+		dispatchTimes.record(nanos);
+	}
+
+	/**
+	 * Records how long a packet took to append to the connection's console
+	 */
+	public void recordConsoleAppend(long nanos) {
+		appendTimes.record(nanos);
+	}
+
+	/**
+	 * Records how long the UI took to show new output, from when it was told
+	 * about the output until it drew it
+	 */
+	public void recordUiRefresh(long nanos) {
+		refreshTimes.record(nanos);
+	}
+
+	/**
+	 * Works out how long each phase of connecting took once the stream opens.
+	 * Times are by System.nanoTime().
+	 */
+	void recordConnect(long startTime, AdbChannel channel, long readyTime, long openTime) {
+		long[] phases = new long[Phase.values().length];
+
+		if (channel.getConnectedTime() < startTime) {
+			/* Someone else already did the work, so all we paid for was the OPEN */
+			sharedChannel = true;
+		}
+		else {
+			/* Clamp everything to our own start, in case we joined partway through */
+			long tcpStart = Math.max(startTime, channel.getStartTime());
+			long tcpDone = Math.max(tcpStart, channel.getTcpConnectedTime());
+			long connected = Math.max(tcpDone, channel.getConnectedTime());
+			long authStart = connected;
+			if (channel.getAuthStartTime() != 0) {
+				authStart = Math.min(connected, Math.max(tcpDone, channel.getAuthStartTime()));
+			}
+
+			phases[Phase.SETUP.ordinal()] = tcpStart - startTime;
+			phases[Phase.TCP.ordinal()] = tcpDone - tcpStart;
+			phases[Phase.CNXN.ordinal()] = authStart - tcpDone;
+			phases[Phase.AUTH.ordinal()] = connected - authStart;
+		}
+		phases[Phase.OPEN.ordinal()] = openTime - readyTime;
+
+		phaseTimes = phases;
+		connectTime = openTime - startTime;
+	}
+
+	/**
+	 * @return The current values of every counter and histogram
+	 */
+	public Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot();
+		snapshot.host = connection.getHost();
+		snapshot.port = connection.getPort();
+		snapshot.destination = connection.getDestination();
+		snapshot.sessionId = connection.getSessionId();
+		snapshot.elapsedTime = connection.getElapsedTime();
+
+		snapshot.phaseTimes = phaseTimes;
+		snapshot.connectTime = connectTime;
+		snapshot.sharedChannel = sharedChannel;
+
+		snapshot.bytesReceived = connection.getBytesReceived();
+		snapshot.packetsReceived = connection.getPacketsReceived();
+		snapshot.bytesSent = connection.getBytesSent();
+		snapshot.packetsSent = connection.getPacketsSent();
+		snapshot.packetsSaved = connection.getPacketsSaved();
+
+		snapshot.queuedBytes = connection.getQueuedBytes();
+		snapshot.peakQueuedBytes = connection.getPeakQueuedBytes();
+		snapshot.queuedCommands = connection.getQueuedCommands();
+		snapshot.peakQueuedCommands = connection.getPeakQueuedCommands();
+		snapshot.receiveStalls = connection.getReceiveStallCount();
+		snapshot.receiveStallTime = connection.getReceiveStallTime();
+
+		snapshot.dispatchTimes = dispatchTimes.snapshot();
+		snapshot.appendTimes = appendTimes.snapshot();
+		snapshot.refreshTimes = refreshTimes.snapshot();
+
+		CommandTracer tracer = connection.getTracer();
+		CommandTracer.Interval[] intervals = CommandTracer.Interval.values();
+		snapshot.commandTimes = new LatencyHistogram.Snapshot[intervals.length];
+		for (CommandTracer.Interval interval : intervals) {
+			snapshot.commandTimes[interval.ordinal()] = tracer.snapshot(interval);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Formats snapshots as CSV, one row per session, with times in milliseconds
+	 */
+	public static String toCsv(Collection<Snapshot> snapshots) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("session,host,port,destination,elapsed_ms,connect_ms");
+		for (Phase phase : Phase.values()) {
+			sb.append(',').append(phase.getLabel()).append("_ms");
+		}
+		sb.append(",shared_channel,bytes_in,packets_in,bytes_out,packets_out,packets_saved,"+
+				"queued_bytes,peak_queued_bytes,queued_commands,peak_queued_commands,"+
+				"receive_stalls,receive_stall_ms");
+		ArrayList<String> names = new ArrayList<String>(Arrays.asList("dispatch", "append", "refresh"));
+		for (CommandTracer.Interval interval : CommandTracer.Interval.values()) {
+			names.add("command_"+interval.getLabel());
+		}
+		for (String name : names) {
+			sb.append(',').append(name).append("_count,")
+				.append(name).append("_mean_ms,")
+				.append(name).append("_p50_ms,")
+				.append(name).append("_p99_ms,")
+				.append(name).append("_max_ms");
+		}
+		sb.append('\n');
+
+		for (Snapshot snapshot : snapshots) {
+			sb.append(snapshot.sessionId).append(',')
+				.append(quote(snapshot.host)).append(',')
+				.append(snapshot.port).append(',')
+				.append(quote(snapshot.destination)).append(',')
+				.append(formatMillisValue(snapshot.elapsedTime)).append(',')
+				.append(formatMillisValue(snapshot.connectTime));
+			for (Phase phase : Phase.values()) {
+				sb.append(',').append(formatMillisValue(snapshot.getPhaseTime(phase)));
+			}
+			sb.append(',').append(snapshot.sharedChannel)
+				.append(',').append(snapshot.bytesReceived)
+				.append(',').append(snapshot.packetsReceived)
+				.append(',').append(snapshot.bytesSent)
+				.append(',').append(snapshot.packetsSent)
+				.append(',').append(snapshot.packetsSaved)
+				.append(',').append(snapshot.queuedBytes)
+				.append(',').append(snapshot.peakQueuedBytes)
+				.append(',').append(snapshot.queuedCommands)
+				.append(',').append(snapshot.peakQueuedCommands)
+				.append(',').append(snapshot.receiveStalls)
+				.append(',').append(snapshot.receiveStallTime);
+			ArrayList<LatencyHistogram.Snapshot> histograms = new ArrayList<LatencyHistogram.Snapshot>(
+					Arrays.asList(snapshot.dispatchTimes, snapshot.appendTimes, snapshot.refreshTimes));
+			histograms.addAll(Arrays.asList(snapshot.commandTimes));
+			for (LatencyHistogram.Snapshot histogram : histograms) {
+				sb.append(',').append(histogram.getCount())
+					.append(',').append(formatMillisValue(histogram.getMean()))
+					.append(',').append(formatMillisValue(histogram.getPercentile(0.5)))
+					.append(',').append(formatMillisValue(histogram.getPercentile(0.99)))
+					.append(',').append(formatMillisValue(histogram.getMax()));
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static String quote(String field) {
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0) {
+			return field;
+		}
+		return "\""+field.replace("\"", "\"\"")+"\"";
+	}
+
+	/* Milliseconds to three places, or empty if the time isn't known */
+	private static String formatMillisValue(long nanos) {
+		if (nanos < 0) {
+			return "";
+		}
+		return String.format(Locale.US, "%.3f", nanos / 1e6);
+	}
+
+	private static String formatMillis(long nanos) {
+		if (nanos < 0) {
+			return "-";
+		}
+		return String.format(Locale.US, "%.2f ms", nanos / 1e6);
+	}
+}
@@ -0,0 +1,266 @@
+package com.cgutman.androidremotedebugger.devconn;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.cgutman.adblib.AdbChannel;
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.adblib.AdbEventLoop;
+import com.cgutman.adblib.AdbEventLoopGroup;
+
+/**
+ * Shares one authenticated ADB connection between every session to the same
+ * device. The first session pays for the TCP connect, CNXN and AUTH exchange;
+ * later sessions just open another stream. The connection is closed when its
+ * last session is released.
+ */
+public class DeviceChannelManager {
+	private static final int CONN_TIMEOUT = 5000;
+
+	private static DeviceChannelManager defaultManager;
+
+	public interface Session {
+		/* Called off of the event loops to load keys for a new connection. This may block. */
+		AdbCrypto loadAdbCrypto();
+
+		/* Called on the channel's event loop once the connection is authenticated */
+		void onChannelReady(AdbChannel channel);
+
+		/* Called on the channel's event loop if the connection fails. The session is released. */
+		void onChannelFailed(Exception e);
+	}
+
+	/**
+	 * A session's claim on a shared connection, returned by {@link DeviceChannelManager#acquire}
+	 */
+	public static class Lease {
+		private final SharedChannel shared;
+		private final Session session;
+		private boolean released;
+
+		private Lease(SharedChannel shared, Session session) {
+			this.shared = shared;
+			this.session = session;
+		}
+
+		/**
+		 * @return The event loop the session's callbacks are made on
+		 */
+		public AdbEventLoop getLoop() {
+			return shared.loop;
+		}
+	}
+
+	private static class SharedChannel implements AdbChannel.Listener, AdbEventLoop.TaskOwner {
+		private final String key;
+		private final String host;
+		private final int port;
+		private final AdbEventLoop loop;
+
+		/* Guarded by the manager */
+		private int refCount;
+
+		/* Only touched on the event loop */
+		private AdbChannel channel;
+		/* Why the connection failed, or null if it hasn't */
+		private Exception failure;
+		private final ArrayList<Session> sessions = new ArrayList<Session>();
+
+		private final DeviceChannelManager manager;
+
+		SharedChannel(DeviceChannelManager manager, String key, String host, int port, AdbEventLoop loop) {
+			this.manager = manager;
+			this.key = key;
+			this.host = host;
+			this.port = port;
+			this.loop = loop;
+		}
+
+		/* Runs on the event loop */
+		void addSession(Session session) {
+			if (failure != null) {
+				/* The session asked just as the connection failed, so it fails too */
+				session.onChannelFailed(failure);
+				return;
+			}
+
+			sessions.add(session);
+			if (channel != null && channel.isConnected()) {
+				/* Already authenticated, so the session only needs to open its stream */
+				session.onChannelReady(channel);
+			}
+		}
+
+		/* Runs on the event loop */
+		void removeSession(Session session, boolean last) {
+			sessions.remove(session);
+			if (last && channel != null) {
+				channel.close();
+			}
+		}
+
+		@Override
+		public void onChannelConnected(AdbChannel channel) {
+			for (Session session : new ArrayList<Session>(sessions)) {
+				session.onChannelReady(channel);
+			}
+		}
+
+		@Override
+		public void onChannelFailed(AdbChannel channel, Exception e) {
+			fail(e);
+		}
+
+		@Override
+		public void onTaskFailed(RuntimeException e) {
+			if (channel != null) {
+				channel.close();
+			}
+			fail(e);
+		}
+
+		/* Runs on the event loop */
+		void fail(Exception e) {
+			failure = e;
+			manager.forget(this);
+
+			ArrayList<Session> failedSessions = new ArrayList<Session>(sessions);
+			sessions.clear();
+			for (Session session : failedSessions) {
+				session.onChannelFailed(e);
+			}
+		}
+	}
+
+	private final AdbEventLoopGroup group;
+	private final HashMap<String, SharedChannel> channels = new HashMap<String, SharedChannel>();
+
+	public static synchronized DeviceChannelManager getDefault() {
+		if (defaultManager == null) {
+			defaultManager = new DeviceChannelManager(AdbEventLoopGroup.getDefault());
+		}
+		return defaultManager;
+	}
+
+	public DeviceChannelManager(AdbEventLoopGroup group) {
+		this.group = group;
+	}
+
+	/**
+	 * Attaches a session to the connection for a device, starting a new
+	 * connection if there isn't one. The session is told on the returned
+	 * event loop when it can open streams.
+	 */
+	public Lease acquire(String host, int port, final Session session) {
+		final SharedChannel shared;
+		boolean created = false;
+
+		synchronized (channels) {
+			String key = host+":"+port;
+			SharedChannel existing = channels.get(key);
+			if (existing != null) {
+				shared = existing;
+			}
+			else {
+				shared = new SharedChannel(this, key, host, port, group.next());
+				channels.put(key, shared);
+				created = true;
+			}
+			shared.refCount++;
+		}
+
+		shared.loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				shared.addSession(session);
+			}
+		}, shared);
+
+		if (created) {
+			connect(shared, session);
+		}
+
+		return new Lease(shared, session);
+	}
+
+	/**
+	 * Detaches a session. The connection closes once no sessions are left.
+	 */
+	public void release(final Lease lease) {
+		final SharedChannel shared = lease.shared;
+		final boolean last;
+
+		synchronized (channels) {
+			if (lease.released) {
+				return;
+			}
+			lease.released = true;
+
+			last = (--shared.refCount == 0);
+			if (last && channels.get(shared.key) == shared) {
+				channels.remove(shared.key);
+			}
+		}
+
+		shared.loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				shared.removeSession(lease.session, last);
+			}
+		}, shared);
+	}
+
+	/**
+	 * @return The number of devices with a shared connection
+	 */
+	public int getChannelCount() {
+		synchronized (channels) {
+			return channels.size();
+		}
+	}
+
+	private void forget(SharedChannel shared) {
+		synchronized (channels) {
+			if (channels.get(shared.key) == shared) {
+				channels.remove(shared.key);
+			}
+		}
+	}
+
+	private void connect(final SharedChannel shared, final Session session) {
+		/* Loading keys and resolving the host name can block, so do that first elsewhere */
+		group.executeBlocking(new Runnable() {
+			@Override
+			public void run() {
+				/* Load the crypto config */
+				final AdbCrypto crypto = session.loadAdbCrypto();
+				final InetSocketAddress address = new InetSocketAddress(shared.host, shared.port);
+
+				shared.loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (crypto == null) {
+							shared.fail(new IOException("Unable to load ADB key pair"));
+							return;
+						}
+						else if (address.isUnresolved()) {
+							shared.fail(new UnknownHostException(shared.host));
+							return;
+						}
+						else if (shared.sessions.isEmpty()) {
+							/* Everyone gave up before we got started */
+							return;
+						}
+
+						/* Establish a connection to the remote host */
+						shared.channel = new AdbChannel(shared.loop, crypto, shared);
+						shared.channel.connect(address, CONN_TIMEOUT);
+					}
+				}, shared);
+			}
+		});
+	}
+}
@@ -0,0 +1,661 @@
+package com.cgutman.androidremotedebugger.devconn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cgutman.adblib.AdbChannel;
+import com.cgutman.adblib.AdbChannelStream;
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.adblib.AdbEventLoop;
+
+/**
+ * A shell (or other service) session on a remote device. Sessions to the same
+ * device share one authenticated connection through a
+ * {@link DeviceChannelManager}, and the connection is driven by one of the
+ * shared event loops, so no threads are dedicated to it. Listener callbacks
+ * (other than loadAdbCrypto) are made on that loop's thread and must not block.
+ */
+public class DeviceConnection implements Closeable {
+	public static final String SHELL_DESTINATION = "shell:";
+	
+	private static final AtomicInteger nextSessionId = new AtomicInteger();
+	
+	/* Commands are refused once this much is waiting to be sent */
+	private static final int MAX_QUEUED_BYTES = 256 * 1024;
+	
+	/* How often we ask a saturated listener whether it can take data again */
+	private static final int RECEIVE_RECHECK_MS = 20;
+	
+	private static class QueuedCommand {
+		final byte[] data;
+		final long traceId;
+		
+		QueuedCommand(byte[] data, long traceId) {
+			this.data = data;
+			this.traceId = traceId;
+		}
+	}
+
+	private String host;
+	private int port;
+	private String destination;
+	private int sessionId;
+	private DeviceConnectionListener listener;
+	
+	private DeviceChannelManager manager;
+	private volatile DeviceChannelManager.Lease lease;
+	private volatile AdbEventLoop loop;
+	
+	/* Only touched on the event loop thread */
+	private AdbChannelStream shellStream;
+	private boolean established;
+	private boolean notifiedClosed;
+	
+	/* A command that didn't entirely fit in the last packet */
+	private byte[] partialCommand;
+	private int partialOffset;
+	private long partialTraceId;
+	
+	/* Set while a receive recheck timer is pending */
+	private boolean receiveCheckScheduled;
+	private long stallStartTime;
+	
+	/* When we started connecting and when the channel was ready for our OPEN */
+	private volatile long connectStartTime;
+	private long channelReadyTime;
+	
+	/* Transfer statistics. Only written on the event loop thread. */
+	private volatile long packetsSent;
+	private volatile long bytesSent;
+	private volatile long packetsSaved;
+	private volatile long packetsReceived;
+	private volatile long bytesReceived;
+	
+	/* Flow control statistics */
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicLong peakQueuedBytes = new AtomicLong();
+	private final AtomicInteger queuedCommands = new AtomicInteger();
+	private final AtomicInteger peakQueuedCommands = new AtomicInteger();
+	private volatile long receiveStalls;
+	private volatile long receiveStallNanos;
+	private volatile boolean receivePaused;
+	
+	private volatile boolean closed;
+	private boolean foreground;
+	
+	private final ConcurrentLinkedQueue<QueuedCommand> commandQueue = new ConcurrentLinkedQueue<QueuedCommand>();
+	private final AtomicBoolean flushPending = new AtomicBoolean();
+	
+	private final CommandTracer tracer = new CommandTracer();
+	private volatile SessionRecorder recorder;
+	private final ConnectionMetrics metrics = new ConnectionMetrics(this);
+	
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushPending.set(false);
+			flushCommands();
+		}
+	};
+	
+	private final Runnable receiveCheckTask = new Runnable() {
+		@Override
+		public void run() {
+			receiveCheckScheduled = false;
+			checkReceive();
+		}
+	};
+	
+	/* A task of ours throwing fails this session, not the app or the loop's other devices */
+	private final AdbEventLoop.TaskOwner taskOwner = new AdbEventLoop.TaskOwner() {
+		@Override
+		public void onTaskFailed(RuntimeException e) {
+			connectionFailed(e);
+		}
+	};
+	
+	private final DeviceChannelManager.Session session = new DeviceChannelManager.Session() {
+		@Override
+		public AdbCrypto loadAdbCrypto() {
+			return listener.loadAdbCrypto(DeviceConnection.this);
+		}
+
+		@Override
+		public void onChannelReady(AdbChannel channel) {
+			if (closed) {
+				return;
+			}
+			
+			try {
+				/* Open our stream. If the device was already connected,
+				 * this is all it costs to start the session. */
+				channelReadyTime = System.nanoTime();
+				shellStream = channel.open(destination, streamListener);
+			} catch (UnsupportedEncodingException e) {
+				connectionFailed(e);
+			}
+		}
+
+		@Override
+		public void onChannelFailed(Exception e) {
+			connectionFailed(e);
+		}
+	};
+	
+	private final AdbChannelStream.Listener streamListener = new AdbChannelStream.Listener() {
+		@Override
+		public void onStreamOpened(AdbChannelStream stream) {
+			established = true;
+			metrics.recordConnect(connectStartTime, stream.getChannel(), channelReadyTime, System.nanoTime());
+			
+			/* Notify the listener that the connection is complete */
+			listener.notifyConnectionEstablished(DeviceConnection.this);
+			
+			/* Send anything that was queued while we were connecting */
+			flushCommands();
+		}
+
+		@Override
+		public void onStreamData(AdbChannelStream stream, byte[] data, int offset, int length) {
+			packetsReceived++;
+			bytesReceived += length;
+			tracer.recordOutput();
+			
+			SessionRecorder recorder = DeviceConnection.this.recorder;
+			if (recorder != null) {
+				recorder.recordReceived(data, offset, length);
+			}
+			
+			long dispatchStart = System.nanoTime();
+			listener.receivedData(DeviceConnection.this, data, offset, length);
+			metrics.recordDispatch(System.nanoTime() - dispatchStart);
+			
+			/* If the consumers can't keep up, stop acknowledging data so the
+			 * device waits for them instead of us buffering without bound */
+			if (!stream.isReadPaused() && !listener.canReceiveData(DeviceConnection.this)) {
+				stream.pauseReading();
+				receivePaused = true;
+				receiveStalls++;
+				stallStartTime = System.nanoTime();
+				scheduleReceiveCheck();
+			}
+		}
+
+		@Override
+		public void onStreamWritable(AdbChannelStream stream) {
+			flushCommands();
+		}
+
+		@Override
+		public void onStreamClosed(AdbChannelStream stream) {
+			if (!established) {
+				connectionFailed(new IOException("Stream open actively rejected by remote peer"));
+			}
+			else if (!notifiedClosed) {
+				notifiedClosed = true;
+				listener.notifyStreamClosed(DeviceConnection.this);
+			}
+			
+			closed = true;
+			releaseChannel();
+		}
+	};
+	
+	public DeviceConnection(DeviceConnectionListener listener, String host, int port) {
+		this(listener, host, port, SHELL_DESTINATION);
+	}
+	
+	/**
+	 * Creates a session to a destination like "shell:" or "exec:logcat"
+	 */
+	public DeviceConnection(DeviceConnectionListener listener, String host, int port, String destination) {
+		this(listener, host, port, destination, DeviceChannelManager.getDefault());
+	}
+	
+	public DeviceConnection(DeviceConnectionListener listener, String host, int port, String destination,
+			DeviceChannelManager manager) {
+		this.host = host;
+		this.port = port;
+		this.destination = destination;
+		this.manager = manager;
+		this.listener = listener;
+		this.sessionId = nextSessionId.incrementAndGet();
+		this.foreground = true; /* Connections start in the foreground */
+	}
+	
+	public String getHost() {
+		return host;
+	}
+	
+	public int getPort() {
+		return port;
+	}
+	
+	public String getDestination() {
+		return destination;
+	}
+	
+	/**
+	 * @return A number that identifies this session among all sessions in the process
+	 */
+	public int getSessionId() {
+		return sessionId;
+	}
+	
+	/**
+	 * Starts or stops recording the session. The caller still owns the
+	 * recorder and closes it once it's no longer set here.
+	 * @param recorder The recorder to use, or null to stop recording
+	 */
+	public void setRecorder(SessionRecorder recorder) {
+		this.recorder = recorder;
+	}
+	
+	/**
+	 * @return The recorder the session is being recorded with, or null if it isn't
+	 */
+	public SessionRecorder getRecorder() {
+		return recorder;
+	}
+	
+	public boolean queueCommand(String command) {
+		try {
+			/* Queue it up for sending to the device */
+			return queueBytes(command.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Queues data to be sent to the device. This fails if too much is already
+	 * waiting to be sent because the device isn't keeping up.
+	 */
+	public boolean queueBytes(byte[] buffer) {
+		long queued = queuedBytes.addAndGet(buffer.length);
+		if (queued > MAX_QUEUED_BYTES) {
+			queuedBytes.addAndGet(-buffer.length);
+			return false;
+		}
+		/* Other threads may be queueing too, so only ever raise the peaks */
+		long peakBytes;
+		while (queued > (peakBytes = peakQueuedBytes.get())) {
+			if (peakQueuedBytes.compareAndSet(peakBytes, queued)) {
+				break;
+			}
+		}
+		int commands = queuedCommands.incrementAndGet();
+		int peakCommands;
+		while (commands > (peakCommands = peakQueuedCommands.get())) {
+			if (peakQueuedCommands.compareAndSet(peakCommands, commands)) {
+				break;
+			}
+		}
+		
+		/* Queue it up for sending to the device */
+		commandQueue.add(new QueuedCommand(buffer, tracer.recordQueued()));
+		
+		/* Have the event loop send it, unless a flush is already on the way */
+		AdbEventLoop loop = this.loop;
+		if (loop != null && flushPending.compareAndSet(false, true)) {
+			loop.execute(flushTask, taskOwner);
+		}
+		return true;
+	}
+	
+	public void startConnect() {
+		connectStartTime = System.nanoTime();
+		
+		/* Join the device's existing connection or start a new one */
+		lease = manager.acquire(host, port, session);
+		loop = lease.getLoop();
+		
+		/* If we failed before we had our lease, it's up to us to give it back */
+		if (closed) {
+			manager.release(lease);
+			return;
+		}
+		
+		/* Send anything queued before we had a loop once the stream opens */
+		if (!commandQueue.isEmpty() && flushPending.compareAndSet(false, true)) {
+			loop.execute(flushTask, taskOwner);
+		}
+	}
+	
+	/* Runs on the event loop */
+	private void flushCommands() {
+		if (shellStream == null) {
+			return;
+		}
+		
+		try {
+			/* ADB allows one outstanding write per stream, so everything that queues
+			 * up while we wait for the device's acknowledgement is merged into as
+			 * few packets as the device's maximum payload size allows. */
+			while (shellStream.isWriteReady()) {
+				ByteBuffer packet = fillPacket();
+				if (packet == null) {
+					break;
+				}
+				
+				SessionRecorder recorder = this.recorder;
+				if (recorder != null) {
+					recorder.recordSent(packet);
+				}
+				
+				/* Issue it to the device */
+				shellStream.write(packet);
+			}
+		} catch (IOException e) {
+			streamFailed(e);
+		}
+	}
+	
+	/* Builds the next packet out of queued commands, or returns null if there's nothing to send */
+	private ByteBuffer fillPacket() {
+		ByteBuffer packet = null;
+		int commands = 0;
+		long now = System.nanoTime();
+		
+		while (packet == null || packet.hasRemaining()) {
+			if (partialCommand == null) {
+				QueuedCommand next = commandQueue.poll();
+				if (next == null) {
+					break;
+				}
+				
+				partialCommand = next.data;
+				partialOffset = 0;
+				partialTraceId = next.traceId;
+				
+				queuedBytes.addAndGet(-partialCommand.length);
+				queuedCommands.decrementAndGet();
+				if (partialCommand.length == 0) {
+					tracer.recordSent(partialTraceId, now);
+					partialCommand = null;
+					continue;
+				}
+			}
+			
+			/* Commands are copied straight into a pooled buffer that the
+			 * event loop sends and recycles */
+			if (packet == null) {
+				packet = shellStream.allocatePayload();
+			}
+			
+			int count = Math.min(packet.remaining(), partialCommand.length - partialOffset);
+			packet.put(partialCommand, partialOffset, count);
+			partialOffset += count;
+			commands++;
+			
+			if (partialOffset == partialCommand.length) {
+				/* The packet is written as soon as it's filled, so this is when it goes out */
+				tracer.recordSent(partialTraceId, now);
+				partialCommand = null;
+			}
+		}
+		
+		if (packet == null) {
+			return null;
+		}
+		
+		packet.flip();
+		packetsSent++;
+		bytesSent += packet.remaining();
+		packetsSaved += commands - 1;
+		
+		return packet;
+	}
+	
+	/**
+	 * Tells the connection that a listener which reported it couldn't receive
+	 * data is ready again, so reading resumes without waiting for the next check.
+	 * This may be called from any thread.
+	 */
+	public void resumeReceiving() {
+		AdbEventLoop loop = this.loop;
+		if (loop != null) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					checkReceive();
+				}
+			}, taskOwner);
+		}
+	}
+	
+	/* Runs on the event loop */
+	private void scheduleReceiveCheck() {
+		if (!receiveCheckScheduled) {
+			receiveCheckScheduled = true;
+			loop.schedule(receiveCheckTask, RECEIVE_RECHECK_MS, taskOwner);
+		}
+	}
+	
+	/* Runs on the event loop */
+	private void checkReceive() {
+		if (shellStream == null || !shellStream.isReadPaused() || shellStream.isClosed()) {
+			return;
+		}
+		
+		if (listener.canReceiveData(this)) {
+			receiveStallNanos += System.nanoTime() - stallStartTime;
+			receivePaused = false;
+			shellStream.resumeReading();
+		}
+		else {
+			scheduleReceiveCheck();
+		}
+	}
+	
+	/* Runs on the event loop */
+	private void connectionFailed(Exception e) {
+		if (established) {
+			streamFailed(e);
+			return;
+		}
+		
+		if (!notifiedClosed) {
+			notifiedClosed = true;
+			listener.notifyConnectionFailed(this, e);
+		}
+		
+		closed = true;
+		if (shellStream != null) {
+			shellStream.close();
+		}
+		releaseChannel();
+	}
+	
+	/* Runs on the event loop */
+	private void streamFailed(Exception e) {
+		if (!notifiedClosed) {
+			notifiedClosed = true;
+			listener.notifyStreamFailed(this, e);
+		}
+		
+		closed = true;
+		if (shellStream != null) {
+			shellStream.close();
+		}
+		releaseChannel();
+	}
+	
+	/* Runs on the event loop */
+	private void releaseChannel() {
+		/* The device's connection closes when its last session lets go */
+		if (lease != null) {
+			manager.release(lease);
+		}
+	}
+	
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (isClosed()) {
+			return;
+		}
+		else {
+			closed = true;
+		}
+		
+		if (loop == null) {
+			/* We never started connecting */
+			return;
+		}
+		
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				/* Close the stream first */
+				if (shellStream != null) {
+					shellStream.close();
+				}
+				
+				/* Now our share of the connection */
+				releaseChannel();
+				
+				/* Like a failed read, tell the listener that an established stream is gone */
+				if (established && !notifiedClosed) {
+					notifiedClosed = true;
+					listener.notifyStreamFailed(DeviceConnection.this, new IOException("Stream closed"));
+				}
+			}
+		}, taskOwner);
+	}
+
+	/**
+	 * @return Counters and latency histograms for this session
+	 */
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return The round trip latencies of commands sent on this session
+	 */
+	public CommandTracer getTracer() {
+		return tracer;
+	}
+	
+	/**
+	 * @return Nanoseconds since {@link #startConnect()} was called, or 0 if it hasn't been
+	 */
+	public long getElapsedTime() {
+		long start = connectStartTime;
+		return start != 0 ? System.nanoTime() - start : 0;
+	}
+
+	/**
+	 * @return The number of WRTE packets sent to the device
+	 */
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+	
+	/**
+	 * @return The number of payload bytes sent to the device
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+	
+	/**
+	 * @return The number of packets avoided by merging queued commands together
+	 */
+	public long getPacketsSaved() {
+		return packetsSaved;
+	}
+	
+	/**
+	 * @return The average payload size of packets sent to the device
+	 */
+	public double getAverageBytesPerPacket() {
+		long packets = packetsSent;
+		return packets != 0 ? (double)bytesSent / packets : 0;
+	}
+
+	/**
+	 * @return The number of WRTE packets received from the device
+	 */
+	public long getPacketsReceived() {
+		return packetsReceived;
+	}
+	
+	/**
+	 * @return The number of payload bytes received from the device
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return The number of bytes waiting to be sent to the device
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+	
+	/**
+	 * @return The most bytes that have been waiting to be sent at once
+	 */
+	public long getPeakQueuedBytes() {
+		return peakQueuedBytes.get();
+	}
+	
+	/**
+	 * @return The number of commands waiting to be sent to the device
+	 */
+	public int getQueuedCommands() {
+		return queuedCommands.get();
+	}
+	
+	/**
+	 * @return The most commands that have been waiting to be sent at once
+	 */
+	public int getPeakQueuedCommands() {
+		return peakQueuedCommands.get();
+	}
+	
+	/**
+	 * @return True if we've stopped reading from the device because our listeners are saturated
+	 */
+	public boolean isReceivePaused() {
+		return receivePaused;
+	}
+	
+	/**
+	 * @return The number of times reading from the device was paused
+	 */
+	public long getReceiveStallCount() {
+		return receiveStalls;
+	}
+	
+	/**
+	 * @return The total time reading from the device has been paused, in milliseconds
+	 */
+	public long getReceiveStallTime() {
+		long nanos = receiveStallNanos;
+		if (receivePaused) {
+			nanos += System.nanoTime() - stallStartTime;
+		}
+		return nanos / 1000000;
+	}
+
+	public boolean isForeground() {
+		return foreground;
+	}
+
+	public void setForeground(boolean foreground) {
+		this.foreground = foreground;
+	}
+}
@@ -14,7 +14,9 @@ public interface DeviceConnectionListener {
 	
 	public AdbCrypto loadAdbCrypto(DeviceConnection devConn);
 	
-	public boolean canReceiveData();
+	/* Returning false stops reading from the device until this returns true again
+	 * (or DeviceConnection.resumeReceiving() is called), which throttles the device */
+	public boolean canReceiveData(DeviceConnection devConn);
 	
 	public void receivedData(DeviceConnection devConn, byte[] data, int offset, int length);
 	
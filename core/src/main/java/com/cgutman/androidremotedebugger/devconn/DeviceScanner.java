@@ -0,0 +1,356 @@
+package com.cgutman.androidremotedebugger.devconn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import com.cgutman.adblib.AdbEventLoop;
+import com.cgutman.adblib.AdbEventLoopGroup;
+import com.cgutman.adblib.AdbProtocol;
+
+/**
+ * Finds network ADB endpoints by probing a range of addresses and ports. Many
+ * probes are in flight at once, all multiplexed on one event loop, and each
+ * gives up quickly if nothing answers. Optionally, a probe that connects also
+ * sends a CNXN and only counts as a hit if adbd answers with CNXN or AUTH.
+ * Results are reported as they're found, on the event loop thread.
+ */
+public class DeviceScanner {
+	public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+	public static final int DEFAULT_TIMEOUT_MS = 500;
+
+	/* The largest block that can be scanned, which is 65534 addresses */
+	public static final int MIN_PREFIX_LENGTH = 16;
+
+	/* adb tcpip listens on 5555 by default, and emulators on the odd ports from 5555 to 5585 */
+	private static final int FIRST_ADB_PORT = 5555;
+	private static final int LAST_ADB_PORT = 5585;
+
+	public interface Listener {
+		/* An endpoint accepted a connection (and answered a CNXN, if confirmation is on) */
+		void onEndpointFound(DeviceScanner scanner, InetSocketAddress address);
+
+		/* Every probe has finished, or the scan was cancelled */
+		void onScanComplete(DeviceScanner scanner);
+	}
+
+	/**
+	 * A range of IPv4 addresses
+	 */
+	public static class AddressRange {
+		private final int first;
+		private final int count;
+
+		public AddressRange(int first, int count) {
+			this.first = first;
+			this.count = count;
+		}
+
+		/**
+		 * Parses a single address ("192.168.1.20") or a CIDR block ("192.168.1.0/24").
+		 * The network and broadcast addresses of a block aren't included.
+		 */
+		public static AddressRange parse(String range) throws UnknownHostException {
+			int slash = range.indexOf('/');
+			String addressString = (slash >= 0) ? range.substring(0, slash).trim() : range.trim();
+
+			byte[] bytes = InetAddress.getByName(addressString).getAddress();
+			if (bytes.length != 4) {
+				throw new UnknownHostException("Only IPv4 ranges can be scanned");
+			}
+
+			int address = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) |
+					((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+			if (slash < 0) {
+				return new AddressRange(address, 1);
+			}
+
+			int prefix;
+			try {
+				prefix = Integer.parseInt(range.substring(slash + 1).trim());
+			} catch (NumberFormatException e) {
+				throw new UnknownHostException("Invalid prefix length in "+range);
+			}
+			if (prefix < MIN_PREFIX_LENGTH || prefix > 32) {
+				throw new UnknownHostException("Prefix length must be between "+MIN_PREFIX_LENGTH+" and 32");
+			}
+
+			int mask = (prefix == 32) ? -1 : ~(-1 >>> prefix);
+			int network = address & mask;
+			long size = 1L << (32 - prefix);
+			if (size > 2) {
+				/* Skip the network and broadcast addresses */
+				return new AddressRange(network + 1, (int)(size - 2));
+			}
+			return new AddressRange(network, (int)size);
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public InetAddress getAddress(int index) {
+			int address = first + index;
+			byte[] bytes = new byte[] {
+					(byte)(address >>> 24), (byte)(address >>> 16), (byte)(address >>> 8), (byte)address
+			};
+			try {
+				return InetAddress.getByAddress(bytes);
+			} catch (UnknownHostException e) {
+				/* Can't happen with a 4 byte address */
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return The given port followed by the ports adbd and emulators usually listen on
+	 */
+	public static int[] getCommonPorts(int port) {
+		ArrayList<Integer> ports = new ArrayList<Integer>();
+		ports.add(port);
+		for (int adbPort = FIRST_ADB_PORT; adbPort <= LAST_ADB_PORT; adbPort += 2) {
+			if (adbPort != port) {
+				ports.add(adbPort);
+			}
+		}
+
+		int[] result = new int[ports.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ports.get(i);
+		}
+		return result;
+	}
+
+	private class Probe implements AdbEventLoop.IoHandler, Runnable {
+		private final InetSocketAddress address;
+		private SocketChannel socket;
+		private SelectionKey key;
+		private AdbEventLoop.Timer timer;
+		private ByteBuffer reply;
+
+		Probe(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		void start() {
+			try {
+				socket = SocketChannel.open();
+				socket.configureBlocking(false);
+				if (socket.connect(address)) {
+					onConnected();
+				}
+				else {
+					key = loop.register(socket, SelectionKey.OP_CONNECT, this);
+					timer = loop.schedule(this, timeoutMs);
+				}
+			} catch (IOException e) {
+				finish(false);
+			}
+		}
+
+		@Override
+		public void onReady(SelectionKey key) {
+			try {
+				if (key.isConnectable()) {
+					socket.finishConnect();
+					onConnected();
+				}
+				else if (key.isReadable()) {
+					if (socket.read(reply) < 0) {
+						finish(false);
+					}
+					else if (!reply.hasRemaining()) {
+						/* Any well formed CNXN or AUTH means adbd is listening */
+						AdbProtocol.AdbMessage header = new AdbProtocol.AdbMessage();
+						finish(header.parse(reply, 0) &&
+								(header.command == AdbProtocol.CMD_CNXN || header.command == AdbProtocol.CMD_AUTH));
+					}
+				}
+			} catch (IOException e) {
+				finish(false);
+			}
+		}
+
+		@Override
+		public void onError(Exception e) {
+			finish(false);
+		}
+
+		/* The timeout */
+		@Override
+		public void run() {
+			timer = null;
+			finish(false);
+		}
+
+		private void onConnected() throws IOException {
+			if (!confirm) {
+				finish(true);
+				return;
+			}
+
+			/* A fresh socket will take a 48 byte write without blocking */
+			socket.write(ByteBuffer.wrap(AdbProtocol.generateConnect()));
+
+			reply = ByteBuffer.allocate(AdbProtocol.ADB_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			if (key == null) {
+				key = loop.register(socket, SelectionKey.OP_READ, this);
+			}
+			else {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+
+			/* Give adbd a full timeout to answer */
+			if (timer != null) {
+				timer.cancel();
+			}
+			timer = loop.schedule(this, timeoutMs);
+		}
+
+		void abort() {
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				if (socket != null) {
+					socket.close();
+				}
+			} catch (IOException ignored) {}
+		}
+
+		private void finish(boolean success) {
+			abort();
+			if (!inFlight.remove(this)) {
+				/* Already finished */
+				return;
+			}
+
+			probed++;
+			if (success) {
+				found++;
+				listener.onEndpointFound(DeviceScanner.this, address);
+			}
+
+			/* If we're finishing inside launchProbes(), its loop will start the next one */
+			if (!launching) {
+				launchProbes();
+			}
+		}
+	}
+
+	private final Listener listener;
+	private final AddressRange range;
+	private final int[] ports;
+	private final boolean confirm;
+	private final int maxInFlight;
+	private final int timeoutMs;
+	private final AdbEventLoop loop;
+
+	/* Only touched on the event loop */
+	private final ArrayList<Probe> inFlight = new ArrayList<Probe>();
+	private long nextProbe;
+	private boolean launching;
+	private boolean cancelled;
+	private boolean complete;
+
+	/* Written only on the event loop */
+	private volatile long probed;
+	private volatile int found;
+
+	public DeviceScanner(Listener listener, AddressRange range, int[] ports, boolean confirm) {
+		this(listener, range, ports, confirm, DEFAULT_MAX_IN_FLIGHT, DEFAULT_TIMEOUT_MS);
+	}
+
+	public DeviceScanner(Listener listener, AddressRange range, int[] ports, boolean confirm,
+			int maxInFlight, int timeoutMs) {
+		this.listener = listener;
+		this.range = range;
+		this.ports = ports;
+		this.confirm = confirm;
+		this.maxInFlight = maxInFlight;
+		this.timeoutMs = timeoutMs;
+		this.loop = AdbEventLoopGroup.getDefault().next();
+	}
+
+	public void start() {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				launchProbes();
+			}
+		});
+	}
+
+	/**
+	 * Stops the scan. The listener still gets onScanComplete().
+	 */
+	public void cancel() {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				cancelled = true;
+				for (Probe probe : inFlight) {
+					probe.abort();
+				}
+				inFlight.clear();
+				launchProbes();
+			}
+		});
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return The number of address and port combinations to probe. This can
+	 * pass 2^31 with a large block and many ports.
+	 */
+	public long getTotalCount() {
+		return (long)range.getCount() * ports.length;
+	}
+
+	/**
+	 * @return The number of probes that have finished
+	 */
+	public long getProbedCount() {
+		return probed;
+	}
+
+	/**
+	 * @return The number of endpoints found so far
+	 */
+	public int getFoundCount() {
+		return found;
+	}
+
+	/* Runs on the event loop */
+	private void launchProbes() {
+		long total = getTotalCount();
+		launching = true;
+		while (!cancelled && inFlight.size() < maxInFlight && nextProbe < total) {
+			long index = nextProbe++;
+			Probe probe = new Probe(new InetSocketAddress(range.getAddress((int)(index / ports.length)),
+					ports[(int)(index % ports.length)]));
+			inFlight.add(probe);
+			probe.start();
+		}
+		launching = false;
+
+		if (!complete && inFlight.isEmpty() && (cancelled || nextProbe >= total)) {
+			complete = true;
+			listener.onScanComplete(this);
+		}
+	}
+}
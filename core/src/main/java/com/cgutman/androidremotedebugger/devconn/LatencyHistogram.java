@@ -0,0 +1,137 @@
+package com.cgutman.androidremotedebugger.devconn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds. Each power of two is split into
+ * four buckets, so percentiles are within 25% of the true value. Recording
+ * takes no locks and allocates nothing, and may be done from any thread.
+ */
+public class LatencyHistogram {
+	/* Sub-buckets per power of two, as a number of bits */
+	private static final int SUB_BITS = 2;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	/* Values from 2^40 ns (about 18 minutes) up share the last bucket */
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * A copy of a histogram at one point in time
+	 */
+	public static class Snapshot {
+		private final long[] buckets;
+		private final long count;
+		private final long total;
+		private final long max;
+
+		private Snapshot(long[] buckets, long count, long total, long max) {
+			this.buckets = buckets;
+			this.count = count;
+			this.total = total;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The mean in nanoseconds, or 0 if nothing was recorded
+		 */
+		public long getMean() {
+			return count != 0 ? total / count : 0;
+		}
+
+		/**
+		 * @return The largest value recorded, in nanoseconds
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @return The value in nanoseconds that the given fraction (0 to 1) of
+		 * recorded values are at or below, or 0 if nothing was recorded
+		 */
+		public long getPercentile(double fraction) {
+			long recorded = 0;
+			for (long bucket : buckets) {
+				recorded += bucket;
+			}
+			if (recorded == 0) {
+				return 0;
+			}
+
+			long rank = Math.max(1, (long)Math.ceil(fraction * recorded));
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank) {
+					return Math.min(getUpperBound(i), max);
+				}
+			}
+			return max;
+		}
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		buckets.getAndIncrement(getBucket(nanos));
+		count.getAndIncrement();
+		total.getAndAdd(nanos);
+
+		long currentMax;
+		while (nanos > (currentMax = max.get())) {
+			if (max.compareAndSet(currentMax, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Copies the histogram. Values recorded during the copy may be partly
+	 * included, but nothing recorded is ever held up by it.
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = buckets.get(i);
+		}
+		return new Snapshot(copy, count.get(), total.get(), max.get());
+	}
+
+	private static int getBucket(long value) {
+		if (value < SUB_COUNT) {
+			return (int)value;
+		}
+
+		/* The position of the highest bit picks the power of two, and the
+		 * bits below it pick the sub-bucket */
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return Math.min(BUCKETS - 1, ((exponent - SUB_BITS + 1) << SUB_BITS) + sub);
+	}
+
+	private static long getUpperBound(int bucket) {
+		if (bucket < SUB_COUNT) {
+			return bucket;
+		}
+		else if (bucket == BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+
+		int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+		int sub = bucket & (SUB_COUNT - 1);
+		return ((long)(SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,255 @@
+package com.cgutman.androidremotedebugger.devconn;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records everything a session sends and receives into a log file that
+ * {@link SessionReplayer} can play back.
+ *
+ * The file starts with a header saying which session it is, followed by one
+ * record per packet: a 4 byte length covering the rest of the record, a 1 byte
+ * type, an 8 byte timestamp in nanoseconds since recording started, and the
+ * payload. Everything is big-endian.
+ *
+ * Recording only copies into a memory buffer. A writer thread batches the
+ * buffer out to the file, so the event loop never waits on the disk. If the
+ * disk falls too far behind, records are dropped and counted rather than
+ * buffered without bound.
+ */
+public class SessionRecorder implements Closeable {
+	static final int MAGIC = 0x52534C47; /* "RSLG" */
+	static final int VERSION = 1;
+
+	/** Data received from the device */
+	public static final byte TYPE_RECEIVED = 1;
+	/** Data sent to the device */
+	public static final byte TYPE_SENT = 2;
+
+	/* Length, type and timestamp */
+	static final int RECORD_HEADER_BYTES = 4 + 1 + 8;
+
+	/* The writer wakes up at least this often, and sooner once this much is pending */
+	private static final int FLUSH_MS = 200;
+	private static final int FLUSH_BYTES = 64 * 1024;
+
+	/* Records are dropped once this much is waiting to be written */
+	private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+	private final File file;
+	private final FileChannel channel;
+	private final long startTime;
+	private final Thread writer;
+
+	/* Records are added to pending. The writer swaps it with its own buffer to write it out. */
+	private final Object lock = new Object();
+	private ByteBuffer pending = ByteBuffer.allocate(FLUSH_BYTES * 2);
+	private ByteBuffer writing = ByteBuffer.allocate(FLUSH_BYTES * 2);
+	private boolean closing;
+
+	private volatile long recordsWritten;
+	private volatile long recordsDropped;
+	private volatile long bytesWritten;
+	private volatile IOException writeError;
+
+	/**
+	 * Creates the log file, replacing any that's already there, and starts the
+	 * writer thread
+	 */
+	public SessionRecorder(File file, DeviceConnection devConn) throws IOException {
+		this.file = file;
+		this.startTime = System.nanoTime();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		try {
+			raf.setLength(0);
+			writeFully(encodeHeader(devConn));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "Session recorder");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Records data received from the device. May be called from any thread.
+	 */
+	public void recordReceived(byte[] data, int offset, int length) {
+		record(TYPE_RECEIVED, ByteBuffer.wrap(data, offset, length));
+	}
+
+	/**
+	 * Records the remaining bytes of a packet sent to the device, without
+	 * consuming them. May be called from any thread.
+	 */
+	public void recordSent(ByteBuffer packet) {
+		record(TYPE_SENT, packet.duplicate());
+	}
+
+	public long getRecordsWritten() {
+		return recordsWritten;
+	}
+
+	/**
+	 * @return Records dropped because the disk couldn't keep up or failed
+	 */
+	public long getRecordsDropped() {
+		return recordsDropped;
+	}
+
+	/**
+	 * @return Bytes written to the file so far, including the header
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Writes out everything recorded so far and closes the file.
+	 * @throws IOException If any write failed during the recording
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			if (closing) {
+				return;
+			}
+			closing = true;
+			lock.notify();
+		}
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		channel.close();
+		if (writeError != null) {
+			throw writeError;
+		}
+	}
+
+	private void record(byte type, ByteBuffer payload) {
+		long timestamp = System.nanoTime() - startTime;
+		int recordBytes = RECORD_HEADER_BYTES + payload.remaining();
+
+		synchronized (lock) {
+			if (closing || writeError != null) {
+				recordsDropped++;
+				return;
+			}
+
+			if (pending.remaining() < recordBytes) {
+				if (pending.position() + recordBytes > MAX_PENDING_BYTES) {
+					recordsDropped++;
+					return;
+				}
+
+				/* Grow the buffer rather than wait for the writer */
+				int capacity = Math.min(MAX_PENDING_BYTES,
+						Math.max(pending.capacity() * 2, pending.position() + recordBytes));
+				ByteBuffer larger = ByteBuffer.allocate(capacity);
+				pending.flip();
+				larger.put(pending);
+				pending = larger;
+			}
+
+			pending.putInt(recordBytes - 4);
+			pending.put(type);
+			pending.putLong(timestamp);
+			pending.put(payload);
+
+			if (pending.position() >= FLUSH_BYTES) {
+				lock.notify();
+			}
+		}
+	}
+
+	private void writeLoop() {
+		while (true) {
+			boolean done;
+			synchronized (lock) {
+				if (!closing && pending.position() < FLUSH_BYTES) {
+					try {
+						lock.wait(FLUSH_MS);
+					} catch (InterruptedException e) {
+						closing = true;
+					}
+				}
+
+				/* Take everything recorded so far */
+				ByteBuffer swap = writing;
+				writing = pending;
+				pending = swap;
+				pending.clear();
+				done = closing;
+			}
+
+			writing.flip();
+			if (writing.hasRemaining() && writeError == null) {
+				try {
+					int records = countRecords(writing);
+					writeFully(writing);
+					recordsWritten += records;
+				} catch (IOException e) {
+					writeError = e;
+				}
+			}
+			writing.clear();
+
+			if (done) {
+				return;
+			}
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			bytesWritten += channel.write(buffer);
+		}
+	}
+
+	private static int countRecords(ByteBuffer buffer) {
+		int records = 0;
+		for (int i = buffer.position(); i < buffer.limit(); i += 4 + buffer.getInt(i)) {
+			records++;
+		}
+		return records;
+	}
+
+	private static ByteBuffer encodeHeader(DeviceConnection devConn) throws UnsupportedEncodingException {
+		byte[] host = devConn.getHost().getBytes("UTF-8");
+		byte[] destination = devConn.getDestination().getBytes("UTF-8");
+
+		ByteBuffer header = ByteBuffer.allocate(4 + 4 + 8 + 4 + host.length + 4 + 4 + destination.length);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putLong(System.currentTimeMillis());
+		header.putInt(host.length);
+		header.put(host);
+		header.putInt(devConn.getPort());
+		header.putInt(destination.length);
+		header.put(destination);
+		header.flip();
+		return header;
+	}
+}
@@ -0,0 +1,188 @@
+package com.cgutman.androidremotedebugger.devconn;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back a log written by {@link SessionRecorder}. The received data is
+ * fed to a listener as if it had just come from the device, either with its
+ * original timing or as fast as the listener takes it.
+ */
+public class SessionReplayer implements Closeable {
+	private static final int READ_BYTES = 64 * 1024;
+
+	/* Far beyond any ADB payload, so a larger length means the log is corrupt */
+	private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final long recordedTime;
+	private final String host;
+	private final int port;
+	private final String destination;
+
+	/* Holds records read ahead of where playback is */
+	private ByteBuffer buffer = ByteBuffer.allocate(READ_BYTES);
+
+	/**
+	 * Opens a log and reads its header
+	 * @throws IOException If the file can't be read or isn't a session log
+	 */
+	public SessionReplayer(File file) throws IOException {
+		channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			buffer.flip();
+			if (!fill(8) || buffer.getInt() != SessionRecorder.MAGIC) {
+				throw new IOException("Not a session recording: " + file);
+			}
+			int version = buffer.getInt();
+			if (version != SessionRecorder.VERSION) {
+				throw new IOException("Unsupported session recording version " + version);
+			}
+
+			recordedTime = readLong();
+			host = readString();
+			port = readInt();
+			destination = readString();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The wall clock time the recording started, in milliseconds since the epoch
+	 */
+	public long getRecordedTime() {
+		return recordedTime;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Creates an unconnected session that looks like the recorded one, for
+	 * the listener to see data arrive on
+	 */
+	public DeviceConnection createConnection(DeviceConnectionListener listener) {
+		return new DeviceConnection(listener, host, port, destination);
+	}
+
+	/**
+	 * Plays the rest of the log into a listener on the calling thread. The
+	 * listener is told the connection was established first and that the
+	 * stream closed at the end, like a live session. Data sent to the device
+	 * is skipped.
+	 * @param realTime True to wait between packets as long as the device did,
+	 * or false to deliver them as fast as possible
+	 * @return The number of bytes of received data delivered
+	 * @throws InterruptedException If interrupted while waiting between packets
+	 * @throws IOException If the log can't be read. A log cut short by a crash
+	 * is played up to the last whole record instead.
+	 */
+	public long replay(DeviceConnectionListener listener, DeviceConnection devConn, boolean realTime)
+			throws IOException, InterruptedException {
+		long delivered = 0;
+		long startTime = System.nanoTime();
+
+		listener.notifyConnectionEstablished(devConn);
+		while (fill(4)) {
+			int length = buffer.getInt(buffer.position());
+			if (length < SessionRecorder.RECORD_HEADER_BYTES - 4 || length > MAX_RECORD_BYTES ||
+					!fill(4 + length)) {
+				/* Torn or corrupt record at the end */
+				break;
+			}
+
+			buffer.getInt();
+			byte type = buffer.get();
+			long timestamp = buffer.getLong();
+			int payloadLength = length - (SessionRecorder.RECORD_HEADER_BYTES - 4);
+			int payloadOffset = buffer.position();
+			buffer.position(payloadOffset + payloadLength);
+
+			if (type != SessionRecorder.TYPE_RECEIVED) {
+				continue;
+			}
+
+			if (realTime) {
+				long waitNanos = timestamp - (System.nanoTime() - startTime);
+				if (waitNanos > 0) {
+					Thread.sleep(waitNanos / 1000000, (int)(waitNanos % 1000000));
+				}
+			}
+
+			listener.receivedData(devConn, buffer.array(), payloadOffset, payloadLength);
+			delivered += payloadLength;
+		}
+		listener.notifyStreamClosed(devConn);
+
+		return delivered;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/* Makes sure the given number of bytes are buffered, returning false at end of file */
+	private boolean fill(int bytes) throws IOException {
+		if (buffer.remaining() >= bytes) {
+			return true;
+		}
+
+		buffer.compact();
+		if (buffer.capacity() < bytes) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(bytes, buffer.capacity() * 2));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+
+		while (buffer.position() < bytes) {
+			if (channel.read(buffer) < 0) {
+				buffer.flip();
+				return false;
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+
+	private int readInt() throws IOException {
+		if (!fill(4)) {
+			throw new EOFException();
+		}
+		return buffer.getInt();
+	}
+
+	private long readLong() throws IOException {
+		if (!fill(8)) {
+			throw new EOFException();
+		}
+		return buffer.getLong();
+	}
+
+	private String readString() throws IOException {
+		int length = readInt();
+		if (length < 0 || !fill(length)) {
+			throw new EOFException();
+		}
+		String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, "UTF-8");
+		buffer.position(buffer.position() + length);
+		return value;
+	}
+}
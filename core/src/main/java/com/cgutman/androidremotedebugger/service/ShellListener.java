@@ -0,0 +1,264 @@
+package com.cgutman.androidremotedebugger.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.console.OutputFilter;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnection;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnectionListener;
+
+/**
+ * Keeps a console for each connection and fans its events out to that
+ * connection's listeners. Subclasses say where the key pair comes from.
+ * Once a session ends, its console belongs to whichever console listeners
+ * are still showing it, and is closed when the last of them is removed.
+ */
+public abstract class ShellListener implements DeviceConnectionListener {
+	/* Characters of output each console keeps in memory */
+	protected static final int TERM_LENGTH = 25000;
+	
+	/* Listeners are copy-on-write per connection, so delivering data takes no locks
+	 * and a slow listener on one device never holds up another device */
+	private final ConcurrentHashMap<DeviceConnection, CopyOnWriteArrayList<DeviceConnectionListener>> listenerMap =
+			new ConcurrentHashMap<DeviceConnection, CopyOnWriteArrayList<DeviceConnectionListener>>();
+	private final ConcurrentHashMap<DeviceConnection, ConsoleBuffer> consoleMap =
+			new ConcurrentHashMap<DeviceConnection, ConsoleBuffer>();
+	/* Consoles made before their connection was established */
+	private final ConcurrentHashMap<DeviceConnection, ConsoleBuffer> preparedConsoles =
+			new ConcurrentHashMap<DeviceConnection, ConsoleBuffer>();
+	/* Consoles of ended sessions that a listener may still be showing */
+	private final ConcurrentHashMap<DeviceConnection, ConsoleBuffer> endedConsoles =
+			new ConcurrentHashMap<DeviceConnection, ConsoleBuffer>();
+	private final ConcurrentHashMap<DeviceConnection, OutputFilter> filterMap =
+			new ConcurrentHashMap<DeviceConnection, OutputFilter>();
+	
+	public void addListener(DeviceConnection conn, DeviceConnectionListener listener) {
+		CopyOnWriteArrayList<DeviceConnectionListener> listeners = listenerMap.get(conn);
+		if (listeners == null) {
+			CopyOnWriteArrayList<DeviceConnectionListener> newListeners = new CopyOnWriteArrayList<DeviceConnectionListener>();
+			listeners = listenerMap.putIfAbsent(conn, newListeners);
+			if (listeners == null) {
+				listeners = newListeners;
+			}
+		}
+		listeners.add(listener);
+		
+		/* If the listener supports console input, we'll tell them about the console buffer
+		 * by firing them an initial console updated callback */
+		ConsoleBuffer console = consoleMap.get(conn);
+		if (console != null && listener.isConsole()) {
+			listener.consoleUpdated(conn, console);
+		}
+	}
+	
+	/**
+	 * Sets the filter that output on a connection goes through before it
+	 * reaches the console. May be called from any thread.
+	 * @param filter The filter, or null to show all output
+	 */
+	public void setOutputFilter(DeviceConnection conn, OutputFilter filter) {
+		if (filter != null) {
+			filterMap.put(conn, filter);
+		}
+		else {
+			filterMap.remove(conn);
+		}
+	}
+	
+	/**
+	 * @return The filter set on a connection, or null if there isn't one
+	 */
+	public OutputFilter getOutputFilter(DeviceConnection conn) {
+		return filterMap.get(conn);
+	}
+	
+	public void removeListener(DeviceConnection conn, DeviceConnectionListener listener) {
+		CopyOnWriteArrayList<DeviceConnectionListener> listeners = listenerMap.get(conn);
+		if (listeners != null) {
+			listeners.remove(listener);
+		}
+		
+		/* If the session is over, this may have been the last one showing its console */
+		closeIfUnwatched(conn);
+	}
+	
+	/**
+	 * Creates the console for a connection before it's established, so the
+	 * work {@link #createConsole} does happens on the calling thread rather
+	 * than on the event loop that establishes the connection.
+	 */
+	public void prepareConsole(DeviceConnection conn) {
+		ConsoleBuffer console = createConsole(conn);
+		if (preparedConsoles.putIfAbsent(conn, console) != null) {
+			console.close();
+		}
+	}
+	
+	/**
+	 * Creates the console for a new connection. Override to give it a
+	 * {@link com.cgutman.androidremotedebugger.console.Scrollback}.
+	 */
+	protected ConsoleBuffer createConsole(DeviceConnection devConn) {
+		return new ConsoleBuffer(TERM_LENGTH);
+	}
+	
+	/* Runs on the event loop once a session is over */
+	private void endSession(DeviceConnection devConn, ConsoleBuffer console) {
+		filterMap.remove(devConn);
+		endedConsoles.put(devConn, console);
+	}
+	
+	/*
+	 * Closes an ended session's console once no console listener is left.
+	 * Both ending a session and removing a listener call this after their own
+	 * change, so whichever comes second sees the other's and closes it.
+	 */
+	private void closeIfUnwatched(DeviceConnection conn) {
+		CopyOnWriteArrayList<DeviceConnectionListener> listeners = listenerMap.get(conn);
+		if (listeners != null) {
+			for (DeviceConnectionListener listener : listeners) {
+				if (listener.isConsole()) {
+					return;
+				}
+			}
+		}
+		
+		ConsoleBuffer console = endedConsoles.remove(conn);
+		if (console != null) {
+			console.close();
+		}
+	}
+
+	@Override
+	public void notifyConnectionEstablished(DeviceConnection devConn) {
+		ConsoleBuffer console = preparedConsoles.remove(devConn);
+		consoleMap.put(devConn, console != null ? console : createConsole(devConn));
+
+		CopyOnWriteArrayList<DeviceConnectionListener> listeners = listenerMap.get(devConn);
+		if (listeners != null) {
+			for (DeviceConnectionListener listener : listeners) {
+				listener.notifyConnectionEstablished(devConn);
+			}
+		}
+	}
+
+	@Override
+	public void notifyConnectionFailed(DeviceConnection devConn, Exception e) {
+		/* Nothing was ever shown in it */
+		ConsoleBuffer console = preparedConsoles.remove(devConn);
+		if (console != null) {
+			console.close();
+		}
+		
+		CopyOnWriteArrayList<DeviceConnectionListener> listeners = listenerMap.get(devConn);
+		if (listeners != null) {
+			for (DeviceConnectionListener listener : listeners) {
+				listener.notifyConnectionFailed(devConn, e);
+			}
+		}
+	}
+
+	@Override
+	public void notifyStreamFailed(DeviceConnection devConn, Exception e) {
+		/* Return if this connection has already "failed" */
+		ConsoleBuffer console = consoleMap.remove(devConn);
+		if (console == null) {
+			return;
+		}
+		endSession(devConn, console);
+
+		CopyOnWriteArrayList<DeviceConnectionListener> listeners = listenerMap.get(devConn);
+		if (listeners != null) {
+			for (DeviceConnectionListener listener : listeners) {
+				listener.notifyStreamFailed(devConn, e);
+			}
+		}
+		closeIfUnwatched(devConn);
+	}
+
+	@Override
+	public void notifyStreamClosed(DeviceConnection devConn) {
+		/* Return if this connection has already "failed" */
+		ConsoleBuffer console = consoleMap.remove(devConn);
+		if (console == null) {
+			return;
+		}
+		endSession(devConn, console);
+
+		CopyOnWriteArrayList<DeviceConnectionListener> listeners = listenerMap.get(devConn);
+		if (listeners != null) {
+			for (DeviceConnectionListener listener : listeners) {
+				listener.notifyStreamClosed(devConn);
+			}
+		}
+		closeIfUnwatched(devConn);
+	}
+
+	@Override
+	public void receivedData(DeviceConnection devConn, byte[] data,
+			int offset, int length) {
+		/* Add data to the console for this connection */
+		ConsoleBuffer console = consoleMap.get(devConn);
+		if (console != null) {
+			/* The console's terminal parser drops control characters like BEL */
+			long appendStart = System.nanoTime();
+			OutputFilter filter = filterMap.get(devConn);
+			if (filter != null) {
+				/* Dropped output never reaches the console, so if nothing got
+				 * through there's nothing to tell the listeners about */
+				long endOffset = console.getEndOffset();
+				filter.process(data, offset, length, console);
+				if (console.getEndOffset() == endOffset) {
+					return;
+				}
+			}
+			else {
+				console.append(data, offset, length);
+			}
+			devConn.getMetrics().recordConsoleAppend(System.nanoTime() - appendStart);
+			devConn.getTracer().recordAppended();
+			
+			/* Attempt to deliver a console update notification */
+			CopyOnWriteArrayList<DeviceConnectionListener> listeners = listenerMap.get(devConn);
+			if (listeners != null) {
+				for (DeviceConnectionListener listener : listeners) {
+					if (listener.isConsole()) {
+						listener.consoleUpdated(devConn, console);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean canReceiveData(DeviceConnection devConn) {
+		/* The console buffer never fills, but what it spills to disk can
+		 * outrun the disk */
+		ConsoleBuffer console = consoleMap.get(devConn);
+		if (console != null && console.isScrollbackBehind()) {
+			return false;
+		}
+
+		/* Otherwise we're only saturated if one of this connection's listeners is */
+		CopyOnWriteArrayList<DeviceConnectionListener> listeners = listenerMap.get(devConn);
+		if (listeners != null) {
+			for (DeviceConnectionListener listener : listeners) {
+				if (!listener.canReceiveData(devConn)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isConsole() {
+		return false;
+	}
+
+	@Override
+	public void consoleUpdated(DeviceConnection devConsole,
+			ConsoleBuffer console) {
+	}
+}
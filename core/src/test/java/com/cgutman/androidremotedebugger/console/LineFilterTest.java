@@ -0,0 +1,152 @@
+package com.cgutman.androidremotedebugger.console;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Filtering output as it arrives, however it's split into packets, has to
+ * keep the same lines as filtering it a line at a time.
+ */
+public class LineFilterTest {
+	private static final String[] TAGS = {"ActivityManager", "WindowManager", "PackageManager",
+			"chatty", "Zygote", "art", "中文Tag"};
+
+	private static final String[] RULES = {"activitymanager windowmanager", "-chatty -zygote",
+			"ActivityManager -/\\sV\\s/", "/E\\s+art/ zygote", "中文tag -/W\\s/", "-/^x/"};
+
+	/* The most bytes in a packet for each trial */
+	private static final int[] PACKET_SIZES = {8, 4096, 100000};
+
+	@Test
+	public void matchesLineByLineFiltering() throws Exception {
+		Random random = new Random(3);
+		String text = generateLog(random);
+		byte[] input = text.getBytes("UTF-8");
+
+		for (String rules : RULES) {
+			String expected = filterLines(text, rules);
+			for (int packetSize : PACKET_SIZES) {
+				LineFilter filter = LineFilter.parse(rules);
+				String output = process(filter, input, random, packetSize);
+
+				/* The unterminated last line may or may not have been decided yet */
+				String lines = output.substring(0, output.lastIndexOf('\n') + 1);
+				assertEquals(rules + " in packets of up to " + packetSize, expected, lines);
+			}
+		}
+	}
+
+	@Test
+	public void countsLines() throws Exception {
+		LineFilter filter = LineFilter.parse("keep");
+		byte[] input = "keep 1\ndrop\nkeep 2\ndrop\ndrop\n".getBytes("UTF-8");
+		assertEquals("keep 1\nkeep 2\n", process(filter, input, new Random(0), 3));
+		assertEquals(2, filter.getLinesKept());
+		assertEquals(3, filter.getLinesDropped());
+		assertEquals(15, filter.getBytesDropped());
+	}
+
+	@Test
+	public void keywordsIgnoreCaseInAnyLocale() throws Exception {
+		Locale defaultLocale = Locale.getDefault();
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			/* Turkish lowercases I to a dotless i */
+			LineFilter filter = LineFilter.parse("INFO");
+			byte[] input = "I/info line\nE/other\n".getBytes("UTF-8");
+			assertEquals("I/info line\n", process(filter, input, new Random(0), 64));
+		} finally {
+			Locale.setDefault(defaultLocale);
+		}
+	}
+
+	private static String process(LineFilter filter, byte[] input, Random random, int maxPacket) throws Exception {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		OutputFilter.Sink sink = new OutputFilter.Sink() {
+			@Override
+			public void append(byte[] data, int offset, int length) {
+				output.write(data, offset, length);
+			}
+		};
+
+		int position = 0;
+		while (position < input.length) {
+			int length = Math.min(input.length - position, 1 + random.nextInt(maxPacket));
+			filter.process(input, position, length, sink);
+			position += length;
+		}
+		return new String(output.toByteArray(), "UTF-8");
+	}
+
+	/* Logcat-like lines, a few very long and a few starting with x, then a line with no newline */
+	private static String generateLog(Random random) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 50000; i++) {
+			if (random.nextInt(30) == 0) {
+				text.append('x');
+			}
+			text.append("01-01 12:00:00.000 ").append("VDIWE".charAt(random.nextInt(5))).append(' ')
+					.append(TAGS[random.nextInt(TAGS.length)]).append(": msg ").append(i);
+			int padding = random.nextInt(100) == 0 ? 40000 : random.nextInt(60);
+			for (int j = 0; j < padding; j++) {
+				text.append((char)('a' + j % 26));
+			}
+			text.append('\n');
+		}
+		text.append("unterminated ActivityManager");
+		return text.toString();
+	}
+
+	/* The rules applied to each whole line on its own */
+	private static String filterLines(String text, String rules) {
+		List<String> include = new ArrayList<String>();
+		List<String> exclude = new ArrayList<String>();
+		List<Pattern> includePatterns = new ArrayList<Pattern>();
+		List<Pattern> excludePatterns = new ArrayList<Pattern>();
+		for (String rule : rules.trim().split("\\s+")) {
+			boolean excluded = rule.startsWith("-");
+			if (excluded) {
+				rule = rule.substring(1);
+			}
+			if (rule.startsWith("/")) {
+				(excluded ? excludePatterns : includePatterns).add(Pattern.compile(rule.substring(1, rule.length() - 1)));
+			}
+			else {
+				(excluded ? exclude : include).add(rule.toLowerCase(Locale.ROOT));
+			}
+		}
+
+		StringBuilder output = new StringBuilder();
+		String[] lines = text.split("\n", -1);
+		for (int i = 0; i < lines.length - 1; i++) {
+			String line = lines[i];
+			String lower = line.toLowerCase(Locale.ROOT);
+			boolean dropped = false;
+			boolean matched = include.isEmpty() && includePatterns.isEmpty();
+			for (String keyword : exclude) {
+				dropped |= lower.contains(keyword);
+			}
+			for (Pattern pattern : excludePatterns) {
+				dropped |= pattern.matcher(line).find();
+			}
+			for (String keyword : include) {
+				matched |= lower.contains(keyword);
+			}
+			for (Pattern pattern : includePatterns) {
+				matched |= pattern.matcher(line).find();
+			}
+			if (!dropped && matched) {
+				output.append(line).append('\n');
+			}
+		}
+		return output.toString();
+	}
+}
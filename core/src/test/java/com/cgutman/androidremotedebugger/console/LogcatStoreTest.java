@@ -0,0 +1,166 @@
+package com.cgutman.androidremotedebugger.console;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Structured logcat has to show the same lines whether they're filtered as
+ * they arrive or found again in the store when the query changes.
+ */
+public class LogcatStoreTest {
+	private static final String[] TAGS = {"ActivityManager", "art", "Zygote", "chatty", "WindowManager",
+			"中文ActivityTag", "a b"};
+
+	private static final String PROMPT = "shell@device:/ $ ";
+
+	private static final int CONSOLE_SIZE = 16 * 1024 * 1024;
+
+	/* Logcat lines, in order */
+	private final List<String> lines = new ArrayList<String>();
+
+	/* The priority, pid and tag of each line, or null for one that isn't a log entry */
+	private final List<int[]> entries = new ArrayList<int[]>();
+
+	@Test
+	public void queriesMatchLiveFiltering() throws Exception {
+		Random random = new Random(5);
+		byte[] input = generateLog(random);
+
+		String[] queries = {"", "W", "ActivityManager", "E art Zygote", "中文ActivityTag D",
+				String.valueOf(entries.get(5) != null ? entries.get(5)[1] : 1)};
+		for (String terms : queries) {
+			LogcatQuery query = LogcatQuery.parse(terms);
+
+			/* Lines that aren't log entries always get through */
+			StringBuilder expected = new StringBuilder();
+			for (int i = 0; i < lines.size(); i++) {
+				if (entries.get(i) == null || matches(query, entries.get(i))) {
+					expected.append(lines.get(i));
+				}
+			}
+			expected.append(PROMPT);
+
+			for (int maxLines : new int[] {1000000, 5000}) {
+				LogcatStore store = new LogcatStore(maxLines);
+				LogcatFilter filter = new LogcatFilter(store);
+				ConsoleBuffer console = new ConsoleBuffer(CONSOLE_SIZE);
+				filter.setQuery(query, CONSOLE_SIZE, console);
+
+				int position = 0;
+				while (position < input.length) {
+					int length = Math.min(input.length - position, 1 + random.nextInt(maxLines < 10000 ? 8192 : 10));
+					filter.process(input, position, length, console);
+					position += length;
+				}
+				assertEquals("live '" + terms + "'", render(expected), text(console));
+
+				/* Run the query again over what the store kept */
+				ConsoleBuffer requeried = new ConsoleBuffer(CONSOLE_SIZE);
+				int shown = filter.setQuery(query, CONSOLE_SIZE, requeried);
+				List<String> kept = new ArrayList<String>();
+				for (int i = 0; i < lines.size(); i++) {
+					if (entries.get(i) != null) {
+						kept.add(lines.get(i));
+					}
+				}
+				kept = kept.subList(kept.size() - store.getLineCount(), kept.size());
+
+				StringBuilder expectedKept = new StringBuilder();
+				int count = 0;
+				for (String line : kept) {
+					LogcatStore single = new LogcatStore(4);
+					byte[] bytes = line.getBytes("UTF-8");
+					if (single.matches(query, single.add(bytes, 0, bytes.length))) {
+						expectedKept.append(line);
+						count++;
+					}
+				}
+				assertEquals("stored '" + terms + "'", render(expectedKept), text(requeried));
+				assertEquals(count, shown);
+				assertEquals(count, store.count(query));
+			}
+		}
+	}
+
+	@Test
+	public void renderStopsAtMaxBytes() throws Exception {
+		byte[] input = generateLog(new Random(5));
+		LogcatStore store = new LogcatStore(100000);
+		LogcatFilter filter = new LogcatFilter(store);
+		ConsoleBuffer console = new ConsoleBuffer(1 << 20);
+		filter.process(input, 0, input.length, console);
+
+		int shown = filter.setQuery(LogcatQuery.ALL, 10000, console);
+		assertTrue(shown > 0 && shown < store.getLineCount());
+		assertTrue(console.length() <= 10000);
+	}
+
+	@Test
+	public void parsesPriorities() {
+		assertEquals(LogcatStore.PRIORITY_WARN, LogcatStore.getPriority((byte)'W'));
+		assertEquals('E', LogcatStore.getPriorityChar(LogcatStore.PRIORITY_ERROR));
+		assertEquals(LogcatStore.PRIORITY_WARN, LogcatQuery.parse("W").getMinPriority());
+	}
+
+	private static boolean matches(LogcatQuery query, int[] entry) {
+		return entry[0] >= query.getMinPriority() && (query.getPid() < 0 || query.getPid() == entry[1]) &&
+				query.hasTag(TAGS[entry[2]]);
+	}
+
+	/* What a console shows for some output, which has no carriage returns */
+	private static String render(CharSequence output) throws Exception {
+		ConsoleBuffer console = new ConsoleBuffer(CONSOLE_SIZE);
+		byte[] bytes = output.toString().getBytes("UTF-8");
+		console.append(bytes, 0, bytes.length);
+		return text(console);
+	}
+
+	private static String text(ConsoleBuffer console) {
+		char[] text = new char[console.getCapacity()];
+		return new String(text, 0, console.snapshot(text));
+	}
+
+	/* logcat -v threadtime output with the odd buffer banner, empty message and huge pid */
+	private byte[] generateLog(Random random) throws Exception {
+		lines.clear();
+		entries.clear();
+		for (int i = 0; i < 20000; i++) {
+			if (random.nextInt(50) == 0) {
+				lines.add("--------- beginning of main\r\n");
+				entries.add(null);
+				continue;
+			}
+
+			int priority = 2 + random.nextInt(6);
+			int pid = 1 + random.nextInt(random.nextInt(10) == 0 ? 4000000 : 3000);
+			int tid = pid + random.nextInt(50);
+			int tag = random.nextInt(TAGS.length);
+			StringBuilder message = new StringBuilder("msg " + i);
+			int padding = random.nextInt(200) == 0 ? 3000 : random.nextInt(80);
+			for (int j = 0; j < padding; j++) {
+				message.append((char)('a' + j % 26));
+			}
+			if (random.nextInt(20) == 0) {
+				message.setLength(0);
+			}
+
+			lines.add(String.format("%02d-%02d %02d:%02d:%02d.%03d %5d %5d %c %-8s: %s\r\n",
+					1 + random.nextInt(12), 1 + random.nextInt(31), random.nextInt(24), random.nextInt(60),
+					random.nextInt(60), random.nextInt(1000), pid, tid, "??VDIWEF".charAt(priority), TAGS[tag], message));
+			entries.add(new int[] {priority, pid, tag});
+		}
+
+		StringBuilder text = new StringBuilder();
+		for (String line : lines) {
+			text.append(line);
+		}
+		text.append(PROMPT);
+		return text.toString().getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,159 @@
+package com.cgutman.androidremotedebugger.console;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A console that spills to disk has to read back exactly what a console big
+ * enough to keep everything in memory would, across the ring, the chunks
+ * still waiting for the writer and the files.
+ */
+public class ScrollbackTest {
+	private static final int LINES = 20000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void matchesConsoleWithoutScrollback() throws Exception {
+		ConsoleBuffer console = new ConsoleBuffer(3000, new Scrollback(folder.getRoot(), "s", 40000));
+		ConsoleBuffer reference = new ConsoleBuffer(1 << 20);
+		appendLines(console, reference, -1, 0);
+
+		/* Only the last 40000 characters are kept, so the ring's 3000 aren't all there is */
+		assertTrue(console.getStartOffset() < console.getEndOffset() - console.getCapacity());
+		assertTrue(console.getStartOffset() >= console.getEndOffset() - 40000 - console.getCapacity());
+		console.close();
+	}
+
+	@Test
+	public void matchesAfterLimitChanges() throws Exception {
+		ConsoleBuffer console = new ConsoleBuffer(3000, new Scrollback(folder.getRoot(), "s", 40000));
+		ConsoleBuffer reference = new ConsoleBuffer(1 << 20);
+		appendLines(console, reference, 8000, 5000);
+		console.close();
+	}
+
+	@Test
+	public void closeDeletesFiles() throws Exception {
+		ConsoleBuffer console = new ConsoleBuffer(3000, new Scrollback(folder.getRoot(), "s", 40000));
+		appendLines(console, null, -1, 0);
+		assertTrue(folder.getRoot().list().length > 0);
+
+		long lastLine = console.getLastLine();
+		console.close();
+
+		/* What's in memory is still readable */
+		assertEquals(lastLine, console.getLastLine());
+		assertEquals(console.getEndOffset() - console.length(), console.getStartOffset());
+
+		/* The writer deletes the files when it gets to them */
+		for (int i = 0; i < 100 && folder.getRoot().list().length > 0; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void scrollbackFilesLeftBehindAreDeleted() throws Exception {
+		File stale = new File(folder.getRoot(), "session-1-0.txt");
+		File other = new File(folder.getRoot(), "keep.log");
+		assertTrue(stale.createNewFile());
+		assertTrue(other.createNewFile());
+
+		Scrollback.deleteAll(folder.getRoot());
+		assertTrue(!stale.exists());
+		assertTrue(other.exists());
+	}
+
+	/*
+	 * Appends the same random lines, some of them colored, to both consoles,
+	 * splitting each in two for the one under test, and compares the two
+	 * every so often. The scrollback limit changes to newLimit at line
+	 * limitLine and back up at twice that.
+	 */
+	private static void appendLines(ConsoleBuffer console, ConsoleBuffer reference, int limitLine, long newLimit)
+			throws UnsupportedEncodingException {
+		Random random = new Random(1);
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < LINES; i++) {
+			line.setLength(0);
+			line.append("line ").append(i).append(' ');
+			int length = random.nextInt(40);
+			for (int j = 0; j < length; j++) {
+				line.append((char)('a' + random.nextInt(26)));
+			}
+			if (random.nextInt(10) == 0) {
+				line.append("\033[31mred\033[0m");
+			}
+			line.append("\r\n");
+
+			byte[] bytes = line.toString().getBytes("UTF-8");
+			int split = random.nextInt(bytes.length);
+			console.append(bytes, 0, split);
+			console.append(bytes, split, bytes.length - split);
+
+			if (i == limitLine) {
+				console.setScrollbackLimit(newLimit);
+			}
+			else if (i == 2 * limitLine) {
+				console.setScrollbackLimit(100000);
+			}
+
+			if (reference != null) {
+				reference.append(bytes, 0, bytes.length);
+				if (i % 997 == 0) {
+					assertSameLines(console, reference);
+				}
+			}
+		}
+
+		if (reference != null) {
+			assertSameLines(console, reference);
+		}
+	}
+
+	private static void assertSameLines(ConsoleBuffer console, ConsoleBuffer reference) {
+		assertEquals(reference.getLastLine(), console.getLastLine());
+		assertEquals(reference.getEndOffset(), console.getEndOffset());
+
+		int first = console.getFirstLine();
+		int last = console.getLastLine();
+		ConsoleBuffer.LineWindow window = new ConsoleBuffer.LineWindow();
+		ConsoleBuffer.LineWindow expected = new ConsoleBuffer.LineWindow();
+		for (int line = last; line > first; line -= 37) {
+			/* The oldest line may be cut short, so only compare whole ones */
+			int count = console.fillWindow(window, line, 50, 100000);
+			int expectedCount = reference.fillWindow(expected, line, Math.min(50, line - first), 100000);
+			for (int i = 0; i < expectedCount; i++) {
+				int j = i + count - expectedCount;
+				assertEquals("line " + (expected.firstLine + i),
+						new String(expected.text, expected.lineStarts[i], expected.getLineLength(i)),
+						new String(window.text, window.lineStarts[j], window.getLineLength(j)));
+				for (int k = 0; k < expected.getLineLength(i); k++) {
+					assertEquals(expected.attributes[expected.lineStarts[i] + k], window.attributes[window.lineStarts[j] + k]);
+				}
+			}
+
+			long offset = console.getLineOffset(line);
+			assertEquals(reference.getLineOffset(line), offset);
+			assertEquals(line, console.getLineForOffset(offset));
+			assertEquals(reference.getLineForOffset(offset + 1), console.getLineForOffset(offset + 1));
+		}
+
+		assertEquals(-1, console.getLineOffset(first - 1));
+		assertEquals(console.getStartOffset(), console.getLineOffset(first));
+
+		/* A window bigger than what's allowed is clipped at the start */
+		console.fillWindow(window, last, 1000, 5000);
+		assertEquals(console.getLineOffset(window.firstLine) + window.clippedChars, window.startOffset);
+	}
+}
@@ -0,0 +1,135 @@
+package com.cgutman.androidremotedebugger.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnection;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnectionListener;
+
+/**
+ * An ended session's console is closed once nothing is showing it, and not
+ * before. The connections here are never started; they only identify sessions.
+ */
+public class ShellListenerTest {
+	private final ArrayList<ConsoleBuffer> consoles = new ArrayList<ConsoleBuffer>();
+	private int closedCount;
+
+	private final ShellListener shellListener = new ShellListener() {
+		@Override
+		public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+			return null;
+		}
+
+		@Override
+		protected ConsoleBuffer createConsole(DeviceConnection devConn) {
+			ConsoleBuffer console = new ConsoleBuffer(100) {
+				@Override
+				public synchronized void close() {
+					closedCount++;
+				}
+			};
+			consoles.add(console);
+			return console;
+		}
+	};
+
+	@Test
+	public void closesConsoleWhenLastViewerLeaves() {
+		DeviceConnection devConn = new DeviceConnection(shellListener, "127.0.0.1", 5555);
+		shellListener.notifyConnectionEstablished(devConn);
+		ConsoleListener viewer = new ConsoleListener();
+		shellListener.addListener(devConn, viewer);
+		assertSame(consoles.get(0), viewer.console);
+
+		/* The viewer can still scroll back through a session that's over */
+		shellListener.notifyStreamClosed(devConn);
+		assertEquals(0, closedCount);
+
+		shellListener.removeListener(devConn, viewer);
+		assertEquals(1, closedCount);
+	}
+
+	@Test
+	public void closesUnwatchedConsoleWhenSessionEnds() {
+		DeviceConnection devConn = new DeviceConnection(shellListener, "127.0.0.1", 5555);
+		ConsoleListener viewer = new ConsoleListener();
+		shellListener.addListener(devConn, viewer);
+		shellListener.notifyConnectionEstablished(devConn);
+		shellListener.removeListener(devConn, viewer);
+		assertEquals(0, closedCount);
+
+		shellListener.notifyStreamFailed(devConn, new IOException("Stream closed"));
+		assertEquals(1, closedCount);
+
+		/* A second report of the same end changes nothing */
+		shellListener.notifyStreamClosed(devConn);
+		assertEquals(1, closedCount);
+	}
+
+	@Test
+	public void usesPreparedConsole() {
+		DeviceConnection devConn = new DeviceConnection(shellListener, "127.0.0.1", 5555);
+		shellListener.prepareConsole(devConn);
+		assertEquals(1, consoles.size());
+
+		shellListener.notifyConnectionEstablished(devConn);
+		ConsoleListener viewer = new ConsoleListener();
+		shellListener.addListener(devConn, viewer);
+		assertEquals(1, consoles.size());
+		assertSame(consoles.get(0), viewer.console);
+	}
+
+	@Test
+	public void closesPreparedConsoleIfConnectionFails() {
+		DeviceConnection devConn = new DeviceConnection(shellListener, "127.0.0.1", 5555);
+		shellListener.prepareConsole(devConn);
+		shellListener.notifyConnectionFailed(devConn, new IOException("Connection refused"));
+		assertEquals(1, closedCount);
+	}
+
+	private static class ConsoleListener implements DeviceConnectionListener {
+		ConsoleBuffer console;
+
+		@Override
+		public void notifyConnectionEstablished(DeviceConnection devConn) {}
+
+		@Override
+		public void notifyConnectionFailed(DeviceConnection devConn, Exception e) {}
+
+		@Override
+		public void notifyStreamFailed(DeviceConnection devConn, Exception e) {}
+
+		@Override
+		public void notifyStreamClosed(DeviceConnection devConn) {}
+
+		@Override
+		public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+			return null;
+		}
+
+		@Override
+		public boolean canReceiveData(DeviceConnection devConn) {
+			return true;
+		}
+
+		@Override
+		public void receivedData(DeviceConnection devConn, byte[] data, int offset, int length) {}
+
+		@Override
+		public boolean isConsole() {
+			return true;
+		}
+
+		@Override
+		public void consoleUpdated(DeviceConnection devConn, ConsoleBuffer console) {
+			this.console = console;
+		}
+	}
+}
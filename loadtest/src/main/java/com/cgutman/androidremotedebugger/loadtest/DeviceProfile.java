@@ -0,0 +1,60 @@
+package com.cgutman.androidremotedebugger.loadtest;
+
+/**
+ * How a fake device behaves, both as an adbd and as a network link
+ */
+public class DeviceProfile {
+	public enum AuthMode {
+		/* Accept the connection without any AUTH exchange */
+		NONE,
+
+		/* Send a token and accept whatever signature comes back */
+		SIGNATURE,
+
+		/* Reject the first signature from a new host, then accept its public key.
+		 * Later connections from that host are accepted on their signature. */
+		PUBLIC_KEY,
+	}
+
+	public AuthMode authMode = AuthMode.NONE;
+
+	/* Largest payload the device accepts, advertised in its CNXN */
+	public int maxData = 256 * 1024;
+
+	/* Echo typed input on interactive shells, like a pty does */
+	public boolean echo = true;
+
+	/* Rate at which "flood" produces output, in bytes per second, or 0 for as fast as the host reads */
+	public long outputRate = 0;
+
+	/* Added to the delivery of every message the device sends, so it adds to every round trip */
+	public int latencyMs = 0;
+
+	/* Cap on the bytes per second the device sends, or 0 for no cap */
+	public long bandwidth = 0;
+
+	/* Fraction of messages that are "lost" and delayed by a retransmission timeout */
+	public double lossRate = 0;
+
+	/* Canned command output for the shell, or null for just the builtins */
+	public ShellScript script;
+
+	public DeviceProfile() {}
+
+	public DeviceProfile(DeviceProfile other) {
+		this.authMode = other.authMode;
+		this.maxData = other.maxData;
+		this.echo = other.echo;
+		this.outputRate = other.outputRate;
+		this.latencyMs = other.latencyMs;
+		this.bandwidth = other.bandwidth;
+		this.lossRate = other.lossRate;
+		this.script = other.script;
+	}
+
+	@Override
+	public String toString() {
+		return "auth="+authMode+" echo="+echo+" outputRate="+outputRate+" latencyMs="+latencyMs+
+				" bandwidth="+bandwidth+" loss="+lossRate+" script="+(script != null);
+	}
+}
@@ -0,0 +1,305 @@
+package com.cgutman.androidremotedebugger.loadtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cgutman.adblib.AdbCrypto;
+
+/**
+ * Any number of fake network ADB devices on the loopback interface, each
+ * listening on its own port. One thread accepts connections for all of them,
+ * each connection has a thread reading from the host, and a small shared pool
+ * runs timers and sends everything the devices write.
+ */
+public class FakeAdbd implements Closeable {
+	/* Every thread we start has this prefix, so load tests can tell ours from the host's */
+	public static final String THREAD_PREFIX = "Fake adbd";
+
+	private static final int SCHEDULER_THREADS = 4;
+
+	/**
+	 * One fake device
+	 */
+	public class Device {
+		private final ServerSocketChannel serverChannel;
+		private final DeviceProfile profile;
+
+		/* Public keys (modulus and exponent) of hosts the "user" has allowed */
+		private final CopyOnWriteArrayList<BigInteger[]> authorizedKeys = new CopyOnWriteArrayList<BigInteger[]>();
+
+		private Device(ServerSocketChannel serverChannel, DeviceProfile profile) {
+			this.serverChannel = serverChannel;
+			this.profile = profile;
+		}
+
+		public int getPort() {
+			return serverChannel.socket().getLocalPort();
+		}
+
+		public DeviceProfile getProfile() {
+			return profile;
+		}
+
+		void authorize(BigInteger modulus, BigInteger exponent) {
+			authorizedKeys.add(new BigInteger[] {modulus, exponent});
+		}
+
+		/**
+		 * @return True if the signature of the token is from an authorized key
+		 */
+		boolean verify(byte[] token, byte[] signature) {
+			BigInteger expected = new BigInteger(1, concat(AdbCrypto.SIGNATURE_PADDING, token));
+			BigInteger sig = new BigInteger(1, signature);
+			for (BigInteger[] key : authorizedKeys) {
+				if (sig.modPow(key[1], key[0]).equals(expected)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private final Selector selector;
+	private final Thread acceptThread;
+	private final ScheduledExecutorService scheduler;
+	private final ConcurrentLinkedQueue<ServerSocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<ServerSocketChannel>();
+	private final CopyOnWriteArrayList<Device> devices = new CopyOnWriteArrayList<Device>();
+	private final CopyOnWriteArrayList<FakeDeviceConnection> connections = new CopyOnWriteArrayList<FakeDeviceConnection>();
+	private volatile boolean closed;
+
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong totalConnections = new AtomicLong();
+
+	public FakeAdbd() throws IOException {
+		selector = Selector.open();
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, THREAD_PREFIX+" scheduler #"+threadCount.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, THREAD_PREFIX+" accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	/**
+	 * Starts a device listening on the given port, or any free port if it's 0
+	 */
+	public Device addDevice(DeviceProfile profile, int port) throws IOException {
+		return addDevice(profile, InetAddress.getLoopbackAddress(), port);
+	}
+
+	/**
+	 * Starts a device listening on a loopback address other than the usual one.
+	 * Linux answers on all of 127.0.0.0/8, so many devices can share a port.
+	 */
+	public Device addDevice(DeviceProfile profile, InetAddress address, int port) throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.socket().bind(new InetSocketAddress(address, port), 128);
+			serverChannel.configureBlocking(false);
+		} catch (IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+
+		Device device = new Device(serverChannel, new DeviceProfile(profile));
+		devices.add(device);
+
+		/* Channels have to be registered on the selector's own thread */
+		pendingRegistrations.add(serverChannel);
+		selector.wakeup();
+		return device;
+	}
+
+	public ArrayList<Device> getDevices() {
+		return new ArrayList<Device>(devices);
+	}
+
+	public String getHost() {
+		return InetAddress.getLoopbackAddress().getHostAddress();
+	}
+
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	public long getTotalConnections() {
+		return totalConnections.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	void addBytesSent(long bytes) {
+		bytesSent.addAndGet(bytes);
+	}
+
+	void addBytesReceived(long bytes) {
+		bytesReceived.addAndGet(bytes);
+	}
+
+	void connectionClosed(FakeDeviceConnection connection) {
+		connections.remove(connection);
+	}
+
+	private Device findDevice(ServerSocketChannel serverChannel) {
+		for (Device device : devices) {
+			if (device.serverChannel == serverChannel) {
+				return device;
+			}
+		}
+		return null;
+	}
+
+	private void acceptLoop() {
+		while (!closed) {
+			try {
+				selector.select();
+
+				ServerSocketChannel pending;
+				while ((pending = pendingRegistrations.poll()) != null) {
+					pending.register(selector, SelectionKey.OP_ACCEPT);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					ServerSocketChannel serverChannel = (ServerSocketChannel)key.channel();
+					SocketChannel socketChannel;
+					while ((socketChannel = serverChannel.accept()) != null) {
+						/* Each connection gets a thread doing blocking reads */
+						socketChannel.configureBlocking(true);
+						socketChannel.socket().setTcpNoDelay(true);
+
+						FakeDeviceConnection connection = new FakeDeviceConnection(this,
+								findDevice(serverChannel), socketChannel);
+						connections.add(connection);
+						totalConnections.incrementAndGet();
+
+						Thread thread = new Thread(connection, THREAD_PREFIX+" connection :"+serverChannel.socket().getLocalPort());
+						thread.setDaemon(true);
+						thread.start();
+					}
+				}
+			} catch (IOException e) {
+				if (!closed) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/* Closed here rather than in close(), which could pull it out from under select() */
+		try {
+			selector.close();
+		} catch (IOException ignored) {}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		selector.wakeup();
+
+		for (Device device : devices) {
+			device.serverChannel.close();
+		}
+		for (FakeDeviceConnection connection : connections) {
+			connection.close();
+		}
+
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Reads a public key in adbd's format: the base64 encoded key struct
+	 * followed by a space and a name
+	 * @return The modulus and exponent
+	 */
+	static BigInteger[] parsePublicKey(byte[] payload) throws IOException {
+		String text = new String(payload, "UTF-8");
+		int end = text.indexOf(' ');
+		if (end < 0) {
+			end = text.indexOf('\0');
+		}
+		if (end < 0) {
+			end = text.length();
+		}
+
+		byte[] struct;
+		try {
+			struct = java.util.Base64.getDecoder().decode(text.substring(0, end));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Malformed public key");
+		}
+
+		/* Word count, n0inv, modulus words, rr words, then the exponent */
+		ByteBuffer buffer = ByteBuffer.wrap(struct).order(ByteOrder.LITTLE_ENDIAN);
+		int words = buffer.getInt();
+		if (words <= 0 || struct.length < 12 + (words * 8)) {
+			throw new IOException("Malformed public key");
+		}
+		buffer.getInt();
+
+		byte[] modulus = new byte[words * 4];
+		for (int i = 0; i < words; i++) {
+			int word = buffer.getInt();
+			int pos = modulus.length - ((i + 1) * 4);
+			modulus[pos] = (byte)(word >>> 24);
+			modulus[pos + 1] = (byte)(word >>> 16);
+			modulus[pos + 2] = (byte)(word >>> 8);
+			modulus[pos + 3] = (byte)word;
+		}
+		buffer.position(buffer.position() + (words * 4));
+		int exponent = buffer.getInt();
+
+		return new BigInteger[] {new BigInteger(1, modulus), BigInteger.valueOf(exponent & 0xFFFFFFFFL)};
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = new byte[a.length + b.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+}
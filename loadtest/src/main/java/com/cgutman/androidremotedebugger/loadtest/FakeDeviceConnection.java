@@ -0,0 +1,329 @@
+package com.cgutman.androidremotedebugger.loadtest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.cgutman.adblib.AdbProtocol;
+
+/**
+ * One host's connection to a fake device. A thread reads and handles the
+ * host's messages. Messages to the host are shaped to the device's latency,
+ * bandwidth and loss settings and written by the shared scheduler. All state
+ * is guarded by the connection.
+ */
+class FakeDeviceConnection implements Runnable {
+	/* How long TCP takes to notice a lost segment and resend it */
+	private static final long RETRANSMIT_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(200);
+
+	/* Messages due within this long are sent now rather than scheduled */
+	private static final long SEND_SLACK_NS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private static final byte[] DEVICE_BANNER = "device::ro.product.name=fake;ro.product.model=FakeAdbd;ro.product.device=fake;\0".getBytes();
+
+	private static class Outgoing {
+		final long deliverAt;
+		final ByteBuffer message;
+
+		Outgoing(long deliverAt, ByteBuffer message) {
+			this.deliverAt = deliverAt;
+			this.message = message;
+		}
+	}
+
+	private final FakeAdbd server;
+	private final FakeAdbd.Device device;
+	private final DeviceProfile profile;
+	private final SocketChannel socket;
+	private final Random random = new Random();
+
+	private final HashMap<Integer, FakeShell> streams = new HashMap<Integer, FakeShell>();
+	private int nextLocalId = 1;
+	private int hostMaxData = AdbProtocol.CONNECT_MAXDATA;
+	private boolean connected;
+	private byte[] token;
+	private boolean closed;
+
+	/* The simulated link to the host */
+	private final ArrayDeque<Outgoing> outbox = new ArrayDeque<Outgoing>();
+	private long linkFreeAt;
+	private long lastDeliverAt;
+	private boolean drainScheduled;
+
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	FakeDeviceConnection(FakeAdbd server, FakeAdbd.Device device, SocketChannel socket) {
+		this.server = server;
+		this.device = device;
+		this.profile = device.getProfile();
+		this.socket = socket;
+	}
+
+	@Override
+	public void run() {
+		ByteBuffer header = ByteBuffer.allocate(AdbProtocol.ADB_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		AdbProtocol.AdbMessage message = new AdbProtocol.AdbMessage();
+
+		try {
+			for (;;) {
+				header.clear();
+				readFully(header);
+				if (!message.parse(header, 0)) {
+					throw new IOException("Malformed header");
+				}
+				if (message.payloadLength > Math.max(profile.maxData, AdbProtocol.CONNECT_MAXDATA)) {
+					throw new IOException("Payload too large");
+				}
+
+				ByteBuffer payload = ByteBuffer.allocate(message.payloadLength);
+				readFully(payload);
+				server.addBytesReceived(AdbProtocol.ADB_HEADER_LENGTH + message.payloadLength);
+
+				synchronized (this) {
+					if (closed) {
+						break;
+					}
+					handleMessage(message, payload.array());
+				}
+			}
+		} catch (IOException ignored) {
+		} finally {
+			close();
+		}
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (socket.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private void handleMessage(AdbProtocol.AdbMessage message, byte[] payload) throws IOException {
+		FakeShell shell;
+
+		switch (message.command) {
+		case AdbProtocol.CMD_CNXN:
+			hostMaxData = Math.max(1, message.arg1);
+			if (profile.authMode == DeviceProfile.AuthMode.NONE) {
+				sendConnect();
+			}
+			else {
+				sendToken();
+			}
+			break;
+
+		case AdbProtocol.CMD_AUTH:
+			if (token == null) {
+				throw new IOException("Unexpected AUTH");
+			}
+
+			if (message.arg0 == AdbProtocol.AUTH_TYPE_SIGNATURE) {
+				if (profile.authMode == DeviceProfile.AuthMode.SIGNATURE || device.verify(token, payload)) {
+					sendConnect();
+				}
+				else {
+					/* Unknown key, so ask again and the host will offer its public key */
+					sendToken();
+				}
+			}
+			else if (message.arg0 == AdbProtocol.AUTH_TYPE_RSA_PUBLIC) {
+				/* The user says yes */
+				BigInteger[] key = FakeAdbd.parsePublicKey(payload);
+				device.authorize(key[0], key[1]);
+				sendConnect();
+			}
+			break;
+
+		case AdbProtocol.CMD_OPEN:
+			if (!connected) {
+				throw new IOException("OPEN before the connection was authorized");
+			}
+
+			String destination = new String(payload, 0, Math.max(0, payload.length - 1), "UTF-8");
+			String command = FakeShell.getCommand(destination);
+			if (command == null) {
+				send(AdbProtocol.CMD_CLSE, 0, message.arg0, null);
+				break;
+			}
+
+			shell = new FakeShell(this, profile, nextLocalId++, message.arg0, command);
+			streams.put(shell.getLocalId(), shell);
+			send(AdbProtocol.CMD_OKAY, shell.getLocalId(), shell.getRemoteId(), null);
+			shell.start();
+			break;
+
+		case AdbProtocol.CMD_WRTE:
+			shell = streams.get(message.arg1);
+			if (shell != null) {
+				send(AdbProtocol.CMD_OKAY, shell.getLocalId(), shell.getRemoteId(), null);
+				shell.onData(payload);
+			}
+			break;
+
+		case AdbProtocol.CMD_OKAY:
+			shell = streams.get(message.arg1);
+			if (shell != null) {
+				shell.onAcknowledged();
+			}
+			break;
+
+		case AdbProtocol.CMD_CLSE:
+			shell = streams.remove(message.arg1);
+			if (shell != null) {
+				shell.onClosed();
+				send(AdbProtocol.CMD_CLSE, shell.getLocalId(), shell.getRemoteId(), null);
+			}
+			break;
+		}
+	}
+
+	private void sendToken() throws IOException {
+		token = new byte[20];
+		random.nextBytes(token);
+		send(AdbProtocol.CMD_AUTH, AdbProtocol.AUTH_TYPE_TOKEN, 0, token);
+	}
+
+	private void sendConnect() throws IOException {
+		connected = true;
+		send(AdbProtocol.CMD_CNXN, AdbProtocol.CONNECT_VERSION, profile.maxData, DEVICE_BANNER);
+	}
+
+	ScheduledExecutorService getScheduler() {
+		return server.getScheduler();
+	}
+
+	/* Called with the connection locked */
+	int getHostMaxData() {
+		return hostMaxData;
+	}
+
+	/* Called with the connection locked */
+	void closeStream(FakeShell shell) {
+		if (streams.remove(shell.getLocalId()) != null) {
+			shell.onClosed();
+			send(AdbProtocol.CMD_CLSE, shell.getLocalId(), shell.getRemoteId(), null);
+		}
+	}
+
+	/**
+	 * Queues a message for the host, delivered when the simulated link would
+	 * get it there. Called with the connection locked.
+	 */
+	void send(int command, int arg0, int arg1, byte[] payload) {
+		if (closed) {
+			return;
+		}
+
+		ByteBuffer message = ByteBuffer.wrap(AdbProtocol.generateMessage(command, arg0, arg1, payload));
+
+		/* Wait for the link to finish sending what's ahead of us, then for our own bytes */
+		long now = System.nanoTime();
+		long start = Math.max(now, linkFreeAt);
+		if (profile.bandwidth > 0) {
+			linkFreeAt = start + (message.remaining() * 1000000000L / profile.bandwidth);
+		}
+		else {
+			linkFreeAt = start;
+		}
+
+		long deliverAt = linkFreeAt + TimeUnit.MILLISECONDS.toNanos(profile.latencyMs);
+		if (profile.lossRate > 0 && random.nextDouble() < profile.lossRate) {
+			deliverAt += RETRANSMIT_TIMEOUT_NS;
+		}
+
+		/* Like TCP, nothing overtakes a message that's held up */
+		deliverAt = Math.max(deliverAt, lastDeliverAt);
+		lastDeliverAt = deliverAt;
+
+		outbox.add(new Outgoing(deliverAt, message));
+		if (!drainScheduled) {
+			drainScheduled = true;
+			server.getScheduler().schedule(drainTask, Math.max(0, deliverAt - now), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/* Runs on the scheduler. Only one drain is ever scheduled at a time. */
+	private void drain() {
+		ArrayList<ByteBuffer> due = new ArrayList<ByteBuffer>();
+
+		for (;;) {
+			synchronized (this) {
+				due.clear();
+
+				long now = System.nanoTime();
+				Outgoing next;
+				while ((next = outbox.peek()) != null && next.deliverAt <= now + SEND_SLACK_NS) {
+					due.add(outbox.poll().message);
+				}
+
+				if (due.isEmpty()) {
+					if (next == null || closed) {
+						drainScheduled = false;
+					}
+					else {
+						server.getScheduler().schedule(drainTask, next.deliverAt - now, TimeUnit.NANOSECONDS);
+					}
+					return;
+				}
+			}
+
+			/* Write outside the lock so the reader keeps going */
+			try {
+				long bytes = 0;
+				for (ByteBuffer message : due) {
+					bytes += message.remaining();
+				}
+				ByteBuffer[] buffers = due.toArray(new ByteBuffer[due.size()]);
+				while (bytes > 0) {
+					long written = socket.write(buffers);
+					server.addBytesSent(written);
+					bytes -= written;
+				}
+			} catch (IOException e) {
+				close();
+				return;
+			}
+		}
+	}
+
+	void close() {
+		ArrayList<FakeShell> shells;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			outbox.clear();
+
+			shells = new ArrayList<FakeShell>(streams.values());
+			streams.clear();
+		}
+
+		for (FakeShell shell : shells) {
+			synchronized (this) {
+				shell.onClosed();
+			}
+		}
+
+		try {
+			socket.close();
+		} catch (IOException ignored) {}
+		server.connectionClosed(this);
+	}
+}
@@ -0,0 +1,424 @@
+package com.cgutman.androidremotedebugger.loadtest;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.cgutman.adblib.AdbProtocol;
+
+/**
+ * A shell stream on a fake device. Interactive shells ("shell:") print a
+ * prompt and, if the profile says so, echo input. Command streams
+ * ("shell:cmd" or "exec:cmd") run the commands, separated by newlines or
+ * semicolons, and close. Commands come from the profile's script first, then
+ * these builtins:
+ *
+ *   echo ARGS        prints ARGS, with $? replaced by the last exit status
+ *   true, false      exit with 0 or 1
+ *   getprop [NAME]   prints a few fake properties
+ *   sleep SECONDS    waits
+ *   flood [BYTES]    prints lines at the profile's output rate until BYTES
+ *                    are printed or Ctrl+C is received
+ *   exit [STATUS]    closes the shell
+ *
+ * All methods are called with the connection locked.
+ */
+class FakeShell {
+	private static final String PROMPT = "fake:/ $ ";
+
+	/* Most output we buffer ahead of the host, so flood respects backpressure */
+	private static final int MAX_PENDING = 64 * 1024;
+
+	private static final int FLOOD_TICK_MS = 10;
+
+	private final FakeDeviceConnection connection;
+	private final DeviceProfile profile;
+	private final int localId;
+	private final int remoteId;
+
+	/* Null for an interactive shell */
+	private final String command;
+
+	/* Output waiting for the host to acknowledge the last WRTE */
+	private byte[] pending = new byte[1024];
+	private int pendingLength;
+	private boolean writable = true;
+
+	private final StringBuilder inputLine = new StringBuilder();
+	private final ArrayDeque<String> commandQueue = new ArrayDeque<String>();
+	private int lastStatus;
+	private boolean closing;
+	private boolean closed;
+
+	/* The running sleep or flood, if any */
+	private ScheduledFuture<?> task;
+	private long floodRemaining;
+	private long floodLine;
+	private long floodLastTick;
+	private double floodBudget;
+
+	static String getCommand(String destination) {
+		if (destination.startsWith("shell:")) {
+			return destination.substring(6);
+		}
+		else if (destination.startsWith("exec:")) {
+			return destination.substring(5);
+		}
+		return null;
+	}
+
+	FakeShell(FakeDeviceConnection connection, DeviceProfile profile, int localId, int remoteId, String command) {
+		this.connection = connection;
+		this.profile = profile;
+		this.localId = localId;
+		this.remoteId = remoteId;
+		this.command = command.isEmpty() ? null : command;
+	}
+
+	int getLocalId() {
+		return localId;
+	}
+
+	int getRemoteId() {
+		return remoteId;
+	}
+
+	private boolean isInteractive() {
+		return command == null;
+	}
+
+	void start() {
+		if (isInteractive()) {
+			print(PROMPT);
+		}
+		else {
+			for (String line : command.split("[\n;]")) {
+				commandQueue.add(line);
+			}
+			runCommands();
+		}
+	}
+
+	void onData(byte[] data) {
+		/* Command streams ignore input */
+		if (!isInteractive()) {
+			return;
+		}
+
+		for (byte b : data) {
+			if (b == 0x03) {
+				interrupt();
+			}
+			else if (b == '\r' || b == '\n') {
+				if (profile.echo) {
+					print("\n");
+				}
+				commandQueue.add(inputLine.toString());
+				inputLine.setLength(0);
+			}
+			else if (b == 0x7f || b == 0x08) {
+				if (inputLine.length() > 0) {
+					inputLine.setLength(inputLine.length() - 1);
+					if (profile.echo) {
+						print("\b \b");
+					}
+				}
+			}
+			else {
+				inputLine.append((char)(b & 0xFF));
+				if (profile.echo) {
+					write(new byte[] {b}, 0, 1);
+				}
+			}
+		}
+
+		runCommands();
+	}
+
+	void onAcknowledged() {
+		writable = true;
+		pump();
+	}
+
+	void onClosed() {
+		closed = true;
+		cancelTask();
+	}
+
+	/* Runs queued commands until one has to wait */
+	private void runCommands() {
+		boolean ranAny = false;
+		while (task == null && !closing && !closed) {
+			String line = commandQueue.poll();
+			if (line == null) {
+				break;
+			}
+			runCommand(line.trim());
+			ranAny = true;
+		}
+
+		if (task != null || closing || closed) {
+			return;
+		}
+
+		if (isInteractive()) {
+			if (ranAny) {
+				print(PROMPT);
+			}
+		}
+		else {
+			finish();
+		}
+	}
+
+	private void runCommand(String line) {
+		if (line.isEmpty()) {
+			return;
+		}
+
+		if (profile.script != null) {
+			ShellScript.Response response = profile.script.lookup(line);
+			if (response != null) {
+				print(response.output);
+				lastStatus = response.status;
+				return;
+			}
+		}
+
+		String[] args = line.split("\\s+");
+		String name = args[0];
+
+		if (name.equals("echo")) {
+			print(line.substring(4).trim().replace("$?", Integer.toString(lastStatus))+"\n");
+			lastStatus = 0;
+		}
+		else if (name.equals("true")) {
+			lastStatus = 0;
+		}
+		else if (name.equals("false")) {
+			lastStatus = 1;
+		}
+		else if (name.equals("getprop")) {
+			if (args.length == 1) {
+				print("[ro.build.fingerprint]: ["+getProperty("ro.build.fingerprint")+"]\n"+
+						"[ro.product.model]: ["+getProperty("ro.product.model")+"]\n");
+			}
+			else {
+				print(getProperty(args[1])+"\n");
+			}
+			lastStatus = 0;
+		}
+		else if (name.equals("sleep")) {
+			double seconds;
+			try {
+				seconds = (args.length > 1) ? Double.parseDouble(args[1]) : 0;
+			} catch (NumberFormatException e) {
+				print("sleep: invalid number '"+args[1]+"'\n");
+				lastStatus = 1;
+				return;
+			}
+
+			lastStatus = 0;
+			task = connection.getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (connection) {
+						if (closed) {
+							return;
+						}
+						task = null;
+						runCommands();
+					}
+				}
+			}, (long)(seconds * 1000000), TimeUnit.MICROSECONDS);
+		}
+		else if (name.equals("flood")) {
+			try {
+				floodRemaining = (args.length > 1) ? Long.parseLong(args[1]) : Long.MAX_VALUE;
+			} catch (NumberFormatException e) {
+				print("flood: invalid count '"+args[1]+"'\n");
+				lastStatus = 1;
+				return;
+			}
+
+			lastStatus = 0;
+			floodLastTick = System.nanoTime();
+			floodBudget = 0;
+			task = connection.getScheduler().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (connection) {
+						if (!closed) {
+							pump();
+						}
+					}
+				}
+			}, 0, FLOOD_TICK_MS, TimeUnit.MILLISECONDS);
+		}
+		else if (name.equals("exit")) {
+			try {
+				lastStatus = (args.length > 1) ? Integer.parseInt(args[1]) : lastStatus;
+			} catch (NumberFormatException ignored) {}
+			finish();
+		}
+		else {
+			print("/system/bin/sh: "+name+": not found\n");
+			lastStatus = 127;
+		}
+	}
+
+	private static String getProperty(String name) {
+		if (name.equals("ro.build.fingerprint")) {
+			return "fake/fakeadbd/fake:13/FAKE.1/1:userdebug/test-keys";
+		}
+		else if (name.equals("ro.product.model")) {
+			return "FakeAdbd";
+		}
+		return "";
+	}
+
+	private void interrupt() {
+		commandQueue.clear();
+		inputLine.setLength(0);
+		if (task != null) {
+			cancelTask();
+			lastStatus = 130;
+		}
+		print("^C\n"+PROMPT);
+	}
+
+	private void cancelTask() {
+		if (task != null) {
+			task.cancel(false);
+			task = null;
+		}
+	}
+
+	/* Closes the stream once everything has been sent */
+	private void finish() {
+		closing = true;
+		pump();
+	}
+
+	/* Adds flood output allowed by the rate limit and the room we have */
+	private void refillFlood() {
+		long now = System.nanoTime();
+		int room = MAX_PENDING - pendingLength;
+		long amount;
+		if (profile.outputRate > 0) {
+			floodBudget = Math.min(MAX_PENDING, floodBudget + (profile.outputRate * (now - floodLastTick) / 1e9));
+			amount = Math.min(room, (long)floodBudget);
+		}
+		else {
+			amount = room;
+		}
+		floodLastTick = now;
+		amount = Math.min(amount, floodRemaining);
+		if (amount <= 0) {
+			return;
+		}
+
+		floodBudget -= amount;
+		floodRemaining -= amount;
+
+		/* Fixed width lines, so any amount is easy to produce */
+		ensureCapacity(pendingLength + (int)amount);
+		byte[] line = getFloodLine();
+		for (int i = 0; i < amount; i++) {
+			int column = (int)(floodLine % line.length);
+			pending[pendingLength++] = line[column];
+			if (++floodLine % line.length == 0) {
+				line = getFloodLine();
+			}
+		}
+
+		if (floodRemaining == 0) {
+			task.cancel(false);
+			task = null;
+			runCommands();
+		}
+	}
+
+	private byte[] getFloodLine() {
+		String number = Long.toString(floodLine / 64);
+		StringBuilder sb = new StringBuilder(64);
+		sb.append("flood ");
+		for (int i = number.length(); i < 12; i++) {
+			sb.append('0');
+		}
+		sb.append(number).append(' ');
+		while (sb.length() < 63) {
+			sb.append('x');
+		}
+		sb.append('\n');
+		return ascii(sb.toString());
+	}
+
+	private void print(String text) {
+		byte[] data;
+		try {
+			/* Interactive shells run on a pty, which turns \n into \r\n */
+			data = (isInteractive() ? text.replace("\n", "\r\n") : text).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return;
+		}
+		write(data, 0, data.length);
+	}
+
+	private void write(byte[] data, int offset, int length) {
+		if (closed) {
+			return;
+		}
+
+		ensureCapacity(pendingLength + length);
+		System.arraycopy(data, offset, pending, pendingLength, length);
+		pendingLength += length;
+		pump();
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > pending.length) {
+			byte[] newPending = new byte[Math.max(capacity, pending.length * 2)];
+			System.arraycopy(pending, 0, newPending, 0, pendingLength);
+			pending = newPending;
+		}
+	}
+
+	/* Sends the next chunk of output if the host is ready for it */
+	private void pump() {
+		if (closed || !writable) {
+			return;
+		}
+
+		if (task != null && floodRemaining > 0) {
+			/* Finishing the flood can print the prompt, which sends it */
+			refillFlood();
+			if (closed || !writable) {
+				return;
+			}
+		}
+
+		if (pendingLength > 0) {
+			int length = Math.min(pendingLength, connection.getHostMaxData());
+			byte[] chunk = new byte[length];
+			System.arraycopy(pending, 0, chunk, 0, length);
+			System.arraycopy(pending, length, pending, 0, pendingLength - length);
+			pendingLength -= length;
+
+			writable = false;
+			connection.send(AdbProtocol.CMD_WRTE, localId, remoteId, chunk);
+		}
+		else if (closing) {
+			connection.closeStream(this);
+		}
+	}
+
+	private static byte[] ascii(String text) {
+		byte[] bytes = new byte[text.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)text.charAt(i);
+		}
+		return bytes;
+	}
+}
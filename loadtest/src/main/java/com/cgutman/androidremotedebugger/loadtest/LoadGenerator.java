@@ -0,0 +1,463 @@
+package com.cgutman.androidremotedebugger.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.cgutman.adblib.AdbBase64;
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.devconn.CommandTracer;
+import com.cgutman.androidremotedebugger.devconn.ConnectionMetrics;
+import com.cgutman.androidremotedebugger.devconn.DeviceChannelManager;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnection;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnectionListener;
+import com.cgutman.androidremotedebugger.devconn.LatencyHistogram;
+import com.cgutman.androidremotedebugger.devconn.SessionRecorder;
+
+/**
+ * Connects to many fake devices through DeviceConnection and reports what it
+ * costs the host: connect latency, throughput, threads and memory per device.
+ * The devices run in this process unless --connect points at a separate
+ * "--serve" process, which keeps their threads and memory out of the numbers.
+ */
+public class LoadGenerator {
+	private static final String USAGE =
+			"Usage: LoadGenerator [options]\n"+
+			"  --devices N          Number of devices (default 100)\n"+
+			"  --sessions N         Shell sessions per device (default 1)\n"+
+			"  --duration SECONDS   How long to run after starting the sessions (default 30)\n"+
+			"  --command CMD        Sent to each shell once it opens (default \"flood\")\n"+
+			"  --connect HOST:PORT  Use devices at HOST on ports PORT to PORT+N-1 instead of starting them\n"+
+			"  --serve PORT         Only run devices, on ports PORT to PORT+N-1, until killed\n"+
+			"  --metrics FILE       Write each session's metrics to FILE as CSV at the end\n"+
+			"  --record DIR         Record each session into DIR for ReplaySession (adds a thread per session)\n"+
+			"Device options:\n"+
+			"  --auth MODE          none, signature or public-key (default none)\n"+
+			"  --no-echo            Don't echo shell input\n"+
+			"  --output-rate BPS    Bytes per second that flood writes per shell (default unlimited)\n"+
+			"  --latency MS         Added to every round trip (default 0)\n"+
+			"  --bandwidth BPS      Cap on bytes per second each connection sends (default unlimited)\n"+
+			"  --loss FRACTION      Fraction of messages held up by a retransmission timeout (default 0)\n"+
+			"  --script FILE        Canned command output, see ShellScript\n";
+
+	private static class Session implements DeviceConnectionListener {
+		final int device;
+		final String command;
+		final long startTime = System.nanoTime();
+		volatile long connectTime = -1;
+		volatile long bytesReceived;
+		volatile boolean failed;
+		DeviceConnection devConn;
+
+		Session(int device, String command) {
+			this.device = device;
+			this.command = command;
+		}
+
+		@Override
+		public void notifyConnectionEstablished(DeviceConnection devConn) {
+			connectTime = System.nanoTime() - startTime;
+		}
+
+		@Override
+		public void notifyConnectionFailed(DeviceConnection devConn, Exception e) {
+			failed = true;
+			System.err.println("Device "+device+" failed to connect: "+e.getMessage());
+		}
+
+		@Override
+		public void notifyStreamFailed(DeviceConnection devConn, Exception e) {
+			failed = true;
+		}
+
+		@Override
+		public void notifyStreamClosed(DeviceConnection devConn) {}
+
+		@Override
+		public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+			return crypto;
+		}
+
+		@Override
+		public boolean canReceiveData(DeviceConnection devConn) {
+			return true;
+		}
+
+		@Override
+		public void receivedData(DeviceConnection devConn, byte[] data, int offset, int length) {
+			/* Only the session's event loop writes this. Like a person, we wait
+			 * for the prompt before typing, so the command's first output is its echo. */
+			if (bytesReceived == 0 && command != null) {
+				devConn.queueCommand(command+"\n");
+			}
+			bytesReceived += length;
+		}
+
+		@Override
+		public boolean isConsole() {
+			return false;
+		}
+
+		@Override
+		public void consoleUpdated(DeviceConnection devConn, ConsoleBuffer console) {}
+	}
+
+	private static AdbCrypto crypto;
+
+	public static void main(String[] args) throws Exception {
+		int devices = 100;
+		int sessionsPerDevice = 1;
+		int duration = 30;
+		String command = "flood";
+		String connectHost = null;
+		int basePort = 0;
+		boolean serve = false;
+		String metricsFile = null;
+		String recordDir = null;
+		DeviceProfile profile = new DeviceProfile();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--no-echo")) {
+					profile.echo = false;
+					continue;
+				}
+				else if (i + 1 == args.length) {
+					throw new IllegalArgumentException("Missing value for "+arg);
+				}
+
+				String value = args[++i];
+				if (arg.equals("--devices")) {
+					devices = Integer.parseInt(value);
+				}
+				else if (arg.equals("--sessions")) {
+					sessionsPerDevice = Integer.parseInt(value);
+				}
+				else if (arg.equals("--duration")) {
+					duration = Integer.parseInt(value);
+				}
+				else if (arg.equals("--command")) {
+					command = value.isEmpty() ? null : value;
+				}
+				else if (arg.equals("--connect")) {
+					int colon = value.lastIndexOf(':');
+					if (colon < 0) {
+						throw new IllegalArgumentException("--connect needs HOST:PORT");
+					}
+					connectHost = value.substring(0, colon);
+					basePort = Integer.parseInt(value.substring(colon + 1));
+				}
+				else if (arg.equals("--serve")) {
+					serve = true;
+					basePort = Integer.parseInt(value);
+				}
+				else if (arg.equals("--metrics")) {
+					metricsFile = value;
+				}
+				else if (arg.equals("--record")) {
+					recordDir = value;
+				}
+				else if (arg.equals("--auth")) {
+					profile.authMode = DeviceProfile.AuthMode.valueOf(value.toUpperCase().replace('-', '_'));
+				}
+				else if (arg.equals("--output-rate")) {
+					profile.outputRate = Long.parseLong(value);
+				}
+				else if (arg.equals("--latency")) {
+					profile.latencyMs = Integer.parseInt(value);
+				}
+				else if (arg.equals("--bandwidth")) {
+					profile.bandwidth = Long.parseLong(value);
+				}
+				else if (arg.equals("--loss")) {
+					profile.lossRate = Double.parseDouble(value);
+				}
+				else if (arg.equals("--script")) {
+					profile.script = ShellScript.load(new File(value));
+				}
+				else {
+					throw new IllegalArgumentException("Unknown option "+arg);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(1);
+		}
+
+		if (serve) {
+			FakeAdbd adbd = startDevices(profile, devices, basePort);
+			System.out.println("Serving "+devices+" devices on "+adbd.getHost()+" ports "+basePort+"-"+(basePort + devices - 1));
+			System.out.println("Profile: "+profile);
+			for (;;) {
+				Thread.sleep(10000);
+				System.out.println(adbd.getConnectionCount()+" connections, "+
+						(adbd.getBytesSent() >> 20)+" MiB sent, "+(adbd.getBytesReceived() >> 20)+" MiB received");
+			}
+		}
+
+		run(profile, devices, sessionsPerDevice, duration, command, connectHost, basePort, metricsFile, recordDir);
+		System.exit(0);
+	}
+
+	private static FakeAdbd startDevices(DeviceProfile profile, int count, int basePort) throws IOException {
+		FakeAdbd adbd = new FakeAdbd();
+		for (int i = 0; i < count; i++) {
+			adbd.addDevice(profile, (basePort != 0) ? basePort + i : 0);
+		}
+		return adbd;
+	}
+
+	private static void run(DeviceProfile profile, int deviceCount, int sessionsPerDevice, int duration,
+			String command, String connectHost, int basePort, String metricsFile, String recordDir) throws Exception {
+		crypto = AdbCrypto.generateAdbKeyPair(new AdbBase64() {
+			@Override
+			public String encodeToString(byte[] data) {
+				return java.util.Base64.getEncoder().encodeToString(data);
+			}
+		});
+
+		/* Warm up the engine so its fixed threads aren't counted per device */
+		DeviceChannelManager.getDefault();
+		long baselineHeap = getUsedHeap();
+		int baselineThreads = countHostThreads();
+
+		FakeAdbd adbd = null;
+		String host = connectHost;
+		int[] ports = new int[deviceCount];
+		if (connectHost == null) {
+			adbd = startDevices(profile, deviceCount, 0);
+			host = adbd.getHost();
+			ArrayList<FakeAdbd.Device> devices = adbd.getDevices();
+			for (int i = 0; i < deviceCount; i++) {
+				ports[i] = devices.get(i).getPort();
+			}
+			System.out.println("Started "+deviceCount+" devices: "+profile);
+		}
+		else {
+			for (int i = 0; i < deviceCount; i++) {
+				ports[i] = basePort + i;
+			}
+		}
+
+		System.out.println("Opening "+(deviceCount * sessionsPerDevice)+" sessions"+
+				(command != null ? ", each running \""+command+"\"" : ""));
+		if (recordDir != null) {
+			new File(recordDir).mkdirs();
+		}
+		ArrayList<Session> sessions = new ArrayList<Session>();
+		for (int i = 0; i < deviceCount; i++) {
+			for (int j = 0; j < sessionsPerDevice; j++) {
+				Session session = new Session(i, command);
+				session.devConn = new DeviceConnection(session, host, ports[i]);
+				if (recordDir != null) {
+					File file = new File(recordDir, "session-"+session.devConn.getSessionId()+".rslg");
+					session.devConn.setRecorder(new SessionRecorder(file, session.devConn));
+				}
+				sessions.add(session);
+				session.devConn.startConnect();
+			}
+		}
+
+		long start = System.nanoTime();
+		long lastBytes = 0;
+		long lastTime = start;
+		for (int second = 1; second <= duration; second++) {
+			Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1000000);
+
+			long now = System.nanoTime();
+			long bytes = 0;
+			int established = 0, failed = 0;
+			for (Session session : sessions) {
+				bytes += session.bytesReceived;
+				if (session.failed) {
+					failed++;
+				}
+				else if (session.connectTime >= 0) {
+					established++;
+				}
+			}
+
+			double rate = (bytes - lastBytes) / ((now - lastTime) / 1e9);
+			System.out.printf("%4ds  %d/%d sessions open, %d failed  %8.2f MiB/s  %8.1f KiB/s per device  %d host threads%n",
+					second, established, sessions.size(), failed, rate / (1 << 20), rate / 1024 / deviceCount,
+					countHostThreads());
+			lastBytes = bytes;
+			lastTime = now;
+		}
+
+		report(sessions, deviceCount, start, baselineThreads, baselineHeap, adbd != null);
+		if (metricsFile != null) {
+			writeMetrics(sessions, metricsFile);
+		}
+
+		long recordsDropped = 0;
+		for (Session session : sessions) {
+			session.devConn.close();
+
+			SessionRecorder recorder = session.devConn.getRecorder();
+			if (recorder != null) {
+				recorder.close();
+				recordsDropped += recorder.getRecordsDropped();
+			}
+		}
+		if (recordDir != null) {
+			System.out.println("Recorded "+sessions.size()+" sessions to "+recordDir+
+					(recordsDropped > 0 ? ", dropping "+recordsDropped+" records" : ""));
+		}
+		if (adbd != null) {
+			adbd.close();
+		}
+	}
+
+	private static void report(ArrayList<Session> sessions, int deviceCount, long start,
+			int baselineThreads, long baselineHeap, boolean devicesInProcess) {
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		long[] connectTimes = new long[sessions.size()];
+		int connected = 0;
+		long totalBytes = 0;
+		long[] deviceBytes = new long[deviceCount];
+		for (Session session : sessions) {
+			if (session.connectTime >= 0) {
+				connectTimes[connected++] = session.connectTime;
+			}
+			totalBytes += session.bytesReceived;
+			deviceBytes[session.device] += session.bytesReceived;
+		}
+		connectTimes = Arrays.copyOf(connectTimes, connected);
+		Arrays.sort(connectTimes);
+		Arrays.sort(deviceBytes);
+
+		int hostThreads = countHostThreads();
+		long heap = getUsedHeap();
+
+		System.out.println();
+		System.out.println("Sessions:        "+connected+" of "+sessions.size()+" connected");
+		if (connected > 0) {
+			System.out.printf("Connect time:    p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+					percentile(connectTimes, 50), percentile(connectTimes, 95),
+					percentile(connectTimes, 99), connectTimes[connected - 1] / 1e6);
+		}
+		System.out.printf("Throughput:      %.2f MiB/s total, per device min %.1f / median %.1f / max %.1f KiB/s%n",
+				totalBytes / elapsed / (1 << 20), deviceBytes[0] / elapsed / 1024,
+				deviceBytes[deviceCount / 2] / elapsed / 1024, deviceBytes[deviceCount - 1] / elapsed / 1024);
+		System.out.printf("Host threads:    %d (%d before connecting, %.2f per device)%n",
+				hostThreads, baselineThreads, (hostThreads - baselineThreads) / (double)deviceCount);
+		System.out.printf("Heap:            %.1f MiB used, %.1f KiB per device%s%n",
+				heap / 1048576.0, (heap - baselineHeap) / 1024.0 / deviceCount,
+				devicesInProcess ? " (includes the fake devices)" : "");
+		System.out.println("Shared channels: "+DeviceChannelManager.getDefault().getChannelCount());
+
+		if (connected > 0) {
+			reportPhases(sessions);
+		}
+	}
+
+	/* Where connect time goes, to tell a slow handshake from a slow host */
+	private static void reportPhases(ArrayList<Session> sessions) {
+		ArrayList<ConnectionMetrics.Snapshot> snapshots = new ArrayList<ConnectionMetrics.Snapshot>();
+		ConnectionMetrics.Snapshot slowest = null;
+		Session slowestSession = null;
+		for (Session session : sessions) {
+			ConnectionMetrics.Snapshot snapshot = session.devConn.getMetrics().snapshot();
+			if (snapshot.getConnectTime() < 0) {
+				continue;
+			}
+			snapshots.add(snapshot);
+			if (slowest == null || snapshot.getConnectTime() > slowest.getConnectTime()) {
+				slowest = snapshot;
+				slowestSession = session;
+			}
+		}
+
+		System.out.println("Connect phases:  p50 / p95 / max ms");
+		for (ConnectionMetrics.Phase phase : ConnectionMetrics.Phase.values()) {
+			long[] times = new long[snapshots.size()];
+			for (int i = 0; i < times.length; i++) {
+				times[i] = snapshots.get(i).getPhaseTime(phase);
+			}
+			Arrays.sort(times);
+			System.out.printf("  %-14s %.1f / %.1f / %.1f%n", phase.getLabel(),
+					percentile(times, 50), percentile(times, 95), times[times.length - 1] / 1e6);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (ConnectionMetrics.Phase phase : ConnectionMetrics.Phase.values()) {
+			sb.append(' ').append(phase.getLabel()).append(' ')
+				.append(slowest.getPhaseTime(phase) / 1000000).append(" ms");
+		}
+		System.out.println("Slowest connect: device "+slowestSession.device+" in "+
+				(slowest.getConnectTime() / 1000000)+" ms:"+sb);
+
+		/* Queue to first output, which is the echo for interactive shells */
+		ArrayList<Long> roundTrips = new ArrayList<Long>();
+		for (ConnectionMetrics.Snapshot snapshot : snapshots) {
+			LatencyHistogram.Snapshot queue = snapshot.getCommandTimes(CommandTracer.Interval.QUEUE);
+			LatencyHistogram.Snapshot device = snapshot.getCommandTimes(CommandTracer.Interval.DEVICE);
+			if (device.getCount() != 0) {
+				roundTrips.add(queue.getMax() + device.getMax());
+			}
+		}
+		if (!roundTrips.isEmpty()) {
+			long[] times = new long[roundTrips.size()];
+			for (int i = 0; i < times.length; i++) {
+				times[i] = roundTrips.get(i);
+			}
+			Arrays.sort(times);
+			System.out.printf("Command echo:    p50 %.1f ms, p95 %.1f ms, max %.1f ms%n",
+					percentile(times, 50), percentile(times, 95), times[times.length - 1] / 1e6);
+		}
+	}
+
+	private static void writeMetrics(ArrayList<Session> sessions, String file) throws IOException {
+		ArrayList<ConnectionMetrics.Snapshot> snapshots = new ArrayList<ConnectionMetrics.Snapshot>();
+		for (Session session : sessions) {
+			snapshots.add(session.devConn.getMetrics().snapshot());
+		}
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(ConnectionMetrics.toCsv(snapshots));
+		} finally {
+			writer.close();
+		}
+		System.out.println("Wrote metrics for "+snapshots.size()+" sessions to "+file);
+	}
+
+	private static double percentile(long[] sorted, int percentile) {
+		int index = (int)Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+
+	/* Live threads that aren't running fake devices */
+	private static int countHostThreads() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int count = 0;
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info != null && !info.getThreadName().startsWith(FakeAdbd.THREAD_PREFIX)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static long getUsedHeap() {
+		/* Best effort at measuring only what's reachable */
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
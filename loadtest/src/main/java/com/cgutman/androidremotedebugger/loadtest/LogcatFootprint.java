@@ -0,0 +1,130 @@
+package com.cgutman.androidremotedebugger.loadtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.console.LogcatFilter;
+import com.cgutman.androidremotedebugger.console.LogcatQuery;
+import com.cgutman.androidremotedebugger.console.LogcatStore;
+import com.cgutman.androidremotedebugger.console.OutputFilter;
+
+/**
+ * Compares the memory it takes to keep logcat output as console text with
+ * keeping it as structured logcat columns, and how long it takes to filter
+ * the columns. The output is either made up, or read from a file saved with
+ * `adb logcat -v threadtime -d`.
+ */
+public class LogcatFootprint {
+	private static final String USAGE =
+			"Usage: LogcatFootprint [options] [FILE]\n"+
+			"  --lines N            Lines to make up when there's no file (default 1000000)\n"+
+			"  --query TERMS        Filter to time, like \"W ActivityManager\" (default E)\n";
+
+	private static final String[] PRIORITIES = {"V", "D", "D", "I", "I", "I", "W", "E"};
+
+	public static void main(String[] args) throws Exception {
+		int lines = 1000000;
+		String query = "E";
+		File file = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (!arg.startsWith("--")) {
+					file = new File(arg);
+				}
+				else if (i + 1 == args.length) {
+					throw new IllegalArgumentException("Missing value for "+arg);
+				}
+				else if (arg.equals("--lines")) {
+					lines = Integer.parseInt(args[++i]);
+				}
+				else if (arg.equals("--query")) {
+					query = args[++i];
+				}
+				else {
+					throw new IllegalArgumentException("Unknown option "+arg);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(1);
+		}
+
+		byte[] output = (file != null) ? readFile(file) : makeOutput(lines);
+
+		/* A console big enough to keep all of it in memory */
+		ConsoleBuffer console = new ConsoleBuffer(output.length);
+		console.append(output, 0, output.length);
+		int textLines = console.getLastLine() - console.getFirstLine();
+		long textBytes = 6L * console.getCapacity() + console.getLineIndexMemoryUsage();
+
+		LogcatStore store = new LogcatStore(Integer.MAX_VALUE);
+		LogcatFilter filter = new LogcatFilter(store);
+		filter.process(output, 0, output.length, new OutputFilter.Sink() {
+			@Override
+			public void append(byte[] data, int offset, int length) {}
+		});
+		int parsedLines = store.getLineCount();
+		long columnBytes = store.getMemoryUsage();
+
+		System.out.printf("%d lines, %d of them from logcat, %d tags, %d bytes of output\n",
+				textLines, parsedLines, store.getTagCount(), output.length);
+		System.out.printf("Console text:    %,d bytes, %.1f per line\n", textBytes, (double) textBytes / Math.max(1, textLines));
+		System.out.printf("Logcat columns:  %,d bytes, %.1f per line\n", columnBytes, (double) columnBytes / Math.max(1, parsedLines));
+
+		LogcatQuery logcatQuery = LogcatQuery.parse(query);
+		long best = Long.MAX_VALUE;
+		int matched = 0;
+		for (int i = 0; i < 10; i++) {
+			long start = System.nanoTime();
+			matched = store.count(logcatQuery);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("Filtering by \"%s\": %d lines match, fastest scan %.2f ms\n",
+				logcatQuery, matched, best / 1000000.0);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		if (file.length() > Integer.MAX_VALUE / 2) {
+			throw new IOException(file + " is too big");
+		}
+
+		byte[] data = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < data.length) {
+				int count = in.read(data, read, data.length - read);
+				if (count < 0) {
+					break;
+				}
+				read += count;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/* Busy device output: a few hundred tags, a few dozen processes, short messages */
+	private static byte[] makeOutput(int lines) throws IOException {
+		Random random = new Random(0);
+		StringBuilder text = new StringBuilder();
+		long millis = 12 * 3600 * 1000;
+		for (int i = 0; i < lines; i++) {
+			millis += random.nextInt(5);
+			int pid = 1000 + random.nextInt(40) * 37;
+			text.append(String.format("01-01 %02d:%02d:%02d.%03d %5d %5d %s %-8s: %s %d\r\n",
+					millis / 3600000, millis / 60000 % 60, millis / 1000 % 60, millis % 1000,
+					pid, pid + random.nextInt(20), PRIORITIES[random.nextInt(PRIORITIES.length)],
+					"Tag" + random.nextInt(300), "Start proc com.example/u0a123 for activity", i));
+		}
+		return text.toString().getBytes("UTF-8");
+	}
+}
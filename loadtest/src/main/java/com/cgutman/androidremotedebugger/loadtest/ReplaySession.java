@@ -0,0 +1,115 @@
+package com.cgutman.androidremotedebugger.loadtest;
+
+import java.io.File;
+import java.util.Date;
+
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.androidremotedebugger.console.ConsoleBuffer;
+import com.cgutman.androidremotedebugger.devconn.DeviceConnection;
+import com.cgutman.androidremotedebugger.devconn.SessionReplayer;
+import com.cgutman.androidremotedebugger.service.ShellListener;
+
+/**
+ * Plays a session recording through the same console pipeline the app uses,
+ * then prints the end of the console and how fast it was processed. Played
+ * as fast as possible, the same recording always makes the same input, so
+ * this doubles as a throughput benchmark for the console.
+ */
+public class ReplaySession {
+	private static final String USAGE =
+			"Usage: ReplaySession [options] FILE\n"+
+			"  --real-time          Play with the recorded timing instead of as fast as possible\n"+
+			"  --repeat N           Play the recording N times and report the fastest (default 1)\n"+
+			"  --lines N            Console lines to print at the end (default 25)\n";
+
+	public static void main(String[] args) throws Exception {
+		boolean realTime = false;
+		int repeat = 1;
+		int lines = 25;
+		File file = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--real-time")) {
+					realTime = true;
+				}
+				else if (!arg.startsWith("--")) {
+					file = new File(arg);
+				}
+				else if (i + 1 == args.length) {
+					throw new IllegalArgumentException("Missing value for "+arg);
+				}
+				else if (arg.equals("--repeat")) {
+					repeat = Integer.parseInt(args[++i]);
+				}
+				else if (arg.equals("--lines")) {
+					lines = Integer.parseInt(args[++i]);
+				}
+				else {
+					throw new IllegalArgumentException("Unknown option "+arg);
+				}
+			}
+			if (file == null) {
+				throw new IllegalArgumentException("No recording given");
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(1);
+		}
+
+		long fastest = Long.MAX_VALUE;
+		long bytes = 0;
+		ConsoleBuffer console = null;
+		for (int i = 0; i < repeat; i++) {
+			SessionReplayer replayer = new SessionReplayer(file);
+			try {
+				if (i == 0) {
+					System.out.println("Session to "+replayer.getHost()+":"+replayer.getPort()+" \""+
+							replayer.getDestination()+"\", recorded "+new Date(replayer.getRecordedTime()));
+				}
+
+				ConsoleCapture capture = new ConsoleCapture();
+				DeviceConnection devConn = replayer.createConnection(capture);
+
+				long start = System.nanoTime();
+				bytes = replayer.replay(capture, devConn, realTime);
+				fastest = Math.min(fastest, System.nanoTime() - start);
+				console = capture.console;
+			} finally {
+				replayer.close();
+			}
+		}
+
+		if (console != null && lines > 0) {
+			ConsoleBuffer.LineWindow window = new ConsoleBuffer.LineWindow();
+			int count = console.fillWindow(window, console.getLastLine(), lines, console.getCapacity());
+			System.out.println("--- last "+count+" lines ---");
+			for (int i = 0; i < count; i++) {
+				System.out.println(new String(window.text, window.lineStarts[i], window.getLineLength(i)));
+			}
+			System.out.println("---");
+		}
+
+		double seconds = fastest / 1e9;
+		System.out.printf("Replayed %d bytes in %.1f ms: %.2f MiB/s%n",
+				bytes, seconds * 1000, bytes / seconds / (1 << 20));
+	}
+
+	/* The app's console pipeline, keeping hold of the console when the stream ends */
+	private static class ConsoleCapture extends ShellListener {
+		ConsoleBuffer console;
+
+		@Override
+		public AdbCrypto loadAdbCrypto(DeviceConnection devConn) {
+			return null;
+		}
+
+		@Override
+		protected ConsoleBuffer createConsole(DeviceConnection devConn) {
+			console = super.createConsole(devConn);
+			return console;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package com.cgutman.androidremotedebugger.loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.cgutman.androidremotedebugger.devconn.DeviceScanner;
+
+/**
+ * Sweeps a block of loopback addresses with DeviceScanner while fake devices
+ * listen on some of them, and checks that it finds every device and nothing
+ * else. Linux answers on all of 127.0.0.0/8, so the default /22 needs no
+ * setup. Closed ports there refuse at once, where on a real network most
+ * addresses don't answer at all, so tarpits that take connections and never
+ * reply make some probes wait out their timeout.
+ */
+public class ScanSweep {
+	private static final String USAGE =
+			"Usage: ScanSweep [options]\n"+
+			"  --range CIDR         Loopback block to scan (default 127.0.4.0/22)\n"+
+			"  --devices N          Fake devices at random addresses in the block (default 32)\n"+
+			"  --tarpits N          Addresses that take connections on 5555 and never reply (default 32)\n"+
+			"  --port PORT          Scan only PORT instead of the common ADB ports\n"+
+			"  --max-in-flight N    Probes at once (default "+DeviceScanner.DEFAULT_MAX_IN_FLIGHT+")\n"+
+			"  --timeout MS         How long a probe waits (default "+DeviceScanner.DEFAULT_TIMEOUT_MS+")\n"+
+			"  --no-confirm         Count any open port as a device without sending a CNXN\n";
+
+	private static final int DEFAULT_PORT = 5555;
+
+	public static void main(String[] args) throws Exception {
+		String rangeText = "127.0.4.0/22";
+		int deviceCount = 32;
+		int tarpitCount = 32;
+		int port = 0;
+		int maxInFlight = DeviceScanner.DEFAULT_MAX_IN_FLIGHT;
+		int timeoutMs = DeviceScanner.DEFAULT_TIMEOUT_MS;
+		boolean confirm = true;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--no-confirm")) {
+					confirm = false;
+					continue;
+				}
+				else if (i + 1 == args.length) {
+					throw new IllegalArgumentException("Missing value for "+arg);
+				}
+
+				String value = args[++i];
+				if (arg.equals("--range")) {
+					rangeText = value;
+				}
+				else if (arg.equals("--devices")) {
+					deviceCount = Integer.parseInt(value);
+				}
+				else if (arg.equals("--tarpits")) {
+					tarpitCount = Integer.parseInt(value);
+				}
+				else if (arg.equals("--port")) {
+					port = Integer.parseInt(value);
+				}
+				else if (arg.equals("--max-in-flight")) {
+					maxInFlight = Integer.parseInt(value);
+				}
+				else if (arg.equals("--timeout")) {
+					timeoutMs = Integer.parseInt(value);
+				}
+				else {
+					throw new IllegalArgumentException("Unknown option "+arg);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(1);
+		}
+
+		DeviceScanner.AddressRange range = DeviceScanner.AddressRange.parse(rangeText);
+		if (!range.getAddress(0).isLoopbackAddress()) {
+			System.err.println(rangeText+" isn't a loopback block");
+			System.exit(1);
+		}
+		if (deviceCount + tarpitCount > range.getCount()) {
+			System.err.println(rangeText+" only has "+range.getCount()+" addresses");
+			System.exit(1);
+		}
+
+		/* Devices sit on any of the common ports, so a single port scan misses some */
+		int[] commonPorts = DeviceScanner.getCommonPorts(DEFAULT_PORT);
+		int[] ports = (port != 0) ? new int[] {port} : commonPorts;
+
+		ArrayList<Integer> addresses = new ArrayList<Integer>();
+		for (int i = 0; i < range.getCount(); i++) {
+			addresses.add(i);
+		}
+		Random random = new Random(0);
+		Collections.shuffle(addresses, random);
+
+		FakeAdbd adbd = new FakeAdbd();
+		ArrayList<ServerSocketChannel> tarpits = new ArrayList<ServerSocketChannel>();
+		Set<InetSocketAddress> expected = new HashSet<InetSocketAddress>();
+		int expectedHere = 0;
+		try {
+			for (int i = 0; i < deviceCount; i++) {
+				InetSocketAddress address = new InetSocketAddress(range.getAddress(addresses.get(i)),
+						commonPorts[random.nextInt(commonPorts.length)]);
+				adbd.addDevice(new DeviceProfile(), address.getAddress(), address.getPort());
+				expected.add(address);
+				for (int scanned : ports) {
+					if (scanned == address.getPort()) {
+						expectedHere++;
+					}
+				}
+			}
+			for (int i = deviceCount; i < deviceCount + tarpitCount; i++) {
+				/* Never accepted, so a probe connects and then hears nothing */
+				ServerSocketChannel tarpit = ServerSocketChannel.open();
+				tarpits.add(tarpit);
+				tarpit.socket().bind(new InetSocketAddress(range.getAddress(addresses.get(i)), DEFAULT_PORT), 128);
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to listen on "+rangeText+": "+e.getMessage());
+			System.err.println("Binding to addresses other than 127.0.0.1 needs Linux");
+			System.exit(1);
+		}
+
+		System.out.println("Scanning "+rangeText+" ("+range.getCount()+" addresses) on "+ports.length+
+				(ports.length == 1 ? " port" : " ports")+", "+deviceCount+" devices, "+tarpitCount+" tarpits");
+
+		final CountDownLatch complete = new CountDownLatch(1);
+		final Set<InetSocketAddress> found =
+				Collections.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+		DeviceScanner scanner = new DeviceScanner(new DeviceScanner.Listener() {
+			@Override
+			public void onEndpointFound(DeviceScanner scanner, InetSocketAddress address) {
+				found.add(address);
+			}
+
+			@Override
+			public void onScanComplete(DeviceScanner scanner) {
+				complete.countDown();
+			}
+		}, range, ports, confirm, maxInFlight, timeoutMs);
+
+		long start = System.nanoTime();
+		scanner.start();
+		while (!complete.await(1, TimeUnit.SECONDS)) {
+			System.out.println(scanner.getProbedCount()+" of "+scanner.getTotalCount()+" probed, "+
+					scanner.getFoundCount()+" found");
+		}
+		long elapsed = System.nanoTime() - start;
+
+		int missed = 0;
+		for (InetSocketAddress address : expected) {
+			boolean scanned = false;
+			for (int scannedPort : ports) {
+				scanned |= (scannedPort == address.getPort());
+			}
+			if (scanned && !found.contains(address)) {
+				System.out.println("Missed "+address);
+				missed++;
+			}
+		}
+		int unexpected = 0;
+		for (InetSocketAddress address : found) {
+			if (!expected.contains(address)) {
+				System.out.println("Not a device: "+address);
+				unexpected++;
+			}
+		}
+
+		double seconds = elapsed / 1e9;
+		System.out.println();
+		System.out.printf("Probed:        %d in %.2f s (%.0f/s)%n", scanner.getProbedCount(), seconds,
+				scanner.getProbedCount() / seconds);
+		System.out.println("Found:         "+found.size()+" of "+expectedHere+" on the scanned ports"+
+				(expectedHere < deviceCount ? " ("+(deviceCount - expectedHere)+" on other ports)" : ""));
+		System.out.println("Missed:        "+missed);
+		System.out.println("Not devices:   "+unexpected);
+
+		for (ServerSocketChannel tarpit : tarpits) {
+			tarpit.close();
+		}
+		adbd.close();
+		System.exit((missed == 0 && unexpected == 0) ? 0 : 1);
+	}
+}
@@ -0,0 +1,104 @@
+package com.cgutman.androidremotedebugger.loadtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+
+/**
+ * Canned output for shell commands. Each line of a script file maps a command
+ * to its output and, optionally, its exit status, separated by tabs:
+ *
+ *   getprop ro.build.fingerprint	google/sdk/generic:12/SE1A/1:user/release-keys\n
+ *   pm clear com.example	Success\n	0
+ *
+ * Output may use \n, \r, \t and \\ escapes. Blank lines and lines starting
+ * with # are ignored.
+ */
+public class ShellScript {
+	public static class Response {
+		public final String output;
+		public final int status;
+
+		public Response(String output, int status) {
+			this.output = output;
+			this.status = status;
+		}
+	}
+
+	private final HashMap<String, Response> responses = new HashMap<String, Response>();
+
+	public static ShellScript load(File file) throws IOException {
+		ShellScript script = new ShellScript();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] fields = line.split("\t");
+				if (fields.length < 2 || fields.length > 3) {
+					throw new IOException(file+":"+lineNumber+": expected command, output and optional status");
+				}
+
+				int status = 0;
+				if (fields.length == 3) {
+					try {
+						status = Integer.parseInt(fields[2].trim());
+					} catch (NumberFormatException e) {
+						throw new IOException(file+":"+lineNumber+": invalid exit status");
+					}
+				}
+				script.put(fields[0].trim(), unescape(fields[1]), status);
+			}
+		} finally {
+			reader.close();
+		}
+		return script;
+	}
+
+	public void put(String command, String output, int status) {
+		responses.put(command, new Response(output, status));
+	}
+
+	/**
+	 * @return The canned response for the command, or null if there isn't one
+	 */
+	public Response lookup(String command) {
+		return responses.get(command.trim());
+	}
+
+	private static String unescape(String text) {
+		StringBuilder sb = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c != '\\' || i + 1 == text.length()) {
+				sb.append(c);
+				continue;
+			}
+
+			char next = text.charAt(++i);
+			switch (next) {
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			default:
+				sb.append(next);
+				break;
+			}
+		}
+		return sb.toString();
+	}
+}